@@ -0,0 +1,121 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator;
+
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.configuration.Settings;
+import org.dataone.service.types.v1.Checksum;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dataone.service.types.v1.Subject;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Benchmarks the whole IndexTaskGenerator.processSystemMetaDataUpdate path
+ * (ignore list, filter, dedupe queries and save) against the in-memory H2
+ * database of bench-context.xml. The solr lookup of the filter is switched
+ * off since there is no solr server; HZEventFilterBenchmark measures it.
+ * The updates cycle through a fixed set of pids, so each one replaces the
+ * new task of its pid like a burst of updates does.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexTaskGeneratorBenchmark {
+
+    @Param({ "1000" })
+    public int pids;
+
+    private ClassPathXmlApplicationContext context;
+    private IndexTaskGenerator generator;
+    private SystemMetadata[] sysmetas;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Settings.getConfiguration().setProperty("indexEvent.filtering.active", false);
+        context = new ClassPathXmlApplicationContext("bench-context.xml");
+        generator = context.getBean(IndexTaskGenerator.class);
+        sysmetas = new SystemMetadata[pids];
+        for (int i = 0; i < pids; i++) {
+            sysmetas[i] = sysmeta("urn:uuid:bench-update-" + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        generator.close();
+        context.close();
+    }
+
+    @Benchmark
+    public IndexTask processSystemMetaDataUpdate() {
+        SystemMetadata sysmeta = sysmetas[next];
+        next = (next + 1) % sysmetas.length;
+        return generator.processSystemMetaDataUpdate(sysmeta, "/var/metacat/documents/" + sysmeta.getIdentifier().getValue());
+    }
+
+    private static SystemMetadata sysmeta(String id) {
+        SystemMetadata sysmeta = new SystemMetadata();
+        Identifier pid = new Identifier();
+        pid.setValue(id);
+        sysmeta.setIdentifier(pid);
+        ObjectFormatIdentifier formatId = new ObjectFormatIdentifier();
+        formatId.setValue("CF-1.0");
+        sysmeta.setFormatId(formatId);
+        sysmeta.setSerialVersion(BigInteger.TEN);
+        sysmeta.setSize(BigInteger.TEN);
+        Checksum checksum = new Checksum();
+        checksum.setValue("V29ybGQgSGVsbG8h");
+        checksum.setAlgorithm("SHA-1");
+        sysmeta.setChecksum(checksum);
+        Subject rightsHolder = new Subject();
+        rightsHolder.setValue("DataONE");
+        sysmeta.setRightsHolder(rightsHolder);
+        sysmeta.setSubmitter(rightsHolder);
+        sysmeta.setDateSysMetadataModified(new Date());
+        return sysmeta;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.filter;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks HZEventFilter.filter against the in-memory StubSolrClient, so
+ * the cost of the filter itself (query building, response parsing and the
+ * decision) is measured without the network, for both solr lookup strategies. A quarter of the pids are not
+ * in solr, a quarter have an older solr document and half are unchanged, so
+ * the common branches 2.2, 3.1 and 3.3.1.1 are all taken.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HZEventFilterBenchmark {
+
+    private static final int PIDS = 1000;
+    private static final int BATCH_SIZE = 100;
+
+    @Param({ "false", "true" })
+    public boolean cached;
+
+    @Param({ SelectStateLookup.NAME, RealTimeGetStateLookup.NAME })
+    public String lookup;
+
+    private HZEventFilter filter;
+    private List<SystemMetadata> sysmetas;
+    private List<SystemMetadata> batch;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        StubSolrClient solr = new StubSolrClient();
+        Date modified = new Date();
+        Date older = new Date(modified.getTime() - 60000);
+        sysmetas = new ArrayList<SystemMetadata>(PIDS);
+        for (int i = 0; i < PIDS; i++) {
+            String id = "urn:uuid:bench-filter-" + i;
+            switch (i % 4) {
+            case 0:
+                //not in solr
+                break;
+            case 1:
+                solr.addDocument(id, older, 1L, null, null);
+                break;
+            default:
+                solr.addDocument(id, modified, 2L, null, null);
+            }
+            sysmetas.add(sysmeta(id, modified, 2));
+        }
+        batch = sysmetas.subList(0, BATCH_SIZE);
+        filter = new HZEventFilter(solr, cached ? new SolrStateCache(PIDS * 2, TimeUnit.HOURS.toMillis(1)) : null);
+        filter.setLookup(RealTimeGetStateLookup.NAME.equals(lookup) ? new RealTimeGetStateLookup()
+                : new SelectStateLookup());
+    }
+
+    @Benchmark
+    public boolean filterSingle() {
+        SystemMetadata sysmeta = sysmetas.get(next);
+        next = (next + 1) % PIDS;
+        return filter.filter(sysmeta);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public boolean[] filterBatch() {
+        return filter.filter(batch);
+    }
+
+    private static SystemMetadata sysmeta(String id, Date modified, long serialVersion) {
+        SystemMetadata sysmeta = new SystemMetadata();
+        Identifier pid = new Identifier();
+        pid.setValue(id);
+        sysmeta.setIdentifier(pid);
+        sysmeta.setDateSysMetadataModified(modified);
+        sysmeta.setSerialVersion(BigInteger.valueOf(serialVersion));
+        sysmeta.setArchived(false);
+        return sysmeta;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.Replica;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the ReplicaDigest of both replica lists for lists of 0 to 100
+ * entries against the LegacyReplicaComparison, which built Replica objects
+ * from the solr values and compared the lists with a nested loop. The solr
+ * fields hold the same replicas in a different order, which is the worst case
+ * for the legacy comparison: every replica is compared.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplicaDigestBenchmark {
+
+    @Param({ "0", "1", "3", "10", "100" })
+    public int replicas;
+
+    private List<Replica> sysReplicas;
+    private List<Object> solrMNs;
+    private List<Object> solrVerifiedDates;
+
+    @Setup
+    public void setUp() {
+        sysReplicas = new ArrayList<Replica>(replicas);
+        List<Integer> order = new ArrayList<Integer>(replicas);
+        long verified = System.currentTimeMillis();
+        for (int i = 0; i < replicas; i++) {
+            sysReplicas.add(replica("urn:node:mnBench" + i, new Date(verified - i * 1000L)));
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(42));
+        solrMNs = new ArrayList<Object>(replicas);
+        solrVerifiedDates = new ArrayList<Object>(replicas);
+        for (Integer i : order) {
+            solrMNs.add("urn:node:mnBench" + i);
+            solrVerifiedDates.add(new Date(verified - i * 1000L));
+        }
+    }
+
+    @Benchmark
+    public boolean digest() {
+        return ReplicaDigest.same(ReplicaDigest.of(sysReplicas), ReplicaDigest.of(solrMNs, solrVerifiedDates));
+    }
+
+    @Benchmark
+    public boolean legacyCompare() throws Exception {
+        return LegacyReplicaComparison.compare(sysReplicas, solrMNs, solrVerifiedDates);
+    }
+
+    private static Replica replica(String node, Date verified) {
+        NodeReference nodeRef = new NodeReference();
+        nodeRef.setValue(node);
+        Replica replica = new Replica();
+        replica.setReplicaMemberNode(nodeRef);
+        replica.setReplicaVerified(verified);
+        return replica;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.Replica;
+import org.dataone.service.types.v1.ReplicationStatus;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.dataone.service.util.TypeMarshaller;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the SystemMetadataCodec against the JiBX XML of the
+ * TypeMarshaller, encoding and decoding the v2 system metadata sample of the
+ * generator's test jar with 0 to 100 added replicas. The encoded sizes of
+ * both forms are printed when the benchmark is set up.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SystemMetadataCodecBenchmark {
+
+    private static final String SAMPLE = "/org/dataone/cn/index/resources/samples/v2/systemMetadataSample.xml";
+
+    @Param({ "0", "3", "10", "100" })
+    public int replicas;
+
+    private SystemMetadata sysmeta;
+    private byte[] encoded;
+    private byte[] xml;
+
+    @Setup
+    public void setUp() throws Exception {
+        InputStream in = SystemMetadataCodecBenchmark.class.getResourceAsStream(SAMPLE);
+        try {
+            sysmeta = TypeMarshaller.unmarshalTypeFromStream(SystemMetadata.class, in);
+        } finally {
+            in.close();
+        }
+        List<Replica> replicaList = new ArrayList<Replica>(sysmeta.getReplicaList());
+        long verified = System.currentTimeMillis();
+        for (int i = 0; i < replicas; i++) {
+            NodeReference node = new NodeReference();
+            node.setValue("urn:node:mnBench" + (i % 10));
+            Replica replica = new Replica();
+            replica.setReplicaMemberNode(node);
+            replica.setReplicationStatus(ReplicationStatus.COMPLETED);
+            replica.setReplicaVerified(new Date(verified - i * 1000L));
+            replicaList.add(replica);
+        }
+        sysmeta.setReplicaList(replicaList);
+        encoded = SystemMetadataCodec.encode(sysmeta);
+        xml = marshal(sysmeta);
+        System.out.println("SystemMetadataCodecBenchmark - " + replicas + " added replica(s): the codec takes "
+                + encoded.length + " bytes, the XML " + xml.length + " bytes.");
+    }
+
+    @Benchmark
+    public byte[] codecEncode() {
+        return SystemMetadataCodec.encode(sysmeta);
+    }
+
+    @Benchmark
+    public SystemMetadata codecDecode() throws Exception {
+        return SystemMetadataCodec.decode(encoded);
+    }
+
+    @Benchmark
+    public byte[] xmlEncode() throws Exception {
+        return marshal(sysmeta);
+    }
+
+    @Benchmark
+    public SystemMetadata xmlDecode() throws Exception {
+        return TypeMarshaller.unmarshalTypeFromStream(SystemMetadata.class, new ByteArrayInputStream(xml));
+    }
+
+    private static byte[] marshal(SystemMetadata sysmeta) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        TypeMarshaller.marshalTypeToOutputStream(sysmeta, bytes);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator;
+
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.dataone.configuration.Settings;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.orm.jpa.AbstractEntityManagerFactoryBean;
+
+/**
+ * Turns on the JDBC batching of hibernate for the entity manager factories of
+ * the context, so the index tasks the IndexTaskBatchWriter persists together
+ * are sent in a few statement batches instead of one round trip each. The
+ * inserts are ordered by entity so a flush batches all of them. A setting
+ * already given to the persistence unit is kept.
+ *
+ */
+public class HibernateBatchingConfigurer implements BeanPostProcessor {
+
+    private static Logger logger = Logger.getLogger(HibernateBatchingConfigurer.class.getName());
+    private static final String JDBC_BATCH_SIZE = "indexEvent.persist.jdbc.batch.size";
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        if (!(bean instanceof AbstractEntityManagerFactoryBean)) {
+            return bean;
+        }
+        int batchSize = Settings.getConfiguration().getInt(JDBC_BATCH_SIZE, 100);
+        if (batchSize <= 1) {
+            return bean;
+        }
+        Map<String, Object> properties = ((AbstractEntityManagerFactoryBean) bean).getJpaPropertyMap();
+        setIfAbsent(properties, "hibernate.jdbc.batch_size", String.valueOf(batchSize));
+        setIfAbsent(properties, "hibernate.order_inserts", "true");
+        setIfAbsent(properties, "hibernate.order_updates", "true");
+        logger.info("HibernateBatchingConfigurer - the JDBC batch size of " + beanName + " is "
+                + properties.get("hibernate.jdbc.batch_size"));
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+
+    private static void setIfAbsent(Map<String, Object> properties, String key, String value) {
+        if (!properties.containsKey(key)) {
+            properties.put(key, value);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+
+import org.apache.log4j.Logger;
+import org.dataone.cn.index.generator.config.GeneratorConfig;
+import org.dataone.cn.index.generator.metrics.GeneratorMetrics;
+import org.dataone.cn.index.task.IndexTask;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.PostInsertIdentifierGenerator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Saves a batch of new index tasks in one transaction. The unprocessed (new)
+ * and failed tasks of all pids in the batch are removed with set based delete
+ * statements, then the new tasks are inserted and flushed together, instead of
+ * the find, delete and save round trips per task done by IndexTaskGenerator.
+ * The HibernateBatchingConfigurer turns on the JDBC batching, so the flush
+ * sends the inserts in a few statement batches.
+ * It also reads the pids with pending tasks for the PendingTaskLedger.
+ *
+ */
+public class IndexTaskBatchWriter implements PendingTaskLedger.Source {
+
+    private static Logger logger = Logger.getLogger(IndexTaskBatchWriter.class.getName());
+    private static final List<String> REPLACED_STATUSES = Arrays.asList(IndexTask.STATUS_NEW,
+            IndexTask.STATUS_FAILED);
+    private static final List<String> PENDING_STATUSES = Arrays.asList(IndexTask.STATUS_NEW,
+            IndexTask.STATUS_FAILED, IndexTask.STATUS_IN_PROCESS);
+    private static GeneratorMetrics metrics = GeneratorMetrics.getInstance();
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Replace the new and failed tasks of the pids with the given tasks. When a
+     * pid appears more than once in the batch, only its last task is saved.
+     *
+     * @param tasks
+     * @return the saved tasks
+     */
+    public List<IndexTask> save(List<IndexTask> tasks) {
+        return save(tasks, null);
+    }
+
+    /**
+     * Replace the new and failed tasks of the pids with the given tasks, only
+     * looking for the tasks of the pids the ledger reports as maybe pending.
+     * The pids are added to the ledger before the tasks are saved.
+     *
+     * @param tasks
+     * @param ledger the ledger of the pending tasks, null to look for the tasks of every pid
+     * @return the saved tasks
+     */
+    public List<IndexTask> save(List<IndexTask> tasks, PendingTaskLedger ledger) {
+        final Map<String, IndexTask> latest = new LinkedHashMap<String, IndexTask>();
+        for (IndexTask task : tasks) {
+            latest.remove(task.getPid());
+            latest.put(task.getPid(), task);
+        }
+        if (latest.isEmpty()) {
+            return new ArrayList<IndexTask>();
+        }
+        final List<String> pids = new ArrayList<String>(latest.size());
+        for (String pid : latest.keySet()) {
+            if (ledger == null || ledger.mayBePending(pid)) {
+                pids.add(pid);
+            }
+        }
+        if (ledger != null) {
+            metrics.mark("ledger.skipped", latest.size() - pids.size());
+            for (String pid : latest.keySet()) {
+                ledger.add(pid);
+            }
+        }
+        final int chunkSize = GeneratorConfig.current().getDeleteChunkSize();
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        return template.execute(new TransactionCallback<List<IndexTask>>() {
+            @Override
+            public List<IndexTask> doInTransaction(TransactionStatus status) {
+                long startNanos = System.nanoTime();
+                int deleted = 0;
+                for (int start = 0; start < pids.size(); start += chunkSize) {
+                    List<String> chunk = pids.subList(start, Math.min(start + chunkSize, pids.size()));
+                    deleted += entityManager
+                            .createQuery("delete from IndexTask t where t.pid in (:pids) and t.status in (:statuses)")
+                            .setParameter("pids", chunk).setParameter("statuses", REPLACED_STATUSES)
+                            .executeUpdate();
+                }
+                metrics.record(GeneratorMetrics.DEDUPE, startNanos);
+                startNanos = System.nanoTime();
+                List<IndexTask> saved = new ArrayList<IndexTask>(latest.values());
+                for (IndexTask task : saved) {
+                    entityManager.persist(task);
+                }
+                entityManager.flush();
+                metrics.record(GeneratorMetrics.SAVE, startNanos);
+                logger.debug("IndexTaskBatchWriter.save - replaced " + deleted + " new or failed task(s) with "
+                        + saved.size() + " new task(s).");
+                return saved;
+            }
+        });
+    }
+
+    /**
+     * Log whether hibernate sends the inserts of a batch in JDBC batches. It
+     * doesn't when the batch size is not set, or when the id of the index task
+     * is generated by an identity column, since each insert must then return
+     * its id.
+     */
+    public void checkBatching() {
+        try {
+            EntityManagerFactory factory = entityManager.getEntityManagerFactory();
+            if (!(factory instanceof HibernateEntityManagerFactory)) {
+                return;
+            }
+            SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor)
+                    ((HibernateEntityManagerFactory) factory).getSessionFactory();
+            int batchSize = sessionFactory.getSettings().getJdbcBatchSize();
+            IdentifierGenerator generator = sessionFactory.getEntityPersister(IndexTask.class.getName())
+                    .getIdentifierGenerator();
+            if (generator instanceof PostInsertIdentifierGenerator) {
+                logger.warn("IndexTaskBatchWriter.checkBatching - the ids of the index tasks are generated by the"
+                        + " database on insert, so hibernate inserts them one by one.");
+            } else if (batchSize <= 1) {
+                logger.warn("IndexTaskBatchWriter.checkBatching - hibernate.jdbc.batch_size is not set, so the"
+                        + " index tasks are inserted one by one.");
+            } else {
+                logger.info("IndexTaskBatchWriter.checkBatching - the index tasks are inserted in JDBC batches of "
+                        + batchSize + " with the " + generator.getClass().getSimpleName() + " id generator.");
+            }
+        } catch (RuntimeException e) {
+            logger.warn("IndexTaskBatchWriter.checkBatching - failed to read the hibernate settings: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * @param max the max number of pids to return
+     * @return the pids with a new, failed or in process index task
+     */
+    @Override
+    public List<String> findPendingPids(final int max) {
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setReadOnly(true);
+        return template.execute(new TransactionCallback<List<String>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public List<String> doInTransaction(TransactionStatus status) {
+                return entityManager
+                        .createQuery("select distinct t.pid from IndexTask t where t.status in (:statuses)")
+                        .setParameter("statuses", PENDING_STATUSES).setMaxResults(max).getResultList();
+            }
+        });
+    }
+}
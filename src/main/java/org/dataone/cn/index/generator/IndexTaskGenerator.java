@@ -23,14 +23,19 @@
 package org.dataone.cn.index.generator;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
+import org.dataone.cn.index.generator.config.GeneratorConfig;
 import org.dataone.cn.index.generator.filter.HZEventFilter;
+import org.dataone.cn.index.generator.filter.SystemMetadataDigest;
+import org.dataone.cn.index.generator.metrics.Gauge;
+import org.dataone.cn.index.generator.metrics.GeneratorMetrics;
 import org.dataone.cn.index.task.IgnoringIndexIdPool;
 import org.dataone.cn.index.task.IndexTask;
 import org.dataone.cn.index.task.IndexTaskRepository;
-import org.dataone.cn.index.util.PerformanceLogger;
+import org.dataone.configuration.Settings;
 import org.dataone.service.types.v1.Identifier;
 import org.dataone.service.types.v2.SystemMetadata;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -49,12 +54,21 @@ public class IndexTaskGenerator {
 
     private static Logger logger = Logger.getLogger(IndexTaskGenerator.class.getName());
     //private static final String IGNOREPID = "OBJECT_FORMAT_LIST.1.1";
-    private static PerformanceLogger perfLog = PerformanceLogger.getInstance();
+    private static GeneratorMetrics metrics = GeneratorMetrics.getInstance();
     private static HZEventFilter filter = new HZEventFilter();
+    //The ledger of the pids with pending index tasks, its max size and the milliseconds between its rebuilds
+    private static final String INDEX_EVENT_LEDGER_ENABLED = "indexEvent.ledger.enabled";
+    private static final String INDEX_EVENT_LEDGER_CAPACITY = "indexEvent.ledger.capacity";
+    private static final String INDEX_EVENT_LEDGER_INTERVAL = "indexEvent.ledger.reconcile.interval";
 
     @Autowired
     private IndexTaskRepository repo;
 
+    @Autowired
+    private IndexTaskBatchWriter batchWriter;
+
+    private volatile PendingTaskLedger ledger = null;
+
     /**
      * Call when system metadata add events are detected, to trigger new
      * IndexTask instance generation.
@@ -63,19 +77,8 @@ public class IndexTaskGenerator {
      * @return IndexTask
      */
     public IndexTask processSystemMetaDataAdd(SystemMetadata smd, String objectPath) {
-        if (IgnoringIndexIdPool.isNotIgnorePid(smd) && !filter.filter(smd)) {
-            long start = System.currentTimeMillis();
-            removeDuplicateNewTasks(smd);
-            IndexTask task = new IndexTask(smd, objectPath);
-            task.setAddPriority();
-            task = repo.save(task);
-            String id = "Unknow";
-            if(smd != null && smd.getIdentifier() != null) {
-                id = smd.getIdentifier().getValue();
-            }
-            if (perfLog.isLogEnabled())
-            	perfLog.log("IdexTaskGenerator.processSystemMetaDataAdd add a adding task for id "+id, System.currentTimeMillis() - start);
-            return task;
+        if (needsIndexing(smd)) {
+            return createAddTask(smd, objectPath);
         }
         return null;
     }
@@ -88,19 +91,8 @@ public class IndexTaskGenerator {
      * @return IndexTask
      */
     public IndexTask processSystemMetaDataUpdate(SystemMetadata smd, String objectPath) {
-        if (IgnoringIndexIdPool.isNotIgnorePid(smd) && !filter.filter(smd)) {
-            long start = System.currentTimeMillis();
-            removeDuplicateNewTasks(smd);
-            IndexTask task = new IndexTask(smd, objectPath);
-            task.setUpdatePriority();
-            task = repo.save(task);
-            String id = "Unknow";
-            if(smd != null && smd.getIdentifier() != null) {
-                id = smd.getIdentifier().getValue();
-            }
-            if (perfLog.isLogEnabled())
-            	perfLog.log("IdexTaskGenerator.processSystemMetaDataUpdate add a updating task for id "+id, System.currentTimeMillis() - start);
-            return task;
+        if (needsIndexing(smd)) {
+            return createUpdateTask(smd, objectPath);
         }
         return null;
     }
@@ -113,23 +105,277 @@ public class IndexTaskGenerator {
      * @return IndexTask
      */
     public IndexTask processSystemMetaDataDelete(SystemMetadata smd) {
-        if (IgnoringIndexIdPool.isNotIgnorePid(smd)) {
-            long start = System.currentTimeMillis();
-            removeDuplicateNewTasks(smd);
-            IndexTask task = new IndexTask(smd, null);
-            task.setDeleted(true);
-            task = repo.save(task);
-            String id = "Unknow";
-            if(smd != null && smd.getIdentifier() != null) {
-                id = smd.getIdentifier().getValue();
-            }
-            if (perfLog.isLogEnabled())
-            	perfLog.log("IdexTaskGenerator.processSystemMetaDataUpdate add a deleting task for id "+id, System.currentTimeMillis() - start);
-            return task;
+        if (needsDeleting(smd)) {
+            return createDeleteTask(smd);
         }
         return null;
     }
 
+    /**
+     * Decide if an added or updated system metadata should generate an index
+     * task. The pid must not be on the ignore list and the event must not be
+     * filtered out by the HZEventFilter.
+     * 
+     * @param smd
+     * @return true if an index task should be generated
+     */
+    public boolean needsIndexing(SystemMetadata smd) {
+        return IgnoringIndexIdPool.isNotIgnorePid(smd) && !filter.filter(smd);
+    }
+
+    /**
+     * Decide for a batch of added or updated system metadata if they should
+     * generate index tasks. The HZEventFilter looks up the Solr state of all
+     * pids which are not on the ignore list in as few requests as possible.
+     * 
+     * @param smds
+     * @return an array parallel to the list, true if an index task should be generated
+     */
+    public boolean[] needsIndexing(List<SystemMetadata> smds) {
+        return needsIndexing(smds, GeneratorConfig.current().getSolrBatchSize());
+    }
+
+    /**
+     * Decide for a block of added or updated system metadata if they should
+     * generate index tasks, looking up the Solr state of up to solrBatchSize
+     * pids in one request.
+     * 
+     * @param smds
+     * @param solrBatchSize the max number of pids in one Solr request
+     * @return an array parallel to the list, true if an index task should be generated
+     */
+    public boolean[] needsIndexing(List<SystemMetadata> smds, int solrBatchSize) {
+        boolean[] needsIndexing = new boolean[smds.size()];
+        List<SystemMetadata> notIgnored = new ArrayList<SystemMetadata>(smds.size());
+        List<Integer> positions = new ArrayList<Integer>(smds.size());
+        for (int i = 0; i < smds.size(); i++) {
+            if (IgnoringIndexIdPool.isNotIgnorePid(smds.get(i))) {
+                notIgnored.add(smds.get(i));
+                positions.add(i);
+            }
+        }
+        boolean[] filteredOut = filter.filter(notIgnored, solrBatchSize);
+        for (int j = 0; j < filteredOut.length; j++) {
+            needsIndexing[positions.get(j)] = !filteredOut[j];
+        }
+        return needsIndexing;
+    }
+
+    /**
+     * Decide for a batch of system metadata digests if they pass the
+     * HZEventFilter. The ignore list needs the system metadata, so it is
+     * checked with isIgnored once the system metadata is fetched.
+     * 
+     * @param digests
+     * @param solrBatchSize the max number of pids in one Solr request
+     * @return an array parallel to the list, true if an index task should be generated
+     */
+    public boolean[] needsIndexingDigests(List<SystemMetadataDigest> digests, int solrBatchSize) {
+        boolean[] filteredOut = filter.filterDigests(digests, solrBatchSize);
+        boolean[] needsIndexing = new boolean[filteredOut.length];
+        for (int i = 0; i < filteredOut.length; i++) {
+            needsIndexing[i] = !filteredOut[i];
+        }
+        return needsIndexing;
+    }
+
+    /**
+     * @param smd
+     * @return true if the pid is on the ignore list
+     */
+    public boolean isIgnored(SystemMetadata smd) {
+        return !IgnoringIndexIdPool.isNotIgnorePid(smd);
+    }
+
+    /**
+     * Decide if a removed system metadata should generate a delete index task.
+     * 
+     * @param smd
+     * @return true if an index task should be generated
+     */
+    public boolean needsDeleting(SystemMetadata smd) {
+        return IgnoringIndexIdPool.isNotIgnorePid(smd);
+    }
+
+    /**
+     * Decide if a pid removed without its system metadata should generate a
+     * delete index task. The ignore list is keyed by the pid, so it is
+     * checked with a system metadata which only carries the pid.
+     * 
+     * @param pid
+     * @return true if an index task should be generated
+     */
+    public boolean needsDeleting(Identifier pid) {
+        SystemMetadata smd = new SystemMetadata();
+        smd.setIdentifier(pid);
+        return needsDeleting(smd);
+    }
+
+    /**
+     * Save a new add index task, replacing any unprocessed task for the pid.
+     * 
+     * @param smd
+     * @param objectPath
+     * @return the saved IndexTask
+     */
+    public IndexTask createAddTask(SystemMetadata smd, String objectPath) {
+        removeDuplicateNewTasks(smd.getIdentifier().getValue());
+        return saveTask(smd, buildAddTask(smd, objectPath), false);
+    }
+
+    /**
+     * Save a new update index task, replacing any unprocessed task for the pid.
+     * 
+     * @param smd
+     * @param objectPath
+     * @return the saved IndexTask
+     */
+    public IndexTask createUpdateTask(SystemMetadata smd, String objectPath) {
+        removeDuplicateNewTasks(smd.getIdentifier().getValue());
+        return saveTask(smd, buildUpdateTask(smd, objectPath), false);
+    }
+
+    /**
+     * Save a new delete index task, replacing any unprocessed task for the pid.
+     * 
+     * @param smd
+     * @return the saved IndexTask
+     */
+    public IndexTask createDeleteTask(SystemMetadata smd) {
+        removeDuplicateNewTasks(smd.getIdentifier().getValue());
+        return saveTask(smd, buildDeleteTask(smd), true);
+    }
+
+    /**
+     * Save a new delete index task for a pid whose system metadata was not
+     * received, replacing any unprocessed task for the pid.
+     * 
+     * @param pid
+     * @return the saved IndexTask
+     */
+    public IndexTask createDeleteTask(Identifier pid) {
+        removeDuplicateNewTasks(pid.getValue());
+        long start = System.nanoTime();
+        IndexTask task = repo.save(buildDeleteTask(pid));
+        metrics.record(GeneratorMetrics.SAVE, start);
+        metrics.mark(GeneratorMetrics.TASKS, 1);
+        recordDeleteTask(pid);
+        return task;
+    }
+
+    /**
+     * Build, but don't save, an add index task.
+     * 
+     * @param smd
+     * @param objectPath
+     * @return IndexTask
+     */
+    public IndexTask buildAddTask(SystemMetadata smd, String objectPath) {
+        IndexTask task = new IndexTask(smd, objectPath);
+        task.setAddPriority();
+        return task;
+    }
+
+    /**
+     * Build, but don't save, an update index task.
+     * 
+     * @param smd
+     * @param objectPath
+     * @return IndexTask
+     */
+    public IndexTask buildUpdateTask(SystemMetadata smd, String objectPath) {
+        IndexTask task = new IndexTask(smd, objectPath);
+        task.setUpdatePriority();
+        return task;
+    }
+
+    /**
+     * Build, but don't save, a delete index task.
+     * 
+     * @param smd
+     * @return IndexTask
+     */
+    public IndexTask buildDeleteTask(SystemMetadata smd) {
+        IndexTask task = new IndexTask(smd, null);
+        task.setDeleted(true);
+        return task;
+    }
+
+    /**
+     * Build, but don't save, a delete index task from the pid only, for a
+     * remove event received without its system metadata.
+     * 
+     * @param pid
+     * @return IndexTask
+     */
+    public IndexTask buildDeleteTask(Identifier pid) {
+        IndexTask task = new IndexTask();
+        task.setPid(pid.getValue());
+        task.setStatus(IndexTask.STATUS_NEW);
+        task.setDeleted(true);
+        return task;
+    }
+
+    /**
+     * Save a batch of index tasks, replacing the unprocessed and failed tasks
+     * of their pids, in one transaction.
+     * 
+     * @param tasks the new tasks built by the build methods
+     * @return the saved tasks
+     */
+    public List<IndexTask> saveTasks(List<IndexTask> tasks) {
+        List<IndexTask> saved = batchWriter.save(tasks, ledger);
+        metrics.mark(GeneratorMetrics.TASKS, saved.size());
+        return saved;
+    }
+
+    private IndexTask saveTask(SystemMetadata smd, IndexTask task, boolean deleted) {
+        long start = System.nanoTime();
+        task = repo.save(task);
+        metrics.record(GeneratorMetrics.SAVE, start);
+        metrics.mark(GeneratorMetrics.TASKS, 1);
+        recordIndexTask(smd, deleted);
+        return task;
+    }
+
+    /**
+     * Let the filter know an index task was saved for the system metadata, so
+     * its cached solr state reflects what will be indexed.
+     * 
+     * @param smd
+     * @param deleted true for a delete index task
+     */
+    public void recordIndexTask(SystemMetadata smd, boolean deleted) {
+        filter.recordIndexTask(smd, deleted);
+    }
+
+    /**
+     * Let the filter know a delete index task was saved for a pid whose
+     * system metadata was not received.
+     * 
+     * @param pid
+     */
+    public void recordDeleteTask(Identifier pid) {
+        filter.recordDeleteTask(pid.getValue());
+    }
+
+    /**
+     * @return the HZEventFilter shared by the generators
+     */
+    public static HZEventFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Replace the HZEventFilter shared by the generators, e.g. with one
+     * without a cache of the solr index state.
+     *
+     * @param eventFilter
+     */
+    public static void setFilter(HZEventFilter eventFilter) {
+        filter = eventFilter;
+    }
+
     /*private boolean isNotIgnorePid(SystemMetadata smd) {
         if (IGNOREPID.equals(smd.getIdentifier().getValue())) {
             return false;
@@ -139,18 +385,31 @@ public class IndexTaskGenerator {
 
     /**
      * Find unprocessed (new) tasks and remove. Will be replaced by new version
-     * of the task
+     * of the task. The queries are skipped when the ledger knows the pid has
+     * no pending task, and the pid is added to the ledger since its new task
+     * is saved next.
      * 
-     * @param SystemMetadata
+     * @param pid
      */
-    private void removeDuplicateNewTasks(SystemMetadata smd) {
-        removeDuplicateTasksByStatus(smd, IndexTask.STATUS_NEW);
+    private void removeDuplicateNewTasks(String pid) {
+        PendingTaskLedger pending = ledger;
+        if (pending != null) {
+            boolean skip = !pending.mayBePending(pid);
+            pending.add(pid);
+            if (skip) {
+                metrics.mark("ledger.skipped", 1);
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        removeDuplicateTasksByStatus(pid, IndexTask.STATUS_NEW);
         // new update on this pid, so remove failure and try to reprocess.
-        removeDuplicateTasksByStatus(smd, IndexTask.STATUS_FAILED);
+        removeDuplicateTasksByStatus(pid, IndexTask.STATUS_FAILED);
+        metrics.record(GeneratorMetrics.DEDUPE, start);
     }
 
-    private void removeDuplicateTasksByStatus(SystemMetadata smd, String status) {
-        List<IndexTask> itList = repo.findByPidAndStatus(smd.getIdentifier().getValue(), status);
+    private void removeDuplicateTasksByStatus(String pid, String status) {
+        List<IndexTask> itList = repo.findByPidAndStatus(pid, status);
         for (IndexTask indexTask : itList) {
             try {
                 repo.delete(indexTask);
@@ -161,11 +420,61 @@ public class IndexTaskGenerator {
         }
     }
     
+    /**
+     * Start the background work of the filter: scanning the pids of the solr
+     * index into the filter of the indexed pids and loading the local store
+     * of the solr index state. Also start the ledger of the pending tasks.
+     */
+    public void start() {
+        filter.startPidFilter();
+        filter.startStateStore();
+        if (batchWriter != null) {
+            batchWriter.checkBatching();
+        }
+        startLedger();
+    }
+
+    /**
+     * Start the ledger of the pids with pending index tasks, seeded and then
+     * rebuilt periodically from the task table.
+     */
+    private void startLedger() {
+        if (!Settings.getConfiguration().getBoolean(INDEX_EVENT_LEDGER_ENABLED, true) || batchWriter == null) {
+            logger.info("IndexTaskGenerator.startLedger - the duplicate index tasks are looked for on every event.");
+            return;
+        }
+        final PendingTaskLedger pending = new PendingTaskLedger(batchWriter,
+                Settings.getConfiguration().getInt(INDEX_EVENT_LEDGER_CAPACITY, 250000));
+        pending.start(Settings.getConfiguration().getLong(INDEX_EVENT_LEDGER_INTERVAL, 300000L));
+        metrics.register("ledger.size", new Gauge() {
+            @Override
+            public Number getValue() {
+                return pending.size();
+            }
+        });
+        ledger = pending;
+    }
+    
+    /**
+     * Report every pid as possibly pending until the ledger is rebuilt after
+     * a delay. Called when the pids processed by this generator changed.
+     * @param delayMillis the milliseconds the previous owners of the pids may still create tasks
+     */
+    public void reseedLedger(long delayMillis) {
+        PendingTaskLedger pending = ledger;
+        if (pending != null) {
+            pending.reseed(delayMillis);
+        }
+    }
+
     /**
      * Close the some underneath connections
      * @throws IOException
      */
     public void close() throws IOException {
+        if (ledger != null) {
+            ledger.stop();
+        }
         if(filter != null) {
             filter.closeSolrClient();
         }
@@ -22,8 +22,25 @@
 
 package org.dataone.cn.index.generator;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
 import org.apache.log4j.Logger;
 import org.dataone.cn.hazelcast.HazelcastClientFactory;
+import org.dataone.cn.index.generator.config.GeneratorConfigManager;
+import org.dataone.cn.index.generator.metrics.GeneratorMetrics;
+import org.dataone.cn.index.generator.pipeline.EventCoalescer;
+import org.dataone.cn.index.generator.pipeline.IndexEvent;
+import org.dataone.cn.index.generator.pipeline.IndexEventPipeline;
+import org.dataone.cn.index.generator.reconcile.CatchUpScanner;
+import org.dataone.cn.index.generator.reconcile.HazelcastSystemMetadataSource;
+import org.dataone.cn.index.generator.reconcile.Watermark;
+import org.dataone.cn.index.generator.shard.ShardCoordinator;
+import org.dataone.configuration.Settings;
 import org.dataone.service.types.v1.Identifier;
 import org.dataone.service.types.v2.SystemMetadata;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -34,8 +51,31 @@ import com.hazelcast.core.IMap;
 
 /**
  * An implementation of a Hazelcast EntryListener interface for the system
- * metadata distributed data structure. Delegates to IndexTaskGenerator class to
- * handle IndexTask creation.
+ * metadata distributed data structure. Events are queued in an
+ * IndexEventPipeline, which delegates to IndexTaskGenerator class to handle
+ * IndexTask creation, so the hazelcast event thread never waits on Solr or the
+ * database.
+ * 
+ * With indexEvent.shard.enabled several instances share the events: each
+ * one only queues the events of the pids a ShardCoordinator assigns to it,
+ * and the assignment is rebalanced when instances join or leave. When an
+ * instance stops heartbeating without leaving, the instances taking over its
+ * pids scan the changes made to them since its last heartbeat.
+ * 
+ * With indexEvent.listener.key.only the listener is registered without the
+ * values, so the cluster only sends the pid and the event type. The events
+ * dropped by the sharding or the coalescing never cost a system metadata
+ * transfer, and the pipeline fetches the values of the others in batches.
+ * A remove event has no value to fetch, so its delete task is built from the
+ * pid and the ignore list is checked by the pid. A second listener registered
+ * with the values for the remove events only isn't possible: the hazelcast
+ * client registers one listener per map, and it would then receive the
+ * values of all the events.
+ * 
+ * With indexEvent.watermark.file the latest processed modification date is
+ * checkpointed, but never past an event still in flight. On start, the changes made since the checkpoint of the
+ * previous run are scanned from the map and queued with the live events.
+ * 
  * 
  * @author sroseboo
  * 
@@ -50,6 +90,12 @@ public class IndexTaskGeneratorEntryListener implements EntryListener<Identifier
 
     private IMap<Identifier, SystemMetadata> systemMetadata;
     private IMap<Identifier, String> objectPaths;
+    private IndexEventPipeline pipeline;
+    private ShardCoordinator shard;
+    private boolean keyOnly = false;
+    private Watermark watermark;
+    private Thread catchUp;
+    private final List<Thread> failovers = new ArrayList<Thread>();
 
     public IndexTaskGeneratorEntryListener() {
 
@@ -63,63 +109,238 @@ public class IndexTaskGeneratorEntryListener implements EntryListener<Identifier
 
         this.systemMetadata = HazelcastClientFactory.getSystemMetadataMap();
         this.objectPaths = HazelcastClientFactory.getObjectPathMap();
-        this.systemMetadata.addEntryListener(this, true);
+        GeneratorConfigManager.getInstance().start();
+        GeneratorMetrics.getInstance().start();
+        generator.start();
+        this.keyOnly = Settings.getConfiguration().getBoolean("indexEvent.listener.key.only", false);
+        this.pipeline = new IndexEventPipeline(generator, objectPaths, systemMetadata, keyOnly);
+        this.pipeline.start();
+        if (Settings.getConfiguration().getBoolean("indexEvent.shard.enabled", false)) {
+            String map = Settings.getConfiguration().getString("indexEvent.shard.map", "hzIndexGeneratorMembers");
+            IMap<String, Long> heartbeats = HazelcastClientFactory.getProcessingClient().getMap(map);
+            this.shard = ShardCoordinator.fromConfiguration(heartbeats);
+            if (Settings.getConfiguration().getBoolean("indexEvent.shard.failover.scan", true)) {
+                this.shard.setFailoverListener(new ShardCoordinator.FailoverListener() {
+                    @Override
+                    public void memberFailed(ShardCoordinator.TakeOver takeOver) {
+                        startFailoverScan(takeOver);
+                    }
+                });
+            }
+            this.shard.setRingListener(new ShardCoordinator.RingListener() {
+                @Override
+                public void ringChanged(long graceMillis) {
+                    generator.reseedLedger(graceMillis);
+                }
+            });
+            this.shard.start();
+        }
+        openWatermark();
+        this.systemMetadata.addEntryListener(this, !keyOnly);
+        if (keyOnly) {
+            logger.info("The entry listener receives the pids only. The system metadata is fetched in batches.");
+        }
+        startCatchUp();
 
         logger.info("System Metadata size: " + this.systemMetadata.size());
         logger.info("Object path size:" + this.objectPaths.size());
     }
 
     /**
-     * Removes this instance as a system metadata map event listener.
+     * Removes this instance as a system metadata map event listener. A shard
+     * leaves the other instances first and keeps receiving the events of its
+     * pids until they took them over.
      */
     public void stop() {
         logger.info("stopping index task generator entry listener...");
+        if (shard != null) {
+            shard.stop();
+            try {
+                Thread.sleep(shard.getHandoverMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         this.systemMetadata.removeEntryListener(this);
+        if (catchUp != null) {
+            catchUp.interrupt();
+            try {
+                catchUp.join(Settings.getConfiguration().getLong("indexEvent.pipeline.shutdown.timeout", 30000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (failovers) {
+            for (Thread failover : failovers) {
+                failover.interrupt();
+            }
+            failovers.clear();
+        }
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+        if (watermark != null) {
+            watermark.stop();
+        }
         try {
             generator.close();
         } catch (Exception e) {
             logger.warn("IndexTaskGeneratorDaemon.stop - there was an issue to close the index generator since "+e.getMessage());
         }
+        GeneratorMetrics.getInstance().stop();
+        GeneratorConfigManager.getInstance().stop();
+    }
+
+    /**
+     * Read the watermark of the previous run and let the pipeline advance it.
+     */
+    private void openWatermark() {
+        String file = Settings.getConfiguration().getString("indexEvent.watermark.file");
+        if (file == null || file.trim().isEmpty()) {
+            logger.info("No watermark file is configured. The changes made while the generator is down are not"
+                    + " scanned on start.");
+            return;
+        }
+        try {
+            watermark = new Watermark(new File(file.trim()));
+        } catch (IOException e) {
+            logger.error("Failed to read the watermark from " + file + ". The changes made while the generator"
+                    + " was down are not scanned: " + e.getMessage(), e);
+            return;
+        }
+        pipeline.setWatermark(watermark);
+        watermark.start(Settings.getConfiguration().getLong("indexEvent.watermark.interval", 10000));
+    }
+
+    /**
+     * Scan the changes made since the watermark of the previous run in a
+     * background thread. The watermark is held at the previous one until the
+     * scan is complete.
+     */
+    private void startCatchUp() {
+        if (watermark == null || !Settings.getConfiguration().getBoolean("indexEvent.catchup.enabled", true)) {
+            return;
+        }
+        final Date previous = watermark.getLoaded();
+        if (previous == null) {
+            logger.info("There is no watermark of a previous run. Skipping the catch-up scan.");
+            return;
+        }
+        final Date since = new Date(previous.getTime()
+                - Settings.getConfiguration().getLong("indexEvent.catchup.overlap", 600000));
+        final CatchUpScanner scanner = newScanner(new CatchUpScanner.PidFilter() {
+            @Override
+            public boolean accepts(String pid) {
+                return shard == null || shard.owns(pid);
+            }
+        });
+        watermark.hold(previous);
+        catchUp = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scanner.scan(since);
+                    watermark.release();
+                } catch (InterruptedException e) {
+                    logger.warn("The catch-up scan was interrupted. The next start scans again.");
+                } catch (Exception e) {
+                    logger.error("The catch-up scan failed. The next start scans again: " + e.getMessage(), e);
+                }
+            }
+        }, "index-generator-catch-up");
+        catchUp.setDaemon(true);
+        catchUp.start();
+    }
+
+    /**
+     * Scan the changes made to the pids of a failed instance since its last
+     * heartbeat in a background thread, since the events it received before
+     * it failed are lost with it.
+     */
+    private void startFailoverScan(final ShardCoordinator.TakeOver takeOver) {
+        final Date since = new Date(takeOver.getLastHeartbeat()
+                - Settings.getConfiguration().getLong("indexEvent.catchup.overlap", 600000));
+        final CatchUpScanner scanner = newScanner(new CatchUpScanner.PidFilter() {
+            @Override
+            public boolean accepts(String pid) {
+                return takeOver.covers(pid);
+            }
+        });
+        Thread failover = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    logger.info("Scanning the changes made to the pids of " + takeOver.getMember() + " since "
+                            + since);
+                    scanner.scan(since);
+                } catch (InterruptedException e) {
+                    logger.warn("The scan of the pids of " + takeOver.getMember() + " was interrupted.");
+                } catch (Exception e) {
+                    logger.error("The scan of the pids of " + takeOver.getMember() + " failed: " + e.getMessage(),
+                            e);
+                }
+            }
+        }, "index-generator-failover");
+        failover.setDaemon(true);
+        synchronized (failovers) {
+            for (Iterator<Thread> threads = failovers.iterator(); threads.hasNext();) {
+                if (!threads.next().isAlive()) {
+                    threads.remove();
+                }
+            }
+            failovers.add(failover);
+        }
+        failover.start();
+    }
+
+    private CatchUpScanner newScanner(CatchUpScanner.PidFilter filter) {
+        return new CatchUpScanner(new HazelcastSystemMetadataSource(systemMetadata, objectPaths),
+                new EventCoalescer.Sink() {
+                    @Override
+                    public void emit(IndexEvent event) {
+                        pipeline.submit(event);
+                    }
+                }, Settings.getConfiguration().getInt("indexEvent.catchup.threads", 8),
+                Settings.getConfiguration().getInt("indexEvent.catchup.page.size", 500), filter);
     }
 
     /**
      * EntryListener interface method. Invoked when an entry is updated in
-     * system metadata map. Delegates IndexTask creation behavior to
-     * IndexTaskGenerator.
+     * system metadata map. Queues the event in the IndexEventPipeline.
      */
     @Override
     public void entryUpdated(EntryEvent<Identifier, SystemMetadata> event) {
+        if (!owns(event.getKey())) {
+            return;
+        }
         logger.info("UPDATE EVENT - index task generator - system metadata callback invoked on pid: "
                 + event.getKey().getValue());
-        generator.processSystemMetaDataUpdate(event.getValue(), getObjectPath(event));
+        pipeline.submit(new IndexEvent(IndexEvent.Type.UPDATE, event.getKey(), event.getValue()));
     }
 
     /**
      * EntryListener interface method. Invoked when an entry is added to the
-     * system metadata map. Delegates IndexTask creation behavior to
-     * IndexTaskGenerator.
+     * system metadata map. Queues the event in the IndexEventPipeline. A
+     * key-only event has no value yet, so its serial version is checked once
+     * the pipeline fetched it.
      */
     @Override
     public void entryAdded(EntryEvent<Identifier, SystemMetadata> event) {
-        if (event.getKey() != null && event.getValue() != null) {
+        if (event.getKey() != null && (keyOnly || event.getValue() != null) && owns(event.getKey())) {
             logger.info("ADD EVENT - index task generator - system metadata callback invoked on pid: "
                     + event.getKey().getValue());
             SystemMetadata smd = event.getValue();
-            if (smd.getSerialVersion().longValue() > 1) {
+            if (smd != null && smd.getSerialVersion().longValue() > 1) {
                 logger.info("Add event for pid: " + event.getKey().getValue()
                         + " determined to be invalid due to serial version: "
                         + smd.getSerialVersion().longValue() + ".  skipping add index task.");
             } else {
                 logger.info("Processing add event index task for pid: " + event.getKey().getValue());
-                generator.processSystemMetaDataAdd(event.getValue(), getObjectPath(event));
+                pipeline.submit(new IndexEvent(IndexEvent.Type.ADD, event.getKey(), event.getValue()));
             }
         }
     }
 
-    private String getObjectPath(EntryEvent<Identifier, SystemMetadata> event) {
-        return objectPaths.get(event.getKey());
-    }
-
     /**
      * EntryListener interface method for map evicted events. Unused in this
      * class. No behavior.
@@ -130,14 +351,28 @@ public class IndexTaskGeneratorEntryListener implements EntryListener<Identifier
 
     /**
      * EntryListener interface method. Invoked when an entry is removed/deleted from the
-     * system metadata map. Delegates IndexTask creation behavior to
-     * IndexTaskGenerator.
+     * system metadata map. Queues the event in the IndexEventPipeline.
      */
     @Override
     public void entryRemoved(EntryEvent<Identifier, SystemMetadata> event) {
+        if (!owns(event.getKey())) {
+            return;
+        }
         logger.info("REMOVE EVENT - index task generator - system metadata callback invoked on pid: "
                 + event.getKey().getValue());
-        generator.processSystemMetaDataDelete(event.getValue());
+        pipeline.submit(new IndexEvent(IndexEvent.Type.REMOVE, event.getKey(), event.getValue()));
+    }
+
+    /**
+     * @param pid
+     * @return true if this instance processes the events of the pid
+     */
+    private boolean owns(Identifier pid) {
+        if (shard == null || shard.owns(pid.getValue())) {
+            return true;
+        }
+        GeneratorMetrics.getInstance().increment("shard.skipped");
+        return false;
     }
 
 }
@@ -0,0 +1,151 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrClient;
+import org.dataone.cn.hazelcast.HazelcastClientFactory;
+import org.dataone.cn.index.generator.filter.HZEventFilter;
+import org.dataone.cn.index.generator.filter.SolrClientFactory;
+import org.dataone.cn.index.generator.reconcile.HazelcastSystemMetadataSource;
+import org.dataone.cn.index.generator.reconcile.IndexReconciler;
+import org.dataone.cn.index.generator.reconcile.RateLimiter;
+import org.dataone.configuration.Settings;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * A command line entry point which regenerates the missing and stale index
+ * tasks by reconciling the hazelcast system metadata map with the Solr index,
+ * e.g. after an outage, instead of a full reindex. It loads the same spring
+ * context as the IndexTaskGeneratorDaemon for saving the tasks.
+ * 
+ * Usage: IndexTaskReconcilerTool [--dry-run] [--partitions n] [--rate pids-per-second]
+ *        [--batch-size n] [--rows n] [--progress seconds]
+ * The defaults are read from the indexEvent.reconcile.* properties.
+ * 
+ * The running generators don't know the tasks this tool creates until their
+ * PendingTaskLedger is rebuilt, so until then an event of a pid with such a
+ * task leaves a duplicate task. Run it while the generators run with
+ * indexEvent.ledger.enabled=false, or with an indexEvent.ledger.reconcile.interval
+ * short enough for the duplicates to be acceptable.
+ *
+ */
+public class IndexTaskReconcilerTool {
+
+    private static Logger logger = Logger.getLogger(IndexTaskReconcilerTool.class.getName());
+    private static final String USAGE = "Usage: IndexTaskReconcilerTool [--dry-run] [--partitions n]"
+            + " [--rate pids-per-second] [--batch-size n] [--rows n] [--progress seconds]";
+
+    boolean dryRun = false;
+    int partitions = Settings.getConfiguration().getInt("indexEvent.reconcile.partitions", 8);
+    double rate = Settings.getConfiguration().getDouble("indexEvent.reconcile.rate", 5000);
+    int batchSize = Settings.getConfiguration().getInt("indexEvent.reconcile.batch.size", 500);
+    int rows = Settings.getConfiguration().getInt("indexEvent.reconcile.solr.rows", 5000);
+    long progressMillis = Settings.getConfiguration().getLong("indexEvent.reconcile.progress.interval", 30000);
+
+    public static void main(String[] args) {
+        IndexTaskReconcilerTool tool = new IndexTaskReconcilerTool();
+        int status;
+        try {
+            tool.parse(args);
+            status = tool.run();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            status = 2;
+        }
+        System.exit(status);
+    }
+
+    /**
+     * Read the command line options over the configured defaults.
+     * @param args
+     * @throws IllegalArgumentException if an option is unknown or has no valid value
+     */
+    void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if ("--dry-run".equals(option)) {
+                dryRun = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("The option " + option + " is unknown or has no value.");
+            }
+            String value = args[++i];
+            try {
+                if ("--partitions".equals(option)) {
+                    partitions = Integer.parseInt(value);
+                } else if ("--rate".equals(option)) {
+                    rate = Double.parseDouble(value);
+                } else if ("--batch-size".equals(option)) {
+                    batchSize = Integer.parseInt(value);
+                } else if ("--rows".equals(option)) {
+                    rows = Integer.parseInt(value);
+                } else if ("--progress".equals(option)) {
+                    progressMillis = Long.parseLong(value) * 1000;
+                } else {
+                    throw new IllegalArgumentException("The option " + option + " is unknown.");
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("The value " + value + " of " + option + " isn't a number.");
+            }
+        }
+    }
+
+    private int run() {
+        ClassPathXmlApplicationContext context = null;
+        SolrClient solr = null;
+        try {
+            context = new ClassPathXmlApplicationContext("generator-daemon-context.xml");
+            IndexTaskGenerator generator = (IndexTaskGenerator) context.getBean("indexTaskGenerator");
+            solr = SolrClientFactory.create(Settings.getConfiguration().getString("solr.base.uri",
+                    "http://localhost:8983/solr/search_core"));
+            IndexReconciler reconciler = new IndexReconciler(new HazelcastSystemMetadataSource(
+                    HazelcastClientFactory.getSystemMetadataMap(), HazelcastClientFactory.getObjectPathMap()),
+                    solr, new HZEventFilter(solr, null), generator, partitions, rows, batchSize,
+                    new RateLimiter(rate), dryRun);
+            reconciler.setProgressInterval(progressMillis);
+            long tasks = reconciler.run();
+            System.out.println(reconciler.progress());
+            logger.info("IndexTaskReconcilerTool.run - " + tasks + (dryRun ? " index tasks would be created."
+                    : " index tasks were created."));
+            return 0;
+        } catch (Exception e) {
+            logger.error("IndexTaskReconcilerTool.run - the reconciliation failed: " + e.getMessage(), e);
+            System.err.println("The reconciliation failed: " + e.getMessage());
+            return 1;
+        } finally {
+            if (solr != null) {
+                try {
+                    solr.close();
+                } catch (Exception e) {
+                    logger.warn("IndexTaskReconcilerTool.run - failed to close the solr client: " + e.getMessage());
+                }
+            }
+            if (context != null) {
+                context.close();
+            }
+        }
+    }
+}
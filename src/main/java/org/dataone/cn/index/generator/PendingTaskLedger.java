@@ -0,0 +1,333 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.dataone.cn.index.generator.filter.PidBloomFilter;
+
+/**
+ * The pids which may have an unprocessed (new), failed or in process index
+ * task, kept as 64 bit hashes in an open addressing table, so the generator
+ * only runs the queries removing the duplicate tasks of a pid when it may have
+ * one. Nearly all pids have none, which saves two queries per event.
+ *
+ * The ledger is rebuilt from one query of the task table when it starts and
+ * then periodically, since the indexer removes the processed tasks without
+ * telling the generator. The tasks in process count as pending too: the
+ * indexer may have written them to solr without a commit and can still mark
+ * them failed. A pid added by the generator is kept through the next rebuild
+ * even if the query doesn't return it, which covers a task whose transaction
+ * had not committed when the query ran.
+ *
+ * The ledger only errs on the side of running the queries: every pid may be
+ * pending before the first rebuild and while the table is at its capacity,
+ * and a hash collision reports a pid as pending. The ledger only sees the
+ * tasks of this generator, so when the pids move between the generator
+ * instances it is reseeded: every pid may be pending again until a rebuild
+ * started after the previous owners stopped processing the moved pids.
+ * The tasks written to the table by any other process, such as the
+ * IndexTaskReconcilerTool, are only known after the next rebuild.
+ *
+ */
+public class PendingTaskLedger {
+
+    private static Logger logger = Logger.getLogger(PendingTaskLedger.class.getName());
+
+    /**
+     * Finds the pids with a pending index task.
+     */
+    public interface Source {
+        /**
+         * @param max the max number of pids to return
+         * @return the pids with a new, failed or in process index task
+         */
+        public List<String> findPendingPids(int max) throws Exception;
+    }
+
+    private final Source source;
+    private final int capacity;
+    private HashTable current;
+    //the pids added since the last rebuild started
+    private HashTable recent;
+    private boolean seeded = false;
+    //incremented by a reseed, so a rebuild which started before doesn't seed the ledger
+    private long generation = 0;
+    //the time of the rebuild a reseed asked for, 0 if none
+    private long rebuildAt = 0;
+    private Thread reconciler = null;
+    private volatile boolean running = false;
+
+    /**
+     * Constructor
+     * @param source the source of the pending pids
+     * @param capacity the max number of pids in the ledger
+     */
+    public PendingTaskLedger(Source source, int capacity) {
+        this.source = source;
+        this.capacity = Math.max(1, capacity);
+        this.current = new HashTable(this.capacity);
+        this.recent = new HashTable(this.capacity);
+    }
+
+    /**
+     * Record a pid which gets a new index task. Call it before the task is
+     * saved, so no event of the pid finds it not pending in between.
+     * @param pid
+     */
+    public synchronized void add(String pid) {
+        long hash = PidBloomFilter.hash64(pid);
+        current.add(hash);
+        recent.add(hash);
+    }
+
+    /**
+     * @param pid
+     * @return false if the pid has no pending index task for sure
+     */
+    public synchronized boolean mayBePending(String pid) {
+        if (!seeded || current.isOverflown()) {
+            return true;
+        }
+        return current.contains(PidBloomFilter.hash64(pid));
+    }
+
+    /**
+     * Rebuild the ledger from the pending pids of the source and the pids
+     * added since the previous rebuild started.
+     * @throws Exception if the source failed. The ledger is left as it was.
+     */
+    public void rebuild() throws Exception {
+        HashTable carried;
+        long started;
+        synchronized (this) {
+            carried = recent;
+            recent = new HashTable(capacity);
+            started = generation;
+            if (rebuildAt <= System.currentTimeMillis()) {
+                rebuildAt = 0;
+            }
+        }
+        List<String> pids;
+        try {
+            pids = source.findPendingPids(capacity + 1);
+        } catch (Exception e) {
+            synchronized (this) {
+                recent.addAll(carried);
+            }
+            throw e;
+        }
+        HashTable rebuilt = new HashTable(capacity);
+        rebuilt.addAll(carried);
+        for (String pid : pids) {
+            rebuilt.add(PidBloomFilter.hash64(pid));
+        }
+        if (pids.size() > capacity) {
+            rebuilt.overflow();
+        }
+        synchronized (this) {
+            rebuilt.addAll(recent);
+            current = rebuilt;
+            seeded = generation == started && rebuildAt == 0;
+        }
+        if (rebuilt.isOverflown()) {
+            logger.warn("PendingTaskLedger.rebuild - more than " + capacity + " pids have pending index tasks."
+                    + " The duplicate tasks are looked for on every event until the next rebuild.");
+        } else {
+            logger.info("PendingTaskLedger.rebuild - " + rebuilt.size() + " pid(s) may have pending index tasks.");
+        }
+    }
+
+    /**
+     * Report every pid as pending until a rebuild started after a delay, and
+     * wake the rebuilding thread then. Called when the pids this generator
+     * processes changed, since the ledger doesn't know the tasks the previous
+     * owners of the pids created.
+     * @param delayMillis the milliseconds the previous owners may still create tasks
+     */
+    public synchronized void reseed(long delayMillis) {
+        seeded = false;
+        generation++;
+        rebuildAt = System.currentTimeMillis() + Math.max(0, delayMillis);
+        notifyAll();
+    }
+
+    /**
+     * @return false if every pid is reported as pending until the next rebuild
+     */
+    public synchronized boolean isSeeded() {
+        return seeded;
+    }
+
+    /**
+     * @return the number of pids in the ledger
+     */
+    public synchronized int size() {
+        return current.size();
+    }
+
+    /**
+     * Start the thread seeding the ledger and rebuilding it periodically.
+     * @param intervalMillis the milliseconds between the rebuilds
+     */
+    public synchronized void start(final long intervalMillis) {
+        running = true;
+        reconciler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        rebuild();
+                    } catch (Exception e) {
+                        logger.error("PendingTaskLedger.rebuild - failed to read the pending index tasks: "
+                                + e.getMessage(), e);
+                    }
+                    try {
+                        awaitRebuild(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "index-generator-task-ledger");
+        reconciler.setDaemon(true);
+        reconciler.start();
+        logger.info("PendingTaskLedger.start - rebuilding the ledger of the pending index tasks every "
+                + intervalMillis + " ms.");
+    }
+
+    /**
+     * Wait for the interval, or less if a reseed asked for an earlier rebuild.
+     */
+    private synchronized void awaitRebuild(long intervalMillis) throws InterruptedException {
+        long next = System.currentTimeMillis() + intervalMillis;
+        while (running) {
+            long due = rebuildAt > 0 ? Math.min(next, rebuildAt) : next;
+            long wait = due - System.currentTimeMillis();
+            if (wait <= 0) {
+                return;
+            }
+            wait(wait);
+        }
+    }
+
+    /**
+     * Stop the rebuilding thread.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (reconciler != null) {
+            reconciler.interrupt();
+        }
+    }
+
+    /**
+     * An open addressing set of non zero hashes, growing up to a max size.
+     * A hash of 0 is stored as 1.
+     */
+    private static class HashTable {
+        private final int maxSize;
+        private long[] slots = new long[16];
+        private int size = 0;
+        private boolean overflown = false;
+
+        private HashTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        private boolean contains(long hash) {
+            hash = hash == 0 ? 1 : hash;
+            int mask = slots.length - 1;
+            for (int i = index(hash, mask);; i = (i + 1) & mask) {
+                if (slots[i] == hash) {
+                    return true;
+                }
+                if (slots[i] == 0) {
+                    return false;
+                }
+            }
+        }
+
+        private void add(long hash) {
+            hash = hash == 0 ? 1 : hash;
+            if (overflown || contains(hash)) {
+                return;
+            }
+            if (size >= maxSize) {
+                overflow();
+                return;
+            }
+            if ((size + 1) * 2 > slots.length) {
+                long[] old = slots;
+                slots = new long[old.length * 2];
+                for (long value : old) {
+                    if (value != 0) {
+                        insert(value);
+                    }
+                }
+            }
+            insert(hash);
+            size++;
+        }
+
+        private void addAll(HashTable other) {
+            if (other.overflown) {
+                overflow();
+                return;
+            }
+            for (long value : other.slots) {
+                if (value != 0) {
+                    add(value);
+                }
+            }
+        }
+
+        private void insert(long hash) {
+            int mask = slots.length - 1;
+            int i = index(hash, mask);
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = hash;
+        }
+
+        private void overflow() {
+            overflown = true;
+            slots = new long[16];
+            size = 0;
+        }
+
+        private boolean isOverflown() {
+            return overflown;
+        }
+
+        private int size() {
+            return overflown ? maxSize : size;
+        }
+
+        private static int index(long hash, int mask) {
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+}
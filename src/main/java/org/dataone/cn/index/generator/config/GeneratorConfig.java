@@ -0,0 +1,152 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.config;
+
+import org.apache.commons.configuration.Configuration;
+
+/**
+ * An immutable snapshot of the settings read on the hot path of the filter and
+ * the task generator. The values are parsed once when the snapshot is built,
+ * so reading them costs no configuration lookup, no parsing and no reloading
+ * check of the configuration files. The current snapshot is kept by the
+ * GeneratorConfigManager, which replaces it when the configuration changes.
+ *
+ */
+public final class GeneratorConfig {
+
+    public static final String FILTERING_ACTIVE = "indexEvent.filtering.active";
+    //This configuration is used to ignore those objects which have failed to be indexed for a while. The default value of the max age of the modification date is 2592000000 milliseconds (30 days). 
+    //If the age of an object's modified date is more than 30 days, the object will be ignored and wouldn't be added to the index event table. If the default value is a negative number, it means this time filter is disabled. 
+    public static final String FILTERING_MAX_MODIFIED_AGE = "indexEvent.filtering.max.modifiedDate.age";
+    //The max number of pids looked up in one solr request by the batch filter.
+    public static final String FILTERING_SOLR_BATCH_SIZE = "indexEvent.filtering.solr.batch.size";
+    //The max number of pids and the time to live (milliseconds) of the cached solr index state. A size of 0 disables the cache.
+    public static final String FILTERING_CACHE_SIZE = "indexEvent.filtering.cache.size";
+    public static final String FILTERING_CACHE_TTL = "indexEvent.filtering.cache.ttl";
+    //The max number of pids in the IN list of one statement deleting the replaced index tasks.
+    public static final String PERSIST_DELETE_CHUNK_SIZE = "indexEvent.persist.delete.chunk.size";
+
+    private static final long DEFAULT_MAX_MODIFIED_AGE = 2592000000L;//30 days in milliseconds
+
+    private final boolean filteringActive;
+    private final long maxModifiedAge;
+    private final int solrBatchSize;
+    private final int cacheSize;
+    private final long cacheTTL;
+    private final int deleteChunkSize;
+
+    GeneratorConfig(boolean filteringActive, long maxModifiedAge, int solrBatchSize, int cacheSize,
+            long cacheTTL, int deleteChunkSize) {
+        this.filteringActive = filteringActive;
+        this.maxModifiedAge = maxModifiedAge;
+        this.solrBatchSize = Math.max(1, solrBatchSize);
+        this.cacheSize = cacheSize;
+        this.cacheTTL = cacheTTL;
+        this.deleteChunkSize = Math.max(1, deleteChunkSize);
+    }
+
+    /**
+     * Read a snapshot from a configuration.
+     * @param configuration
+     * @return the snapshot of the current values
+     */
+    public static GeneratorConfig load(Configuration configuration) {
+        return new GeneratorConfig(configuration.getBoolean(FILTERING_ACTIVE, true),
+                configuration.getLong(FILTERING_MAX_MODIFIED_AGE, DEFAULT_MAX_MODIFIED_AGE),
+                configuration.getInt(FILTERING_SOLR_BATCH_SIZE, 100),
+                configuration.getInt(FILTERING_CACHE_SIZE, 100000),
+                configuration.getLong(FILTERING_CACHE_TTL, 300000),
+                configuration.getInt(PERSIST_DELETE_CHUNK_SIZE, 500));
+    }
+
+    /**
+     * @return the current snapshot, a single volatile read
+     */
+    public static GeneratorConfig current() {
+        return GeneratorConfigManager.getInstance().get();
+    }
+
+    /**
+     * @return false if the event filter is disabled and all index events are granted
+     */
+    public boolean isFilteringActive() {
+        return filteringActive;
+    }
+
+    /**
+     * @return the max age in milliseconds of the modification date of an
+     *         object to be indexed. A negative value disables the age filter.
+     */
+    public long getMaxModifiedAge() {
+        return maxModifiedAge;
+    }
+
+    public int getSolrBatchSize() {
+        return solrBatchSize;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public long getCacheTTL() {
+        return cacheTTL;
+    }
+
+    public int getDeleteChunkSize() {
+        return deleteChunkSize;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof GeneratorConfig)) {
+            return false;
+        }
+        GeneratorConfig other = (GeneratorConfig) obj;
+        return filteringActive == other.filteringActive && maxModifiedAge == other.maxModifiedAge
+                && solrBatchSize == other.solrBatchSize && cacheSize == other.cacheSize
+                && cacheTTL == other.cacheTTL && deleteChunkSize == other.deleteChunkSize;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = filteringActive ? 1 : 0;
+        hash = 31 * hash + (int) (maxModifiedAge ^ (maxModifiedAge >>> 32));
+        hash = 31 * hash + solrBatchSize;
+        hash = 31 * hash + cacheSize;
+        hash = 31 * hash + (int) (cacheTTL ^ (cacheTTL >>> 32));
+        hash = 31 * hash + deleteChunkSize;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "GeneratorConfig[" + FILTERING_ACTIVE + "=" + filteringActive + ", " + FILTERING_MAX_MODIFIED_AGE
+                + "=" + maxModifiedAge + ", " + FILTERING_SOLR_BATCH_SIZE + "=" + solrBatchSize + ", "
+                + FILTERING_CACHE_SIZE + "=" + cacheSize + ", " + FILTERING_CACHE_TTL + "=" + cacheTTL + ", "
+                + PERSIST_DELETE_CHUNK_SIZE + "=" + deleteChunkSize + "]";
+    }
+}
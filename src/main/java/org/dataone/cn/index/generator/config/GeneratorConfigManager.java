@@ -0,0 +1,180 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.config;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.configuration.AbstractConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.event.ConfigurationEvent;
+import org.apache.commons.configuration.event.ConfigurationListener;
+import org.apache.log4j.Logger;
+import org.dataone.configuration.Settings;
+
+/**
+ * Keeps the current GeneratorConfig snapshot in a volatile field and replaces
+ * it when the configuration changes. The hot path only reads the field.
+ *
+ * The cn-index-generator.properties file is reloaded by the
+ * FileChangedReloadingStrategy, which checks the file when a property is read.
+ * A refresher thread reads the configuration every
+ * indexEvent.config.refresh.interval milliseconds (15 seconds by default, the
+ * refresh delay of the strategy), so those checks happen on it instead of on
+ * the event threads. Properties set programmatically are picked up at once.
+ * The registered listeners are notified whenever a new snapshot differs from
+ * the previous one.
+ *
+ */
+public class GeneratorConfigManager {
+
+    private static Logger logger = Logger.getLogger(GeneratorConfigManager.class.getName());
+    private static final String REFRESH_INTERVAL = "indexEvent.config.refresh.interval";
+
+    /**
+     * Notified when the configuration snapshot changes.
+     */
+    public interface Listener {
+        /**
+         * @param previous the replaced snapshot
+         * @param current the new snapshot
+         */
+        public void configurationChanged(GeneratorConfig previous, GeneratorConfig current);
+    }
+
+    private static GeneratorConfigManager instance = new GeneratorConfigManager(Settings.getConfiguration());
+
+    private final Configuration configuration;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile GeneratorConfig current;
+    private Thread refresher = null;
+    private volatile boolean running = false;
+
+    GeneratorConfigManager(Configuration configuration) {
+        this.configuration = configuration;
+        this.current = GeneratorConfig.load(configuration);
+        if (configuration instanceof AbstractConfiguration) {
+            ((AbstractConfiguration) configuration).addConfigurationListener(new ConfigurationListener() {
+                @Override
+                public void configurationChanged(ConfigurationEvent event) {
+                    if (!event.isBeforeUpdate()) {
+                        refresh();
+                    }
+                }
+            });
+        }
+    }
+
+    public static GeneratorConfigManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return the current snapshot
+     */
+    public GeneratorConfig get() {
+        return current;
+    }
+
+    /**
+     * Read the configuration again and replace the snapshot if a value changed.
+     * @return the current snapshot
+     */
+    public GeneratorConfig refresh() {
+        GeneratorConfig changed = null;
+        GeneratorConfig previous;
+        synchronized (this) {
+            previous = current;
+            GeneratorConfig loaded = GeneratorConfig.load(configuration);
+            if (!loaded.equals(previous)) {
+                current = loaded;
+                changed = loaded;
+            }
+        }
+        if (changed != null) {
+            logger.info("GeneratorConfigManager.refresh - the configuration changed to " + changed);
+            for (Listener listener : listeners) {
+                try {
+                    listener.configurationChanged(previous, changed);
+                } catch (Exception e) {
+                    logger.error("GeneratorConfigManager.refresh - a listener failed to apply the configuration change: "
+                            + e.getMessage(), e);
+                }
+            }
+        }
+        return current;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start the thread reading the configuration periodically.
+     */
+    public synchronized void start() {
+        if (refresher != null) {
+            return;
+        }
+        final long interval = configuration.getLong(REFRESH_INTERVAL, 15000);
+        if (interval <= 0) {
+            logger.info("GeneratorConfigManager.start - the periodic refresh of the configuration is disabled.");
+            return;
+        }
+        running = true;
+        refresher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(interval);
+                        refresh();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        logger.error("GeneratorConfigManager.refresher - failed to read the configuration: "
+                                + e.getMessage(), e);
+                    }
+                }
+            }
+        }, "index-generator-config-refresher");
+        refresher.setDaemon(true);
+        refresher.start();
+        logger.info("GeneratorConfigManager.start - reading the configuration every " + interval + " milliseconds.");
+    }
+
+    /**
+     * Stop the refresher thread.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (refresher != null) {
+            refresher.interrupt();
+            refresher = null;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import org.apache.log4j.Logger;
+import org.dataone.configuration.Settings;
+
+/**
+ * A circuit breaker around the solr requests of the HZEventFilter. It records
+ * the outcome of the last requests, where a request slower than the slow call
+ * threshold counts as a failure. When the failure rate of a full enough window
+ * crosses the threshold, the breaker opens and the filter stops calling solr,
+ * granting the index events as it does when a request fails. After the open
+ * time, one probe request is let through (half open): if it succeeds the
+ * breaker closes, otherwise it opens again.
+ *
+ */
+public class CircuitBreaker {
+
+    private static Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+    //The settings of the breaker of the solr requests of the filter.
+    private static final String ENABLED = "indexEvent.filtering.solr.breaker.enabled";
+    private static final String WINDOW_SIZE = "indexEvent.filtering.solr.breaker.window.size";
+    private static final String MIN_CALLS = "indexEvent.filtering.solr.breaker.min.calls";
+    private static final String FAILURE_RATE = "indexEvent.filtering.solr.breaker.failure.rate";
+    private static final String SLOW_CALL = "indexEvent.filtering.solr.breaker.slow.call";
+    private static final String OPEN_TIME = "indexEvent.filtering.solr.breaker.open.time";
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final String name;
+    private final boolean[] outcomes;
+    private final int minCalls;
+    private final double failureRate;
+    private final long slowCallNanos;
+    private final long openMillis;
+    private State state = State.CLOSED;
+    private int next = 0;
+    private int calls = 0;
+    private int failures = 0;
+    private long openedAt = 0;
+    private long probeStartedAt = 0;
+    private long openCount = 0;
+    private long rejectedCount = 0;
+
+    /**
+     * Constructor
+     * @param name the name used in the log messages
+     * @param windowSize the number of the last requests the failure rate is computed on
+     * @param minCalls the number of recorded requests needed before the breaker can open
+     * @param failureRate the ratio of the failed requests which opens the breaker
+     * @param slowCallMillis the duration over which a successful request counts as a failure
+     * @param openMillis how long the breaker stays open before a probe request
+     */
+    public CircuitBreaker(String name, int windowSize, int minCalls, double failureRate, long slowCallMillis,
+            long openMillis) {
+        this.name = name;
+        this.outcomes = new boolean[Math.max(1, windowSize)];
+        this.minCalls = Math.max(1, Math.min(minCalls, outcomes.length));
+        this.failureRate = failureRate;
+        this.slowCallNanos = slowCallMillis * 1000000L;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Create the breaker of the solr requests of the filter from the configuration.
+     * @return null if the breaker is disabled
+     */
+    public static CircuitBreaker forSolr() {
+        if (!Settings.getConfiguration().getBoolean(ENABLED, true)) {
+            logger.info("CircuitBreaker.forSolr - the circuit breaker of the solr requests is disabled.");
+            return null;
+        }
+        return new CircuitBreaker("solr", Settings.getConfiguration().getInt(WINDOW_SIZE, 50),
+                Settings.getConfiguration().getInt(MIN_CALLS, 20),
+                Settings.getConfiguration().getDouble(FAILURE_RATE, 0.5),
+                Settings.getConfiguration().getLong(SLOW_CALL, 5000),
+                Settings.getConfiguration().getLong(OPEN_TIME, 30000));
+    }
+
+    /**
+     * Decide if a request may be sent. In the half open state only the probe
+     * request is allowed. A probe which never reported its outcome is replaced
+     * after the open time.
+     * @return false if the request should not be sent
+     */
+    public synchronized boolean allowRequest() {
+        long now = System.currentTimeMillis();
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (now - openedAt >= openMillis) {
+                state = State.HALF_OPEN;
+                probeStartedAt = now;
+                logger.info("CircuitBreaker.allowRequest - the " + name + " breaker is half open. Sending a probe request.");
+                return true;
+            }
+            break;
+        case HALF_OPEN:
+            if (now - probeStartedAt >= openMillis) {
+                probeStartedAt = now;
+                return true;
+            }
+            break;
+        }
+        rejectedCount++;
+        return false;
+    }
+
+    /**
+     * Record a completed request.
+     * @param elapsedNanos the duration of the request
+     */
+    public synchronized void recordSuccess(long elapsedNanos) {
+        if (elapsedNanos > slowCallNanos) {
+            record(false);
+        } else {
+            record(true);
+        }
+    }
+
+    /**
+     * Record a failed request.
+     */
+    public synchronized void recordFailure() {
+        record(false);
+    }
+
+    private void record(boolean success) {
+        if (state == State.HALF_OPEN) {
+            if (success) {
+                close();
+            } else {
+                open();
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            //a request sent before the breaker opened
+            return;
+        }
+        if (calls == outcomes.length) {
+            if (!outcomes[next]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        outcomes[next] = success;
+        if (!success) {
+            failures++;
+        }
+        next = (next + 1) % outcomes.length;
+        if (calls >= minCalls && failures >= failureRate * calls) {
+            open();
+        }
+    }
+
+    private void open() {
+        logger.warn("CircuitBreaker.open - the " + name + " breaker opened after " + failures + " failed or slow request(s) out of "
+                + calls + ". No request is sent for " + openMillis + " milliseconds.");
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        openCount++;
+    }
+
+    private void close() {
+        logger.info("CircuitBreaker.close - the probe request succeeded. The " + name + " breaker is closed.");
+        state = State.CLOSED;
+        next = 0;
+        calls = 0;
+        failures = 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of times the breaker opened
+     */
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * @return the number of requests which were not sent since the breaker was open
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+}
@@ -21,25 +21,24 @@
  */
 package org.dataone.cn.index.generator.filter;
 
+import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.SolrClient;
-import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.HttpSolrClient;
-import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
-import org.apache.solr.common.SolrDocumentList;
+import org.dataone.cn.index.generator.config.GeneratorConfig;
+import org.dataone.cn.index.generator.metrics.Gauge;
+import org.dataone.cn.index.generator.metrics.GeneratorMetrics;
 import org.dataone.configuration.Settings;
-import org.dataone.service.types.v1.Identifier;
-import org.dataone.service.types.v1.NodeReference;
-import org.dataone.service.types.v1.Replica;
 import org.dataone.service.types.v2.SystemMetadata;
 
 
@@ -53,19 +52,34 @@ import org.dataone.service.types.v2.SystemMetadata;
  */
 public class HZEventFilter {
     private static Logger logger = Logger.getLogger(HZEventFilter.class);
-    private static String INDEX_EVENT_FILTERING_ACTIVE = "indexEvent.filtering.active";
-    //This configuration is used to ignore those objects which have failed to be indexed for a while. The default value of the max age of the modification date is 2592000000 milliseconds (30 days). 
-    //If the age of an object's modified date is more than 30 days, the object will be ignored and wouldn't be added to the index event table. If the default value is a negative number, it means this time filter is disabled. 
-    private static String INDEX_EVENT_FILTERING_IGNORE_MODIFIEDTIME_AGE = "indexEvent.filtering.max.modifiedDate.age"; 
+    //The optional local store of the solr index state of all pids: the file of its snapshot, the number of pids it is sized for,
+    //the max age of a snapshot reused on startup, and the number of parallel partitions, the page size and the shard urls of the export.
+    private static final String INDEX_EVENT_FILTERING_STATE_STORE_ENABLED = "indexEvent.filtering.state.store.enabled";
+    private static final String INDEX_EVENT_FILTERING_STATE_STORE_FILE = "indexEvent.filtering.state.store.file";
+    private static final String INDEX_EVENT_FILTERING_STATE_STORE_EXPECTED_PIDS = "indexEvent.filtering.state.store.expected.pids";
+    private static final String INDEX_EVENT_FILTERING_STATE_STORE_MAX_AGE = "indexEvent.filtering.state.store.max.age";
+    private static final String INDEX_EVENT_FILTERING_STATE_STORE_EXPORT_PARTITIONS = "indexEvent.filtering.state.store.export.partitions";
+    private static final String INDEX_EVENT_FILTERING_STATE_STORE_EXPORT_ROWS = "indexEvent.filtering.state.store.export.rows";
+    private static final String INDEX_EVENT_FILTERING_STATE_STORE_SHARDS = "indexEvent.filtering.state.store.shards";
+    //The way the solr documents are fetched: select or get (real time get)
+    private static final String INDEX_EVENT_FILTERING_SOLR_LOOKUP = "indexEvent.filtering.solr.lookup";
+    //Only fetch the replica fields of the solr documents without a serial version
+    private static final String INDEX_EVENT_FILTERING_SOLR_LAZY_REPLICAS = "indexEvent.filtering.solr.lazy.replicas";
     private static String ID = "id";
     private static String DATEMODIFIED = "dateModified";
     private static String REPLICAMN = "replicaMN";
     private static String REPLICAVERIFIEDATE = "replicaVerifiedDate";
     private static String SERIALVERSION = "serialVersion";
-    private static int FIRSTSOLRDOCINDEX = 0;
+    private static GeneratorMetrics metrics = GeneratorMetrics.getInstance();
 
     private String solrBaseURL = null;
     private SolrClient client = null;
+    private SolrStateCache cache = null;
+    private CircuitBreaker breaker = null;
+    private SolrStateLookup lookup = createLookup();
+    private boolean lazyReplicas = Settings.getConfiguration().getBoolean(INDEX_EVENT_FILTERING_SOLR_LAZY_REPLICAS, true);
+    private volatile IndexedPidFilter pidFilter = null;
+    private volatile SolrStateStore store = null;
 
     /**
      * Constructor.
@@ -74,7 +88,150 @@ public class HZEventFilter {
     public HZEventFilter() {
         solrBaseURL = Settings.getConfiguration().getString("solr.base.uri", "http://localhost:8983/solr/search_core");
         logger.info("HZEvetFilter.constructor - the base url is "+solrBaseURL);
-        client = new HttpSolrClient(solrBaseURL);
+        client = SolrClientFactory.create(solrBaseURL);
+        breaker = CircuitBreaker.forSolr();
+        initCache();
+        registerBreakerGauges();
+    }
+    
+    /**
+     * Constructor with a given solr client.
+     * @param client the client used to query the solr server
+     */
+    public HZEventFilter(SolrClient client) {
+        this.client = client;
+        breaker = CircuitBreaker.forSolr();
+        initCache();
+        registerBreakerGauges();
+    }
+    
+    /**
+     * Constructor with a given solr client and cache of the solr index state.
+     * @param client the client used to query the solr server
+     * @param cache the cache of the solr index state, null for no cache
+     */
+    public HZEventFilter(SolrClient client, SolrStateCache cache) {
+        this(client, cache, CircuitBreaker.forSolr());
+    }
+    
+    /**
+     * Constructor with a given solr client, cache of the solr index state and
+     * circuit breaker of the solr requests.
+     * @param client the client used to query the solr server
+     * @param cache the cache of the solr index state, null for no cache
+     * @param breaker the circuit breaker of the solr requests, null for no breaker
+     */
+    public HZEventFilter(SolrClient client, SolrStateCache cache, CircuitBreaker breaker) {
+        this.client = client;
+        this.cache = cache;
+        this.breaker = breaker;
+        registerCacheGauges();
+        registerBreakerGauges();
+    }
+    
+    private void initCache() {
+        GeneratorConfig config = GeneratorConfig.current();
+        int cacheSize = config.getCacheSize();
+        long cacheTTL = config.getCacheTTL();
+        if(cacheSize > 0) {
+            cache = new SolrStateCache(cacheSize, cacheTTL);
+            logger.info("HZEvetFilter.initCache - caching the solr index state of up to "+cacheSize+" pids for "+cacheTTL+" milliseconds.");
+        }
+        registerCacheGauges();
+    }
+    
+    private void registerCacheGauges() {
+        final SolrStateCache stateCache = cache;
+        if(stateCache == null) {
+            return;
+        }
+        metrics.register("filter.cache.size", new Gauge() {
+            @Override
+            public Number getValue() {
+                return stateCache.size();
+            }
+        });
+        metrics.register("filter.cache.hits", new Gauge() {
+            @Override
+            public Number getValue() {
+                return stateCache.getHitCount();
+            }
+        });
+        metrics.register("filter.cache.misses", new Gauge() {
+            @Override
+            public Number getValue() {
+                return stateCache.getMissCount();
+            }
+        });
+        metrics.register("filter.cache.evictions", new Gauge() {
+            @Override
+            public Number getValue() {
+                return stateCache.getEvictionCount();
+            }
+        });
+    }
+    
+    /**
+     * Create the lookup strategy named by indexEvent.filtering.solr.lookup:
+     * select (the default) or get (real time get).
+     */
+    private static SolrStateLookup createLookup() {
+        String name = Settings.getConfiguration().getString(INDEX_EVENT_FILTERING_SOLR_LOOKUP, SelectStateLookup.NAME);
+        if(RealTimeGetStateLookup.NAME.equalsIgnoreCase(name)) {
+            logger.info("HZEventFilter.createLookup - the solr documents are fetched from the real time get handler.");
+            return new RealTimeGetStateLookup();
+        }
+        if(!SelectStateLookup.NAME.equalsIgnoreCase(name)) {
+            logger.warn("HZEventFilter.createLookup - the unknown solr lookup "+name+" is ignored. The solr documents are fetched with select queries.");
+        }
+        return new SelectStateLookup();
+    }
+    
+    /**
+     * Set the way the solr documents of the pids are fetched.
+     * @param lookup
+     */
+    public void setLookup(SolrStateLookup lookup) {
+        this.lookup = lookup;
+    }
+    
+    public SolrStateLookup getLookup() {
+        return lookup;
+    }
+    
+    /**
+     * Set if the replica fields are only fetched for the solr documents without
+     * a serial version, the only ones whose replicas are compared.
+     * @param lazyReplicas
+     */
+    public void setLazyReplicas(boolean lazyReplicas) {
+        this.lazyReplicas = lazyReplicas;
+    }
+    
+    private void registerBreakerGauges() {
+        final CircuitBreaker solrBreaker = breaker;
+        if(solrBreaker == null) {
+            return;
+        }
+        //0 closed, 1 half open, 2 open
+        metrics.register("filter.solr.breaker.state", new Gauge() {
+            @Override
+            public Number getValue() {
+                return solrBreaker.getState().ordinal();
+            }
+        });
+        metrics.register("filter.solr.breaker.opened", new Gauge() {
+            @Override
+            public Number getValue() {
+                return solrBreaker.getOpenCount();
+            }
+        });
+        metrics.register("filter.solr.breaker.rejected", new Gauge() {
+            @Override
+            public Number getValue() {
+                return solrBreaker.getRejectedCount();
+            }
+        });
     }
     
     /**
@@ -95,260 +252,640 @@ public class HZEventFilter {
      *        3.3.2. If serialVersion in solr is Not availabe, comare replica lists:
      *              3.3.2.1 no change on replica info, return true (filter out)
      *              3.3.2.2  there is a change, return false (keep index task)
-     * If any exception happens, it will return false for safet.
+     * Step 1 uses the local SolrStateStore instead of solr when it knows the state of the pid. It is
+     * skipped for a pid which is not archived and definitely not in the solr index according to the
+     * filter of the indexed pids, since step 2.2 grants it anyway.
+     * If any exception happens, it will return false for safet. While the circuit breaker of
+     * the solr requests is open, the events which need step 1 are granted without querying solr.
      * @param sysmeta
      * @return true if we don't need to index it (filter out)
      */
     public boolean filter(SystemMetadata sysmeta) {
+        return filter(SystemMetadataDigest.of(sysmeta));
+    }
+    
+    /**
+     * Apply the filter algorithm (see the filter method of the system metadata)
+     * to the digest of a system metadata.
+     * @param sysmeta
+     * @return true if we don't need to index it (filter out)
+     */
+    public boolean filter(SystemMetadataDigest sysmeta) {
         boolean needFilterOut = true; 
-        Identifier pid = sysmeta.getIdentifier();
-        boolean enableFiltering = Settings.getConfiguration().getBoolean(INDEX_EVENT_FILTERING_ACTIVE, true);
+        String pid = sysmeta.getPid();
+        boolean enableFiltering = GeneratorConfig.current().isFilteringActive();
         if(enableFiltering) {
             try {
                 needFilterOut = fliterOutOldObject(sysmeta); 
                 if (!needFilterOut) {
                     if(client == null) {
-                        client = new HttpSolrClient(solrBaseURL);
+                        client = SolrClientFactory.create(solrBaseURL);
                     }
-                    SolrDocument solrDoc = getSolrReponse(pid.getValue()); //step 1
-                    String id = getId(solrDoc);
-                    if(id == null) { //step 2
-                        //no slor doc
-                        boolean archive = sysmeta.getArchived();
-                        if(archive) {
-                            //2.1
-                            //this is an archived object and there is no solr doc either. All set! We don't need index it.
-                            logger.info("HZEventFilter.filter - the system metadata for the index event shows "+pid.getValue()+" is an archived object and the SOLR server doesn't have the record either. So this event has been filtered out for indexing (no indexing).");
-                            needFilterOut = true;
-                        } else {
-                            //2.2
-                            logger.info("HZEventFilter.filter - the system metadata  for the index event shows shows "+pid.getValue()+" is not an archived object but the SOLR server doesn't have the record. So this event should be granted for indexing.");
-                            needFilterOut = false;
-                        }
-                    } else {
-                        Date sysDate = sysmeta.getDateSysMetadataModified();
-                        Date solrDate = getModificationDateInSolr(solrDoc);
-                        if(sysDate.getTime() > solrDate.getTime()) {
-                            //3.1
-                            logger.info("HZEventFilter.filter - the system metadata for the index event shows shows "+pid.getValue()+
-                                    " having a newer version than the SOLR server. So this event should be granted for indexing.");
-                            needFilterOut = false;
-                        } else if (sysDate.getTime() < solrDate.getTime()) {
-                            //3.2
-                            logger.info("HZEventFilter.filter - the system metadata for the index event shows shows "+pid.getValue()+
-                                    " having an older version than the SOLR server. So this event has been filtered out for indexing (no indexing).");
-                            needFilterOut = true;
-                        } else {
-                            //3.3
-                            // the modification date equals. we need to compare replicas
-                           BigInteger sysSerial = sysmeta.getSerialVersion();
-                           BigInteger solrSerial = getSerialVersion(solrDoc);//It is a new solr field and it can be null.
-                           if(solrSerial != null) {
-                              if(solrSerial.compareTo(sysSerial) == 0) {
-                                  //3.3.1.1 If solr = sysmeta , return true (filter it out) since no change in replica
-                                  logger.info("HZEventFilter.filter - the system metadata for the index event shows shows "+pid.getValue()+
-                                          " having the same modification date and serial version in the solr document. So this event has been filtered out for indexing (no indexing).");
-                                  needFilterOut = true;
-                              } else if (solrSerial.compareTo(sysSerial) == -1){
-                                  //3.3.1.2 If solr < sysmeta, return false (keep index task) since the solr has a smaller (older) serial version.
-                                  logger.info("HZEventFilter.filter - the system metadata for the index event shows shows "+pid.getValue()+
-                                          " having the same modification date but the serial version in the solr document is less than the one in the system metadata. So this event should be granted for indexing.");
-                                  needFilterOut = false;
-                              } else if (solrSerial.compareTo(sysSerial) == 1) {
-                                  //3.3.1.3 If solr > sysmeta, return true (filter it out) since the solr has a bigger (newer) serial version.
-                                  logger.info("HZEventFilter.filter - the system metadata for the index event shows shows "+pid.getValue()+
-                                          " having the same modification date but the serial version in the solr document is greater than the one in the system metadata. So this event has been filtered out for indexing (no indexing).");
-                                  needFilterOut = true;
-                              }
-                           } else {
-                               //3.3.2. If serialVersion in solr is Not availabe, comare replica lists (serilaVersion is a new added solr field)
-                               List<Replica> sysReplicas = sysmeta.getReplicaList();
-                               List<Replica> solrReplicas = getReplicasInSolr(solrDoc);//it wouldn't be null
-                               boolean equal = compareRaplicaList(pid, sysReplicas, solrReplicas);
-                               if(equal) {
-                                   //3.3.2.1
-                                   logger.info("HZEventFilter.filter - the system metadata for the index event shows "+pid.getValue()+
-                                           " having the same modification date as the SOLR server. Also both have the same replica list. So this event has been filtered out for indexing (no indexing).");
-                                  needFilterOut = true;
-                               } else {
-                                   //3.3.2.2
-                                   logger.info("HZEventFilter.filter - the system metadata for the index event shows "+pid.getValue()+
-                                           " having the same modification date as the SOLR server. However, they have different replica lists. So this event should be granted for indexing.");
-                                   needFilterOut = false;
-                               }
-                           }
-                          
-                        }
+                    SolrIndexState state = getLocalState(sysmeta);
+                    if(state == null) {
+                        state = getSolrIndexState(pid); //step 1
                     }
+                    needFilterOut = decide(sysmeta, state);
                 }
+            } catch (CircuitOpenException e) {
+                logger.debug("HZEventFilter.filter - the solr server is unavailable. So the index event for "+pid+" should be granted for indexing for safe.");
+                metrics.increment("filter.bypassed");
+                needFilterOut = false;
             } catch (Exception e) {
-                logger.warn("HZEventFilter.filter - there was an exception in applying the index event filters for "+pid.getValue()+
+                logger.warn("HZEventFilter.filter - there was an exception in applying the index event filters for "+pid+
                         ". However, this index event still should be granted for indexing for safe.", e);
+                metrics.increment("filter.error");
                 needFilterOut = false;
             }
         } else {
-            logger.info("HZEventFilter.filter - The filter was disable by setting indexEvent.filtering.active=false. So the index event for "+pid.getValue()+" should be granted for indexing.");
+            logger.info("HZEventFilter.filter - The filter was disable by setting indexEvent.filtering.active=false. So the index event for "+pid+" should be granted for indexing.");
+            metrics.increment("filter.disabled");
             needFilterOut = false;
         }
         return needFilterOut;
     }
     
+    /**
+     * Apply the same algorithm as the filter method to a list of system metadata,
+     * but fetch the solr documents of many pids in one solr request (step 1).
+     * If the solr request for a group of pids fails, the index events of the
+     * group are granted for safe.
+     * @param sysmetas
+     * @return an array parallel to the list. An element is true if we don't need
+     *         to index the system metadata at the same position (filter out).
+     */
+    public boolean[] filter(List<SystemMetadata> sysmetas) {
+        return filter(sysmetas, GeneratorConfig.current().getSolrBatchSize());
+    }
+    
+    /**
+     * Apply the filter to a list of system metadata, fetching the solr documents
+     * of up to batchSize pids in one solr request.
+     * @param sysmetas
+     * @param batchSize the max number of pids in one solr request
+     * @return an array parallel to the list. An element is true if we don't need
+     *         to index the system metadata at the same position (filter out).
+     */
+    public boolean[] filter(List<SystemMetadata> sysmetas, int batchSize) {
+        List<SystemMetadataDigest> digests = new ArrayList<SystemMetadataDigest>(sysmetas.size());
+        for(SystemMetadata sysmeta : sysmetas) {
+            digests.add(SystemMetadataDigest.of(sysmeta));
+        }
+        return filterDigests(digests, batchSize);
+    }
+    
+    /**
+     * Apply the filter to a list of system metadata digests, fetching the solr
+     * documents of up to batchSize pids in one solr request.
+     * @param sysmetas
+     * @param batchSize the max number of pids in one solr request
+     * @return an array parallel to the list. An element is true if we don't need
+     *         to index the system metadata at the same position (filter out).
+     */
+    public boolean[] filterDigests(List<SystemMetadataDigest> sysmetas, int batchSize) {
+        boolean[] needFilterOut = new boolean[sysmetas.size()];
+        GeneratorConfig config = GeneratorConfig.current();
+        batchSize = Math.max(1, batchSize);
+        if(!config.isFilteringActive()) {
+            logger.info("HZEventFilter.filter - The filter was disable by setting indexEvent.filtering.active=false. So the "+sysmetas.size()+" index events should be granted for indexing.");
+            for(int i=0; i<sysmetas.size(); i++) {
+                metrics.increment("filter.disabled");
+            }
+            return needFilterOut;
+        }
+        List<Integer> lookups = new ArrayList<Integer>(sysmetas.size());
+        for(int i=0; i<sysmetas.size(); i++) {
+            SystemMetadataDigest sysmeta = sysmetas.get(i);
+            try {
+                needFilterOut[i] = fliterOutOldObject(sysmeta);
+                if(!needFilterOut[i]) {
+                    SolrIndexState state = getLocalState(sysmeta);
+                    if(state != null) {
+                        needFilterOut[i] = decide(sysmeta, state);
+                    } else {
+                        lookups.add(i);
+                    }
+                }
+            } catch (Exception e) {
+                logger.warn("HZEventFilter.filter - there was an exception in applying the index event filters for "+sysmeta.getPid()+
+                        ". However, this index event still should be granted for indexing for safe.", e);
+                metrics.increment("filter.error");
+                needFilterOut[i] = false;
+            }
+        }
+        for(int start=0; start<lookups.size(); start += batchSize) {
+            List<Integer> group = lookups.subList(start, Math.min(start + batchSize, lookups.size()));
+            Map<String, SolrIndexState> states = null;
+            String failure = "filter.error";
+            try {
+                List<String> ids = new ArrayList<String>(group.size());
+                for(Integer index : group) {
+                    ids.add(sysmetas.get(index).getPid());
+                }
+                states = getSolrIndexStates(ids); //step 1
+            } catch (CircuitOpenException e) {
+                logger.debug("HZEventFilter.filter - the solr server is unavailable. So the "+group.size()+" index events should be granted for indexing for safe.");
+                failure = "filter.bypassed";
+            } catch (Exception e) {
+                logger.warn("HZEventFilter.filter - there was an exception in querying the solr server for "+group.size()+
+                        " pids. However, those index events still should be granted for indexing for safe.", e);
+            }
+            for(Integer index : group) {
+                SystemMetadataDigest sysmeta = sysmetas.get(index);
+                if(states == null) {
+                    metrics.increment(failure);
+                    needFilterOut[index] = false;
+                    continue;
+                }
+                try {
+                    needFilterOut[index] = decide(sysmeta, states.get(sysmeta.getPid()));
+                } catch (Exception e) {
+                    logger.warn("HZEventFilter.filter - there was an exception in applying the index event filters for "+sysmeta.getPid()+
+                            ". However, this index event still should be granted for indexing for safe.", e);
+                    metrics.increment("filter.error");
+                    needFilterOut[index] = false;
+                }
+            }
+        }
+        return needFilterOut;
+    }
+
+    /**
+     * Apply the steps 2 and 3 of the filter algorithm (see the filter method) to
+     * the system metadata and the solr document of its pid which the caller has
+     * already read, e.g. by streaming the index sorted by id. Neither the age
+     * filter nor the cache is used.
+     * @param sysmeta
+     * @param doc the solr document of the pid, null if solr doesn't have the pid
+     * @return true if we don't need to index it (filter out). An exception grants the event for safe.
+     */
+    public boolean filter(SystemMetadata sysmeta, SolrDocument doc) {
+        try {
+            return decide(SystemMetadataDigest.of(sysmeta), doc == null ? SolrIndexState.absent() : getSolrIndexState(doc));
+        } catch (Exception e) {
+            logger.warn("HZEventFilter.filter - there was an exception in comparing "+sysmeta.getIdentifier().getValue()+
+                    " with its solr document. However, it still should be granted for indexing for safe.", e);
+            return false;
+        }
+    }
+    
+    /**
+     * Apply the steps 2 and 3 of the filter algorithm (see the filter method)
+     * to the digest of a system metadata and the solr index state of its pid.
+     * The replica lists are compared by their ReplicaDigest.
+     * @param sysmeta
+     * @param state the solr index state of the pid
+     * @return true if we don't need to index it (filter out)
+     * @throws Exception if the system metadata misses a field the comparison needs
+     */
+    private boolean decide(SystemMetadataDigest sysmeta, SolrIndexState state) throws Exception {
+        boolean needFilterOut = true;
+        String pid = sysmeta.getPid();
+        String id = state.getId();
+        if(id == null) { //step 2
+            //no slor doc
+            boolean archive = sysmeta.isArchived();
+            if(archive) {
+                //2.1
+                metrics.increment("filter.branch.2.1");
+                //this is an archived object and there is no solr doc either. All set! We don't need index it.
+                logger.info("HZEventFilter.filter - the system metadata for the index event shows "+pid+" is an archived object and the SOLR server doesn't have the record either. So this event has been filtered out for indexing (no indexing).");
+                needFilterOut = true;
+            } else {
+                //2.2
+                metrics.increment("filter.branch.2.2");
+                logger.info("HZEventFilter.filter - the system metadata  for the index event shows shows "+pid+" is not an archived object but the SOLR server doesn't have the record. So this event should be granted for indexing.");
+                needFilterOut = false;
+            }
+        } else {
+            long sysDate = sysmeta.getDateModified();
+            Date solrDate = state.getDateModified();
+            if(sysDate == SystemMetadataDigest.MISSING) {
+                throw new Exception("The system metadata of "+pid+" has no modification date.");
+            }
+            if(sysDate > solrDate.getTime()) {
+                //3.1
+                metrics.increment("filter.branch.3.1");
+                logger.info("HZEventFilter.filter - the system metadata for the index event shows shows "+pid+
+                        " having a newer version than the SOLR server. So this event should be granted for indexing.");
+                needFilterOut = false;
+            } else if (sysDate < solrDate.getTime()) {
+                //3.2
+                metrics.increment("filter.branch.3.2");
+                logger.info("HZEventFilter.filter - the system metadata for the index event shows shows "+pid+
+                        " having an older version than the SOLR server. So this event has been filtered out for indexing (no indexing).");
+                needFilterOut = true;
+            } else {
+                //3.3
+                // the modification date equals. we need to compare replicas
+               long sysSerialVersion = sysmeta.getSerialVersion();
+               BigInteger solrSerial = state.getSerialVersion();//It is a new solr field and it can be null.
+               if(solrSerial != null) {
+                  if(sysSerialVersion == SystemMetadataDigest.MISSING) {
+                      throw new Exception("The system metadata of "+pid+" has no serial version.");
+                  }
+                  BigInteger sysSerial = BigInteger.valueOf(sysSerialVersion);
+                  if(solrSerial.compareTo(sysSerial) == 0) {
+                      //3.3.1.1 If solr = sysmeta , return true (filter it out) since no change in replica
+                      metrics.increment("filter.branch.3.3.1.1");
+                      logger.info("HZEventFilter.filter - the system metadata for the index event shows shows "+pid+
+                              " having the same modification date and serial version in the solr document. So this event has been filtered out for indexing (no indexing).");
+                      needFilterOut = true;
+                  } else if (solrSerial.compareTo(sysSerial) == -1){
+                      //3.3.1.2 If solr < sysmeta, return false (keep index task) since the solr has a smaller (older) serial version.
+                      metrics.increment("filter.branch.3.3.1.2");
+                      logger.info("HZEventFilter.filter - the system metadata for the index event shows shows "+pid+
+                              " having the same modification date but the serial version in the solr document is less than the one in the system metadata. So this event should be granted for indexing.");
+                      needFilterOut = false;
+                  } else if (solrSerial.compareTo(sysSerial) == 1) {
+                      //3.3.1.3 If solr > sysmeta, return true (filter it out) since the solr has a bigger (newer) serial version.
+                      metrics.increment("filter.branch.3.3.1.3");
+                      logger.info("HZEventFilter.filter - the system metadata for the index event shows shows "+pid+
+                              " having the same modification date but the serial version in the solr document is greater than the one in the system metadata. So this event has been filtered out for indexing (no indexing).");
+                      needFilterOut = true;
+                  }
+               } else {
+                   //3.3.2. If serialVersion in solr is Not availabe, comare replica lists (serilaVersion is a new added solr field)
+                   long start = System.nanoTime();
+                   boolean equal;
+                   try {
+                       equal = ReplicaDigest.same(sysmeta.getReplicaDigest(), state.getReplicaDigest());
+                   } finally {
+                       metrics.record(GeneratorMetrics.REPLICA_COMPARE, start);
+                   }
+                   if(equal) {
+                       //3.3.2.1
+                       metrics.increment("filter.branch.3.3.2.1");
+                       logger.info("HZEventFilter.filter - the system metadata for the index event shows "+pid+
+                               " having the same modification date as the SOLR server. Also both have the same replica list. So this event has been filtered out for indexing (no indexing).");
+                      needFilterOut = true;
+                   } else {
+                       //3.3.2.2
+                       metrics.increment("filter.branch.3.3.2.2");
+                       logger.info("HZEventFilter.filter - the system metadata for the index event shows "+pid+
+                               " having the same modification date as the SOLR server. However, they have different replica lists. So this event should be granted for indexing.");
+                       needFilterOut = false;
+                   }
+               }
+              
+            }
+        }
+        return needFilterOut;
+    }
+    
+    /**
+     * Update the cached solr index state of a pid when an index task was
+     * generated for it, so the cache reflects what will be indexed.
+     * @param sysmeta the system metadata of the index task
+     * @param deleted true if the task removes the pid from the index
+     */
+    public void recordIndexTask(SystemMetadata sysmeta, boolean deleted) {
+        if(sysmeta == null || sysmeta.getIdentifier() == null) {
+            return;
+        }
+        if(deleted) {
+            recordDeleteTask(sysmeta.getIdentifier().getValue());
+            return;
+        }
+        if(cache != null) {
+            cache.put(sysmeta.getIdentifier().getValue(), SolrIndexState.indexed(sysmeta));
+        }
+        if(pidFilter != null) {
+            pidFilter.add(sysmeta.getIdentifier().getValue());
+        }
+        if(store != null) {
+            store.markPending(sysmeta.getIdentifier().getValue());
+        }
+    }
+
+    /**
+     * Update the cached solr index state of a pid when a delete index task was
+     * generated for it. Only the pid is needed, so this also serves the remove
+     * events received without their system metadata.
+     * @param pid
+     */
+    public void recordDeleteTask(String pid) {
+        if(cache != null) {
+            cache.put(pid, SolrIndexState.absent());
+        }
+        if(store != null) {
+            store.markPending(pid);
+        }
+    }
+    
+    /**
+     * @return the cache of the solr index state. Null if the cache is disabled.
+     */
+    public SolrStateCache getCache() {
+        return cache;
+    }
+    
     /**
      * Close the solr client
      * @throws IOException
      */
     public void closeSolrClient() throws IOException {
+        if(pidFilter != null) {
+            pidFilter.stop();
+        }
+        if(store != null) {
+            store.close();
+        }
         if(client != null) {
             client.close();
         }
     }
     
+    /**
+     * Create the filter of the indexed pids, if it is enabled, and start
+     * scanning the ids of the solr index to fill it.
+     */
+    public void startPidFilter() {
+        if(pidFilter != null) {
+            return;
+        }
+        IndexedPidFilter created = IndexedPidFilter.fromConfiguration();
+        if(created != null) {
+            if(client == null) {
+                client = SolrClientFactory.create(solrBaseURL);
+            }
+            setPidFilter(created);
+            created.start(client);
+        }
+    }
+    
+    /**
+     * Set the filter of the indexed pids.
+     * @param pidFilter null for no filter
+     */
+    public void setPidFilter(IndexedPidFilter pidFilter) {
+        this.pidFilter = pidFilter;
+        final IndexedPidFilter indexed = pidFilter;
+        if(indexed == null) {
+            return;
+        }
+        metrics.register("filter.pidFilter.size", new Gauge() {
+            @Override
+            public Number getValue() {
+                return indexed.size();
+            }
+        });
+        metrics.register("filter.pidFilter.ready", new Gauge() {
+            @Override
+            public Number getValue() {
+                return indexed.isReady() ? 1 : 0;
+            }
+        });
+    }
+    
+    /**
+     * Get the solr index state of a pid without asking solr: from the state
+     * store if it knows the pid, or as absent if the object is not archived
+     * and its pid is definitely not in the solr index, so the event is granted
+     * in step 2.2. An archived object without a solr document is always looked
+     * up, since filtering it out relies on solr really not having it.
+     * @param sysmeta
+     * @return null if solr has to be asked
+     */
+    private SolrIndexState getLocalState(SystemMetadataDigest sysmeta) {
+        String id = sysmeta.getPid();
+        boolean archived = sysmeta.isArchived();
+        SolrStateStore stateStore = store;
+        if(stateStore != null && stateStore.isComplete()) {
+            SolrIndexState state = stateStore.get(id);
+            if(state != null && (state.getId() != null || !archived)) {
+                metrics.increment("filter.store.hit");
+                return state;
+            }
+            metrics.increment("filter.store.miss");
+        }
+        if(pidFilter != null && !archived && pidFilter.isDefinitelyAbsent(id)) {
+            metrics.increment("filter.pidFilter.skipped");
+            return SolrIndexState.absent();
+        }
+        return null;
+    }
+    
+    /**
+     * Open the local store of the solr index state, if it is enabled, and
+     * start exporting the solr index into it unless the snapshot of the last
+     * run can be reused.
+     */
+    public void startStateStore() {
+        if(store != null || !Settings.getConfiguration().getBoolean(INDEX_EVENT_FILTERING_STATE_STORE_ENABLED, false)) {
+            return;
+        }
+        String path = Settings.getConfiguration().getString(INDEX_EVENT_FILTERING_STATE_STORE_FILE,
+                "/var/lib/dataone/index-generator/solr-state.store");
+        try {
+            SolrStateStore opened = SolrStateStore.open(new File(path),
+                    Settings.getConfiguration().getLong(INDEX_EVENT_FILTERING_STATE_STORE_EXPECTED_PIDS, 15000000L),
+                    Settings.getConfiguration().getLong(INDEX_EVENT_FILTERING_STATE_STORE_MAX_AGE, 86400000L));
+            if(client == null) {
+                client = SolrClientFactory.create(solrBaseURL);
+            }
+            setStateStore(opened);
+            if(!opened.isComplete()) {
+                List<SolrClient> shards = new ArrayList<SolrClient>();
+                for(String shard : Settings.getConfiguration().getStringArray(INDEX_EVENT_FILTERING_STATE_STORE_SHARDS)) {
+                    if(shard != null && !shard.trim().isEmpty()) {
+                        shards.add(SolrClientFactory.create(shard.trim()));
+                    }
+                }
+                new SolrStateExporter(client, shards,
+                        Settings.getConfiguration().getInt(INDEX_EVENT_FILTERING_STATE_STORE_EXPORT_PARTITIONS, 4),
+                        Settings.getConfiguration().getInt(INDEX_EVENT_FILTERING_STATE_STORE_EXPORT_ROWS, 5000)).start(opened);
+            }
+        } catch (IOException e) {
+            logger.error("HZEventFilter.startStateStore - can't open the solr state store "+path+". The events will be looked up in solr: "+e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Set the local store of the solr index state.
+     * @param store null for no store
+     */
+    public void setStateStore(SolrStateStore store) {
+        this.store = store;
+        final SolrStateStore stateStore = store;
+        if(stateStore == null) {
+            return;
+        }
+        metrics.register("filter.store.size", new Gauge() {
+            @Override
+            public Number getValue() {
+                return stateStore.size();
+            }
+        });
+        metrics.register("filter.store.complete", new Gauge() {
+            @Override
+            public Number getValue() {
+                return stateStore.isComplete() ? 1 : 0;
+            }
+        });
+    }
+    
     /**
      * This method will filter out an object whose modification date is more than 30 days old. 
      * 30 days is the default value and configurable. If it is negative value, this filter will be ignored.
      * @param sysmeta the system meta data of the object
      * @return true if the index event should be ignored; otherwise false.
      */
-    private boolean fliterOutOldObject(SystemMetadata sysmeta) {
+    private boolean fliterOutOldObject(SystemMetadataDigest sysmeta) {
+        long start = System.nanoTime();
+        try {
+            boolean needFilterOut = isModifiedTooLongAgo(sysmeta);
+            metrics.increment(needFilterOut ? "filter.age.filteredOut" : "filter.age.granted");
+            return needFilterOut;
+        } finally {
+            metrics.record(GeneratorMetrics.AGE_FILTER, start);
+        }
+    }
+    
+    private boolean isModifiedTooLongAgo(SystemMetadataDigest sysmeta) {
         boolean needFilterOut = false;
-        BigInteger defaultValue = new BigInteger("2592000000");//30 days in milliseconds
-        BigInteger maxAge  = Settings.getConfiguration().getBigInteger(INDEX_EVENT_FILTERING_IGNORE_MODIFIEDTIME_AGE,  defaultValue);
-        if(maxAge.longValue() >=0 ) {
-            Long currentTime = System.currentTimeMillis();
-            Date modifiedDate =sysmeta.getDateSysMetadataModified();
-            if( (currentTime.longValue() - modifiedDate.getTime()) > maxAge.longValue()) {
-                logger.info("HZEventFilter.fliterOldObject - The modifiction date the object has been more than "+ maxAge.longValue()+" milliseconds old. So the index event for "+sysmeta.getIdentifier().getValue()+" has been filtered out (no indexing)");
+        long maxAge = GeneratorConfig.current().getMaxModifiedAge();
+        if(maxAge >=0 ) {
+            long currentTime = System.currentTimeMillis();
+            long modifiedDate = sysmeta.getDateModified();
+            if(modifiedDate == SystemMetadataDigest.MISSING) {
+                throw new IllegalStateException("The system metadata of "+sysmeta.getPid()+" has no modification date.");
+            }
+            if( (currentTime - modifiedDate) > maxAge) {
+                logger.info("HZEventFilter.fliterOldObject - The modifiction date the object has been more than "+ maxAge+" milliseconds old. So the index event for "+sysmeta.getPid()+" has been filtered out (no indexing)");
                 needFilterOut = true;
             } else {
-                logger.info("HZEventFilter.fliterOldObject - The modifiction date the object has been less than "+ maxAge.longValue()+" milliseconds old. So the index event for "+sysmeta.getIdentifier().getValue()+" should be granted for indexing by this time filter. But it maybe will be filtered out by other filters.");
+                logger.info("HZEventFilter.fliterOldObject - The modifiction date the object has been less than "+ maxAge+" milliseconds old. So the index event for "+sysmeta.getPid()+" should be granted for indexing by this time filter. But it maybe will be filtered out by other filters.");
                 needFilterOut = false;
             }
         } else {
-            logger.info("HZEventFilter.fliterOldObject - The max age of the modification "+ maxAge.longValue()+" is less than 0. The time filter is disabled. So the index event "+sysmeta.getIdentifier().getValue()+" should be granted for indexing. But it maybe will be filtered out by other filters.");
+            logger.info("HZEventFilter.fliterOldObject - The max age of the modification "+ maxAge+" is less than 0. The time filter is disabled. So the index event "+sysmeta.getPid()+" should be granted for indexing. But it maybe will be filtered out by other filters.");
             needFilterOut = false;
         }
         return needFilterOut;
     }
     
     /**
-     * Compare two replica list from system metadata and slor doc. The one from solr doc should be null, but it can be empty.
-     * Since the solr doc only have the replica name and verified date, we only compare those two items.
-     * @param pid
-     * @param sysReplicas
-     * @param solrReplicas
-     * @return true if the replicat lists are the same.
-     */
-    private boolean compareRaplicaList(Identifier pid, List<Replica> sysReplicas, List<Replica> solrReplicas) {
-        boolean equal = true;
-        if(sysReplicas != null ) {
-            if(sysReplicas.size() != solrReplicas.size()) {
-                //system metaddata and solr have different replica size. We need to indexing.
-                logger.info("HZEventFilter.compareRaplicaList - the system metadata for the index event "+pid.getValue()+" has a diffrerent size of the replicas to the solr doc. Not the same");
-                equal = false;
+     * Convert the solr doc to the solr index state of a pid. The replica fields
+     * are reduced to their ReplicaDigest, so a cached state takes a few bytes.
+     * @param doc
+     * @return the state. The id is null if the doc is empty.
+     */
+    private SolrIndexState getSolrIndexState(SolrDocument doc) {
+        String id = getId(doc);
+        if(id == null) {
+            return SolrIndexState.absent();
+        }
+        return new SolrIndexState(id, getModificationDateInSolr(doc), getSerialVersion(doc),
+                ReplicaDigest.of(getValues(doc, REPLICAMN), getValues(doc, REPLICAVERIFIEDATE)));
+    }
+    
+    /**
+     * Get the solr index state of a pid from the cache or, if it isn't cached, from solr.
+     * @param id
+     * @return the state
+     * @throws IOException 
+     * @throws SolrServerException 
+     */
+    private SolrIndexState getSolrIndexState(String id) throws SolrServerException, IOException {
+        SolrIndexState state = cache == null ? null : cache.get(id);
+        if(state == null) {
+            checkBreaker();
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                state = getSolrIndexState(getSolrReponse(id));
+                succeeded = true;
+            } finally {
+                recordRequest(start, succeeded);
+            }
+            if(cache != null) {
+                cache.put(id, state);
+            }
+            if(store != null) {
+                store.put(id, state);
+            }
+        }
+        return state;
+    }
+    
+    /**
+     * Get the solr index state of many pids. The pids which are not cached
+     * are queried from solr in one request.
+     * @param ids
+     * @return the state of every id
+     * @throws IOException 
+     * @throws SolrServerException 
+     */
+    private Map<String, SolrIndexState> getSolrIndexStates(List<String> ids) throws SolrServerException, IOException {
+        Map<String, SolrIndexState> states = new HashMap<String, SolrIndexState>();
+        List<String> misses = new ArrayList<String>(ids.size());
+        for(String id : ids) {
+            SolrIndexState state = cache == null ? null : cache.get(id);
+            if(state == null) {
+                misses.add(id);
             } else {
-                //compare the replica lists. If there is not match, the needFilterOut will be set to false. Otherwise (everything matching), it will keep true value.
-                outerloop:
-                for(Replica sysReplica : sysReplicas) {
-                    boolean found = false;
-                    boolean haveDifferentVerificationDate = false;
-                    NodeReference sysNode = sysReplica.getReplicaMemberNode();
-                    logger.debug("The replica node id in the sysem metadata is "+sysNode.getValue());
-                    Date sysConfirmDate = sysReplica.getReplicaVerified();
-                    logger.debug("The replica node verification date in the sysem metadata is ====="+sysConfirmDate);
-                    for(Replica solrReplica : solrReplicas) {
-                        NodeReference solrNode = solrReplica.getReplicaMemberNode();
-                        logger.debug("The replica node id in the solr is "+solrNode.getValue());
-                        Date solrConfirmDate = solrReplica.getReplicaVerified();
-                        logger.debug("The replica node verification date in the solr is "+solrConfirmDate);
-                        if(sysNode.equals(solrNode)) {
-                            found = true;
-                            if(sysConfirmDate.getTime() != solrConfirmDate.getTime()) {
-                              //they have the different verification date. We need to index
-                                logger.info("The verfication date in the system metadata is different in the solr for the node "+ sysNode.getValue());
-                                haveDifferentVerificationDate = true;
-                            } 
-                        }
-                        
-                        if(found && haveDifferentVerificationDate) {
-                            // we found the node but has different verification date. We need to break the loop (ignore others) and grant the event
-                            //system metaddata has an empty replica list but solr doesn't. We need to indexing.
-                            logger.info("HZEventFilter.compareReplicaList - the system metadata for the index event shows "+pid.getValue()+" having at least one of the replica has different verified date to solr doc. Not the same.");
-                            equal = false;
-                            break outerloop;
-                        }
-                    }
-                    if(!found) {
-                        logger.info("HZEventFilter.compareReplicaList - the system metadata for the index event shows "+pid.getValue()+" having at least one of the replica which can't be found on the solr doc. Not the same.");
-                        equal = false;
-                        break;
-                    }
+                states.put(id, state);
+            }
+        }
+        if(!misses.isEmpty()) {
+            checkBreaker();
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            Map<String, SolrDocument> docs;
+            try {
+                docs = getSolrReponses(misses);
+                succeeded = true;
+            } finally {
+                recordRequest(start, succeeded);
+            }
+            for(String id : misses) {
+                SolrDocument doc = docs.get(id);
+                SolrIndexState state = doc == null ? SolrIndexState.absent() : getSolrIndexState(doc);
+                states.put(id, state);
+                if(cache != null) {
+                    cache.put(id, state);
                 }
-                
-                if((equal)) {
-                     //we found that everything match in replica list. So we should filter the event (no indexing)
-                    //this block is only for log information
-                    logger.info("HZEventFilter.compareReplicaList - the system metadata for the index event shows "+pid.getValue()+
-                            " having the same replica list as the solr doc.");
-                    equal = true;
+                if(store != null) {
+                    store.put(id, state);
                 }
             }
-        } else if(solrReplicas.isEmpty()) {
-            //both slor and system metadata has an empty replica list. we should filter out this even, so no indexing.
-            logger.info("HZEventFilter.compareReplicaList - the system metadata for the index event shows "+pid.getValue()+
-                    " having  an emply replica list. So does the solr doc.Same.");
-            equal = true;
-        } else {
-            //system metaddata has an empty replica list but solr doesn't. We need to indexing.
-            logger.info("HZEventFilter.compareReplicaList - the system metadata for the index event shows "+pid.getValue()+" having an empty replica list while the solr doesn't.Not same.");
-            equal = false;
         }
-        return equal;
+        return states;
     }
     
+    /**
+     * Make sure the circuit breaker lets a solr request through.
+     * @throws CircuitOpenException if the breaker is open
+     */
+    private void checkBreaker() throws CircuitOpenException {
+        if(breaker != null && !breaker.allowRequest()) {
+            throw new CircuitOpenException("HZEventFilter.checkBreaker - the circuit breaker of the solr requests is open.");
+        }
+    }
     
     /**
-     * Parse the solr doc to get the replica information
-     * @param doc
-     * @return an empty list if there is no replica information
-     */
-    private List<Replica>  getReplicasInSolr(SolrDocument doc) throws Exception {
-        List<Replica> replicas = new ArrayList<Replica>();
-        Collection<Object> mns =  getValues(doc, REPLICAMN); //the implementation class is ArrayList. So the order can be prserved.
-        //System.out.println("==============The class name of collection is "+mns.getClass().getCanonicalName());
-        Collection<Object> verifiedDates =  getValues(doc, REPLICAVERIFIEDATE);
-        //System.out.println("==============The class name of collection is "+verifiedDates.getClass().getCanonicalName());
-        if((mns == null && verifiedDates != null) || (mns != null && verifiedDates == null) ) {
-            throw new Exception("The number of the repicat nodes doesn't match the number of the verified date in the solr document. There is an issue on the solr doc.");
-        } else if (mns != null && verifiedDates != null) {
-            if(mns.size() != verifiedDates.size()) {
-                throw new Exception("The number of the repicat nodes doesn't match the number of the verified date in the solr document");
+     * Record the duration and the outcome of a solr request.
+     * @param start the nano time the request started
+     * @param succeeded
+     */
+    private void recordRequest(long start, boolean succeeded) {
+        metrics.record(GeneratorMetrics.SOLR_QUERY, start);
+        if(breaker != null) {
+            if(succeeded) {
+                breaker.recordSuccess(System.nanoTime() - start);
             } else {
-                Object[] mnsArray = mns.toArray();
-                Object[] verifiedDatesArray = verifiedDates.toArray();
-                for(int i=0; i<mnsArray.length; i++) {
-                    Object mnObj = mnsArray[i];
-                    Object dateObj = verifiedDatesArray[i];
-                    String mnStr = (String) mnObj;
-                    Date date = (Date)dateObj;
-                    if(mnStr== null || mnStr.trim().equals("") || date == null) {
-                        throw new Exception("The replication information about the memeber node id or the verfidate date shouldn't be null or blank in the solr document.");
-                    }
-                    logger.debug("HZEventFilter.getReplicaInSor - the node id of the replica is "+mnStr);
-                    logger.debug("HZEventFilter.getReplicaInSor - the verified date of the replica with id "+mnStr +" is "+date);
-                    NodeReference mn = new NodeReference();
-                    mn.setValue(mnStr);
-                    Replica replica = new Replica();
-                    replica.setReplicaMemberNode(mn);
-                    replica.setReplicaVerified(date);
-                    replicas.add(replica);
-                }
-                
-               
+                breaker.recordFailure();
             }
         }
-        return replicas;
     }
     
+    /**
+     * @return the circuit breaker of the solr requests. Null if it is disabled.
+     */
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
     
     /**
      * Get the serial version value from the solr doc. Returns null if can't find it. 
@@ -419,29 +956,56 @@ public class HZEventFilter {
     }
     
     /**
-     * Query solr to get the response
-     * @param url
-     * @return
+     * Query solr to get the document of a pid with the lookup strategy. Unless
+     * the replica fields are fetched eagerly, they are only fetched with a
+     * second request when the document has no serial version.
+     * @param id
+     * @return null if solr doesn't have the pid
+     * @throws IOException 
+     * @throws SolrServerException 
+     */
+    private SolrDocument getSolrReponse(String id) throws SolrServerException, IOException {
+        if(!lazyReplicas) {
+            return lookup.lookup(client, id, SolrStateLookup.FIELDS);
+        }
+        SolrDocument doc = lookup.lookup(client, id, SolrStateLookup.STATE_FIELDS);
+        if(doc != null && getSerialVersion(doc) == null) {
+            metrics.increment("filter.replica.fetches");
+            doc = lookup.lookup(client, id, SolrStateLookup.FIELDS);
+        }
+        return doc;
+    }
+    
+    /**
+     * Query solr to get the documents of many ids in one request, plus one
+     * request for the replica fields of the documents without a serial version.
+     * @param ids
+     * @return the found documents keyed by their id. The ids without a solr
+     *         document are absent.
      * @throws IOException 
      * @throws SolrServerException 
      */
-     private SolrDocument getSolrReponse(String id) throws SolrServerException, IOException {
-        SolrDocument document = new SolrDocument();
-        id = escapeQueryChars(id);
-        String filter = ID+":"+id;
-        System.out.println("the filter is "+filter);
-        SolrQuery query = new SolrQuery(filter);
-        query.setFields(ID,DATEMODIFIED, REPLICAMN, REPLICAVERIFIEDATE, SERIALVERSION);
-        query.setStart(0);
-        QueryResponse response = client.query(query);
-        SolrDocumentList results = response.getResults();
-        //System.out.println("the size of result is "+results.size());
-        if(results.size() >0) {
-            document = results.get(FIRSTSOLRDOCINDEX);
-        }
-        //System.out.println("the solr document is "+document);
-        return document;
-        
+    private Map<String, SolrDocument> getSolrReponses(List<String> ids) throws SolrServerException, IOException {
+        if(client == null) {
+            client = SolrClientFactory.create(solrBaseURL);
+        }
+        if(!lazyReplicas) {
+            return lookup.lookup(client, ids, SolrStateLookup.FIELDS);
+        }
+        Map<String, SolrDocument> docs = lookup.lookup(client, ids, SolrStateLookup.STATE_FIELDS);
+        List<String> withoutSerial = new ArrayList<String>();
+        for(Map.Entry<String, SolrDocument> entry : docs.entrySet()) {
+            if(getSerialVersion(entry.getValue()) == null) {
+                metrics.increment("filter.replica.fetches");
+                withoutSerial.add(entry.getKey());
+            }
+        }
+        if(!withoutSerial.isEmpty()) {
+            //a document deleted in between is absent rather than kept without its replicas
+            docs.keySet().removeAll(withoutSerial);
+            docs.putAll(lookup.lookup(client, withoutSerial, SolrStateLookup.FIELDS));
+        }
+        return docs;
     }
     
     /**
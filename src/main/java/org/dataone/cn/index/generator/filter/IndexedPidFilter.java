@@ -0,0 +1,195 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.dataone.configuration.Settings;
+
+/**
+ * The pids which are in the solr index, kept in a PidBloomFilter. The filter
+ * is filled by streaming all ids out of solr with a cursor at startup and by
+ * the pids of the generated index tasks afterwards. Once the scan finished, a
+ * pid the filter has never seen is definitely not in the index, so the
+ * HZEventFilter doesn't need to ask solr about it.
+ *
+ * Pids are never removed from a Bloom filter. A pid which left the index is
+ * still reported as maybe indexed, which only costs the usual solr query.
+ *
+ */
+public class IndexedPidFilter {
+
+    private static Logger logger = Logger.getLogger(IndexedPidFilter.class.getName());
+    private static final String ENABLED = "indexEvent.filtering.pid.filter.enabled";
+    private static final String EXPECTED_PIDS = "indexEvent.filtering.pid.filter.expected.pids";
+    private static final String FALSE_POSITIVE_RATE = "indexEvent.filtering.pid.filter.false.positive.rate";
+    private static final String SCAN_ROWS = "indexEvent.filtering.pid.filter.scan.rows";
+
+    private final PidBloomFilter bloomFilter;
+    private final int scanRows;
+    private volatile boolean ready = false;
+    private Thread builder = null;
+
+    /**
+     * Constructor
+     * @param expectedPids the number of pids the filter is sized for
+     * @param falsePositiveRate the ratio of the unknown pids reported as maybe indexed
+     * @param scanRows the number of ids fetched in one request of the scan
+     */
+    public IndexedPidFilter(long expectedPids, double falsePositiveRate, int scanRows) {
+        this.bloomFilter = new PidBloomFilter(expectedPids, falsePositiveRate);
+        this.scanRows = Math.max(1, scanRows);
+    }
+
+    /**
+     * Create the filter from the configuration.
+     * @return null if the filter is disabled
+     */
+    public static IndexedPidFilter fromConfiguration() {
+        if (!Settings.getConfiguration().getBoolean(ENABLED, true)) {
+            logger.info("IndexedPidFilter.fromConfiguration - the filter of the indexed pids is disabled.");
+            return null;
+        }
+        IndexedPidFilter filter = new IndexedPidFilter(
+                Settings.getConfiguration().getLong(EXPECTED_PIDS, 20000000L),
+                Settings.getConfiguration().getDouble(FALSE_POSITIVE_RATE, 0.01),
+                Settings.getConfiguration().getInt(SCAN_ROWS, 10000));
+        logger.info("IndexedPidFilter.fromConfiguration - the filter of the indexed pids uses "
+                + filter.bloomFilter.getMemorySize() + " bytes and " + filter.bloomFilter.getHashCount()
+                + " hash functions.");
+        return filter;
+    }
+
+    /**
+     * Start scanning the ids of the solr index on a background thread. The
+     * filter answers maybe indexed for every pid until the scan finished.
+     * @param client
+     */
+    public synchronized void start(final SolrClient client) {
+        if (builder != null) {
+            return;
+        }
+        builder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    build(client);
+                } catch (InterruptedException e) {
+                    logger.warn("IndexedPidFilter.start - the scan of the indexed pids was interrupted.");
+                } catch (Exception e) {
+                    logger.error("IndexedPidFilter.start - failed to scan the indexed pids. All pids will be looked up in solr: "
+                            + e.getMessage(), e);
+                }
+            }
+        }, "index-generator-pid-filter-builder");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * Stop the scan if it is still running.
+     */
+    public synchronized void stop() {
+        if (builder != null) {
+            builder.interrupt();
+        }
+    }
+
+    /**
+     * Put the ids of all solr documents in the filter, sorted by id so the
+     * cursor can page through them, then mark the filter ready.
+     * @param client
+     * @return the number of scanned ids
+     * @throws SolrServerException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public long build(SolrClient client) throws SolrServerException, IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        long count = 0;
+        SolrQuery query = new SolrQuery("*:*");
+        query.setFields("id");
+        query.setRows(scanRows);
+        query.setSort("id", SolrQuery.ORDER.asc);
+        String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+            QueryResponse response = client.query(query);
+            for (SolrDocument document : response.getResults()) {
+                Object id = document.getFirstValue("id");
+                if (id != null) {
+                    bloomFilter.put((String) id);
+                    count++;
+                }
+            }
+            String next = response.getNextCursorMark();
+            if (next == null || next.equals(cursorMark)) {
+                break;
+            }
+            cursorMark = next;
+            if (logger.isDebugEnabled()) {
+                logger.debug("IndexedPidFilter.build - scanned " + count + " ids.");
+            }
+        }
+        ready = true;
+        logger.info("IndexedPidFilter.build - scanned the " + count + " ids of the solr index in "
+                + (System.currentTimeMillis() - start) + " milliseconds.");
+        return count;
+    }
+
+    /**
+     * Remember a pid which will be in the index.
+     * @param pid
+     */
+    public void add(String pid) {
+        bloomFilter.put(pid);
+    }
+
+    /**
+     * @param pid
+     * @return true if the scan finished and the pid is definitely not in the index
+     */
+    public boolean isDefinitelyAbsent(String pid) {
+        return ready && !bloomFilter.mightContain(pid);
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return the number of pids put in the filter
+     */
+    public long size() {
+        return bloomFilter.getInsertionCount();
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of pids. A pid which was put is always reported as maybe
+ * contained, a pid which wasn't put is reported as maybe contained with the
+ * false positive probability the filter was sized for. The bits are set with
+ * compare and swap, so pids can be put and checked from many threads without
+ * a lock.
+ *
+ * The bit positions are derived from one 64 bit hash of the pid by double
+ * hashing, as in "Less Hashing, Same Performance: Building a Better Bloom
+ * Filter" (Kirsch and Mitzenmacher).
+ *
+ */
+public class PidBloomFilter {
+
+    private static final double LN2 = Math.log(2);
+
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashCount;
+    private final AtomicLong insertions = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param expectedInsertions the number of pids the filter is sized for
+     * @param falsePositiveRate the false positive probability at the expected number of pids
+     */
+    public PidBloomFilter(long expectedInsertions, double falsePositiveRate) {
+        long n = Math.max(1, expectedInsertions);
+        double p = Math.min(0.5, Math.max(1e-9, falsePositiveRate));
+        long m = (long) Math.ceil(-n * Math.log(p) / (LN2 * LN2));
+        //the bits are kept in a long array
+        long words = Math.min(Integer.MAX_VALUE - 8, Math.max(1, (m + 63) >>> 6));
+        this.bits = new AtomicLongArray((int) words);
+        this.bitSize = words << 6;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / n * LN2));
+    }
+
+    /**
+     * Add a pid.
+     * @param pid
+     */
+    public void put(String pid) {
+        long hash = hash64(pid);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long combined = h1 + (long) i * h2;
+            if (combined < 0) {
+                combined = ~combined;
+            }
+            long bit = combined % bitSize;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = bits.get(word);
+            while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                current = bits.get(word);
+            }
+        }
+        insertions.incrementAndGet();
+    }
+
+    /**
+     * @param pid
+     * @return false if the pid was definitely never put
+     */
+    public boolean mightContain(String pid) {
+        long hash = hash64(pid);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long combined = h1 + (long) i * h2;
+            if (combined < 0) {
+                combined = ~combined;
+            }
+            long bit = combined % bitSize;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of put calls, including the pids put more than once
+     */
+    public long getInsertionCount() {
+        return insertions.get();
+    }
+
+    public long getBitSize() {
+        return bitSize;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * @return the size of the bit array in bytes
+     */
+    public long getMemorySize() {
+        return bitSize >>> 3;
+    }
+
+    /**
+     * A 64 bit hash of the characters of the pid: FNV-1a over the chars,
+     * finished with the 64 bit mixer of MurmurHash3 so all bits avalanche.
+     */
+    public static long hash64(String pid) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < pid.length(); i++) {
+            hash ^= pid.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
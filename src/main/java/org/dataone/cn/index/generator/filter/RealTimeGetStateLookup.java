@@ -0,0 +1,115 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+/**
+ * Fetches the solr documents from the /get (real time get) handler by their
+ * ids. There is no query to parse or score, and the documents written by the
+ * indexer but not committed yet are found too, so the filter doesn't grant an
+ * event for a document which is already up to date in the update log.
+ *
+ * The handler splits the ids parameter at the commas, so the commas and
+ * backslashes in the pids are escaped with a backslash. The request is sent
+ * as a post, since a long list of ids doesn't fit in the url.
+ *
+ */
+public class RealTimeGetStateLookup implements SolrStateLookup {
+
+    public static final String NAME = "get";
+    private static final String PATH = "/get";
+
+    @Override
+    public SolrDocument lookup(SolrClient client, String id, String[] fields) throws SolrServerException,
+            IOException {
+        return lookup(client, Collections.singletonList(id), fields).get(id);
+    }
+
+    @Override
+    public Map<String, SolrDocument> lookup(SolrClient client, List<String> ids, String[] fields)
+            throws SolrServerException, IOException {
+        Map<String, SolrDocument> documents = new HashMap<String, SolrDocument>();
+        if (ids.isEmpty()) {
+            return documents;
+        }
+        StringBuilder idList = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) {
+                idList.append(',');
+            }
+            escapeId(ids.get(i), idList);
+        }
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set("ids", idList.toString());
+        params.set(CommonParams.FL, join(fields));
+        QueryRequest request = new QueryRequest(params, SolrRequest.METHOD.POST);
+        request.setPath(PATH);
+        SolrDocumentList results = request.process(client).getResults();
+        if (results != null) {
+            for (SolrDocument document : results) {
+                Object id = document.getFirstValue("id");
+                if (id != null) {
+                    documents.put((String) id, document);
+                }
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Escape the characters the handler splits the ids parameter on.
+     */
+    static void escapeId(String id, StringBuilder sb) {
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c == ',' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+    }
+
+    private static String join(String[] fields) {
+        StringBuilder sb = new StringBuilder();
+        for (String field : fields) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(field);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.dataone.service.types.v1.Replica;
+
+/**
+ * A 64 bit digest of a replica list: the member nodes with their verified
+ * dates, independent of the order. Two lists with the same digest hold the
+ * same replicas (up to a 2^-64 chance), so the HZEventFilter can compare the
+ * replicas of the system metadata with a solr document it only kept the
+ * digest of. Lists listing a node twice may hold the same replicas with
+ * different digests, which only grants more events.
+ *
+ */
+public class ReplicaDigest {
+
+    /**
+     * The digest of an empty or missing replica list.
+     */
+    public static final long EMPTY = 0L;
+    /**
+     * The digest of a replica list which can't be compared, such as solr
+     * replica fields of different lengths. It never equals another digest.
+     */
+    public static final long INVALID = 1L;
+
+    private ReplicaDigest() {
+    }
+
+    /**
+     * @param replicas the replica list of the system metadata, may be null
+     * @return the digest
+     */
+    public static long of(List<Replica> replicas) {
+        if (replicas == null || replicas.isEmpty()) {
+            return EMPTY;
+        }
+        long sum = 0;
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get(i);
+            if (replica.getReplicaMemberNode() == null || replica.getReplicaMemberNode().getValue() == null
+                    || replica.getReplicaVerified() == null) {
+                return INVALID;
+            }
+            sum += entry(replica.getReplicaMemberNode().getValue(), replica.getReplicaVerified().getTime());
+        }
+        return finish(sum, replicas.size());
+    }
+
+    /**
+     * @param mns the replicaMN values of a solr document, may be null
+     * @param verifiedDates the replicaVerifiedDate values of the solr document, may be null
+     * @return the digest, INVALID if the fields are inconsistent
+     */
+    public static long of(Collection<Object> mns, Collection<Object> verifiedDates) {
+        int size = mns == null ? 0 : mns.size();
+        int dates = verifiedDates == null ? 0 : verifiedDates.size();
+        if (size != dates) {
+            return INVALID;
+        }
+        if (size == 0) {
+            return EMPTY;
+        }
+        long sum = 0;
+        Iterator<Object> mn = mns.iterator();
+        Iterator<Object> date = verifiedDates.iterator();
+        while (mn.hasNext()) {
+            Object node = mn.next();
+            Object verified = date.next();
+            if (!(node instanceof String) || ((String) node).trim().isEmpty() || !(verified instanceof Date)) {
+                return INVALID;
+            }
+            sum += entry((String) node, ((Date) verified).getTime());
+        }
+        return finish(sum, size);
+    }
+
+    /**
+     * @return true if the digests are of the same comparable replica list
+     */
+    public static boolean same(long digest, long other) {
+        return digest == other && digest != INVALID;
+    }
+
+    private static long entry(String node, long verified) {
+        return mix(PidBloomFilter.hash64(node) ^ mix(verified));
+    }
+
+    private static long finish(long sum, int size) {
+        long digest = mix(sum + size * 0x9e3779b97f4a7c15L);
+        if (digest == EMPTY || digest == INVALID) {
+            digest += 2;
+        }
+        return digest;
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * Fetches the solr documents with a term or terms query on the id field to
+ * the /select handler. Those parsers take the ids as they are, so no id is
+ * read as an operator of the query syntax. Only committed documents are found.
+ *
+ */
+public class SelectStateLookup implements SolrStateLookup {
+
+    private static Logger logger = Logger.getLogger(SelectStateLookup.class.getName());
+    public static final String NAME = "select";
+    private static final char DEFAULT_SEPARATOR = ',';
+    //the separators tried in order, none of them needs quoting in a local param
+    private static final String SEPARATORS = ",|;~^!";
+
+    @Override
+    public SolrDocument lookup(SolrClient client, String id, String[] fields) throws SolrServerException,
+            IOException {
+        //the term parser takes the id as it is, even an id like OR or NOT
+        String filter = "{!term f=id}" + id;
+        logger.debug("SelectStateLookup.lookup - the filter is " + filter);
+        SolrQuery query = new SolrQuery(filter);
+        query.setFields(fields);
+        query.setStart(0);
+        QueryResponse response = client.query(query);
+        SolrDocumentList results = response.getResults();
+        if (results.size() > 0) {
+            return results.get(0);
+        }
+        return null;
+    }
+
+    @Override
+    public Map<String, SolrDocument> lookup(SolrClient client, List<String> ids, String[] fields)
+            throws SolrServerException, IOException {
+        Map<String, SolrDocument> documents = new HashMap<String, SolrDocument>();
+        if (ids.isEmpty()) {
+            return documents;
+        }
+        char separator = separatorOf(ids);
+        if (separator == 0) {
+            //every separator is in some id, so the ids are looked up one by one
+            for (String id : ids) {
+                SolrDocument document = lookup(client, id, fields);
+                if (document != null) {
+                    documents.put(id, document);
+                }
+            }
+            return documents;
+        }
+        StringBuilder filter = new StringBuilder("{!terms f=id");
+        if (separator != DEFAULT_SEPARATOR) {
+            filter.append(" separator='").append(separator).append("'");
+        }
+        filter.append("}");
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) {
+                filter.append(separator);
+            }
+            filter.append(ids.get(i));
+        }
+        SolrQuery query = new SolrQuery(filter.toString());
+        query.setFields(fields);
+        query.setStart(0);
+        query.setRows(ids.size());
+        //a long list of ids doesn't fit in the url of a get request
+        QueryResponse response = client.query(query, SolrRequest.METHOD.POST);
+        for (SolrDocument document : response.getResults()) {
+            Object id = document.getFirstValue("id");
+            if (id != null) {
+                documents.put((String) id, document);
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * The separator of the ids in a terms query: the comma, or the first of
+     * the other separators which isn't in any id.
+     * @param ids
+     * @return the separator, 0 if every separator is in some id
+     */
+    static char separatorOf(List<String> ids) {
+        for (int i = 0; i < SEPARATORS.length(); i++) {
+            char separator = SEPARATORS.charAt(i);
+            boolean used = false;
+            for (String id : ids) {
+                if (id.indexOf(separator) >= 0) {
+                    used = true;
+                    break;
+                }
+            }
+            if (!used) {
+                return separator;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.dataone.configuration.Settings;
+
+/**
+ * Creates the solr client of the HZEventFilter with a bounded connection pool
+ * and timeouts, so a hung solr server fails the requests instead of blocking
+ * the event processing threads.
+ *
+ */
+public class SolrClientFactory {
+
+    private static Logger logger = Logger.getLogger(SolrClientFactory.class.getName());
+    private static final String MAX_CONNECTIONS = "indexEvent.filtering.solr.max.connections";
+    private static final String MAX_CONNECTIONS_PER_HOST = "indexEvent.filtering.solr.max.connections.per.host";
+    //milliseconds
+    private static final String CONNECT_TIMEOUT = "indexEvent.filtering.solr.connect.timeout";
+    private static final String SOCKET_TIMEOUT = "indexEvent.filtering.solr.socket.timeout";
+
+    private SolrClientFactory() {
+    }
+
+    /**
+     * @param baseURL the url of the solr core
+     * @return the client configured with the indexEvent.filtering.solr.* settings
+     */
+    public static HttpSolrClient create(String baseURL) {
+        int maxConnections = Settings.getConfiguration().getInt(MAX_CONNECTIONS, 64);
+        int maxConnectionsPerHost = Settings.getConfiguration().getInt(MAX_CONNECTIONS_PER_HOST, 32);
+        int connectTimeout = Settings.getConfiguration().getInt(CONNECT_TIMEOUT, 5000);
+        int socketTimeout = Settings.getConfiguration().getInt(SOCKET_TIMEOUT, 30000);
+        HttpSolrClient client = new HttpSolrClient(baseURL);
+        client.setMaxTotalConnections(maxConnections);
+        client.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        client.setConnectionTimeout(connectTimeout);
+        client.setSoTimeout(socketTimeout);
+        logger.info("SolrClientFactory.create - the client of " + baseURL + " has up to " + maxConnections + " connections ("
+                + maxConnectionsPerHost + " per host), a connect timeout of " + connectTimeout
+                + " milliseconds and a socket timeout of " + socketTimeout + " milliseconds.");
+        return client;
+    }
+}
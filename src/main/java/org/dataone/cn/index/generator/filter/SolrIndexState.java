@@ -0,0 +1,95 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+import org.dataone.service.types.v2.SystemMetadata;
+
+/**
+ * The state of a pid in the solr index which the HZEventFilter compares with
+ * the system metadata: the id, the modification date, the serial version and
+ * the ReplicaDigest of the replica fields, so a cached or stored state takes a
+ * few bytes whatever the number of replicas.
+ * @author tao
+ *
+ */
+public class SolrIndexState {
+
+    private final String id;
+    private final Date dateModified;
+    private final BigInteger serialVersion;
+    private final long replicaDigest;
+
+    /**
+     * Constructor
+     * @param id the id of the solr document. Null means solr doesn't have the pid.
+     * @param dateModified
+     * @param serialVersion null if the solr document doesn't have the field
+     * @param replicaDigest the ReplicaDigest of the replica fields
+     */
+    public SolrIndexState(String id, Date dateModified, BigInteger serialVersion, long replicaDigest) {
+        this.id = id;
+        this.dateModified = dateModified;
+        this.serialVersion = serialVersion;
+        this.replicaDigest = replicaDigest;
+    }
+
+    /**
+     * The state of a pid which is not in the solr index.
+     */
+    public static SolrIndexState absent() {
+        return new SolrIndexState(null, null, null, ReplicaDigest.EMPTY);
+    }
+
+    /**
+     * The state the solr index will have after the system metadata is indexed.
+     * @param sysmeta
+     */
+    public static SolrIndexState indexed(SystemMetadata sysmeta) {
+        return new SolrIndexState(sysmeta.getIdentifier().getValue(), sysmeta.getDateSysMetadataModified(),
+                sysmeta.getSerialVersion(), ReplicaDigest.of(sysmeta.getReplicaList()));
+    }
+
+    /**
+     * @return null if solr doesn't have the pid
+     */
+    public String getId() {
+        return id;
+    }
+
+    public Date getDateModified() {
+        return dateModified;
+    }
+
+    public BigInteger getSerialVersion() {
+        return serialVersion;
+    }
+
+    /**
+     * @return the ReplicaDigest of the replica fields
+     */
+    public long getReplicaDigest() {
+        return replicaDigest;
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size and time bounded cache of the solr index state of the pids, so the
+ * HZEventFilter doesn't have to ask solr again about a pid it looked up a
+ * moment ago. The least recently used entry is evicted when the cache is
+ * full, and an entry expires after the time to live.
+ *
+ */
+public class SolrStateCache {
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Map<String, CachedState> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param maxSize the max number of pids in the cache
+     * @param ttlMillis how long an entry is used after it was put
+     */
+    public SolrStateCache(int maxSize, long ttlMillis) {
+        this.maxSize = Math.max(1, maxSize);
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, CachedState>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedState> eldest) {
+                if (size() > SolrStateCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param pid
+     * @return the cached state, or null if the pid is not cached or the entry expired
+     */
+    public SolrIndexState get(String pid) {
+        synchronized (entries) {
+            CachedState entry = entries.get(pid);
+            if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+                entries.remove(pid);
+                evictions.incrementAndGet();
+                entry = null;
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.state;
+        }
+    }
+
+    /**
+     * Cache the state of a pid, replacing the previous one.
+     * @param pid
+     * @param state
+     */
+    public void put(String pid, SolrIndexState state) {
+        CachedState entry = new CachedState(state, System.currentTimeMillis() + ttlMillis);
+        synchronized (entries) {
+            entries.put(pid, entry);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries removed since the cache was full or they expired
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    private static class CachedState {
+        private final SolrIndexState state;
+        private final long expiresAt;
+
+        private CachedState(SolrIndexState state, long expiresAt) {
+            this.state = state;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
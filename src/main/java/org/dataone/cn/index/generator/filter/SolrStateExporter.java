@@ -0,0 +1,266 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CursorMarkParams;
+
+/**
+ * Exports the id, dateModified, serialVersion and replica fields of all
+ * documents of the solr index into a SolrStateStore. The index is split into
+ * partitions exported in parallel, each with its own cursor:
+ * - one partition per shard when the urls of the shards are given, queried
+ *   with distrib=false,
+ * - otherwise ranges of ids, whose bounds are the ids at evenly spaced
+ *   positions of the index sorted by id.
+ *
+ */
+public class SolrStateExporter {
+
+    private static Logger logger = Logger.getLogger(SolrStateExporter.class.getName());
+    private static final String ID = "id";
+    private static final String[] FIELDS = { ID, "dateModified", "serialVersion", "replicaMN", "replicaVerifiedDate" };
+
+    private final SolrClient client;
+    private final List<SolrClient> shards;
+    private final int partitions;
+    private final int rows;
+    private final AtomicLong exported = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param client the client of the whole index
+     * @param shards the clients of the shards of the index, empty to split the index by id ranges
+     * @param partitions the number of id ranges exported in parallel
+     * @param rows the number of documents fetched in one request
+     */
+    public SolrStateExporter(SolrClient client, List<SolrClient> shards, int partitions, int rows) {
+        this.client = client;
+        this.shards = shards;
+        this.partitions = Math.max(1, partitions);
+        this.rows = Math.max(1, rows);
+    }
+
+    /**
+     * Export the index into the store and mark the store complete.
+     * @param store
+     * @return the number of exported documents
+     * @throws Exception if a partition failed. The store is not complete then.
+     */
+    public long export(final SolrStateStore store) throws Exception {
+        long start = System.currentTimeMillis();
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        if (!shards.isEmpty()) {
+            for (final SolrClient shard : shards) {
+                tasks.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return exportPartition(shard, null, true, store);
+                    }
+                });
+            }
+        } else {
+            List<String> bounds = splitPoints();
+            for (int i = 0; i <= bounds.size(); i++) {
+                final String filter = rangeFilter(i == 0 ? null : bounds.get(i - 1),
+                        i == bounds.size() ? null : bounds.get(i));
+                tasks.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return exportPartition(client, filter, false, store);
+                    }
+                });
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size(), new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "index-generator-state-export-" + number.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long total = 0;
+        try {
+            List<Future<Long>> results = executor.invokeAll(tasks);
+            for (Future<Long> result : results) {
+                try {
+                    total += result.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        store.markComplete();
+        logger.info("SolrStateExporter.export - exported the state of " + total + " solr documents in "
+                + tasks.size() + " partition(s) in " + (System.currentTimeMillis() - start) + " milliseconds.");
+        return total;
+    }
+
+    /**
+     * Start the export on a background thread.
+     * @param store
+     */
+    public void start(final SolrStateStore store) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    export(store);
+                } catch (Exception e) {
+                    logger.error("SolrStateExporter.start - failed to export the solr index state. The events will be looked up in solr: "
+                            + e.getMessage(), e);
+                }
+            }
+        }, "index-generator-state-export");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the number of documents exported so far
+     */
+    public long getExportedCount() {
+        return exported.get();
+    }
+
+    /**
+     * Find the ids splitting the index sorted by id into partitions of about the same size.
+     */
+    private List<String> splitPoints() throws Exception {
+        List<String> bounds = new ArrayList<String>();
+        SolrQuery count = new SolrQuery("*:*");
+        count.setRows(0);
+        long found = client.query(count).getResults().getNumFound();
+        if (partitions == 1 || found < partitions * (long) rows) {
+            return bounds;
+        }
+        for (int i = 1; i < partitions; i++) {
+            SolrQuery query = new SolrQuery("*:*");
+            query.setFields(ID);
+            query.setSort(ID, SolrQuery.ORDER.asc);
+            query.setStart((int) (found * i / partitions));
+            query.setRows(1);
+            SolrDocumentList results = client.query(query).getResults();
+            if (!results.isEmpty()) {
+                String id = (String) results.get(0).getFirstValue(ID);
+                if (bounds.isEmpty() || id.compareTo(bounds.get(bounds.size() - 1)) > 0) {
+                    bounds.add(id);
+                }
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * @return the filter query of the ids from the lower bound (inclusive) to the upper bound (exclusive)
+     */
+    public static String rangeFilter(String lower, String upper) {
+        if (lower == null && upper == null) {
+            return null;
+        }
+        return ID + ":[" + (lower == null ? "*" : HZEventFilter.escapeQueryChars(lower)) + " TO "
+                + (upper == null ? "*]" : HZEventFilter.escapeQueryChars(upper) + "}");
+    }
+
+    private long exportPartition(SolrClient partitionClient, String filter, boolean shard, SolrStateStore store)
+            throws Exception {
+        long count = 0;
+        SolrQuery query = new SolrQuery("*:*");
+        if (filter != null) {
+            query.addFilterQuery(filter);
+        }
+        if (shard) {
+            query.set("distrib", false);
+        }
+        query.setFields(FIELDS);
+        query.setRows(rows);
+        query.setSort(ID, SolrQuery.ORDER.asc);
+        String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+            QueryResponse response = partitionClient.query(query);
+            for (SolrDocument document : response.getResults()) {
+                Object id = document.getFirstValue(ID);
+                if (id != null) {
+                    store.putExported((String) id, toState((String) id, document));
+                    count++;
+                }
+            }
+            long total = exported.addAndGet(response.getResults().size());
+            String next = response.getNextCursorMark();
+            if (next == null || next.equals(cursorMark)) {
+                break;
+            }
+            cursorMark = next;
+            if (logger.isDebugEnabled()) {
+                logger.debug("SolrStateExporter.exportPartition - exported " + total + " documents.");
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Convert a document to the state the filter compares. The filter fails
+     * on a dateModified or serialVersion of an unexpected type and grants the
+     * event, so such a document is stored without a modification date, which
+     * makes the filter grant its events too.
+     */
+    static SolrIndexState toState(String id, SolrDocument document) {
+        Object modified = document.getFirstValue("dateModified");
+        Object serial = document.getFirstValue("serialVersion");
+        Collection<Object> mns = document.getFieldValues("replicaMN");
+        Collection<Object> verified = document.getFieldValues("replicaVerifiedDate");
+        Date dateModified = modified instanceof Date ? (Date) modified : null;
+        if (serial != null && !(serial instanceof BigInteger)) {
+            dateModified = null;
+        }
+        return new SolrIndexState(id, dateModified, (BigInteger) serial, ReplicaDigest.of(mns, verified));
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+
+/**
+ * The way the HZEventFilter fetches the solr documents of the pids, with the
+ * fields it compares (id, dateModified, replicaMN, replicaVerifiedDate and
+ * serialVersion). The filter first asks for the STATE_FIELDS, and only fetches
+ * the replica fields of the documents without a serial version.
+ *
+ */
+public interface SolrStateLookup {
+
+    /**
+     * The fields of the solr documents the filter needs.
+     */
+    public static final String[] FIELDS = { "id", "dateModified", "replicaMN", "replicaVerifiedDate", "serialVersion" };
+
+    /**
+     * The fields without the replica fields, which the filter only compares
+     * when a document has no serial version.
+     */
+    public static final String[] STATE_FIELDS = { "id", "dateModified", "serialVersion" };
+
+    /**
+     * @param client
+     * @param id
+     * @param fields the fields of the document to fetch
+     * @return the document of the id, null if solr doesn't have it
+     * @throws SolrServerException
+     * @throws IOException
+     */
+    public SolrDocument lookup(SolrClient client, String id, String[] fields) throws SolrServerException,
+            IOException;
+
+    /**
+     * Fetch the documents of many ids in one request.
+     * @param client
+     * @param ids
+     * @param fields the fields of the documents to fetch
+     * @return the found documents keyed by their id. The ids without a solr
+     *         document are absent.
+     * @throws SolrServerException
+     * @throws IOException
+     */
+    public Map<String, SolrDocument> lookup(SolrClient client, List<String> ids, String[] fields)
+            throws SolrServerException, IOException;
+}
@@ -0,0 +1,420 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A local copy of the solr index state of all pids, so the HZEventFilter can
+ * decide without asking solr. It is an open addressing hash table with linear
+ * probing in a memory mapped file, outside of the java heap. A pid is keyed by
+ * its 64 bit hash; a second 32 bit hash guards against the rare collisions of
+ * the first one. A slot holds the modification date, the serial version, the
+ * ReplicaDigest of the replica fields and the flags of the pid.
+ *
+ * The file is the snapshot: it is filled by the SolrStateExporter, updated by
+ * the solr lookups of the filter and forced to the disk on close, so a
+ * restart maps it again instead of exporting the index. A file which wasn't
+ * closed cleanly, was exported too long ago or has another capacity is
+ * exported again.
+ *
+ * The store only answers what it knows: the pids an index task was generated
+ * for are marked pending until a solr lookup refreshes them, since the task
+ * may not have been indexed yet.
+ *
+ */
+public class SolrStateStore {
+
+    private static Logger logger = Logger.getLogger(SolrStateStore.class.getName());
+    private static final int MAGIC = 0x44315353;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 40;
+    private static final int SLOTS_PER_REGION = 1 << 24;
+    private static final double LOAD_FACTOR = 0.7;
+    private static final double MAX_LOAD = 0.9;
+    //header offsets
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 16;
+    private static final int STATE_OFFSET = 24;
+    private static final int EXPORTED_AT_OFFSET = 28;
+    //header states
+    private static final int STATE_EMPTY = 0;
+    private static final int STATE_OPEN = 1;
+    private static final int STATE_COMPLETE = 2;
+    private static final int STATE_CLOSED = 3;
+    //slot offsets
+    private static final int MODIFIED_OFFSET = 8;
+    private static final int SERIAL_OFFSET = 16;
+    private static final int DIGEST_OFFSET = 24;
+    private static final int FLAGS_OFFSET = 32;
+    private static final int CHECK_OFFSET = 36;
+    //slot flags
+    private static final int PRESENT = 1;
+    private static final int PENDING = 2;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] regions;
+    private final long capacity;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long count;
+    private volatile boolean complete;
+    private boolean full = false;
+
+    private SolrStateStore(File file, RandomAccessFile raf, long capacity, boolean reuse) throws IOException {
+        this.file = file;
+        this.raf = raf;
+        this.capacity = capacity;
+        FileChannel channel = raf.getChannel();
+        long size = HEADER_SIZE + capacity * SLOT_SIZE;
+        if (!reuse) {
+            raf.setLength(0);
+            raf.setLength(size);
+        }
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        int regionCount = (int) ((capacity + SLOTS_PER_REGION - 1) / SLOTS_PER_REGION);
+        regions = new MappedByteBuffer[regionCount];
+        for (int i = 0; i < regionCount; i++) {
+            long slots = Math.min(SLOTS_PER_REGION, capacity - (long) i * SLOTS_PER_REGION);
+            regions[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + (long) i * SLOTS_PER_REGION * SLOT_SIZE, slots * SLOT_SIZE);
+        }
+        if (reuse) {
+            count = header.getLong(COUNT_OFFSET);
+            complete = true;
+        } else {
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putLong(CAPACITY_OFFSET, capacity);
+            header.putLong(COUNT_OFFSET, 0);
+            header.putLong(EXPORTED_AT_OFFSET, 0);
+            count = 0;
+            complete = false;
+        }
+        //not closed cleanly until close() is called
+        header.putInt(STATE_OFFSET, STATE_OPEN);
+        header.force();
+    }
+
+    /**
+     * Open the store file. The existing snapshot is used if it was closed
+     * cleanly after a complete export, is not older than the max age and has
+     * the capacity for the expected number of pids. Otherwise the file is
+     * emptied and the store waits for an export.
+     * @param file
+     * @param expectedPids the number of pids the store is sized for
+     * @param maxAgeMillis the max age of a reused snapshot
+     * @return the store
+     * @throws IOException
+     */
+    public static SolrStateStore open(File file, long expectedPids, long maxAgeMillis) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("SolrStateStore.open - can't create the directory " + parent);
+        }
+        long capacity = Math.max(16, (long) Math.ceil(Math.max(1, expectedPids) / LOAD_FACTOR));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean reuse = false;
+            if (raf.length() >= HEADER_SIZE) {
+                int magic = raf.readInt();
+                int version = raf.readInt();
+                long storedCapacity = raf.readLong();
+                raf.readLong();
+                int state = raf.readInt();
+                long exportedAt = raf.readLong();
+                long age = System.currentTimeMillis() - exportedAt;
+                if (magic == MAGIC && version == VERSION && state == STATE_CLOSED
+                        && storedCapacity * LOAD_FACTOR >= expectedPids * 0.99
+                        && raf.length() == HEADER_SIZE + storedCapacity * SLOT_SIZE && age <= maxAgeMillis) {
+                    reuse = true;
+                    capacity = storedCapacity;
+                    logger.info("SolrStateStore.open - reusing the snapshot " + file + " exported " + age
+                            + " milliseconds ago.");
+                } else {
+                    logger.info("SolrStateStore.open - the snapshot " + file
+                            + " can't be reused (not closed cleanly, too old or too small). The solr index will be exported.");
+                }
+            }
+            return new SolrStateStore(file, raf, capacity, reuse);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true once the store has the state of every pid of the index
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Mark the export finished. From now on the store answers the lookups.
+     */
+    public void markComplete() {
+        lock.writeLock().lock();
+        try {
+            header.putLong(COUNT_OFFSET, count);
+            header.putLong(EXPORTED_AT_OFFSET, System.currentTimeMillis());
+            header.putInt(STATE_OFFSET, STATE_OPEN);
+            complete = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("SolrStateStore.markComplete - the store has the solr state of " + count + " pids.");
+    }
+
+    /**
+     * @return the time the snapshot was exported, 0 if the export is not complete
+     */
+    public long getExportedAt() {
+        return complete ? header.getLong(EXPORTED_AT_OFFSET) : 0;
+    }
+
+    /**
+     * Store the state of a pid read by the export. A pending mark set by a
+     * generated task is kept.
+     * @param pid
+     * @param state
+     */
+    public void putExported(String pid, SolrIndexState state) {
+        write(pid, state, false);
+    }
+
+    /**
+     * Store the state of a pid just read from solr, clearing its pending mark.
+     * @param pid
+     * @param state
+     */
+    public void put(String pid, SolrIndexState state) {
+        write(pid, state, true);
+    }
+
+    /**
+     * Mark a pid whose index task was generated, so its state is looked up in
+     * solr again.
+     * @param pid
+     */
+    public void markPending(String pid) {
+        long key = key(pid);
+        int check = pid.hashCode();
+        lock.writeLock().lock();
+        try {
+            long slot = find(key, check);
+            if (slot < 0) {
+                slot = insert(~slot, key, check);
+                if (slot < 0) {
+                    return;
+                }
+                setLong(slot, MODIFIED_OFFSET, NONE);
+                setLong(slot, SERIAL_OFFSET, NONE);
+                setLong(slot, DIGEST_OFFSET, ReplicaDigest.INVALID);
+                setInt(slot, FLAGS_OFFSET, PENDING);
+            } else {
+                setInt(slot, FLAGS_OFFSET, getInt(slot, FLAGS_OFFSET) | PENDING);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the solr state of a pid from the store.
+     * @param pid
+     * @return null if the store can't answer (the export isn't complete, the
+     *         pid is pending or the store was full), the absent state if solr
+     *         doesn't have the pid, otherwise the state with the replica digest
+     */
+    public SolrIndexState get(String pid) {
+        if (!complete) {
+            return null;
+        }
+        long key = key(pid);
+        int check = pid.hashCode();
+        lock.readLock().lock();
+        try {
+            long slot = find(key, check);
+            if (slot < 0) {
+                return full ? null : SolrIndexState.absent();
+            }
+            int flags = getInt(slot, FLAGS_OFFSET);
+            if ((flags & PENDING) != 0) {
+                return null;
+            }
+            if ((flags & PRESENT) == 0) {
+                return SolrIndexState.absent();
+            }
+            long modified = getLong(slot, MODIFIED_OFFSET);
+            long serial = getLong(slot, SERIAL_OFFSET);
+            return new SolrIndexState(pid, modified == NONE ? null : new Date(modified),
+                    serial == NONE ? null : BigInteger.valueOf(serial), getLong(slot, DIGEST_OFFSET));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of pids in the store
+     */
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Force the store to the disk and close the file. A complete store is
+     * marked as closed cleanly, so the next start can reuse it.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (MappedByteBuffer region : regions) {
+                region.force();
+            }
+            header.putLong(COUNT_OFFSET, count);
+            header.putInt(STATE_OFFSET, complete ? STATE_CLOSED : STATE_EMPTY);
+            header.force();
+            raf.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("SolrStateStore.close - closed the store " + file + " with " + count + " pids.");
+    }
+
+    private void write(String pid, SolrIndexState state, boolean clearPending) {
+        long key = key(pid);
+        int check = pid.hashCode();
+        int flags = state.getId() == null ? 0 : PRESENT;
+        long modified = state.getDateModified() == null ? NONE : state.getDateModified().getTime();
+        long serial = NONE;
+        if (state.getSerialVersion() != null) {
+            if (state.getSerialVersion().bitLength() < 64) {
+                serial = state.getSerialVersion().longValue();
+            } else {
+                //can't be stored, so make the filter grant the events of the pid
+                modified = NONE;
+            }
+        }
+        long digest = state.getReplicaDigest();
+        lock.writeLock().lock();
+        try {
+            long slot = find(key, check);
+            if (slot < 0) {
+                slot = insert(~slot, key, check);
+                if (slot < 0) {
+                    return;
+                }
+            } else if (!clearPending) {
+                flags |= getInt(slot, FLAGS_OFFSET) & PENDING;
+            }
+            setLong(slot, MODIFIED_OFFSET, modified);
+            setLong(slot, SERIAL_OFFSET, serial);
+            setLong(slot, DIGEST_OFFSET, digest);
+            setInt(slot, FLAGS_OFFSET, flags);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the slot of the key, or the complement of the empty slot where it would be inserted
+     */
+    private long find(long key, int check) {
+        long slot = (key & Long.MAX_VALUE) % capacity;
+        for (long probes = 0; probes < capacity; probes++) {
+            long slotKey = getLong(slot, 0);
+            if (slotKey == 0) {
+                return ~slot;
+            }
+            if (slotKey == key && getInt(slot, CHECK_OFFSET) == check) {
+                return slot;
+            }
+            slot = slot + 1 == capacity ? 0 : slot + 1;
+        }
+        return ~capacity;
+    }
+
+    /**
+     * Claim an empty slot for a key.
+     * @return the slot, -1 if the store is full
+     */
+    private long insert(long slot, long key, int check) {
+        if (slot >= capacity || count >= capacity * MAX_LOAD) {
+            if (!full) {
+                full = true;
+                logger.warn("SolrStateStore.insert - the store is full with " + count
+                        + " pids. The pids which are not in the store will be looked up in solr.");
+            }
+            return -1;
+        }
+        setInt(slot, CHECK_OFFSET, check);
+        setLong(slot, 0, key);
+        count++;
+        return slot;
+    }
+
+    private static long key(String pid) {
+        long key = PidBloomFilter.hash64(pid);
+        //0 marks an empty slot
+        return key == 0 ? 1 : key;
+    }
+
+    private long getLong(long slot, int offset) {
+        return regions[(int) (slot / SLOTS_PER_REGION)].getLong((int) (slot % SLOTS_PER_REGION) * SLOT_SIZE + offset);
+    }
+
+    private int getInt(long slot, int offset) {
+        return regions[(int) (slot / SLOTS_PER_REGION)].getInt((int) (slot % SLOTS_PER_REGION) * SLOT_SIZE + offset);
+    }
+
+    private void setLong(long slot, int offset, long value) {
+        regions[(int) (slot / SLOTS_PER_REGION)].putLong((int) (slot % SLOTS_PER_REGION) * SLOT_SIZE + offset, value);
+    }
+
+    private void setInt(long slot, int offset, int value) {
+        regions[(int) (slot / SLOTS_PER_REGION)].putInt((int) (slot % SLOTS_PER_REGION) * SLOT_SIZE + offset, value);
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import java.util.Date;
+
+import org.dataone.service.types.v2.SystemMetadata;
+
+/**
+ * The fields of a system metadata which the HZEventFilter compares with the
+ * solr index, kept in primitive fields: the pid, the modification date, the
+ * serial version, the archived flag and the ReplicaDigest of the replica
+ * list. An event holding a digest instead of the system metadata takes a
+ * small fraction of the heap, since the access policy, the replication
+ * policy, the checksum and the replica objects are not kept.
+ *
+ */
+public final class SystemMetadataDigest {
+
+    /**
+     * The value of the modification date or serial version fields when the
+     * system metadata doesn't have them.
+     */
+    public static final long MISSING = Long.MIN_VALUE;
+
+    private final String pid;
+    private final long dateModified;
+    private final long serialVersion;
+    private final boolean archived;
+    private final long replicaDigest;
+
+    /**
+     * Constructor
+     * @param pid
+     * @param dateModified the modification date in milliseconds, MISSING if unknown
+     * @param serialVersion MISSING if unknown
+     * @param archived
+     * @param replicaDigest the ReplicaDigest of the replica list
+     */
+    public SystemMetadataDigest(String pid, long dateModified, long serialVersion, boolean archived,
+            long replicaDigest) {
+        this.pid = pid;
+        this.dateModified = dateModified;
+        this.serialVersion = serialVersion;
+        this.archived = archived;
+        this.replicaDigest = replicaDigest;
+    }
+
+    /**
+     * @param sysmeta
+     * @return the digest of the system metadata
+     */
+    public static SystemMetadataDigest of(SystemMetadata sysmeta) {
+        Date modified = sysmeta.getDateSysMetadataModified();
+        return new SystemMetadataDigest(sysmeta.getIdentifier().getValue(),
+                modified == null ? MISSING : modified.getTime(),
+                sysmeta.getSerialVersion() == null ? MISSING : sysmeta.getSerialVersion().longValue(),
+                Boolean.TRUE.equals(sysmeta.getArchived()), ReplicaDigest.of(sysmeta.getReplicaList()));
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    /**
+     * @return the modification date in milliseconds, MISSING if unknown
+     */
+    public long getDateModified() {
+        return dateModified;
+    }
+
+    /**
+     * @return the serial version, MISSING if unknown
+     */
+    public long getSerialVersion() {
+        return serialVersion;
+    }
+
+    public boolean isArchived() {
+        return archived;
+    }
+
+    public long getReplicaDigest() {
+        return replicaDigest;
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.dataone.configuration.Settings;
+
+/**
+ * The registry of the metrics of the index task generator:
+ * - a latency histogram for each stage (object path lookup, age filter, solr
+ *   query, replica comparison, dedupe queries and save),
+ * - a counter for each decision branch of the HZEventFilter,
+ * - throughput meters of the received events and the saved tasks,
+ * - gauges such as the queue depth of the pipeline lanes.
+ * The metrics are published as the attributes of a JMX bean and, when a port
+ * is configured, as plain text on a local HTTP endpoint.
+ *
+ */
+public class GeneratorMetrics {
+
+    private static Logger logger = Logger.getLogger(GeneratorMetrics.class.getName());
+    private static final String HTTP_PORT = "indexEvent.metrics.http.port";
+    private static final String HTTP_ADDRESS = "indexEvent.metrics.http.address";
+    private static final String OBJECT_NAME = "org.dataone.cn.index.generator:type=GeneratorMetrics";
+
+    //the stages with a latency histogram
+    public static final String VALUE_FETCH = "valueFetch";
+    public static final String OBJECT_PATH_LOOKUP = "objectPathLookup";
+    public static final String AGE_FILTER = "ageFilter";
+    public static final String SOLR_QUERY = "solrQuery";
+    public static final String REPLICA_COMPARE = "replicaCompare";
+    public static final String DEDUPE = "dedupe";
+    public static final String SAVE = "save";
+    public static final String RECONCILE = "reconcile";
+    //the throughput meters
+    public static final String EVENTS = "events";
+    public static final String TASKS = "tasks";
+
+    private static GeneratorMetrics instance = new GeneratorMetrics();
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, ThroughputMeter> meters = new ConcurrentHashMap<String, ThroughputMeter>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private ObjectName objectName = null;
+    private MetricsHttpServer httpServer = null;
+
+    GeneratorMetrics() {
+    }
+
+    public static GeneratorMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Record the latency of a stage.
+     * @param stage the name of the stage
+     * @param startNanos the System.nanoTime() when the stage started
+     */
+    public void record(String stage, long startNanos) {
+        histogram(stage).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param stage
+     * @return the latency histogram of a stage, created on first use
+     */
+    public LatencyHistogram histogram(String stage) {
+        LatencyHistogram histogram = histograms.get(stage);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = histograms.putIfAbsent(stage, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Increase a counter by one.
+     * @param name
+     */
+    public void increment(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counter = new AtomicLong();
+            AtomicLong existing = counters.putIfAbsent(name, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * @param name
+     * @return the value of a counter, 0 if it was never increased
+     */
+    public long getCount(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Count events on a throughput meter.
+     * @param name
+     * @param n
+     */
+    public void mark(String name, long n) {
+        meter(name).mark(n);
+    }
+
+    /**
+     * @param name
+     * @return the throughput meter, created on first use
+     */
+    public ThroughputMeter meter(String name) {
+        ThroughputMeter meter = meters.get(name);
+        if (meter == null) {
+            meter = new ThroughputMeter();
+            ThroughputMeter existing = meters.putIfAbsent(name, meter);
+            if (existing != null) {
+                meter = existing;
+            }
+        }
+        return meter;
+    }
+
+    /**
+     * Register a gauge, replacing a gauge with the same name.
+     * @param name
+     * @param gauge
+     */
+    public void register(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Remove a gauge.
+     * @param name
+     */
+    public void unregister(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Read all metrics. The latencies are in milliseconds.
+     * @return the metric values by name, sorted by name
+     */
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> values = new TreeMap<String, Number>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            String prefix = "latency." + entry.getKey() + ".";
+            LatencyHistogram histogram = entry.getValue();
+            values.put(prefix + "count", histogram.getCount());
+            values.put(prefix + "mean.ms", histogram.getMean() / 1000.0);
+            values.put(prefix + "p50.ms", histogram.getPercentile(0.5) / 1000.0);
+            values.put(prefix + "p99.ms", histogram.getPercentile(0.99) / 1000.0);
+            values.put(prefix + "max.ms", histogram.getMax() / 1000.0);
+        }
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            values.put("counter." + entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, ThroughputMeter> entry : meters.entrySet()) {
+            values.put("throughput." + entry.getKey() + ".count", entry.getValue().getCount());
+            values.put("throughput." + entry.getKey() + ".perSecond", entry.getValue().getRate());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            try {
+                Number value = entry.getValue().getValue();
+                if (value != null) {
+                    values.put("gauge." + entry.getKey(), value);
+                }
+            } catch (RuntimeException e) {
+                logger.warn("GeneratorMetrics.snapshot - failed to read the gauge " + entry.getKey() + ": "
+                        + e.getMessage());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Register the JMX bean and start the HTTP endpoint if a port is configured.
+     */
+    public synchronized void start() {
+        if (objectName == null) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(OBJECT_NAME);
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(new GeneratorMetricsJmx(this), name);
+                }
+                objectName = name;
+                logger.info("GeneratorMetrics.start - registered the JMX bean " + OBJECT_NAME);
+            } catch (Exception e) {
+                logger.warn("GeneratorMetrics.start - failed to register the JMX bean " + OBJECT_NAME + ": "
+                        + e.getMessage(), e);
+            }
+        }
+        int port = Settings.getConfiguration().getInt(HTTP_PORT, 0);
+        if (httpServer == null && port > 0) {
+            String address = Settings.getConfiguration().getString(HTTP_ADDRESS, "127.0.0.1");
+            try {
+                httpServer = new MetricsHttpServer(this, address, port);
+                httpServer.start();
+            } catch (Exception e) {
+                logger.warn("GeneratorMetrics.start - failed to start the metrics HTTP endpoint on " + address + ":"
+                        + port + ": " + e.getMessage(), e);
+                httpServer = null;
+            }
+        }
+    }
+
+    /**
+     * Unregister the JMX bean and stop the HTTP endpoint.
+     */
+    public synchronized void stop() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                logger.warn("GeneratorMetrics.stop - failed to unregister the JMX bean " + OBJECT_NAME + ": "
+                        + e.getMessage());
+            }
+            objectName = null;
+        }
+        if (httpServer != null) {
+            httpServer.stop();
+            httpServer = null;
+        }
+    }
+}
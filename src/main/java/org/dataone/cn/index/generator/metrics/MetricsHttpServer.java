@@ -0,0 +1,79 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP endpoint serving the GeneratorMetrics at /metrics as plain
+ * text, one "name value" line per metric.
+ *
+ */
+class MetricsHttpServer {
+
+    private static Logger logger = Logger.getLogger(MetricsHttpServer.class.getName());
+    private static final String PATH = "/metrics";
+
+    private final HttpServer server;
+
+    MetricsHttpServer(final GeneratorMetrics metrics, String address, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StringBuilder body = new StringBuilder();
+                for (Map.Entry<String, Number> entry : metrics.snapshot().entrySet()) {
+                    body.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+                }
+                byte[] bytes = body.toString().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(bytes);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+    }
+
+    void start() {
+        server.start();
+        logger.info("MetricsHttpServer.start - serving the metrics at http://" + server.getAddress().getHostString()
+                + ":" + server.getAddress().getPort() + PATH);
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+}
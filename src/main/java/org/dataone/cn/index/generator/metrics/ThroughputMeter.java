@@ -0,0 +1,94 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and reports their rate per second as an exponentially
+ * weighted moving average over about one minute, updated every five seconds.
+ *
+ */
+public class ThroughputMeter {
+
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60.0);
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong uncounted = new AtomicLong();
+    private final AtomicLong lastTick;
+    private volatile double rate = 0;
+    private volatile boolean initialized = false;
+
+    public ThroughputMeter() {
+        lastTick = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Count events.
+     * @param n the number of events
+     */
+    public void mark(long n) {
+        tickIfNecessary();
+        count.addAndGet(n);
+        uncounted.addAndGet(n);
+    }
+
+    /**
+     * @return the number of events since the generator started
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the events per second
+     */
+    public double getRate() {
+        tickIfNecessary();
+        return rate;
+    }
+
+    private void tickIfNecessary() {
+        long old = lastTick.get();
+        long now = System.nanoTime();
+        long age = now - old;
+        if (age < TICK_NANOS) {
+            return;
+        }
+        long ticks = age / TICK_NANOS;
+        if (!lastTick.compareAndSet(old, old + ticks * TICK_NANOS)) {
+            return;
+        }
+        for (long i = 0; i < ticks; i++) {
+            double instant = uncounted.getAndSet(0) / (TICK_NANOS / 1e9);
+            if (initialized) {
+                rate += ALPHA * (instant - rate);
+            } else {
+                rate = instant;
+                initialized = true;
+            }
+        }
+    }
+}
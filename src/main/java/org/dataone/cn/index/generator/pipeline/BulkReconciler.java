@@ -0,0 +1,276 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.dataone.cn.index.generator.IndexTaskGenerator;
+import org.dataone.cn.index.generator.metrics.GeneratorMetrics;
+
+/**
+ * Reconciles the events of a storm with Solr in large blocks instead of one
+ * pipeline batch at a time. The events are collected into a block of up to
+ * blockSize pids, keeping only the newest event of a pid as the
+ * EventCoalescer does. A full block, or one older than maxWaitMillis, is
+ * compared with Solr by a worker thread in requests of solrBatchSize pids,
+ * before the object paths are looked up. Only the granted events are emitted,
+ * marked as reconciled so the filter stage doesn't look them up again. The
+ * remove events are emitted unchanged, in their place among the others.
+ * The events received without their system metadata are loaded by a
+ * SystemMetadataLoader first.
+ *
+ */
+public class BulkReconciler {
+
+    private static Logger logger = Logger.getLogger(BulkReconciler.class.getName());
+    private static GeneratorMetrics metrics = GeneratorMetrics.getInstance();
+    //the number of full blocks waiting for the worker before add blocks the caller
+    private static final int MAX_READY_BLOCKS = 2;
+
+    private final IndexTaskGenerator generator;
+    private final int blockSize;
+    private final long maxWaitMillis;
+    private final int solrBatchSize;
+    private final EventCoalescer.Sink sink;
+    private volatile SystemMetadataLoader loader = null;
+    private final LinkedList<Map<String, IndexEvent>> ready = new LinkedList<Map<String, IndexEvent>>();
+    private Map<String, IndexEvent> block = new LinkedHashMap<String, IndexEvent>();
+    private long blockStarted = 0;
+    private boolean processing = false;
+    private Thread worker = null;
+    private volatile boolean running = false;
+
+    /**
+     * Constructor
+     * @param generator the generator deciding which events need an index task
+     * @param blockSize the number of pids reconciled together
+     * @param maxWaitMillis how long a block which isn't full waits for more events
+     * @param solrBatchSize the number of pids in one Solr request
+     * @param sink the receiver of the granted events
+     */
+    public BulkReconciler(IndexTaskGenerator generator, int blockSize, long maxWaitMillis, int solrBatchSize,
+            EventCoalescer.Sink sink) {
+        this.generator = generator;
+        this.blockSize = Math.max(1, blockSize);
+        this.maxWaitMillis = Math.max(1, maxWaitMillis);
+        this.solrBatchSize = Math.max(1, solrBatchSize);
+        this.sink = sink;
+    }
+
+    /**
+     * Set the loader fetching the system metadata of the events received from
+     * a key-only listener.
+     * @param loader
+     */
+    public void setLoader(SystemMetadataLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Start the thread reconciling the blocks.
+     */
+    public synchronized void start() {
+        running = true;
+        worker = new Thread(new Worker(), "index-generator-reconciler");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Add an event to the current block. Waits while the worker is behind by
+     * more than two full blocks, which pushes back on the caller as a full
+     * lane does.
+     * @param event
+     * @throws InterruptedException
+     */
+    public synchronized void add(IndexEvent event) throws InterruptedException {
+        String key = event.getPid().getValue();
+        IndexEvent previous = block.get(key);
+        if (previous == null) {
+            if (block.isEmpty()) {
+                blockStarted = System.currentTimeMillis();
+            }
+            block.put(key, event);
+        } else if (EventCoalescer.supersedes(event, previous)) {
+            block.put(key, event);
+        }
+        if (block.size() >= blockSize) {
+            while (running && ready.size() >= MAX_READY_BLOCKS) {
+                wait();
+            }
+            ready.add(block);
+            block = new LinkedHashMap<String, IndexEvent>();
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return true if no event is waiting in a block or being reconciled
+     */
+    public synchronized boolean isIdle() {
+        return block.isEmpty() && ready.isEmpty() && !processing;
+    }
+
+    /**
+     * @return the number of events waiting in the blocks
+     */
+    public synchronized int size() {
+        int size = block.size();
+        for (Map<String, IndexEvent> waiting : ready) {
+            size += waiting.size();
+        }
+        return size;
+    }
+
+    /**
+     * Reconcile the waiting blocks and stop the worker.
+     * @param timeoutMillis the maximum time to wait for the worker
+     * @throws InterruptedException
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        if (worker != null) {
+            worker.join(timeoutMillis);
+        }
+    }
+
+    /**
+     * Decide the add and update events of a block together and emit the
+     * granted ones and the remove events in the block order.
+     */
+    void reconcile(List<IndexEvent> events) throws InterruptedException {
+        long start = System.nanoTime();
+        if (loader != null) {
+            try {
+                events = loader.load(events);
+            } catch (RuntimeException e) {
+                logger.error("BulkReconciler.reconcile - failed to load the system metadata of a block of "
+                        + events.size() + " events. They are handed to the lookup stage: " + e.getMessage(), e);
+                for (IndexEvent event : events) {
+                    sink.emit(event);
+                }
+                return;
+            }
+        }
+        List<IndexEvent> changes = new ArrayList<IndexEvent>(events.size());
+        for (IndexEvent event : events) {
+            if (event.getType() != IndexEvent.Type.REMOVE) {
+                changes.add(event);
+            }
+        }
+        boolean[] needsIndexing;
+        try {
+            needsIndexing = IndexEventPipeline.needsIndexing(generator, changes, solrBatchSize);
+        } catch (RuntimeException e) {
+            logger.error("BulkReconciler.reconcile - failed to reconcile a block of " + events.size()
+                    + " events. They are handed to the filter stage: " + e.getMessage(), e);
+            for (IndexEvent event : events) {
+                sink.emit(event);
+            }
+            return;
+        }
+        for (int i = 0; i < needsIndexing.length; i++) {
+            changes.get(i).setReconciled(needsIndexing[i]);
+        }
+        int granted = 0;
+        for (IndexEvent event : events) {
+            if (event.getType() == IndexEvent.Type.REMOVE || event.isReconciled()) {
+                sink.emit(event);
+                granted++;
+            } else {
+                event.finish();
+            }
+        }
+        metrics.record(GeneratorMetrics.RECONCILE, start);
+        metrics.increment("reconcile.blocks");
+        metrics.mark("reconcile.events", events.size());
+        metrics.mark("reconcile.granted", granted);
+        if (logger.isInfoEnabled()) {
+            logger.info("BulkReconciler.reconcile - reconciled a block of " + events.size() + " events in "
+                    + (System.nanoTime() - start) / 1000000 + " ms. " + granted + " of them were granted.");
+        }
+    }
+
+    /**
+     * Takes the full blocks in order, or the current block once it waited for
+     * maxWaitMillis, and reconciles them. After shutdown it reconciles the
+     * blocks left and stops.
+     */
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Map<String, IndexEvent> next;
+                synchronized (BulkReconciler.this) {
+                    while (running && ready.isEmpty()) {
+                        long wait = block.isEmpty() ? maxWaitMillis
+                                : blockStarted + maxWaitMillis - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        try {
+                            BulkReconciler.this.wait(wait);
+                        } catch (InterruptedException e) {
+                            logger.warn("BulkReconciler.Worker - interrupted with " + size()
+                                    + " events waiting to be reconciled.");
+                            return;
+                        }
+                    }
+                    if (!ready.isEmpty()) {
+                        next = ready.removeFirst();
+                    } else if (!block.isEmpty()) {
+                        next = block;
+                        block = new LinkedHashMap<String, IndexEvent>();
+                    } else if (!running) {
+                        return;
+                    } else {
+                        continue;
+                    }
+                    processing = true;
+                    BulkReconciler.this.notifyAll();
+                }
+                try {
+                    reconcile(new ArrayList<IndexEvent>(next.values()));
+                } catch (InterruptedException e) {
+                    logger.warn("BulkReconciler.Worker - interrupted while emitting the reconciled events.");
+                    return;
+                } catch (Exception e) {
+                    logger.error("BulkReconciler.Worker - failed to reconcile a block: " + e.getMessage(), e);
+                } finally {
+                    synchronized (BulkReconciler.this) {
+                        processing = false;
+                        BulkReconciler.this.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+}
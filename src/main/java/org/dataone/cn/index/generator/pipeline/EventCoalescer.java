@@ -0,0 +1,227 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.dataone.cn.index.generator.filter.SystemMetadataDigest;
+
+/**
+ * Holds the events of a pid for a time window and only emits the newest one.
+ * During replication bursts a pid gets many update events within seconds, each
+ * of which would otherwise cost a Solr lookup, the dedupe queries and an insert,
+ * only for the next one to replace the task again.
+ *
+ * Within a window the later event replaces the pending one, except that an
+ * add or update event never replaces a pending add or update event with a
+ * higher serial version. When the window closes, the pending events are
+ * emitted in the order their pids were first seen.
+ *
+ */
+public class EventCoalescer {
+
+    private static Logger logger = Logger.getLogger(EventCoalescer.class.getName());
+
+    /**
+     * Receives the events left after a window closes.
+     */
+    public interface Sink {
+        public void emit(IndexEvent event) throws InterruptedException;
+    }
+
+    private final long windowMillis;
+    private final int maxPending;
+    private final Sink sink;
+    private final AtomicLong coalesced = new AtomicLong();
+    private Map<String, IndexEvent> pending = new LinkedHashMap<String, IndexEvent>();
+    private boolean flushing = false;
+    private Thread flusher = null;
+    private volatile boolean running = false;
+
+    /**
+     * Constructor
+     * @param windowMillis how long the events of a pid are held
+     * @param maxPending the number of pending pids which closes the window early
+     * @param sink the receiver of the emitted events
+     */
+    public EventCoalescer(long windowMillis, int maxPending, Sink sink) {
+        this.windowMillis = windowMillis;
+        this.maxPending = Math.max(1, maxPending);
+        this.sink = sink;
+    }
+
+    /**
+     * Start the thread which closes the windows.
+     */
+    public synchronized void start() {
+        running = true;
+        flusher = new Thread(new Flusher(), "index-generator-coalescer");
+        flusher.setDaemon(true);
+        flusher.start();
+        logger.info("EventCoalescer.start - coalescing the index events of a pid within " + windowMillis
+                + " milliseconds.");
+    }
+
+    /**
+     * Hold an event until the current window closes. When too many pids are
+     * pending, wait for the events of the closed window to be emitted first,
+     * so an event processed directly never overtakes an older event of its
+     * pid.
+     * @param event
+     * @return false if the event was not accepted since too many pids are pending.
+     *         The caller should process it directly.
+     * @throws InterruptedException
+     */
+    public synchronized boolean add(IndexEvent event) throws InterruptedException {
+        String key = event.getPid().getValue();
+        IndexEvent previous = pending.get(key);
+        while (previous == null && pending.size() >= maxPending && flushing) {
+            wait();
+            previous = pending.get(key);
+        }
+        if (previous == null) {
+            if (pending.size() >= maxPending) {
+                notifyAll();
+                return false;
+            }
+            pending.put(key, event);
+            if (pending.size() >= maxPending) {
+                //close the window early
+                notifyAll();
+            }
+        } else {
+            coalesced.incrementAndGet();
+            if (supersedes(event, previous)) {
+                pending.put(key, event);
+                previous.finish();
+            } else {
+                event.finish();
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("EventCoalescer.add - coalesced the " + event + " with the pending " + previous);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Emit the pending events now and stop the flushing thread.
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        if (flusher != null) {
+            flusher.join();
+        }
+        flush();
+    }
+
+    /**
+     * @return the number of events which were replaced or dropped by a newer one
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of pids waiting for the window to close
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Decide if the new event of a pid should replace the pending one.
+     */
+    static boolean supersedes(IndexEvent event, IndexEvent previous) {
+        if (event.getType() == IndexEvent.Type.REMOVE || previous.getType() == IndexEvent.Type.REMOVE) {
+            return true;
+        }
+        return serialVersion(event).compareTo(serialVersion(previous)) >= 0;
+    }
+
+    private static BigInteger serialVersion(IndexEvent event) {
+        BigInteger serialVersion = null;
+        if (event.getSysmeta() != null) {
+            serialVersion = event.getSysmeta().getSerialVersion();
+        } else if (event.isSlim() && event.getDigest().getSerialVersion() != SystemMetadataDigest.MISSING) {
+            serialVersion = BigInteger.valueOf(event.getDigest().getSerialVersion());
+        }
+        return serialVersion == null ? BigInteger.ZERO : serialVersion;
+    }
+
+    private void flush() throws InterruptedException {
+        List<IndexEvent> events;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            events = new ArrayList<IndexEvent>(pending.values());
+            pending = new LinkedHashMap<String, IndexEvent>();
+            flushing = true;
+        }
+        try {
+            for (IndexEvent event : events) {
+                sink.emit(event);
+            }
+        } finally {
+            synchronized (this) {
+                flushing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private class Flusher implements Runnable {
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    synchronized (EventCoalescer.this) {
+                        long deadline = System.currentTimeMillis() + windowMillis;
+                        long wait = windowMillis;
+                        while (running && wait > 0 && pending.size() < maxPending) {
+                            EventCoalescer.this.wait(wait);
+                            wait = deadline - System.currentTimeMillis();
+                        }
+                    }
+                    flush();
+                } catch (InterruptedException e) {
+                    logger.warn("EventCoalescer.Flusher - interrupted. The pending events will be emitted on shutdown.");
+                    return;
+                } catch (Exception e) {
+                    logger.error("EventCoalescer.Flusher - failed to emit the pending events: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
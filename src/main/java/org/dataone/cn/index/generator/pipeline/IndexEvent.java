@@ -0,0 +1,202 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import org.dataone.cn.index.generator.filter.SystemMetadataDigest;
+import org.dataone.cn.index.generator.reconcile.Watermark;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+
+/**
+ * A system metadata map event captured by the IndexTaskGeneratorEntryListener
+ * and handed to the IndexEventPipeline. The object path is resolved by the
+ * lookup stage, so it is null when the event is first queued. An event granted
+ * by the BulkReconciler is marked as reconciled, so the filter stage doesn't
+ * look it up in Solr again. An event received from a key-only listener has
+ * no system metadata until the lookup stage fetches it; a remove event never
+ * gets it. In the digest mode of the pipeline an added or updated event only
+ * keeps the SystemMetadataDigest the filter needs until its index task is
+ * built. While an event is in flight, its modification date holds the
+ * Watermark back and its SpillJournal record, if it was drained from the
+ * journal, stays in the journal; whoever finishes with the event calls finish.
+ *
+ */
+public class IndexEvent {
+
+    /**
+     * The kind of map event which produced this index event.
+     */
+    public enum Type {
+        ADD, UPDATE, REMOVE
+    }
+
+    private final Type type;
+    private final Identifier pid;
+    private SystemMetadata sysmeta;
+    private SystemMetadataDigest digest;
+    private String objectPath;
+    private boolean reconciled = false;
+    private boolean scanned = false;
+    private Watermark watermark = null;
+    private long inFlightSince;
+    private SpillJournal.Record spilled = null;
+
+    public IndexEvent(Type type, Identifier pid, SystemMetadata sysmeta) {
+        this.type = type;
+        this.pid = pid;
+        this.sysmeta = sysmeta;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Identifier getPid() {
+        return pid;
+    }
+
+    /**
+     * @return null if the event was received without its value and it was not fetched yet
+     */
+    public SystemMetadata getSysmeta() {
+        return sysmeta;
+    }
+
+    public void setSysmeta(SystemMetadata sysmeta) {
+        this.sysmeta = sysmeta;
+    }
+
+    /**
+     * @return the digest of the system metadata, computed from the system
+     *         metadata if the event has it. Null if the event has neither.
+     */
+    public SystemMetadataDigest getDigest() {
+        if (digest == null && sysmeta != null) {
+            return SystemMetadataDigest.of(sysmeta);
+        }
+        return digest;
+    }
+
+    /**
+     * Replace the system metadata of the event by its digest.
+     */
+    public void slim() {
+        if (sysmeta != null) {
+            digest = SystemMetadataDigest.of(sysmeta);
+            sysmeta = null;
+        }
+    }
+
+    /**
+     * @return true if the event only has the digest of its system metadata
+     */
+    public boolean isSlim() {
+        return sysmeta == null && digest != null;
+    }
+
+    void setDigest(SystemMetadataDigest digest) {
+        this.digest = digest;
+    }
+
+    public String getObjectPath() {
+        return objectPath;
+    }
+
+    public void setObjectPath(String objectPath) {
+        this.objectPath = objectPath;
+    }
+
+    /**
+     * @return true if the event was already granted by the BulkReconciler
+     */
+    public boolean isReconciled() {
+        return reconciled;
+    }
+
+    public void setReconciled(boolean reconciled) {
+        this.reconciled = reconciled;
+    }
+
+    /**
+     * @return true if the event was produced by a scan of the map, so its
+     *         system metadata may be older than the one of a live event of
+     *         the pid processed before it
+     */
+    public boolean isScanned() {
+        return scanned;
+    }
+
+    public void setScanned(boolean scanned) {
+        this.scanned = scanned;
+    }
+
+    /**
+     * Hold the watermark back at the modification date of this event until
+     * finish is called. An event without its system metadata holds it at the
+     * local time it is tracked from, which is after its modification.
+     * @param watermark
+     */
+    synchronized void track(Watermark watermark) {
+        if (this.watermark != null) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        if (sysmeta != null && sysmeta.getDateSysMetadataModified() != null) {
+            time = sysmeta.getDateSysMetadataModified().getTime();
+        } else if (digest != null && digest.getDateModified() != SystemMetadataDigest.MISSING) {
+            time = digest.getDateModified();
+        }
+        inFlightSince = time;
+        this.watermark = watermark;
+        watermark.begin(time);
+    }
+
+    /**
+     * Keep the journal record of a drained event until the event is finished.
+     * @param spilled
+     */
+    synchronized void setSpilled(SpillJournal.Record spilled) {
+        this.spilled = spilled;
+    }
+
+    /**
+     * Release the watermark held back by this event, if it was tracked, and
+     * acknowledge its journal record: the event was processed or replaced by
+     * a newer one, or it is kept elsewhere.
+     */
+    public synchronized void finish() {
+        if (watermark != null) {
+            watermark.end(inFlightSince);
+            watermark = null;
+        }
+        if (spilled != null) {
+            spilled.acknowledge();
+            spilled = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type + " event for pid: " + (pid == null ? null : pid.getValue());
+    }
+}
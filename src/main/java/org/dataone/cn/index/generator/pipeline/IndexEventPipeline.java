@@ -0,0 +1,886 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.dataone.cn.index.generator.IndexTaskGenerator;
+import org.dataone.cn.index.generator.config.GeneratorConfig;
+import org.dataone.cn.index.generator.filter.SystemMetadataDigest;
+import org.dataone.cn.index.generator.metrics.Gauge;
+import org.dataone.cn.index.generator.metrics.GeneratorMetrics;
+import org.dataone.cn.index.generator.reconcile.Watermark;
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.configuration.Settings;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+
+import com.hazelcast.core.IMap;
+
+/**
+ * An in-process pipeline between the hazelcast entry listener and the
+ * IndexTaskGenerator, so the hazelcast event thread only has to queue the
+ * event. The work is split into three stages, each with its own bounded queue
+ * and worker thread:
+ * 1. lookup - resolves the object path of added and updated objects, and
+ *    their system metadata when the events come from a key-only listener.
+ * 2. filter - applies the ignore list and the HZEventFilter.
+ * 3. persist - removes the duplicated tasks and saves the new index task.
+ * The pipeline runs a configurable number of lanes, each with its own three
+ * stages. The pid of an event is hashed onto a lane, so the events of a pid
+ * are always processed in order by the same single threaded stages, while
+ * the events of different pids are processed in parallel. An older event of a
+ * pid can therefore never replace the task of a newer one.
+ * When a coalescing window is configured, the events wait in an EventCoalescer
+ * before the lookup stage so only the newest event of a pid is processed.
+ * When a journal directory is configured and a lane is full, the events are
+ * spilled to a SpillJournal instead of blocking the caller. From then on all
+ * events go to the journal, so none overtakes a spilled event of its pid,
+ * until a drainer thread has moved all of them into the lanes. A spilled
+ * event stays in the journal until it is processed, so the spilled events
+ * which were not processed when the generator stops or crashes are read
+ * again on the next start.
+ * When a StormDetector sees a sustained storm of events, such as the map
+ * loading after a cluster restart, the events leaving the coalescer go to a
+ * BulkReconciler instead of the lanes. It compares large blocks of pids with
+ * Solr and only hands the granted events to the lanes, which skip their
+ * filter stage. The pipeline returns to the lanes once the storm is over and
+ * the reconciler has emitted all its events, so no event overtakes an event
+ * of its pid waiting in a block. The events of a catch up scan don't count
+ * towards the rate of a storm.
+ * When a Watermark is set, every accepted event holds it back at its
+ * modification date until the event is finished, and the filter and persist
+ * stages advance it with the modification dates of the events they finished.
+ * An event spilled to the journal is kept by the journal instead.
+ * In the digest mode, an event received with its system metadata only keeps
+ * the SystemMetadataDigest the filter needs while it waits in the pipeline.
+ * The persist stage fetches the system metadata of the granted events from
+ * the map in one getAll call per batch and applies the ignore list to it.
+ * A remove event keeps its system metadata, since the pid is no longer in
+ * the map, so the filter applies the ignore list and the delete task gets
+ * the format and the priority of the object.
+ *
+ */
+public class IndexEventPipeline {
+
+    private static Logger logger = Logger.getLogger(IndexEventPipeline.class.getName());
+    private static final String QUEUE_CAPACITY = "indexEvent.pipeline.queue.capacity";
+    private static final String BATCH_SIZE = "indexEvent.pipeline.batch.size";
+    private static final String LANES = "indexEvent.pipeline.lanes";
+    private static final String SHUTDOWN_TIMEOUT = "indexEvent.pipeline.shutdown.timeout";
+    private static final String COALESCING_WINDOW = "indexEvent.coalescing.window";
+    private static final String COALESCING_MAX_PENDING = "indexEvent.coalescing.max.pending";
+    private static final String JOURNAL_DIR = "indexEvent.journal.dir";
+    private static final String JOURNAL_SEGMENT_SIZE = "indexEvent.journal.segment.size";
+    private static final String JOURNAL_MAX_SIZE = "indexEvent.journal.max.size";
+    private static final String STORM_ENTER_RATE = "indexEvent.storm.enter.rate";
+    private static final String STORM_EXIT_RATE = "indexEvent.storm.exit.rate";
+    private static final String STORM_SUSTAIN = "indexEvent.storm.sustain";
+    private static final String STORM_BLOCK_SIZE = "indexEvent.storm.block.size";
+    private static final String STORM_BLOCK_WAIT = "indexEvent.storm.block.wait";
+    private static final String STORM_SOLR_BATCH_SIZE = "indexEvent.storm.solr.batch.size";
+    private static final String DIGEST = "indexEvent.pipeline.digest";
+    private static final long JOURNAL_WAIT_MILLIS = 100;
+    private static final long DRAINER_WAIT_MILLIS = 500;
+    private static GeneratorMetrics metrics = GeneratorMetrics.getInstance();
+
+    private final IndexTaskGenerator generator;
+    private final IMap<Identifier, String> objectPaths;
+    private final SystemMetadataLoader loader;
+    private final boolean keyOnly;
+    private final boolean slim;
+    private final List<Lane> lanes;
+    private final EventCoalescer coalescer;
+    private final long shutdownTimeout;
+    private final SpillJournal journal;
+    private final StormDetector stormDetector;
+    private final BulkReconciler reconciler;
+    //guards the switch between queueing the events in the lanes and reconciling them in blocks
+    private final Object reconcileLock = new Object();
+    private volatile boolean reconciling = false;
+    //guards the switch between queueing the events in the lanes and spilling them to the journal
+    private final Object spillLock = new Object();
+    private boolean spilling = false;
+    private volatile boolean draining = false;
+    private Thread drainer = null;
+    private volatile Watermark watermark = null;
+
+    /**
+     * Constructor. The number of lanes and the queue capacity and batch size of
+     * the stages are read from the configuration. By default there is one lane
+     * per available processor.
+     * @param generator the generator creating the index tasks
+     * @param objectPaths the hazelcast object path map
+     */
+    public IndexEventPipeline(IndexTaskGenerator generator, IMap<Identifier, String> objectPaths) {
+        this(generator, objectPaths, null, false);
+    }
+
+    /**
+     * Constructor of a pipeline which can fetch the system metadata of the
+     * events from the map: the events of a key-only listener in the lookup
+     * stage, and the slim events in the persist stage when the digest mode
+     * is configured.
+     * @param generator the generator creating the index tasks
+     * @param objectPaths the hazelcast object path map
+     * @param systemMetadata the hazelcast system metadata map. Null disables
+     *        the key-only and the digest modes.
+     * @param keyOnly true if the events are received without their system metadata
+     */
+    public IndexEventPipeline(IndexTaskGenerator generator, IMap<Identifier, String> objectPaths,
+            IMap<Identifier, SystemMetadata> systemMetadata, boolean keyOnly) {
+        this.generator = generator;
+        this.objectPaths = objectPaths;
+        this.loader = systemMetadata == null ? null : new SystemMetadataLoader(systemMetadata);
+        this.keyOnly = keyOnly && loader != null;
+        this.slim = Settings.getConfiguration().getBoolean(DIGEST, false) && loader != null;
+        if (slim) {
+            logger.info("IndexEventPipeline.IndexEventPipeline - the events only keep the digest of their system"
+                    + " metadata until their index task is built.");
+        }
+        int capacity = Settings.getConfiguration().getInt(QUEUE_CAPACITY, 10000);
+        int batchSize = Settings.getConfiguration().getInt(BATCH_SIZE, 100);
+        int laneCount = Math.max(1, Settings.getConfiguration().getInt(LANES,
+                Runtime.getRuntime().availableProcessors()));
+        shutdownTimeout = Settings.getConfiguration().getLong(SHUTDOWN_TIMEOUT, 30000);
+        LookupHandler lookupHandler = new LookupHandler();
+        FilterHandler filterHandler = new FilterHandler();
+        PersistHandler persistHandler = new PersistHandler();
+        lanes = new ArrayList<Lane>(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            lanes.add(new Lane(i, capacity, batchSize, lookupHandler, filterHandler, persistHandler));
+        }
+        logger.info("IndexEventPipeline.IndexEventPipeline - the events are processed on " + laneCount + " lane(s).");
+        long window = Settings.getConfiguration().getLong(COALESCING_WINDOW, 0);
+        if (window > 0) {
+            coalescer = new EventCoalescer(window,
+                    Settings.getConfiguration().getInt(COALESCING_MAX_PENDING, 50000),
+                    new EventCoalescer.Sink() {
+                        @Override
+                        public void emit(IndexEvent event) throws InterruptedException {
+                            dispatch(event);
+                        }
+                    });
+        } else {
+            coalescer = null;
+        }
+        long enterRate = Settings.getConfiguration().getLong(STORM_ENTER_RATE, 2000);
+        if (enterRate > 0) {
+            stormDetector = new StormDetector(enterRate, Settings.getConfiguration().getLong(STORM_EXIT_RATE, 500),
+                    Settings.getConfiguration().getInt(STORM_SUSTAIN, 10));
+            reconciler = new BulkReconciler(generator, Settings.getConfiguration().getInt(STORM_BLOCK_SIZE, 5000),
+                    Settings.getConfiguration().getLong(STORM_BLOCK_WAIT, 2000),
+                    Settings.getConfiguration().getInt(STORM_SOLR_BATCH_SIZE, 500), new EventCoalescer.Sink() {
+                        @Override
+                        public void emit(IndexEvent event) throws InterruptedException {
+                            queue(event);
+                        }
+                    });
+            reconciler.setLoader(this.keyOnly ? loader : null);
+        } else {
+            stormDetector = null;
+            reconciler = null;
+        }
+        journal = openJournal();
+        spilling = journal != null && !journal.isEmpty();
+    }
+
+    private SpillJournal openJournal() {
+        String dir = Settings.getConfiguration().getString(JOURNAL_DIR);
+        if (dir == null || dir.trim().isEmpty()) {
+            logger.info("IndexEventPipeline.openJournal - no journal directory is configured. The events wait"
+                    + " for space in a full lane.");
+            return null;
+        }
+        try {
+            return new SpillJournal(new File(dir.trim()),
+                    Settings.getConfiguration().getInt(JOURNAL_SEGMENT_SIZE, 64 * 1024 * 1024),
+                    Settings.getConfiguration().getLong(JOURNAL_MAX_SIZE, 1024L * 1024 * 1024));
+        } catch (IOException e) {
+            logger.error("IndexEventPipeline.openJournal - failed to open the journal in " + dir
+                    + ". The events wait for space in a full lane: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Set the watermark advanced by the processed events.
+     * @param watermark
+     */
+    public void setWatermark(Watermark watermark) {
+        this.watermark = watermark;
+    }
+
+    /**
+     * Advance the watermark with an event which needs no more work.
+     */
+    private void processed(IndexEvent event) {
+        event.finish();
+        Watermark current = watermark;
+        if (current == null) {
+            return;
+        }
+        if (event.getSysmeta() != null) {
+            current.advance(event.getSysmeta().getDateSysMetadataModified());
+        } else if (event.isSlim() && event.getDigest().getDateModified() != SystemMetadataDigest.MISSING) {
+            current.advance(new Date(event.getDigest().getDateModified()));
+        }
+    }
+
+    /**
+     * Start the worker threads of all stages.
+     */
+    public void start() {
+        registerGauges();
+        for (Lane lane : lanes) {
+            lane.persistStage.start();
+            lane.filterStage.start();
+            lane.lookupStage.start();
+        }
+        if (journal != null) {
+            draining = true;
+            drainer = new Thread(new Drainer(), "index-generator-journal-drainer");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+        if (reconciler != null) {
+            reconciler.start();
+        }
+        if (coalescer != null) {
+            coalescer.start();
+        }
+    }
+
+    /**
+     * Queue an event in the lane of its pid. This doesn't wait for the lookup,
+     * filter or persist work. If the lane is full, the event is spilled to the
+     * journal. Without a journal, the calling thread waits for space in the
+     * lane rather than processing the event itself, since that could overtake
+     * the queued events of the same pid.
+     * @param event
+     */
+    public void submit(IndexEvent event) {
+        metrics.mark(GeneratorMetrics.EVENTS, 1);
+        Watermark current = watermark;
+        if (current != null) {
+            event.track(current);
+        }
+        if (slim && event.getType() != IndexEvent.Type.REMOVE) {
+            event.slim();
+        }
+        if (stormDetector != null && !event.isScanned()) {
+            //a catch up scan is not a storm, however many pids it reads
+            stormDetector.mark(System.currentTimeMillis());
+        }
+        try {
+            if (coalescer != null && coalescer.add(event)) {
+                return;
+            }
+            dispatch(event);
+        } catch (InterruptedException e) {
+            logger.error("IndexEventPipeline.submit - interrupted while waiting to queue the " + event);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hand an event to the BulkReconciler during a storm, otherwise queue it
+     * in its lane.
+     */
+    private void dispatch(IndexEvent event) throws InterruptedException {
+        if (reconciler != null) {
+            synchronized (reconcileLock) {
+                if (updateMode()) {
+                    reconciler.add(event);
+                    return;
+                }
+            }
+        }
+        queue(event);
+    }
+
+    /**
+     * Switch to the bulk reconciliation when a storm starts, and back to the
+     * lanes once it is over and the reconciler has no event left. The caller
+     * holds the reconcileLock.
+     */
+    private boolean updateMode() {
+        boolean storm = stormDetector.isStorm(System.currentTimeMillis());
+        if (storm && !reconciling) {
+            reconciling = true;
+            metrics.increment("pipeline.mode.reconciling");
+            logger.warn("IndexEventPipeline.updateMode - switching to the bulk reconciliation of the events.");
+        } else if (!storm && reconciling && reconciler.isIdle()) {
+            reconciling = false;
+            metrics.increment("pipeline.mode.filtering");
+            logger.info("IndexEventPipeline.updateMode - switching back to filtering the events one batch at"
+                    + " a time.");
+        }
+        return reconciling;
+    }
+
+    /**
+     * Queue an event in its lane, or spill it to the journal.
+     */
+    private void queue(IndexEvent event) throws InterruptedException {
+        Lane lane = laneOf(event);
+        if (journal == null) {
+            if (!lane.lookupStage.offer(event)) {
+                logger.warn("IndexEventPipeline.dispatch - the lane " + lane.index + " is full. So the " + event
+                        + " waits for space in the lane.");
+                lane.lookupStage.put(event);
+            }
+            return;
+        }
+        synchronized (spillLock) {
+            if (!spilling) {
+                if (lane.lookupStage.offer(event)) {
+                    return;
+                }
+                logger.warn("IndexEventPipeline.dispatch - the lane " + lane.index + " is full. The events are"
+                        + " spilled to the journal until it is drained.");
+                spilling = true;
+                spillLock.notifyAll();
+            }
+            spill(event);
+        }
+    }
+
+    /**
+     * Append an event to the journal, waiting while the journal is at its max
+     * size. The caller holds the spillLock.
+     */
+    private void spill(IndexEvent event) throws InterruptedException {
+        try {
+            byte[] record = IndexEventRecord.encode(event);
+            boolean warned = false;
+            while (!journal.append(record)) {
+                if (!warned) {
+                    logger.warn("IndexEventPipeline.spill - the journal is full. So the " + event
+                            + " waits for the journal to be drained.");
+                    warned = true;
+                }
+                spillLock.wait(JOURNAL_WAIT_MILLIS);
+            }
+            //the journal keeps it from now on
+            event.finish();
+        } catch (IOException e) {
+            logger.error("IndexEventPipeline.spill - failed to spill the " + event
+                    + " to the journal. So it waits for space in its lane: " + e.getMessage(), e);
+            laneOf(event).lookupStage.put(event);
+        }
+    }
+
+    /**
+     * Stop the stages in order, letting each one drain its queue into the next.
+     */
+    public void shutdown() {
+        try {
+            if (coalescer != null) {
+                coalescer.shutdown();
+            }
+            if (reconciler != null) {
+                reconciler.shutdown(shutdownTimeout);
+            }
+            if (drainer != null) {
+                draining = false;
+                synchronized (spillLock) {
+                    spillLock.notifyAll();
+                }
+                drainer.join(shutdownTimeout);
+            }
+            for (Lane lane : lanes) {
+                lane.lookupStage.shutdown(shutdownTimeout);
+            }
+            for (Lane lane : lanes) {
+                lane.filterStage.shutdown(shutdownTimeout);
+            }
+            for (Lane lane : lanes) {
+                lane.persistStage.shutdown(shutdownTimeout);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("IndexEventPipeline.shutdown - interrupted while waiting for the stages to drain.");
+            Thread.currentThread().interrupt();
+        } finally {
+            unregisterGauges();
+            if (journal != null) {
+                synchronized (spillLock) {
+                    if (journal.getUnacknowledgedCount() > 0) {
+                        logger.info("IndexEventPipeline.shutdown - " + journal.getUnacknowledgedCount()
+                                + " spilled event(s) which were not processed are kept in the journal for the"
+                                + " next start.");
+                    }
+                    journal.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of events waiting in the coalescer, the journal and all stage queues
+     */
+    public long size() {
+        long size = coalescer == null ? 0 : coalescer.size();
+        size += reconciler == null ? 0 : reconciler.size();
+        size += getJournalSize();
+        for (Lane lane : lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return true if the events are reconciled in blocks because of a storm
+     */
+    public boolean isReconciling() {
+        return reconciling;
+    }
+
+    /**
+     * @return the number of spilled events waiting in the journal
+     */
+    public long getJournalSize() {
+        return journal == null ? 0 : journal.size();
+    }
+
+    /**
+     * @return the number of events waiting in the stage queues of each lane
+     */
+    public int[] getLaneSizes() {
+        int[] sizes = new int[lanes.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = lanes.get(i).size();
+        }
+        return sizes;
+    }
+
+    /**
+     * @return the number of lanes
+     */
+    public int getLaneCount() {
+        return lanes.size();
+    }
+
+    /**
+     * Moves the spilled events from the journal into the lanes in the order
+     * they were spilled. The blocking put into a lane paces the drainer to the
+     * speed of the lanes. Once the journal is empty the events are queued in
+     * the lanes directly again. A drained event keeps its record in the
+     * journal until it is finished.
+     */
+    private class Drainer implements Runnable {
+        @Override
+        public void run() {
+            while (draining) {
+                try {
+                    SpillJournal.Record record = journal.poll();
+                    if (record == null) {
+                        synchronized (spillLock) {
+                            if (spilling && journal.isEmpty()) {
+                                spilling = false;
+                                logger.info("IndexEventPipeline.Drainer - the journal is drained. The events are"
+                                        + " queued in the lanes again.");
+                            }
+                            if (!spilling && draining) {
+                                spillLock.wait(DRAINER_WAIT_MILLIS);
+                            }
+                        }
+                        continue;
+                    }
+                    IndexEvent event;
+                    try {
+                        event = IndexEventRecord.decode(record.getPayload());
+                    } catch (IOException e) {
+                        logger.error("IndexEventPipeline.Drainer - failed to read a spilled event. It is skipped: "
+                                + e.getMessage(), e);
+                        record.acknowledge();
+                        continue;
+                    }
+                    event.setSpilled(record);
+                    Watermark current = watermark;
+                    if (current != null) {
+                        event.track(current);
+                    }
+                    laneOf(event).lookupStage.put(event);
+                } catch (InterruptedException e) {
+                    logger.warn("IndexEventPipeline.Drainer - interrupted. The spilled events are kept in the journal.");
+                    return;
+                } catch (RuntimeException e) {
+                    logger.error("IndexEventPipeline.Drainer - failed to drain the journal: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private void registerGauges() {
+        metrics.register("pipeline.size", new Gauge() {
+            @Override
+            public Number getValue() {
+                return size();
+            }
+        });
+        metrics.register("pipeline.journal.size", new Gauge() {
+            @Override
+            public Number getValue() {
+                return getJournalSize();
+            }
+        });
+        if (reconciler != null) {
+            metrics.register("pipeline.reconciling", new Gauge() {
+                @Override
+                public Number getValue() {
+                    return reconciling ? 1 : 0;
+                }
+            });
+            metrics.register("pipeline.reconciler.size", new Gauge() {
+                @Override
+                public Number getValue() {
+                    return reconciler.size();
+                }
+            });
+        }
+        if (coalescer != null) {
+            metrics.register("pipeline.coalescer.size", new Gauge() {
+                @Override
+                public Number getValue() {
+                    return coalescer.size();
+                }
+            });
+            metrics.register("pipeline.coalescer.coalesced", new Gauge() {
+                @Override
+                public Number getValue() {
+                    return coalescer.getCoalescedCount();
+                }
+            });
+        }
+        for (final Lane lane : lanes) {
+            metrics.register("pipeline.lane." + lane.index + ".size", new Gauge() {
+                @Override
+                public Number getValue() {
+                    return lane.size();
+                }
+            });
+        }
+    }
+
+    private void unregisterGauges() {
+        metrics.unregister("pipeline.size");
+        metrics.unregister("pipeline.journal.size");
+        metrics.unregister("pipeline.coalescer.size");
+        metrics.unregister("pipeline.coalescer.coalesced");
+        metrics.unregister("pipeline.reconciling");
+        metrics.unregister("pipeline.reconciler.size");
+        for (Lane lane : lanes) {
+            metrics.unregister("pipeline.lane." + lane.index + ".size");
+        }
+    }
+
+    /**
+     * Decide which of the add and update events need an index task: the
+     * events with their system metadata by the ignore list and the filter, the
+     * slim events by the filter only, since the ignore list is applied once
+     * their system metadata is fetched.
+     * @param generator
+     * @param events the add and update events
+     * @param solrBatchSize the max number of pids in one Solr request
+     * @return an array parallel to the events, true if an index task should be generated
+     */
+    static boolean[] needsIndexing(IndexTaskGenerator generator, List<IndexEvent> events, int solrBatchSize) {
+        List<SystemMetadata> sysmetas = new ArrayList<SystemMetadata>(events.size());
+        List<SystemMetadataDigest> digests = new ArrayList<SystemMetadataDigest>();
+        for (IndexEvent event : events) {
+            if (event.isSlim()) {
+                digests.add(event.getDigest());
+            } else {
+                sysmetas.add(event.getSysmeta());
+            }
+        }
+        boolean[] full = sysmetas.isEmpty() ? new boolean[0] : generator.needsIndexing(sysmetas, solrBatchSize);
+        boolean[] slimmed = digests.isEmpty() ? new boolean[0]
+                : generator.needsIndexingDigests(digests, solrBatchSize);
+        boolean[] needsIndexing = new boolean[events.size()];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < needsIndexing.length; k++) {
+            needsIndexing[k] = events.get(k).isSlim() ? slimmed[j++] : full[i++];
+        }
+        return needsIndexing;
+    }
+
+    private Lane laneOf(IndexEvent event) {
+        return lanes.get(laneIndex(event.getPid().getValue(), lanes.size()));
+    }
+
+    /**
+     * The lane processing the events of a pid.
+     * @param pid
+     * @param laneCount
+     * @return an index between 0 and laneCount - 1
+     */
+    static int laneIndex(String pid, int laneCount) {
+        int hash = pid.hashCode();
+        //spread the high bits, as java.util.HashMap does
+        hash ^= (hash >>> 16);
+        return (hash & 0x7fffffff) % laneCount;
+    }
+
+    /**
+     * The lookup, filter and persist stages processing the events of a subset
+     * of the pids. Each stage has a single worker so the events of a pid keep
+     * their order through the lane.
+     */
+    private static class Lane {
+        private final int index;
+        private final PipelineStage<IndexEvent> lookupStage;
+        private final PipelineStage<IndexEvent> filterStage;
+        private final PipelineStage<IndexEvent> persistStage;
+
+        private Lane(int index, int capacity, int batchSize, PipelineStage.Handler<IndexEvent> lookupHandler,
+                PipelineStage.Handler<IndexEvent> filterHandler, PipelineStage.Handler<IndexEvent> persistHandler) {
+            this.index = index;
+            lookupStage = new PipelineStage<IndexEvent>("lookup-" + index, capacity, 1, batchSize, lookupHandler);
+            filterStage = new PipelineStage<IndexEvent>("filter-" + index, capacity, 1, batchSize, filterHandler);
+            persistStage = new PipelineStage<IndexEvent>("persist-" + index, capacity, 1, batchSize,
+                    persistHandler);
+            //granting an event which can't be filtered only costs a task
+            filterStage.setGrantOnFailure(true);
+            lookupStage.setNext(filterStage);
+            filterStage.setNext(persistStage);
+        }
+
+        private int size() {
+            return lookupStage.size() + filterStage.size() + persistStage.size();
+        }
+    }
+
+    /**
+     * Resolves the object paths of added and updated objects, after fetching
+     * the system metadata of the events which don't have it. The paths of a
+     * batch are fetched with one getAll call. The hazelcast client sends it as
+     * a single request, which the cluster fans out to the partitions. A pid
+     * missing from the result is retried with a single get, since its object
+     * path may be stored just after its system metadata.
+     */
+    private class LookupHandler implements PipelineStage.Handler<IndexEvent> {
+        @Override
+        public List<IndexEvent> process(List<IndexEvent> batch) throws Exception {
+            if (keyOnly) {
+                batch = loader.load(batch);
+            }
+            Set<Identifier> pids = new HashSet<Identifier>(batch.size() * 2);
+            for (IndexEvent event : batch) {
+                if (event.getType() != IndexEvent.Type.REMOVE) {
+                    pids.add(event.getPid());
+                }
+            }
+            if (pids.isEmpty()) {
+                return batch;
+            }
+            long start = System.nanoTime();
+            Map<Identifier, String> paths = Collections.emptyMap();
+            try {
+                paths = objectPaths.getAll(pids);
+            } catch (RuntimeException e) {
+                logger.warn("IndexEventPipeline.LookupHandler - failed to get the object paths of " + pids.size()
+                        + " pids in one call, getting them one by one: " + e.getMessage());
+            }
+            for (IndexEvent event : batch) {
+                if (event.getType() != IndexEvent.Type.REMOVE) {
+                    String path = paths.get(event.getPid());
+                    if (path == null) {
+                        path = objectPaths.get(event.getPid());
+                    }
+                    event.setObjectPath(path);
+                }
+            }
+            metrics.record(GeneratorMetrics.OBJECT_PATH_LOOKUP, start);
+            return batch;
+        }
+    }
+
+    /**
+     * Keeps the events which need an index task. The Solr state of the added
+     * and updated objects in a batch is looked up together. The events granted
+     * by the BulkReconciler are kept without a lookup. The remove events are
+     * checked against the ignore list, by their pid when they were received
+     * without their system metadata.
+     */
+    private class FilterHandler implements PipelineStage.Handler<IndexEvent> {
+        @Override
+        public List<IndexEvent> process(List<IndexEvent> batch) throws Exception {
+            List<IndexEvent> changes = new ArrayList<IndexEvent>(batch.size());
+            for (IndexEvent event : batch) {
+                if (event.getType() != IndexEvent.Type.REMOVE && !event.isReconciled()) {
+                    changes.add(event);
+                }
+            }
+            boolean[] needsIndexing = needsIndexing(generator, changes,
+                    GeneratorConfig.current().getSolrBatchSize());
+            List<IndexEvent> granted = new ArrayList<IndexEvent>(batch.size());
+            int i = 0;
+            for (IndexEvent event : batch) {
+                if (event.getType() == IndexEvent.Type.REMOVE) {
+                    if (event.getSysmeta() == null ? generator.needsDeleting(event.getPid())
+                            : generator.needsDeleting(event.getSysmeta())) {
+                        granted.add(event);
+                    } else {
+                        processed(event);
+                    }
+                } else if (event.isReconciled()) {
+                    granted.add(event);
+                } else if (needsIndexing[i++]) {
+                    granted.add(event);
+                } else {
+                    processed(event);
+                }
+            }
+            return granted;
+        }
+    }
+
+    /**
+     * Saves the index tasks of the granted events in one batch. If the batch
+     * can't be saved, the events are saved one by one so a single bad task
+     * doesn't lose the others. The system metadata of the slim events is
+     * fetched first, and the one of the scanned events is read again.
+     */
+    private class PersistHandler implements PipelineStage.Handler<IndexEvent> {
+        @Override
+        public List<IndexEvent> process(List<IndexEvent> batch) throws Exception {
+            if (loader != null) {
+                batch = materialize(batch);
+            }
+            List<IndexTask> tasks = new ArrayList<IndexTask>(batch.size());
+            List<IndexEvent> built = new ArrayList<IndexEvent>(batch.size());
+            for (IndexEvent event : batch) {
+                try {
+                    tasks.add(buildTask(event));
+                    built.add(event);
+                } catch (Exception e) {
+                    logger.error("IndexEventPipeline.PersistHandler - failed to build the index task for the "
+                            + event + ": " + e.getMessage(), e);
+                }
+            }
+            if (tasks.isEmpty()) {
+                return null;
+            }
+            try {
+                generator.saveTasks(tasks);
+                for (IndexEvent event : built) {
+                    if (event.getSysmeta() == null) {
+                        generator.recordDeleteTask(event.getPid());
+                    } else {
+                        generator.recordIndexTask(event.getSysmeta(), event.getType() == IndexEvent.Type.REMOVE);
+                    }
+                    processed(event);
+                }
+            } catch (Exception e) {
+                logger.warn("IndexEventPipeline.PersistHandler - failed to save a batch of " + tasks.size()
+                        + " index tasks in one transaction, saving them one by one: " + e.getMessage());
+                for (IndexEvent event : built) {
+                    saveTask(event);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Fetch the system metadata of the slim events, read the one of the
+         * scanned events again, and drop the ones on the ignore list.
+         */
+        private List<IndexEvent> materialize(List<IndexEvent> batch) {
+            Map<IndexEvent, Boolean> slimmed = new IdentityHashMap<IndexEvent, Boolean>();
+            for (IndexEvent event : batch) {
+                if (event.isScanned() && event.getType() != IndexEvent.Type.REMOVE) {
+                    //the live events of the pid processed before it may be newer
+                    event.setSysmeta(null);
+                    slimmed.put(event, Boolean.TRUE);
+                } else if (event.isSlim()) {
+                    slimmed.put(event, Boolean.TRUE);
+                }
+            }
+            if (slimmed.isEmpty()) {
+                return batch;
+            }
+            List<IndexEvent> loaded = loader.load(batch);
+            List<IndexEvent> kept = new ArrayList<IndexEvent>(loaded.size());
+            for (IndexEvent event : loaded) {
+                if (slimmed.containsKey(event) && generator.isIgnored(event.getSysmeta())) {
+                    metrics.increment("pipeline.ignored");
+                    continue;
+                }
+                kept.add(event);
+            }
+            return kept;
+        }
+
+        private IndexTask buildTask(IndexEvent event) {
+            switch (event.getType()) {
+            case ADD:
+                return generator.buildAddTask(event.getSysmeta(), event.getObjectPath());
+            case UPDATE:
+                return generator.buildUpdateTask(event.getSysmeta(), event.getObjectPath());
+            default:
+                if (event.getSysmeta() == null) {
+                    return generator.buildDeleteTask(event.getPid());
+                }
+                return generator.buildDeleteTask(event.getSysmeta());
+            }
+        }
+
+        private void saveTask(IndexEvent event) {
+            try {
+                switch (event.getType()) {
+                case ADD:
+                    generator.createAddTask(event.getSysmeta(), event.getObjectPath());
+                    break;
+                case UPDATE:
+                    generator.createUpdateTask(event.getSysmeta(), event.getObjectPath());
+                    break;
+                case REMOVE:
+                    if (event.getSysmeta() == null) {
+                        generator.createDeleteTask(event.getPid());
+                    } else {
+                        generator.createDeleteTask(event.getSysmeta());
+                    }
+                    break;
+                }
+                processed(event);
+            } catch (Exception e) {
+                metrics.increment("pipeline.lost");
+                logger.error("IndexEventPipeline.PersistHandler - failed to save the index task for the "
+                        + event + ": " + e.getMessage(), e);
+            }
+        }
+    }
+}
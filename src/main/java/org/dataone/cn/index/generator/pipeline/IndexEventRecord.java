@@ -0,0 +1,116 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.io.IOException;
+
+import org.dataone.cn.index.generator.filter.SystemMetadataDigest;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+
+/**
+ * Converts an IndexEvent to the payload of a SpillJournal record and back.
+ * The payload is written with the SystemMetadataCodec: the format version,
+ * the event type, the pid, a byte of flags, the digest of a slim event and
+ * the fields of the system metadata. The flags tell if the event is slim,
+ * has its system metadata and was produced by a scan. The pid and the system
+ * metadata share the dictionary of the record, so the identifier of the
+ * system metadata costs a single byte.
+ *
+ * Records of any other version are rejected. The object path isn't kept
+ * since the lookup stage resolves it after the event is read back.
+ *
+ */
+class IndexEventRecord {
+
+    private static final byte VERSION = 3;
+    private static final int SLIM = 1;
+    private static final int SYSMETA = 1 << 1;
+    private static final int SCANNED = 1 << 2;
+
+    private IndexEventRecord() {
+    }
+
+    static byte[] encode(IndexEvent event) {
+        SystemMetadataCodec.Output out = new SystemMetadataCodec.Output(event.getSysmeta() == null ? 64 : 512);
+        out.writeByte(VERSION);
+        out.writeByte(event.getType().ordinal());
+        out.writeRef(event.getPid().getValue());
+        int flags = 0;
+        flags |= event.isSlim() ? SLIM : 0;
+        flags |= event.getSysmeta() != null ? SYSMETA : 0;
+        flags |= event.isScanned() ? SCANNED : 0;
+        out.writeByte(flags);
+        if (event.isSlim()) {
+            SystemMetadataDigest digest = event.getDigest();
+            out.writeZigZag(digest.getDateModified());
+            out.writeZigZag(digest.getSerialVersion());
+            out.writeByte(digest.isArchived() ? 1 : 0);
+            out.writeLong(digest.getReplicaDigest());
+        }
+        if (event.getSysmeta() != null) {
+            SystemMetadataCodec.write(event.getSysmeta(), out);
+        }
+        return out.toByteArray();
+    }
+
+    static IndexEvent decode(byte[] payload) throws IOException {
+        if (payload.length == 0) {
+            throw new IOException("IndexEventRecord.decode - empty record");
+        }
+        byte version = payload[0];
+        if (version != VERSION) {
+            throw new IOException("IndexEventRecord.decode - unknown record version " + version);
+        }
+        SystemMetadataCodec.Input in = new SystemMetadataCodec.Input(payload);
+        in.readByte();
+        IndexEvent.Type type = type(in.readByte());
+        Identifier pid = new Identifier();
+        pid.setValue(in.readRef());
+        int flags = in.readByte();
+        SystemMetadataDigest digest = null;
+        if ((flags & SLIM) != 0) {
+            digest = new SystemMetadataDigest(pid.getValue(), in.readZigZag(), in.readZigZag(), in.readByte() != 0,
+                    in.readLong());
+        }
+        SystemMetadata sysmeta = null;
+        if ((flags & SYSMETA) != 0) {
+            sysmeta = SystemMetadataCodec.read(in);
+        }
+        if (in.remaining() != 0) {
+            throw new IOException("IndexEventRecord.decode - " + in.remaining() + " unexpected byte(s) after the "
+                    + "event of " + pid.getValue());
+        }
+        IndexEvent event = new IndexEvent(type, pid, sysmeta);
+        event.setDigest(digest);
+        event.setScanned((flags & SCANNED) != 0);
+        return event;
+    }
+
+    private static IndexEvent.Type type(byte ordinal) throws IOException {
+        if (ordinal < 0 || ordinal >= IndexEvent.Type.values().length) {
+            throw new IOException("IndexEventRecord.decode - unknown event type " + ordinal);
+        }
+        return IndexEvent.Type.values()[ordinal];
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.dataone.cn.index.generator.metrics.GeneratorMetrics;
+
+/**
+ * One stage of the IndexEventPipeline: a bounded queue drained by a fixed
+ * number of worker threads. Each worker takes up to batchSize queued items at
+ * a time, hands them to the stage handler and queues whatever the handler
+ * returns in the next stage. If the handler fails on a batch, the items are
+ * processed one by one so a single bad item doesn't lose the others. An item
+ * which still fails is granted to the next stage or counted as lost.
+ *
+ * @param <T> the type of the queued items
+ */
+public class PipelineStage<T> {
+
+    private static Logger logger = Logger.getLogger(PipelineStage.class.getName());
+    private static final long POLL_MILLIS = 500;
+    private static final String LOST = "pipeline.lost";
+    private static final String GRANTED_ON_FAILURE = "pipeline.granted.on.failure";
+    private static GeneratorMetrics metrics = GeneratorMetrics.getInstance();
+
+    /**
+     * The work done by a stage on a batch of queued items.
+     */
+    public interface Handler<T> {
+        /**
+         * @param batch the items taken from the queue
+         * @return the items for the next stage, may be empty
+         */
+        public List<T> process(List<T> batch) throws Exception;
+    }
+
+    private final String name;
+    private final BlockingQueue<T> queue;
+    private final Handler<T> handler;
+    private final int threads;
+    private final int batchSize;
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private PipelineStage<T> next = null;
+    private volatile boolean running = false;
+    private volatile boolean grantOnFailure = false;
+
+    public PipelineStage(String name, int capacity, int threads, int batchSize, Handler<T> handler) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<T>(Math.max(1, capacity));
+        this.threads = Math.max(1, threads);
+        this.batchSize = Math.max(1, batchSize);
+        this.handler = handler;
+    }
+
+    /**
+     * Set the stage receiving the items returned by the handler of this stage.
+     * @param next
+     */
+    public void setNext(PipelineStage<T> next) {
+        this.next = next;
+    }
+
+    /**
+     * Start the worker threads of this stage.
+     */
+    public synchronized void start() {
+        running = true;
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Worker(), "index-generator-" + name + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        logger.info("PipelineStage.start - started the " + name + " stage with " + threads
+                + " worker(s) and a queue capacity of " + remainingCapacity());
+    }
+
+    /**
+     * Queue an item without waiting.
+     * @param item
+     * @return false if the queue of this stage is full
+     */
+    public boolean offer(T item) {
+        return queue.offer(item);
+    }
+
+    /**
+     * Queue an item, waiting for space in the queue if necessary. Used to hand
+     * items from one stage to the next one, so a slow stage pushes back on the
+     * stages in front of it.
+     * @param item
+     * @throws InterruptedException
+     */
+    public void put(T item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    /**
+     * Hand the items the handler fails to process to the next stage unchanged,
+     * instead of dropping them. Only for the stages whose items are still
+     * valid for the next stage when they are not processed, such as a filter.
+     * @param grantOnFailure
+     */
+    public void setGrantOnFailure(boolean grantOnFailure) {
+        this.grantOnFailure = grantOnFailure;
+    }
+
+    /**
+     * Stop accepting work and wait for the workers to drain the queue.
+     * @param timeoutMillis the maximum time to wait for the workers
+     * @throws InterruptedException
+     */
+    public synchronized void shutdown(long timeoutMillis) throws InterruptedException {
+        running = false;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Thread worker : workers) {
+            worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        workers.clear();
+        if (!queue.isEmpty()) {
+            logger.warn("PipelineStage.shutdown - the " + name + " stage stopped with " + queue.size()
+                    + " unprocessed item(s) in its queue.");
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public int remainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            List<T> batch = new ArrayList<T>(batchSize);
+            while (running || !queue.isEmpty()) {
+                try {
+                    T first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    List<T> out;
+                    try {
+                        out = handler.process(batch);
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        logger.warn("PipelineStage.Worker - the " + name + " stage failed to process a batch of "
+                                + batch.size() + " item(s), processing them one by one: " + e.getMessage());
+                        out = processOneByOne(batch);
+                    }
+                    if (next != null && out != null) {
+                        for (T item : out) {
+                            next.put(item);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    logger.warn("PipelineStage.Worker - the " + name + " stage worker was interrupted.");
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        private List<T> processOneByOne(List<T> batch) throws InterruptedException {
+            List<T> out = new ArrayList<T>(batch.size());
+            for (T item : batch) {
+                try {
+                    List<T> processed = handler.process(Collections.singletonList(item));
+                    if (processed != null) {
+                        out.addAll(processed);
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    if (grantOnFailure && next != null) {
+                        metrics.increment(GRANTED_ON_FAILURE);
+                        logger.warn("PipelineStage.Worker - the " + name + " stage failed to process " + item
+                                + ", handing it to the " + next.getName() + " stage: " + e.getMessage());
+                        out.add(item);
+                    } else {
+                        metrics.increment(LOST);
+                        logger.error("PipelineStage.Worker - the " + name + " stage failed to process " + item
+                                + ". The item is lost: " + e.getMessage(), e);
+                    }
+                }
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A local append-only journal of records, read back in the order they were
+ * appended. The IndexEventPipeline spills the events it can't queue to the
+ * journal, so they survive an overload or a restart without growing the heap.
+ *
+ * The journal is a directory of fixed size segment files, which are memory
+ * mapped. A segment starts with a header (magic number, format version and
+ * the acknowledged offset) followed by the records. Each record is its
+ * length, the CRC32 checksum of its payload and the payload. A length of 0
+ * marks the end of the written records, since a new segment file is filled
+ * with zeros.
+ *
+ * A record which was read stays in the journal until its reader acknowledges
+ * it, once the event is processed. The records may be acknowledged out of
+ * order; the header keeps the offset up to which all records of the segment
+ * were acknowledged, and a segment is deleted once all of its records were
+ * acknowledged. On opening, the existing segments are scanned from their
+ * acknowledged offset, so a record read but not acknowledged before a crash
+ * is read again, and a segment is cut off at its first record with a bad
+ * checksum.
+ *
+ */
+public class SpillJournal {
+
+    private static Logger logger = Logger.getLogger(SpillJournal.class.getName());
+    private static final int MAGIC = 0x44314A4E;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 12;
+    private static final int ACKNOWLEDGED_OFFSET = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".journal";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final CRC32 crc = new CRC32();
+    private long nextSequence = 1;
+    private long records = 0;
+    private long unacknowledged = 0;
+    private boolean open = true;
+
+    /**
+     * Open the journal in the given directory, creating the directory if it
+     * doesn't exist. The records left by a previous run are read first.
+     * @param directory
+     * @param segmentSize the size of a segment file in bytes
+     * @param maxSize the max total size of the segment files in bytes
+     * @throws IOException
+     */
+    public SpillJournal(File directory, int segmentSize, long maxSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("SpillJournal - can't create the journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = Math.max(HEADER_SIZE + RECORD_HEADER_SIZE + 1, segmentSize);
+        this.maxSegments = (int) Math.max(1, maxSize / this.segmentSize);
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        for (File file : files) {
+            Segment segment = openSegment(file);
+            if (segment.records == 0) {
+                segment.delete();
+            } else {
+                segments.add(segment);
+                records += segment.records;
+                unacknowledged += segment.records;
+            }
+            nextSequence = Math.max(nextSequence, sequenceOf(file) + 1);
+        }
+        if (records > 0) {
+            logger.info("SpillJournal.SpillJournal - found " + records + " record(s) in " + segments.size()
+                    + " segment(s) of the journal " + directory);
+        }
+    }
+
+    /**
+     * Append a record at the end of the journal.
+     * @param payload
+     * @return false if the journal has reached its max size
+     * @throws IOException if the record is larger than a segment or a segment can't be created
+     */
+    public synchronized boolean append(byte[] payload) throws IOException {
+        int needed = RECORD_HEADER_SIZE + payload.length;
+        if (HEADER_SIZE + needed > segmentSize) {
+            throw new IOException("SpillJournal.append - a record of " + payload.length
+                    + " bytes doesn't fit in a segment of " + segmentSize + " bytes.");
+        }
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.closed || segment.writePosition + needed > segmentSize) {
+            if (segment != null) {
+                segment.close();
+                if (segment.acknowledgedPosition >= segment.writePosition) {
+                    segments.remove(segment);
+                    segment.delete();
+                }
+            }
+            if (segments.size() >= maxSegments) {
+                return false;
+            }
+            segment = createSegment();
+            segments.add(segment);
+        }
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        segment.buffer.position(segment.writePosition + 4);
+        segment.buffer.putInt((int) crc.getValue());
+        segment.buffer.put(payload);
+        //write the length last, so a partly written record reads as the end of the segment
+        segment.buffer.putInt(segment.writePosition, payload.length);
+        segment.writePosition += needed;
+        segment.records++;
+        records++;
+        unacknowledged++;
+        return true;
+    }
+
+    /**
+     * Take the oldest unread record from the journal. It stays in the journal
+     * until it is acknowledged.
+     * @return null if all records were read
+     */
+    public synchronized Record poll() {
+        for (Segment segment : segments) {
+            if (segment.readPosition < segment.writePosition) {
+                int position = segment.readPosition;
+                byte[] payload = segment.read(position);
+                if (payload != null) {
+                    segment.readPosition += RECORD_HEADER_SIZE + payload.length;
+                    segment.readRecords++;
+                    records--;
+                    return new Record(segment, position, segment.readPosition, payload);
+                }
+                logger.error("SpillJournal.poll - the record at " + position + " of " + segment.file
+                        + " has a bad checksum. The rest of the segment is skipped.");
+                int skipped = segment.records - segment.readRecords;
+                records -= skipped;
+                unacknowledged -= skipped;
+                segment.records = segment.readRecords;
+                segment.readPosition = segment.writePosition;
+                acknowledge(segment, position, segment.writePosition);
+                return poll();
+            }
+            if (!segment.closed) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Acknowledge a record, so it is not read again after a restart.
+     */
+    private synchronized void acknowledge(Record record) {
+        if (!open || record.acknowledged) {
+            return;
+        }
+        record.acknowledged = true;
+        unacknowledged--;
+        acknowledge(record.segment, record.position, record.end);
+    }
+
+    private void acknowledge(Segment segment, int position, int end) {
+        segment.acknowledged.put(position, end);
+        Integer next;
+        while ((next = segment.acknowledged.remove(segment.acknowledgedPosition)) != null) {
+            segment.acknowledgedPosition = next;
+        }
+        segment.buffer.putInt(ACKNOWLEDGED_OFFSET, segment.acknowledgedPosition);
+        if (segment.acknowledgedPosition >= segment.writePosition
+                && (segment.closed || segment != segments.peekLast())) {
+            segments.remove(segment);
+            segment.delete();
+        }
+    }
+
+    /**
+     * @return true if all records were read
+     */
+    public synchronized boolean isEmpty() {
+        return records == 0;
+    }
+
+    /**
+     * @return the number of records which were not read yet
+     */
+    public synchronized long size() {
+        return records;
+    }
+
+    /**
+     * @return the number of records which were not acknowledged yet, read or not
+     */
+    public synchronized long getUnacknowledgedCount() {
+        return unacknowledged;
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Write the mapped segments to the disk. The records which were not
+     * acknowledged stay in the journal for the next run.
+     */
+    public synchronized void close() {
+        open = false;
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    private Segment createSegment() throws IOException {
+        File file = new File(directory, String.format("%s%020d%s", PREFIX, nextSequence++, SUFFIX));
+        Segment segment = new Segment(file, map(file));
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, VERSION);
+        segment.buffer.putInt(ACKNOWLEDGED_OFFSET, HEADER_SIZE);
+        return segment;
+    }
+
+    private Segment openSegment(File file) throws IOException {
+        Segment segment = new Segment(file, map(file));
+        if (segment.buffer.getInt(0) != MAGIC || segment.buffer.getInt(4) != VERSION) {
+            logger.error("SpillJournal.openSegment - " + file + " is not a journal segment of version " + VERSION
+                    + ". It is removed.");
+            segment.writePosition = HEADER_SIZE;
+            return segment;
+        }
+        int position = segment.buffer.getInt(ACKNOWLEDGED_OFFSET);
+        if (position < HEADER_SIZE || position > segmentSize) {
+            logger.error("SpillJournal.openSegment - " + file + " has a bad acknowledged offset " + position
+                    + ". All of its records are read again.");
+            position = HEADER_SIZE;
+        }
+        segment.readPosition = position;
+        segment.acknowledgedPosition = position;
+        while (position + RECORD_HEADER_SIZE <= segmentSize) {
+            byte[] payload = segment.read(position);
+            if (payload == null) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + payload.length;
+            segment.records++;
+        }
+        segment.writePosition = position;
+        //don't append to the segments of a previous run
+        segment.closed = true;
+        return segment;
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            //the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * A memory mapped segment file.
+     */
+    private class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int writePosition = HEADER_SIZE;
+        private int readPosition = HEADER_SIZE;
+        //the offset up to which all records were acknowledged, and the acknowledged records after it
+        private int acknowledgedPosition = HEADER_SIZE;
+        private final TreeMap<Integer, Integer> acknowledged = new TreeMap<Integer, Integer>();
+        private int records = 0;
+        private int readRecords = 0;
+        private boolean closed = false;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Read the record at the given position.
+         * @return null if there is no record or its checksum doesn't match
+         */
+        private byte[] read(int position) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > segmentSize) {
+                return null;
+            }
+            int checksum = buffer.getInt(position + 4);
+            byte[] payload = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + RECORD_HEADER_SIZE);
+            view.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            return payload;
+        }
+
+        private void close() {
+            if (!closed) {
+                buffer.force();
+                closed = true;
+            }
+        }
+
+        private void delete() {
+            if (!file.delete()) {
+                logger.warn("SpillJournal.Segment.delete - failed to delete the acknowledged segment " + file);
+            }
+        }
+    }
+
+    /**
+     * A record read from the journal, which stays in the journal until it is
+     * acknowledged.
+     */
+    public class Record {
+        private final Segment segment;
+        private final int position;
+        private final int end;
+        private final byte[] payload;
+        private boolean acknowledged = false;
+
+        private Record(Segment segment, int position, int end, byte[] payload) {
+            this.segment = segment;
+            this.position = position;
+            this.end = end;
+            this.payload = payload;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /**
+         * Remove the record from the journal. Acknowledging it again, or after
+         * the journal was closed, does nothing.
+         */
+        public void acknowledge() {
+            SpillJournal.this.acknowledge(this);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import org.apache.log4j.Logger;
+import org.dataone.cn.index.generator.metrics.GeneratorMetrics;
+
+/**
+ * Detects an event storm, such as the millions of add and update events
+ * without changes hazelcast fires while it loads the system metadata map from
+ * the store after a cluster restart. The events are counted per second. A
+ * storm starts when the rate stays at or above the enter rate for the
+ * sustain period and ends when it stays below the lower exit rate for the
+ * same period, so the mode doesn't flap around a single threshold.
+ *
+ */
+public class StormDetector {
+
+    private static Logger logger = Logger.getLogger(StormDetector.class.getName());
+    private static GeneratorMetrics metrics = GeneratorMetrics.getInstance();
+
+    private final long enterRate;
+    private final long exitRate;
+    private final int sustainSeconds;
+    private long second = -1;
+    private long count = 0;
+    private int seconds = 0;
+    private boolean storm = false;
+
+    /**
+     * Constructor
+     * @param enterRate the events per second which start a storm
+     * @param exitRate the events per second below which a storm ends
+     * @param sustainSeconds the number of consecutive seconds a rate has to last
+     */
+    public StormDetector(long enterRate, long exitRate, int sustainSeconds) {
+        this.enterRate = Math.max(1, enterRate);
+        this.exitRate = Math.min(exitRate, this.enterRate);
+        this.sustainSeconds = Math.max(1, sustainSeconds);
+    }
+
+    /**
+     * Count an event.
+     * @param nowMillis the current time
+     * @return true if the events are in a storm
+     */
+    public synchronized boolean mark(long nowMillis) {
+        advance(nowMillis);
+        count++;
+        return storm;
+    }
+
+    /**
+     * Check the mode without counting an event, so a storm can end while no
+     * events arrive at all.
+     * @param nowMillis the current time
+     * @return true if the events are in a storm
+     */
+    public synchronized boolean isStorm(long nowMillis) {
+        advance(nowMillis);
+        return storm;
+    }
+
+    /**
+     * Close the seconds which passed since the last event. After a long pause
+     * only the sustain period of empty seconds is evaluated.
+     */
+    private void advance(long nowMillis) {
+        long current = nowMillis / 1000;
+        if (second < 0) {
+            second = current;
+            return;
+        }
+        if (current <= second) {
+            return;
+        }
+        evaluate(count);
+        count = 0;
+        long empty = Math.min(current - second - 1, sustainSeconds);
+        for (long i = 0; i < empty; i++) {
+            evaluate(0);
+        }
+        second = current;
+    }
+
+    private void evaluate(long rate) {
+        if (!storm) {
+            seconds = rate >= enterRate ? seconds + 1 : 0;
+            if (seconds >= sustainSeconds) {
+                storm = true;
+                seconds = 0;
+                metrics.increment("storm.entered");
+                logger.warn("StormDetector.evaluate - " + rate + " events per second for " + sustainSeconds
+                        + " second(s). Switching to the bulk reconciliation mode.");
+            }
+        } else {
+            seconds = rate < exitRate ? seconds + 1 : 0;
+            if (seconds >= sustainSeconds) {
+                storm = false;
+                seconds = 0;
+                metrics.increment("storm.exited");
+                logger.info("StormDetector.evaluate - fewer than " + exitRate + " events per second for "
+                        + sustainSeconds + " second(s). The storm is over.");
+            }
+        }
+    }
+}
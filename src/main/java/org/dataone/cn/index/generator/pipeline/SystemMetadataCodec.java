@@ -0,0 +1,703 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dataone.service.types.v1.AccessPolicy;
+import org.dataone.service.types.v1.AccessRule;
+import org.dataone.service.types.v1.Checksum;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dataone.service.types.v1.Permission;
+import org.dataone.service.types.v1.Replica;
+import org.dataone.service.types.v1.ReplicationPolicy;
+import org.dataone.service.types.v1.ReplicationStatus;
+import org.dataone.service.types.v1.Subject;
+import org.dataone.service.types.v2.MediaType;
+import org.dataone.service.types.v2.MediaTypeProperty;
+import org.dataone.service.types.v2.SystemMetadata;
+
+/**
+ * A compact binary form of the system metadata for the events the generator
+ * buffers, spills or replays, instead of the JiBX XML of the TypeMarshaller.
+ * The encoding starts with the codec version and a bit mask of the fields
+ * which are set, followed by the fields in a fixed order. Lengths and counts
+ * are varints, dates are the epoch milliseconds as zigzag varints and the
+ * serial version and size are the bytes of the big integer.
+ *
+ * The identifiers, node ids, subjects, format ids and enum names go through a
+ * dictionary built while a record is written: the first occurrence of a value
+ * is written in full, a later one only as its index. The origin, authoritative
+ * and replica member nodes, the submitter and rights holder and the pid of an
+ * event record are mostly the same few values, so they cost a byte or two each.
+ *
+ * An empty list is written like a missing one, so it decodes to the empty list
+ * of a new SystemMetadata.
+ *
+ */
+public final class SystemMetadataCodec {
+
+    /**
+     * The version of the encoding, the first byte of an encoded system metadata.
+     */
+    public static final byte VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int SERIAL_VERSION = 1;
+    private static final int IDENTIFIER = 1 << 1;
+    private static final int FORMAT_ID = 1 << 2;
+    private static final int SIZE = 1 << 3;
+    private static final int CHECKSUM = 1 << 4;
+    private static final int SUBMITTER = 1 << 5;
+    private static final int RIGHTS_HOLDER = 1 << 6;
+    private static final int ACCESS_POLICY = 1 << 7;
+    private static final int REPLICATION_POLICY = 1 << 8;
+    private static final int OBSOLETES = 1 << 9;
+    private static final int OBSOLETED_BY = 1 << 10;
+    private static final int ARCHIVED = 1 << 11;
+    private static final int ARCHIVED_TRUE = 1 << 12;
+    private static final int DATE_UPLOADED = 1 << 13;
+    private static final int DATE_MODIFIED = 1 << 14;
+    private static final int ORIGIN_MN = 1 << 15;
+    private static final int AUTHORITATIVE_MN = 1 << 16;
+    private static final int REPLICAS = 1 << 17;
+    private static final int SERIES_ID = 1 << 18;
+    private static final int MEDIA_TYPE = 1 << 19;
+    private static final int FILE_NAME = 1 << 20;
+
+    private static final int ALLOWED = 1;
+    private static final int ALLOWED_TRUE = 1 << 1;
+    private static final int NUMBER_REPLICAS = 1 << 2;
+
+    private SystemMetadataCodec() {
+    }
+
+    /**
+     * @param sysmeta
+     * @return the encoded system metadata
+     */
+    public static byte[] encode(SystemMetadata sysmeta) {
+        Output out = new Output(256);
+        out.writeByte(VERSION);
+        write(sysmeta, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param bytes an encoded system metadata
+     * @return the decoded system metadata
+     * @throws IOException if the bytes are truncated, corrupt or of an unknown version
+     */
+    public static SystemMetadata decode(byte[] bytes) throws IOException {
+        Input in = new Input(bytes);
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("SystemMetadataCodec.decode - unknown codec version " + version);
+        }
+        SystemMetadata sysmeta = read(in);
+        if (in.remaining() != 0) {
+            throw new IOException("SystemMetadataCodec.decode - " + in.remaining()
+                    + " unexpected byte(s) after the system metadata.");
+        }
+        return sysmeta;
+    }
+
+    /**
+     * Write the fields of the system metadata, without the codec version.
+     */
+    static void write(SystemMetadata sysmeta, Output out) {
+        int mask = 0;
+        mask |= sysmeta.getSerialVersion() != null ? SERIAL_VERSION : 0;
+        mask |= sysmeta.getIdentifier() != null ? IDENTIFIER : 0;
+        mask |= sysmeta.getFormatId() != null ? FORMAT_ID : 0;
+        mask |= sysmeta.getSize() != null ? SIZE : 0;
+        mask |= sysmeta.getChecksum() != null ? CHECKSUM : 0;
+        mask |= sysmeta.getSubmitter() != null ? SUBMITTER : 0;
+        mask |= sysmeta.getRightsHolder() != null ? RIGHTS_HOLDER : 0;
+        mask |= sysmeta.getAccessPolicy() != null ? ACCESS_POLICY : 0;
+        mask |= sysmeta.getReplicationPolicy() != null ? REPLICATION_POLICY : 0;
+        mask |= sysmeta.getObsoletes() != null ? OBSOLETES : 0;
+        mask |= sysmeta.getObsoletedBy() != null ? OBSOLETED_BY : 0;
+        mask |= sysmeta.getArchived() != null ? ARCHIVED : 0;
+        mask |= Boolean.TRUE.equals(sysmeta.getArchived()) ? ARCHIVED_TRUE : 0;
+        mask |= sysmeta.getDateUploaded() != null ? DATE_UPLOADED : 0;
+        mask |= sysmeta.getDateSysMetadataModified() != null ? DATE_MODIFIED : 0;
+        mask |= sysmeta.getOriginMemberNode() != null ? ORIGIN_MN : 0;
+        mask |= sysmeta.getAuthoritativeMemberNode() != null ? AUTHORITATIVE_MN : 0;
+        mask |= isEmpty(sysmeta.getReplicaList()) ? 0 : REPLICAS;
+        mask |= sysmeta.getSeriesId() != null ? SERIES_ID : 0;
+        mask |= sysmeta.getMediaType() != null ? MEDIA_TYPE : 0;
+        mask |= sysmeta.getFileName() != null ? FILE_NAME : 0;
+        out.writeVarLong(mask);
+
+        if ((mask & SERIAL_VERSION) != 0) {
+            out.writeBigInteger(sysmeta.getSerialVersion());
+        }
+        if ((mask & IDENTIFIER) != 0) {
+            out.writeRef(sysmeta.getIdentifier().getValue());
+        }
+        if ((mask & FORMAT_ID) != 0) {
+            out.writeRef(sysmeta.getFormatId().getValue());
+        }
+        if ((mask & SIZE) != 0) {
+            out.writeBigInteger(sysmeta.getSize());
+        }
+        if ((mask & CHECKSUM) != 0) {
+            out.writeString(sysmeta.getChecksum().getValue());
+            out.writeRef(sysmeta.getChecksum().getAlgorithm());
+        }
+        if ((mask & SUBMITTER) != 0) {
+            out.writeRef(sysmeta.getSubmitter().getValue());
+        }
+        if ((mask & RIGHTS_HOLDER) != 0) {
+            out.writeRef(sysmeta.getRightsHolder().getValue());
+        }
+        if ((mask & ACCESS_POLICY) != 0) {
+            writeAccessPolicy(sysmeta.getAccessPolicy(), out);
+        }
+        if ((mask & REPLICATION_POLICY) != 0) {
+            writeReplicationPolicy(sysmeta.getReplicationPolicy(), out);
+        }
+        if ((mask & OBSOLETES) != 0) {
+            out.writeRef(sysmeta.getObsoletes().getValue());
+        }
+        if ((mask & OBSOLETED_BY) != 0) {
+            out.writeRef(sysmeta.getObsoletedBy().getValue());
+        }
+        if ((mask & DATE_UPLOADED) != 0) {
+            out.writeZigZag(sysmeta.getDateUploaded().getTime());
+        }
+        if ((mask & DATE_MODIFIED) != 0) {
+            out.writeZigZag(sysmeta.getDateSysMetadataModified().getTime());
+        }
+        if ((mask & ORIGIN_MN) != 0) {
+            out.writeRef(sysmeta.getOriginMemberNode().getValue());
+        }
+        if ((mask & AUTHORITATIVE_MN) != 0) {
+            out.writeRef(sysmeta.getAuthoritativeMemberNode().getValue());
+        }
+        if ((mask & REPLICAS) != 0) {
+            writeReplicas(sysmeta.getReplicaList(), out);
+        }
+        if ((mask & SERIES_ID) != 0) {
+            out.writeRef(sysmeta.getSeriesId().getValue());
+        }
+        if ((mask & MEDIA_TYPE) != 0) {
+            writeMediaType(sysmeta.getMediaType(), out);
+        }
+        if ((mask & FILE_NAME) != 0) {
+            out.writeString(sysmeta.getFileName());
+        }
+    }
+
+    /**
+     * Read the fields of a system metadata written by write.
+     */
+    static SystemMetadata read(Input in) throws IOException {
+        long mask = in.readVarLong();
+        SystemMetadata sysmeta = new SystemMetadata();
+        if ((mask & SERIAL_VERSION) != 0) {
+            sysmeta.setSerialVersion(in.readBigInteger());
+        }
+        if ((mask & IDENTIFIER) != 0) {
+            sysmeta.setIdentifier(identifier(in.readRef()));
+        }
+        if ((mask & FORMAT_ID) != 0) {
+            ObjectFormatIdentifier formatId = new ObjectFormatIdentifier();
+            formatId.setValue(in.readRef());
+            sysmeta.setFormatId(formatId);
+        }
+        if ((mask & SIZE) != 0) {
+            sysmeta.setSize(in.readBigInteger());
+        }
+        if ((mask & CHECKSUM) != 0) {
+            Checksum checksum = new Checksum();
+            checksum.setValue(in.readString());
+            checksum.setAlgorithm(in.readRef());
+            sysmeta.setChecksum(checksum);
+        }
+        if ((mask & SUBMITTER) != 0) {
+            sysmeta.setSubmitter(subject(in.readRef()));
+        }
+        if ((mask & RIGHTS_HOLDER) != 0) {
+            sysmeta.setRightsHolder(subject(in.readRef()));
+        }
+        if ((mask & ACCESS_POLICY) != 0) {
+            sysmeta.setAccessPolicy(readAccessPolicy(in));
+        }
+        if ((mask & REPLICATION_POLICY) != 0) {
+            sysmeta.setReplicationPolicy(readReplicationPolicy(in));
+        }
+        if ((mask & OBSOLETES) != 0) {
+            sysmeta.setObsoletes(identifier(in.readRef()));
+        }
+        if ((mask & OBSOLETED_BY) != 0) {
+            sysmeta.setObsoletedBy(identifier(in.readRef()));
+        }
+        if ((mask & ARCHIVED) != 0) {
+            sysmeta.setArchived((mask & ARCHIVED_TRUE) != 0);
+        }
+        if ((mask & DATE_UPLOADED) != 0) {
+            sysmeta.setDateUploaded(new Date(in.readZigZag()));
+        }
+        if ((mask & DATE_MODIFIED) != 0) {
+            sysmeta.setDateSysMetadataModified(new Date(in.readZigZag()));
+        }
+        if ((mask & ORIGIN_MN) != 0) {
+            sysmeta.setOriginMemberNode(node(in.readRef()));
+        }
+        if ((mask & AUTHORITATIVE_MN) != 0) {
+            sysmeta.setAuthoritativeMemberNode(node(in.readRef()));
+        }
+        if ((mask & REPLICAS) != 0) {
+            sysmeta.setReplicaList(readReplicas(in));
+        }
+        if ((mask & SERIES_ID) != 0) {
+            sysmeta.setSeriesId(identifier(in.readRef()));
+        }
+        if ((mask & MEDIA_TYPE) != 0) {
+            sysmeta.setMediaType(readMediaType(in));
+        }
+        if ((mask & FILE_NAME) != 0) {
+            sysmeta.setFileName(in.readString());
+        }
+        return sysmeta;
+    }
+
+    private static void writeAccessPolicy(AccessPolicy policy, Output out) {
+        List<AccessRule> rules = policy.getAllowList();
+        out.writeVarLong(rules == null ? 0 : rules.size());
+        if (rules == null) {
+            return;
+        }
+        for (AccessRule rule : rules) {
+            List<Subject> subjects = rule.getSubjectList();
+            out.writeVarLong(subjects == null ? 0 : subjects.size());
+            if (subjects != null) {
+                for (Subject subject : subjects) {
+                    out.writeRef(subject == null ? null : subject.getValue());
+                }
+            }
+            List<Permission> permissions = rule.getPermissionList();
+            out.writeVarLong(permissions == null ? 0 : permissions.size());
+            if (permissions != null) {
+                for (Permission permission : permissions) {
+                    out.writeRef(permission == null ? null : permission.name());
+                }
+            }
+        }
+    }
+
+    private static AccessPolicy readAccessPolicy(Input in) throws IOException {
+        AccessPolicy policy = new AccessPolicy();
+        int ruleCount = in.readCount();
+        List<AccessRule> rules = new ArrayList<AccessRule>(ruleCount);
+        for (int i = 0; i < ruleCount; i++) {
+            AccessRule rule = new AccessRule();
+            int subjectCount = in.readCount();
+            List<Subject> subjects = new ArrayList<Subject>(subjectCount);
+            for (int j = 0; j < subjectCount; j++) {
+                subjects.add(subject(in.readRef()));
+            }
+            rule.setSubjectList(subjects);
+            int permissionCount = in.readCount();
+            List<Permission> permissions = new ArrayList<Permission>(permissionCount);
+            for (int j = 0; j < permissionCount; j++) {
+                permissions.add(enumValue(Permission.class, in.readRef()));
+            }
+            rule.setPermissionList(permissions);
+            rules.add(rule);
+        }
+        policy.setAllowList(rules);
+        return policy;
+    }
+
+    private static void writeReplicationPolicy(ReplicationPolicy policy, Output out) {
+        int flags = 0;
+        flags |= policy.getReplicationAllowed() != null ? ALLOWED : 0;
+        flags |= Boolean.TRUE.equals(policy.getReplicationAllowed()) ? ALLOWED_TRUE : 0;
+        flags |= policy.getNumberReplicas() != null ? NUMBER_REPLICAS : 0;
+        out.writeByte(flags);
+        if (policy.getNumberReplicas() != null) {
+            out.writeZigZag(policy.getNumberReplicas());
+        }
+        writeNodes(policy.getPreferredMemberNodeList(), out);
+        writeNodes(policy.getBlockedMemberNodeList(), out);
+    }
+
+    private static ReplicationPolicy readReplicationPolicy(Input in) throws IOException {
+        ReplicationPolicy policy = new ReplicationPolicy();
+        int flags = in.readByte();
+        if ((flags & ALLOWED) != 0) {
+            policy.setReplicationAllowed((flags & ALLOWED_TRUE) != 0);
+        }
+        if ((flags & NUMBER_REPLICAS) != 0) {
+            policy.setNumberReplicas((int) in.readZigZag());
+        }
+        policy.setPreferredMemberNodeList(readNodes(in));
+        policy.setBlockedMemberNodeList(readNodes(in));
+        return policy;
+    }
+
+    private static void writeNodes(List<NodeReference> nodes, Output out) {
+        out.writeVarLong(nodes == null ? 0 : nodes.size());
+        if (nodes != null) {
+            for (NodeReference node : nodes) {
+                out.writeRef(node == null ? null : node.getValue());
+            }
+        }
+    }
+
+    private static List<NodeReference> readNodes(Input in) throws IOException {
+        int count = in.readCount();
+        List<NodeReference> nodes = new ArrayList<NodeReference>(count);
+        for (int i = 0; i < count; i++) {
+            nodes.add(node(in.readRef()));
+        }
+        return nodes;
+    }
+
+    private static void writeReplicas(List<Replica> replicas, Output out) {
+        out.writeVarLong(replicas.size());
+        for (Replica replica : replicas) {
+            NodeReference node = replica.getReplicaMemberNode();
+            ReplicationStatus status = replica.getReplicationStatus();
+            Date verified = replica.getReplicaVerified();
+            out.writeRef(node == null ? null : node.getValue());
+            out.writeRef(status == null ? null : status.name());
+            out.writeByte(verified == null ? 0 : 1);
+            if (verified != null) {
+                out.writeZigZag(verified.getTime());
+            }
+        }
+    }
+
+    private static List<Replica> readReplicas(Input in) throws IOException {
+        int count = in.readCount();
+        List<Replica> replicas = new ArrayList<Replica>(count);
+        for (int i = 0; i < count; i++) {
+            Replica replica = new Replica();
+            replica.setReplicaMemberNode(node(in.readRef()));
+            replica.setReplicationStatus(enumValue(ReplicationStatus.class, in.readRef()));
+            if (in.readByte() != 0) {
+                replica.setReplicaVerified(new Date(in.readZigZag()));
+            }
+            replicas.add(replica);
+        }
+        return replicas;
+    }
+
+    private static void writeMediaType(MediaType mediaType, Output out) {
+        out.writeRef(mediaType.getName());
+        List<MediaTypeProperty> properties = mediaType.getPropertyList();
+        out.writeVarLong(properties == null ? 0 : properties.size());
+        if (properties != null) {
+            for (MediaTypeProperty property : properties) {
+                out.writeRef(property.getName());
+                out.writeString(property.getValue());
+            }
+        }
+    }
+
+    private static MediaType readMediaType(Input in) throws IOException {
+        MediaType mediaType = new MediaType();
+        mediaType.setName(in.readRef());
+        int count = in.readCount();
+        List<MediaTypeProperty> properties = new ArrayList<MediaTypeProperty>(count);
+        for (int i = 0; i < count; i++) {
+            MediaTypeProperty property = new MediaTypeProperty();
+            property.setName(in.readRef());
+            property.setValue(in.readString());
+            properties.add(property);
+        }
+        mediaType.setPropertyList(properties);
+        return mediaType;
+    }
+
+    private static boolean isEmpty(List<?> list) {
+        return list == null || list.isEmpty();
+    }
+
+    private static Identifier identifier(String value) {
+        Identifier identifier = new Identifier();
+        identifier.setValue(value);
+        return identifier;
+    }
+
+    private static Subject subject(String value) {
+        if (value == null) {
+            return null;
+        }
+        Subject subject = new Subject();
+        subject.setValue(value);
+        return subject;
+    }
+
+    private static NodeReference node(String value) {
+        if (value == null) {
+            return null;
+        }
+        NodeReference node = new NodeReference();
+        node.setValue(value);
+        return node;
+    }
+
+    private static <E extends Enum<E>> E enumValue(Class<E> type, String name) throws IOException {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return Enum.valueOf(type, name);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("SystemMetadataCodec.enumValue - unknown " + type.getSimpleName() + " " + name);
+        }
+    }
+
+    /**
+     * A growing buffer the values of a record are written to, with the
+     * dictionary of the values written through writeRef.
+     */
+    static final class Output {
+
+        private byte[] buffer;
+        private int position = 0;
+        private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+        Output(int capacity) {
+            buffer = new byte[Math.max(16, capacity)];
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        /**
+         * Write the value as an unsigned varint of 7 bits per byte.
+         */
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        /**
+         * Write a signed value as a varint, so small negative values stay short.
+         */
+        void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeBigInteger(BigInteger value) {
+            byte[] bytes = value.toByteArray();
+            writeVarLong(bytes.length);
+            writeBytes(bytes);
+        }
+
+        /**
+         * Write a string which may be null: its length plus one, 0 for null,
+         * followed by its UTF-8 bytes.
+         */
+        void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(UTF8);
+            writeVarLong(bytes.length + 1L);
+            writeBytes(bytes);
+        }
+
+        /**
+         * Write a string which may be null through the dictionary: 0 for null,
+         * 1 followed by the string for its first occurrence, the index in the
+         * dictionary plus 2 for a later one.
+         */
+        void writeRef(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            Integer index = dictionary.get(value);
+            if (index != null) {
+                writeVarLong(index + 2L);
+                return;
+            }
+            dictionary.put(value, dictionary.size());
+            writeVarLong(1);
+            writeString(value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void ensure(int length) {
+            if (position + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+            }
+        }
+    }
+
+    /**
+     * Reads the values written to an Output.
+     */
+    static final class Input {
+
+        private final byte[] buffer;
+        private int position = 0;
+        private final List<String> dictionary = new ArrayList<String>();
+
+        Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        int remaining() {
+            return buffer.length - position;
+        }
+
+        byte readByte() throws IOException {
+            require(1);
+            return buffer[position++];
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("SystemMetadataCodec.Input - malformed varint at " + position);
+        }
+
+        long readZigZag() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readLong() throws IOException {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        /**
+         * Read a count or length, which must fit in the remaining bytes.
+         */
+        int readCount() throws IOException {
+            long count = readVarLong();
+            if (count < 0 || count > remaining()) {
+                throw new IOException("SystemMetadataCodec.Input - invalid count " + count + " at " + position);
+            }
+            return (int) count;
+        }
+
+        BigInteger readBigInteger() throws IOException {
+            int length = readCount();
+            if (length == 0) {
+                throw new IOException("SystemMetadataCodec.Input - empty big integer at " + position);
+            }
+            return new BigInteger(readBytes(length));
+        }
+
+        String readString() throws IOException {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            if (length < 0 || length - 1 > remaining()) {
+                throw new IOException("SystemMetadataCodec.Input - invalid string length " + (length - 1) + " at "
+                        + position);
+            }
+            int start = position;
+            position += (int) (length - 1);
+            return new String(buffer, start, (int) (length - 1), UTF8);
+        }
+
+        String readRef() throws IOException {
+            long code = readVarLong();
+            if (code == 0) {
+                return null;
+            }
+            if (code == 1) {
+                String value = readString();
+                if (value == null) {
+                    throw new IOException("SystemMetadataCodec.Input - null dictionary entry at " + position);
+                }
+                dictionary.add(value);
+                return value;
+            }
+            if (code < 0 || code - 2 >= dictionary.size()) {
+                throw new IOException("SystemMetadataCodec.Input - unknown dictionary index " + (code - 2) + " at "
+                        + position);
+            }
+            return dictionary.get((int) (code - 2));
+        }
+
+        private byte[] readBytes(int length) throws IOException {
+            require(length);
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        private void require(int length) throws IOException {
+            if (length > remaining()) {
+                throw new IOException("SystemMetadataCodec.Input - the record is truncated at " + position);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.dataone.cn.index.generator.metrics.GeneratorMetrics;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+
+import com.hazelcast.core.IMap;
+
+/**
+ * Fetches the system metadata of the events received from a key-only
+ * listener, and of the slim events before their index task is built. The
+ * values of a batch are fetched with one getAll call, so only the events
+ * which survived the sharding and the coalescing, or the filter, cost a
+ * value transfer. An add or update event whose pid is no longer in the map is
+ * dropped, since the remove event of the pid follows it. An add event whose
+ * system metadata is not the first version is dropped too, as the listener
+ * does when it receives the value with the event. Remove events are kept
+ * without a value.
+ *
+ */
+public class SystemMetadataLoader {
+
+    private static Logger logger = Logger.getLogger(SystemMetadataLoader.class.getName());
+    private static GeneratorMetrics metrics = GeneratorMetrics.getInstance();
+
+    private final IMap<Identifier, SystemMetadata> systemMetadata;
+
+    /**
+     * Constructor
+     * @param systemMetadata the hazelcast system metadata map
+     */
+    public SystemMetadataLoader(IMap<Identifier, SystemMetadata> systemMetadata) {
+        this.systemMetadata = systemMetadata;
+    }
+
+    /**
+     * Set the system metadata of the add and update events which don't have it.
+     * @param batch
+     * @return the events of the batch which are still valid, in their order
+     */
+    public List<IndexEvent> load(List<IndexEvent> batch) {
+        Set<Identifier> pids = new HashSet<Identifier>(batch.size() * 2);
+        for (IndexEvent event : batch) {
+            if (event.getType() != IndexEvent.Type.REMOVE && event.getSysmeta() == null) {
+                pids.add(event.getPid());
+            }
+        }
+        if (pids.isEmpty()) {
+            return batch;
+        }
+        long start = System.nanoTime();
+        Map<Identifier, SystemMetadata> values = null;
+        try {
+            values = systemMetadata.getAll(pids);
+        } catch (RuntimeException e) {
+            logger.warn("SystemMetadataLoader.load - failed to get the system metadata of " + pids.size()
+                    + " pids in one call, getting them one by one: " + e.getMessage());
+        }
+        if (values == null) {
+            values = getOneByOne(pids);
+        }
+        metrics.record(GeneratorMetrics.VALUE_FETCH, start);
+        metrics.mark("values.fetched", pids.size());
+        List<IndexEvent> loaded = new ArrayList<IndexEvent>(batch.size());
+        for (IndexEvent event : batch) {
+            if (event.getType() == IndexEvent.Type.REMOVE || event.getSysmeta() != null) {
+                loaded.add(event);
+                continue;
+            }
+            SystemMetadata sysmeta = values.get(event.getPid());
+            if (sysmeta == null) {
+                metrics.increment("values.missing");
+                logger.info("SystemMetadataLoader.load - the system metadata of the " + event
+                        + " is no longer in the map. Skipping the event.");
+                event.finish();
+            } else if (event.getType() == IndexEvent.Type.ADD && sysmeta.getSerialVersion() != null
+                    && sysmeta.getSerialVersion().longValue() > 1) {
+                logger.info("Add event for pid: " + event.getPid().getValue()
+                        + " determined to be invalid due to serial version: "
+                        + sysmeta.getSerialVersion().longValue() + ".  skipping add index task.");
+                event.finish();
+            } else {
+                event.setSysmeta(sysmeta);
+                loaded.add(event);
+            }
+        }
+        return loaded;
+    }
+
+    private Map<Identifier, SystemMetadata> getOneByOne(Set<Identifier> pids) {
+        Map<Identifier, SystemMetadata> values = new HashMap<Identifier, SystemMetadata>(pids.size() * 2);
+        for (Identifier pid : pids) {
+            SystemMetadata sysmeta = systemMetadata.get(pid);
+            if (sysmeta != null) {
+                values.put(pid, sysmeta);
+            }
+        }
+        return values;
+    }
+}
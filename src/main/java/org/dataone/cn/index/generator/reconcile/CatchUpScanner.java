@@ -0,0 +1,198 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.reconcile;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.dataone.cn.index.generator.metrics.GeneratorMetrics;
+import org.dataone.cn.index.generator.pipeline.EventCoalescer;
+import org.dataone.cn.index.generator.pipeline.IndexEvent;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+
+/**
+ * Finds the system metadata modified while the generator was down and hands
+ * it to the normal generation path as update events. The pids modified since
+ * the watermark are found with one predicate, which the members evaluate on
+ * their partitions in parallel. The pids this instance doesn't process are
+ * left out, then the system metadata of the others is read a page at a time,
+ * several pages in parallel. The predicate has no upper bound, so the changes
+ * made before the pids were read are found too.
+ *
+ * The scan runs while the live listener already receives events, so the
+ * system metadata read by the scan may be older than the one of a live event
+ * of the pid processed before it. The events are marked as scanned, and the
+ * pipeline reads their system metadata again before their index task is
+ * built. Objects removed while the generator was down are not found by the
+ * scan.
+ *
+ */
+public class CatchUpScanner {
+
+    private static Logger logger = Logger.getLogger(CatchUpScanner.class.getName());
+    private static GeneratorMetrics metrics = GeneratorMetrics.getInstance();
+
+    /**
+     * Selects the pids whose changes are scanned.
+     */
+    public interface PidFilter {
+        public boolean accepts(String pid);
+    }
+
+    private final SystemMetadataSource source;
+    private final EventCoalescer.Sink sink;
+    private final int threads;
+    private final int pageSize;
+    private final PidFilter filter;
+
+    /**
+     * Constructor
+     * @param source the system metadata map
+     * @param sink the receiver of the update events
+     * @param threads the number of pages read in parallel
+     * @param pageSize the number of pids whose system metadata is read together
+     */
+    public CatchUpScanner(SystemMetadataSource source, EventCoalescer.Sink sink, int threads, int pageSize) {
+        this(source, sink, threads, pageSize, null);
+    }
+
+    /**
+     * Constructor
+     * @param source the system metadata map
+     * @param sink the receiver of the update events
+     * @param threads the number of pages read in parallel
+     * @param pageSize the number of pids whose system metadata is read together
+     * @param filter the pids to scan, null for all of them
+     */
+    public CatchUpScanner(SystemMetadataSource source, EventCoalescer.Sink sink, int threads, int pageSize,
+            PidFilter filter) {
+        this.source = source;
+        this.sink = sink;
+        this.threads = Math.max(1, threads);
+        this.pageSize = Math.max(1, pageSize);
+        this.filter = filter;
+    }
+
+    /**
+     * Scan the system metadata modified since a date.
+     * @param since the first modification date to scan
+     * @return the number of events handed to the sink
+     * @throws Exception if a page failed
+     */
+    public long scan(Date since) throws Exception {
+        long start = System.currentTimeMillis();
+        List<String> modified = source.getPidsModified(since, null);
+        List<String> pids = modified;
+        if (filter != null) {
+            pids = new ArrayList<String>(modified.size());
+            for (String pid : modified) {
+                if (filter.accepts(pid)) {
+                    pids.add(pid);
+                }
+            }
+        }
+        logger.info("CatchUpScanner.scan - " + modified.size() + " pid(s) were modified since " + since + ", "
+                + pids.size() + " of them are scanned with " + threads + " thread(s).");
+        List<Callable<Long>> work = new ArrayList<Callable<Long>>(pids.size() / pageSize + 1);
+        for (int from = 0; from < pids.size(); from += pageSize) {
+            final List<String> page = pids.subList(from, Math.min(from + pageSize, pids.size()));
+            work.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return scan(page);
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "index-generator-catch-up-" + number.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long events = 0;
+        Exception failure = null;
+        try {
+            for (Future<Long> result : executor.invokeAll(work)) {
+                try {
+                    events += result.get();
+                } catch (ExecutionException e) {
+                    logger.error("CatchUpScanner.scan - a page failed: " + e.getCause().getMessage(), e.getCause());
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        logger.info("CatchUpScanner.scan - handed " + events + " event(s) to the pipeline in "
+                + (System.currentTimeMillis() - start) + " ms.");
+        return events;
+    }
+
+    /**
+     * Read one page of pids.
+     * @param page the pids whose system metadata is read together
+     * @return the number of events handed to the sink
+     */
+    private long scan(List<String> page) throws Exception {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+        Map<String, SystemMetadata> sysmetas = source.getSystemMetadata(page);
+        long events = 0;
+        for (String pid : page) {
+            SystemMetadata sysmeta = sysmetas.get(pid);
+            if (sysmeta == null) {
+                //removed since the pids were read
+                continue;
+            }
+            Identifier identifier = new Identifier();
+            identifier.setValue(pid);
+            IndexEvent event = new IndexEvent(IndexEvent.Type.UPDATE, identifier, sysmeta);
+            event.setScanned(true);
+            sink.emit(event);
+            events++;
+        }
+        metrics.mark("catchup.events", events);
+        return events;
+    }
+}
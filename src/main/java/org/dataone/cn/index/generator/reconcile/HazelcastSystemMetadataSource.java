@@ -0,0 +1,120 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.reconcile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+
+import com.hazelcast.core.IMap;
+import com.hazelcast.query.EntryObject;
+import com.hazelcast.query.PredicateBuilder;
+
+/**
+ * Reads the system metadata and object paths from the hazelcast maps. The
+ * values of a batch of pids are fetched with one getAll call, which the
+ * cluster fans out to the partitions holding them. The pids modified in a
+ * date range are found with a predicate, which the members evaluate on their
+ * partitions in parallel, returning only the keys.
+ *
+ */
+public class HazelcastSystemMetadataSource implements SystemMetadataSource {
+
+    private static final String MODIFIED = "dateSysMetadataModified";
+
+    private final IMap<Identifier, SystemMetadata> systemMetadata;
+    private final IMap<Identifier, String> objectPaths;
+
+    public HazelcastSystemMetadataSource(IMap<Identifier, SystemMetadata> systemMetadata,
+            IMap<Identifier, String> objectPaths) {
+        this.systemMetadata = systemMetadata;
+        this.objectPaths = objectPaths;
+    }
+
+    @Override
+    public List<String> getPids() {
+        Set<Identifier> keys = systemMetadata.keySet();
+        List<String> pids = new ArrayList<String>(keys.size());
+        for (Identifier key : keys) {
+            pids.add(key.getValue());
+        }
+        return pids;
+    }
+
+    @Override
+    public List<String> getPidsModified(Date from, Date to) {
+        EntryObject entry = new PredicateBuilder().getEntryObject();
+        PredicateBuilder predicate = entry.get(MODIFIED).greaterEqual(from);
+        if (to != null) {
+            predicate = predicate.and(entry.get(MODIFIED).lessThan(to));
+        }
+        Set<Identifier> keys = systemMetadata.keySet(predicate);
+        List<String> pids = new ArrayList<String>(keys.size());
+        for (Identifier key : keys) {
+            pids.add(key.getValue());
+        }
+        return pids;
+    }
+
+    @Override
+    public Map<String, SystemMetadata> getSystemMetadata(Collection<String> pids) {
+        Map<Identifier, SystemMetadata> values = systemMetadata.getAll(identifiers(pids));
+        Map<String, SystemMetadata> result = new HashMap<String, SystemMetadata>(values.size() * 2);
+        for (Map.Entry<Identifier, SystemMetadata> entry : values.entrySet()) {
+            if (entry.getValue() != null) {
+                result.put(entry.getKey().getValue(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, String> getObjectPaths(Collection<String> pids) {
+        Map<Identifier, String> values = objectPaths.getAll(identifiers(pids));
+        Map<String, String> result = new HashMap<String, String>(values.size() * 2);
+        for (Map.Entry<Identifier, String> entry : values.entrySet()) {
+            if (entry.getValue() != null) {
+                result.put(entry.getKey().getValue(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static Set<Identifier> identifiers(Collection<String> pids) {
+        Set<Identifier> identifiers = new HashSet<Identifier>(pids.size() * 2);
+        for (String pid : pids) {
+            Identifier identifier = new Identifier();
+            identifier.setValue(pid);
+            identifiers.add(identifier);
+        }
+        return identifiers;
+    }
+}
@@ -0,0 +1,393 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.reconcile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.dataone.cn.index.generator.IndexTaskGenerator;
+import org.dataone.cn.index.generator.filter.HZEventFilter;
+import org.dataone.cn.index.generator.filter.SolrStateExporter;
+import org.dataone.cn.index.generator.filter.SolrStateLookup;
+import org.dataone.cn.index.task.IgnoringIndexIdPool;
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.service.types.v2.SystemMetadata;
+
+/**
+ * Generates the index tasks of exactly the objects whose system metadata
+ * differs from the Solr index, e.g. after an outage, instead of a full
+ * reindex. The sorted pids of the system metadata map are split into id
+ * ranges which are reconciled in parallel. Each partition streams its range
+ * of the Solr index sorted by id with a cursor and merge-joins it with its
+ * pids, whose system metadata is read in batches. A pid is compared with its
+ * Solr document by the decision rules of the HZEventFilter, without the age
+ * filter, and the tasks of the differences are saved in one batch:
+ * - an add task if Solr doesn't have the pid
+ * - an update task if its Solr document is stale
+ * The Solr documents without system metadata are only counted, since a
+ * delete task needs the system metadata. In a dry run the differences are
+ * logged instead of saved.
+ *
+ */
+public class IndexReconciler {
+
+    private static Logger logger = Logger.getLogger(IndexReconciler.class.getName());
+    private static final String ID = "id";
+
+    private final SystemMetadataSource source;
+    private final SolrClient solr;
+    private final HZEventFilter filter;
+    private final IndexTaskGenerator generator;
+    private final int partitions;
+    private final int rows;
+    private final int batchSize;
+    private final RateLimiter limiter;
+    private final boolean dryRun;
+    private long progressMillis = 30000;
+    private volatile long total = 0;
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong orphans = new AtomicLong();
+    private final AtomicLong ignored = new AtomicLong();
+    private final AtomicLong tasks = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param source the system metadata and object paths
+     * @param solr the client of the Solr core
+     * @param filter the filter deciding if a pid needs an index task
+     * @param generator the generator building and saving the index tasks
+     * @param partitions the number of id ranges reconciled in parallel
+     * @param rows the number of Solr documents read in one request
+     * @param batchSize the number of pids whose system metadata is read together
+     * @param limiter the limit of the pids read per second
+     * @param dryRun true to log the differences instead of saving their tasks
+     */
+    public IndexReconciler(SystemMetadataSource source, SolrClient solr, HZEventFilter filter,
+            IndexTaskGenerator generator, int partitions, int rows, int batchSize, RateLimiter limiter,
+            boolean dryRun) {
+        this.source = source;
+        this.solr = solr;
+        this.filter = filter;
+        this.generator = generator;
+        this.partitions = Math.max(1, partitions);
+        this.rows = Math.max(1, rows);
+        this.batchSize = Math.max(1, batchSize);
+        this.limiter = limiter;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * @param progressMillis the milliseconds between the progress reports, 0 for none
+     */
+    public void setProgressInterval(long progressMillis) {
+        this.progressMillis = progressMillis;
+    }
+
+    /**
+     * Reconcile all pids.
+     * @return the number of index tasks saved, or which would be saved in a dry run
+     * @throws Exception if a partition failed. The other partitions are completed.
+     */
+    public long run() throws Exception {
+        long start = System.currentTimeMillis();
+        List<String> pids = source.getPids();
+        Collections.sort(pids);
+        total = pids.size();
+        logger.info("IndexReconciler.run - reconciling " + total + " pids with the solr index"
+                + (dryRun ? " (dry run)." : "."));
+        int count = (int) Math.max(1, Math.min(partitions, (pids.size() + batchSize - 1) / batchSize));
+        List<Callable<Long>> work = new ArrayList<Callable<Long>>(count);
+        for (int i = 0; i < count; i++) {
+            int from = (int) ((long) pids.size() * i / count);
+            int to = (int) ((long) pids.size() * (i + 1) / count);
+            final List<String> range = pids.subList(from, to);
+            //the first and last ranges are open, so they stream the solr documents outside the pids too
+            final String lower = i == 0 ? null : pids.get(from);
+            final String upper = i == count - 1 ? null : pids.get(to);
+            work.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return reconcile(range, lower, upper);
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(count, new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "index-reconciler-" + number.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Thread reporter = startReporter(start);
+        Exception failure = null;
+        try {
+            for (Future<Long> result : executor.invokeAll(work)) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    logger.error("IndexReconciler.run - a partition failed: " + e.getCause().getMessage(),
+                            e.getCause());
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            if (reporter != null) {
+                reporter.interrupt();
+            }
+        }
+        logger.info("IndexReconciler.run - finished in " + (System.currentTimeMillis() - start) + " ms. "
+                + progress());
+        if (failure != null) {
+            throw failure;
+        }
+        return tasks.get();
+    }
+
+    /**
+     * Merge-join the sorted pids of a partition with the Solr documents of its id range.
+     * @param pids the sorted pids
+     * @param lower the first id of the range, null for no lower bound
+     * @param upper the first id after the range, null for no upper bound
+     * @return the number of index tasks
+     */
+    private long reconcile(List<String> pids, String lower, String upper) throws Exception {
+        SolrCursor cursor = new SolrCursor(SolrStateExporter.rangeFilter(lower, upper));
+        long created = 0;
+        for (int start = 0; start < pids.size(); start += batchSize) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            List<String> batch = pids.subList(start, Math.min(start + batchSize, pids.size()));
+            limiter.acquire(batch.size());
+            Map<String, SystemMetadata> sysmetas = source.getSystemMetadata(batch);
+            List<SystemMetadata> added = new ArrayList<SystemMetadata>();
+            List<SystemMetadata> updated = new ArrayList<SystemMetadata>();
+            for (String pid : batch) {
+                //solr sorts the ids by code point, as String.compareTo does outside the supplementary
+                //characters. Where they disagree a pid looks missing and merely gets an extra task.
+                while (cursor.peekId() != null && cursor.peekId().compareTo(pid) < 0) {
+                    orphan(cursor.next());
+                }
+                SolrDocument doc = pid.equals(cursor.peekId()) ? cursor.next() : null;
+                scanned.incrementAndGet();
+                SystemMetadata sysmeta = sysmetas.get(pid);
+                if (sysmeta == null) {
+                    //removed since the pids were read
+                    continue;
+                }
+                if (!IgnoringIndexIdPool.isNotIgnorePid(sysmeta)) {
+                    ignored.incrementAndGet();
+                    continue;
+                }
+                if (!filter.filter(sysmeta, doc)) {
+                    if (doc == null) {
+                        missing.incrementAndGet();
+                        added.add(sysmeta);
+                    } else {
+                        stale.incrementAndGet();
+                        updated.add(sysmeta);
+                    }
+                }
+            }
+            created += createTasks(added, updated);
+        }
+        while (cursor.peekId() != null) {
+            orphan(cursor.next());
+        }
+        return created;
+    }
+
+    private void orphan(SolrDocument doc) {
+        orphans.incrementAndGet();
+        if (logger.isDebugEnabled()) {
+            logger.debug("IndexReconciler.orphan - the solr index has " + doc.getFirstValue(ID)
+                    + " which isn't in the system metadata map.");
+        }
+    }
+
+    private int createTasks(List<SystemMetadata> added, List<SystemMetadata> updated) {
+        if (added.isEmpty() && updated.isEmpty()) {
+            return 0;
+        }
+        List<String> pids = new ArrayList<String>(added.size() + updated.size());
+        for (SystemMetadata sysmeta : added) {
+            pids.add(sysmeta.getIdentifier().getValue());
+        }
+        for (SystemMetadata sysmeta : updated) {
+            pids.add(sysmeta.getIdentifier().getValue());
+        }
+        if (dryRun) {
+            for (SystemMetadata sysmeta : added) {
+                logger.info("IndexReconciler.createTasks - dry run: " + sysmeta.getIdentifier().getValue()
+                        + " isn't in the solr index and would get an add task.");
+            }
+            for (SystemMetadata sysmeta : updated) {
+                logger.info("IndexReconciler.createTasks - dry run: " + sysmeta.getIdentifier().getValue()
+                        + " is stale in the solr index and would get an update task.");
+            }
+            tasks.addAndGet(pids.size());
+            return pids.size();
+        }
+        Map<String, String> paths = source.getObjectPaths(pids);
+        List<IndexTask> batch = new ArrayList<IndexTask>(pids.size());
+        for (SystemMetadata sysmeta : added) {
+            batch.add(generator.buildAddTask(sysmeta, paths.get(sysmeta.getIdentifier().getValue())));
+        }
+        for (SystemMetadata sysmeta : updated) {
+            batch.add(generator.buildUpdateTask(sysmeta, paths.get(sysmeta.getIdentifier().getValue())));
+        }
+        int saved = generator.saveTasks(batch).size();
+        tasks.addAndGet(saved);
+        return saved;
+    }
+
+    private Thread startReporter(final long start) {
+        if (progressMillis <= 0) {
+            return null;
+        }
+        Thread reporter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(progressMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                    logger.info("IndexReconciler.progress - " + progress() + " " + (scanned.get() * 1000 / elapsed)
+                            + " pids per second.");
+                }
+            }
+        }, "index-reconciler-progress");
+        reporter.setDaemon(true);
+        reporter.start();
+        return reporter;
+    }
+
+    /**
+     * @return the counts of the reconciliation so far
+     */
+    public String progress() {
+        long done = scanned.get();
+        return "Reconciled " + done + " of " + total + " pids (" + (total == 0 ? 100 : done * 100 / total)
+                + "%): " + missing.get() + " missing and " + stale.get() + " stale in solr, " + ignored.get()
+                + " ignored, " + orphans.get() + " solr documents without system metadata, " + tasks.get()
+                + (dryRun ? " index tasks to create." : " index tasks created.");
+    }
+
+    public long getScannedCount() {
+        return scanned.get();
+    }
+
+    public long getMissingCount() {
+        return missing.get();
+    }
+
+    public long getStaleCount() {
+        return stale.get();
+    }
+
+    public long getOrphanCount() {
+        return orphans.get();
+    }
+
+    public long getTaskCount() {
+        return tasks.get();
+    }
+
+    /**
+     * Streams the Solr documents of an id range sorted by id, one page at a time.
+     */
+    private class SolrCursor {
+        private final SolrQuery query;
+        private String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+        private SolrDocumentList page = null;
+        private int index = 0;
+        private boolean last = false;
+
+        private SolrCursor(String filter) {
+            query = new SolrQuery("*:*");
+            if (filter != null) {
+                query.addFilterQuery(filter);
+            }
+            query.setFields(SolrStateLookup.FIELDS);
+            query.setRows(rows);
+            query.setSort(ID, SolrQuery.ORDER.asc);
+        }
+
+        /**
+         * @return the id of the next document, null at the end of the range
+         */
+        private String peekId() throws SolrServerException, IOException {
+            return fill() ? (String) page.get(index).getFirstValue(ID) : null;
+        }
+
+        private SolrDocument next() throws SolrServerException, IOException {
+            return fill() ? page.get(index++) : null;
+        }
+
+        private boolean fill() throws SolrServerException, IOException {
+            while (page == null || index >= page.size()) {
+                if (last) {
+                    return false;
+                }
+                query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+                QueryResponse response = solr.query(query);
+                page = response.getResults();
+                index = 0;
+                String next = response.getNextCursorMark();
+                last = next == null || next.equals(cursorMark) || page.isEmpty();
+                cursorMark = next;
+            }
+            return true;
+        }
+    }
+}
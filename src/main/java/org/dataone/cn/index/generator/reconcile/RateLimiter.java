@@ -0,0 +1,69 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.reconcile;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which the IndexReconciler reads the pids, so a
+ * reconciliation doesn't starve the hazelcast cluster and Solr. The permits
+ * are handed out evenly spaced: a caller asking for n permits waits until
+ * the permits of the callers before it are due.
+ *
+ */
+public class RateLimiter {
+
+    private final long nanosPerPermit;
+    private long nextFree = 0;
+
+    /**
+     * Constructor
+     * @param permitsPerSecond 0 or less for no limit
+     */
+    public RateLimiter(double permitsPerSecond) {
+        nanosPerPermit = permitsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond) : 0;
+    }
+
+    /**
+     * Wait until the permits are available.
+     * @param permits
+     * @throws InterruptedException
+     */
+    public void acquire(int permits) throws InterruptedException {
+        if (nanosPerPermit == 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextFree - now < 0) {
+                nextFree = now;
+            }
+            wait = nextFree - now;
+            nextFree += nanosPerPermit * permits;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.reconcile;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.dataone.service.types.v2.SystemMetadata;
+
+/**
+ * The system metadata and object paths the IndexReconciler compares with the
+ * Solr index, and the CatchUpScanner hands to the pipeline.
+ *
+ */
+public interface SystemMetadataSource {
+
+    /**
+     * @return the pids of all objects
+     */
+    public List<String> getPids();
+
+    /**
+     * @param from the first modification date
+     * @param to the modification date after the last one, null for no upper bound
+     * @return the pids of the objects whose system metadata was modified in the range
+     */
+    public List<String> getPidsModified(Date from, Date to);
+
+    /**
+     * @param pids
+     * @return the system metadata of the pids which still exist
+     */
+    public Map<String, SystemMetadata> getSystemMetadata(Collection<String> pids);
+
+    /**
+     * @param pids
+     * @return the object paths of the pids which have one
+     */
+    public Map<String, String> getObjectPaths(Collection<String> pids);
+}
@@ -0,0 +1,254 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.reconcile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The low watermark of the system metadata modification dates processed by
+ * the generator, checkpointed to a file so a restarted generator knows from
+ * when to scan the map for the changes it missed while it was down.
+ *
+ * The events of different pids are processed in parallel, so an older change
+ * may still be in flight when a newer one was processed. The pipeline
+ * registers the modification date of every event it accepts with begin and
+ * releases it with end once the event needs no more work, and the checkpoint
+ * never passes the oldest date still registered. An event lost by the
+ * pipeline or abandoned on shutdown is never released, so the next start
+ * scans it again. The catch-up scan also starts an overlap before the
+ * checkpointed watermark, for the clock skew between the nodes. While a
+ * catch-up scan runs, the watermark is held at the start of the scan, so a
+ * generator stopped before the scan finished scans again from there.
+ *
+ */
+public class Watermark {
+
+    private static Logger logger = Logger.getLogger(Watermark.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final Date loaded;
+    private final AtomicLong latest = new AtomicLong(0);
+    private volatile long held = Long.MAX_VALUE;
+    //the number of events in flight by modification date
+    private final TreeMap<Long, Integer> inFlight = new TreeMap<Long, Integer>();
+    private long written;
+    private Thread checkpointer = null;
+    private volatile boolean running = false;
+
+    /**
+     * Constructor. Reads the watermark of the previous run from the file.
+     * @param file the checkpoint file
+     * @throws IOException if the file exists but can't be read
+     */
+    public Watermark(File file) throws IOException {
+        this.file = file;
+        Date previous = null;
+        if (file.exists()) {
+            String content = new String(Files.readAllBytes(file.toPath()), UTF8).trim();
+            try {
+                previous = new Date(Long.parseLong(content));
+            } catch (NumberFormatException e) {
+                throw new IOException("Watermark - the checkpoint file " + file + " doesn't hold a watermark: "
+                        + content);
+            }
+            latest.set(previous.getTime());
+        }
+        loaded = previous;
+        written = latest.get();
+    }
+
+    /**
+     * @return the watermark checkpointed by the previous run, null if there was none
+     */
+    public Date getLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return the latest modification date processed, 0 if none is known
+     */
+    public long get() {
+        return latest.get();
+    }
+
+    /**
+     * Record that a change of the system metadata was processed.
+     * @param modified the modification date of the system metadata
+     */
+    public void advance(Date modified) {
+        if (modified == null) {
+            return;
+        }
+        long time = modified.getTime();
+        long current = latest.get();
+        while (time > current && !latest.compareAndSet(current, time)) {
+            current = latest.get();
+        }
+    }
+
+    /**
+     * Register the modification date of an event which is not processed yet.
+     * @param time the modification date in milliseconds
+     */
+    public void begin(long time) {
+        synchronized (inFlight) {
+            Integer count = inFlight.get(time);
+            inFlight.put(time, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Release the modification date of an event registered with begin.
+     * @param time the modification date in milliseconds
+     */
+    public void end(long time) {
+        synchronized (inFlight) {
+            Integer count = inFlight.get(time);
+            if (count == null) {
+                return;
+            }
+            if (count == 1) {
+                inFlight.remove(time);
+            } else {
+                inFlight.put(time, count - 1);
+            }
+        }
+    }
+
+    /**
+     * @return the oldest modification date of the events in flight, Long.MAX_VALUE if there is none
+     */
+    public long getOldestInFlight() {
+        synchronized (inFlight) {
+            Map.Entry<Long, Integer> oldest = inFlight.firstEntry();
+            return oldest == null ? Long.MAX_VALUE : oldest.getKey();
+        }
+    }
+
+    /**
+     * Keep the checkpointed watermark at or below a date until release is called.
+     * @param date
+     */
+    public void hold(Date date) {
+        held = date.getTime();
+    }
+
+    /**
+     * Let the checkpointed watermark follow the processed changes again.
+     */
+    public void release() {
+        held = Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the watermark a checkpoint would write: the latest modification
+     * date processed, but not past the oldest event in flight nor the held date
+     */
+    public long getCheckpointValue() {
+        return Math.min(Math.min(latest.get(), held), getOldestInFlight());
+    }
+
+    /**
+     * Write the watermark to the file if it moved since the last checkpoint.
+     * The file is replaced atomically, so a crash leaves the old or the new
+     * watermark.
+     * @return true if the file was written
+     * @throws IOException
+     */
+    public synchronized boolean checkpoint() throws IOException {
+        long value = getCheckpointValue();
+        if (value <= 0 || value == written) {
+            return false;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), UTF8);
+        try {
+            writer.write(Long.toString(value));
+        } finally {
+            writer.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        written = value;
+        return true;
+    }
+
+    /**
+     * Start the thread checkpointing the watermark periodically.
+     * @param intervalMillis the milliseconds between the checkpoints
+     */
+    public synchronized void start(final long intervalMillis) {
+        running = true;
+        checkpointer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                        checkpoint();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        logger.error("Watermark.checkpoint - failed to write the watermark to " + file + ": "
+                                + e.getMessage(), e);
+                    }
+                }
+            }
+        }, "index-generator-watermark");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+        logger.info("Watermark.start - checkpointing the watermark to " + file + " every " + intervalMillis
+                + " ms.");
+    }
+
+    /**
+     * Stop the checkpointing thread and write the last checkpoint.
+     */
+    public void stop() {
+        synchronized (this) {
+            running = false;
+            if (checkpointer != null) {
+                checkpointer.interrupt();
+            }
+        }
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            logger.error("Watermark.stop - failed to write the watermark to " + file + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.shard;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.dataone.cn.index.generator.filter.PidBloomFilter;
+
+/**
+ * An immutable consistent hash ring assigning the pids to the generator
+ * instances. Each member is placed on the ring at a number of virtual nodes,
+ * and a pid belongs to the member of the first node at or after the hash of
+ * the pid. When a member joins or leaves, only the pids between its nodes and
+ * their predecessors change owner.
+ *
+ */
+public class ConsistentHashRing {
+
+    private final SortedSet<String> members;
+    private final long[] points;
+    private final String[] owners;
+
+    /**
+     * Constructor
+     * @param members the ids of the members
+     * @param virtualNodes the number of nodes of each member
+     */
+    public ConsistentHashRing(Collection<String> members, int virtualNodes) {
+        this.members = Collections.unmodifiableSortedSet(new TreeSet<String>(members));
+        int nodes = Math.max(1, virtualNodes);
+        long[][] ring = new long[this.members.size() * nodes][];
+        String[] ids = this.members.toArray(new String[this.members.size()]);
+        int n = 0;
+        for (int m = 0; m < ids.length; m++) {
+            for (int i = 0; i < nodes; i++) {
+                ring[n++] = new long[] { PidBloomFilter.hash64(ids[m] + "#" + i), m };
+            }
+        }
+        Arrays.sort(ring, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? (int) (a[1] - b[1]) : 1);
+            }
+        });
+        points = new long[ring.length];
+        owners = new String[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            owners[i] = ids[(int) ring[i][1]];
+        }
+    }
+
+    /**
+     * @param pid
+     * @return the id of the member owning the pid, null if the ring has no member
+     */
+    public String owner(String pid) {
+        if (points.length == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(points, PidBloomFilter.hash64(pid));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * @return the ids of the members, sorted
+     */
+    public SortedSet<String> getMembers() {
+        return members;
+    }
+}
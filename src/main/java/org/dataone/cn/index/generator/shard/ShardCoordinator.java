@@ -0,0 +1,429 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.shard;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.dataone.cn.index.generator.metrics.Gauge;
+import org.dataone.cn.index.generator.metrics.GeneratorMetrics;
+import org.dataone.configuration.Settings;
+
+/**
+ * Shares the index events among the generator instances, so several of them
+ * can run without duplicating every task. Each instance heartbeats into a
+ * shared map by writing a new value under its member id. An instance whose
+ * value didn't change for the timeout, measured on the local clock so the
+ * clocks of the nodes don't matter, has left. The live members are placed on
+ * a ConsistentHashRing, and an instance processes the events of the pids the
+ * ring assigns to it.
+ *
+ * Losing an event is worse than generating its task twice, since a task
+ * replaces the unprocessed task of its pid. So the ownership errs on the
+ * side of processing:
+ * - after the ring changed, the previous owner of a pid keeps processing its
+ *   events for the grace period, while the new owner takes over
+ * - a member which missed two heartbeats is suspect, and the pids it owns are
+ *   also processed by their owners on the ring without the suspects
+ *
+ * The events a member received before it crashed, and those it was still
+ * processing, are lost with it. When a member becomes suspect, or times out
+ * without having been suspect, the FailoverListener is told, so the new
+ * owners of its pids can scan the changes made to them since its last
+ * heartbeat. A member which stops cleanly leaves the ring first and keeps
+ * processing its pids until the others took them over, then drains its
+ * events.
+ *
+ */
+public class ShardCoordinator {
+
+    private static Logger logger = Logger.getLogger(ShardCoordinator.class.getName());
+    private static GeneratorMetrics metrics = GeneratorMetrics.getInstance();
+    private static final String MEMBER_ID = "indexEvent.shard.member.id";
+    private static final String VIRTUAL_NODES = "indexEvent.shard.virtual.nodes";
+    private static final String HEARTBEAT_INTERVAL = "indexEvent.shard.heartbeat.interval";
+    private static final String TIMEOUT = "indexEvent.shard.timeout";
+    private static final String GRACE = "indexEvent.shard.grace";
+
+    /**
+     * Told when a member stopped heartbeating without leaving.
+     */
+    public interface FailoverListener {
+        public void memberFailed(TakeOver takeOver);
+    }
+
+    /**
+     * Told when the pids an instance processes changed.
+     */
+    public interface RingListener {
+        /**
+         * @param graceMillis the milliseconds the previous owners keep processing the moved pids
+         */
+        public void ringChanged(long graceMillis);
+    }
+
+    private final ConcurrentMap<String, Long> heartbeats;
+    private final String memberId;
+    private final int virtualNodes;
+    private final long heartbeatMillis;
+    private final long timeoutMillis;
+    private final long graceMillis;
+    //the last heartbeat value of each member and the local time it was first seen
+    private final Map<String, long[]> seen = new HashMap<String, long[]>();
+    private long beat = new Random().nextLong();
+    private volatile Assignment assignment;
+    private volatile FailoverListener failoverListener = null;
+    private volatile RingListener ringListener = null;
+    //the failed members which were handed over and not seen alive since
+    private final Set<String> failed = new TreeSet<String>();
+    private Thread heartbeater = null;
+    private volatile boolean running = false;
+    //set once this instance left, so a late heartbeat doesn't join it again
+    private boolean left = false;
+
+    /**
+     * Constructor
+     * @param heartbeats the map shared by the instances
+     * @param memberId the id of this instance
+     * @param virtualNodes the number of ring nodes of an instance
+     * @param heartbeatMillis the milliseconds between the heartbeats
+     * @param timeoutMillis the milliseconds without a heartbeat after which an instance has left
+     * @param graceMillis the milliseconds the previous owner of a pid keeps processing its events
+     */
+    public ShardCoordinator(ConcurrentMap<String, Long> heartbeats, String memberId, int virtualNodes,
+            long heartbeatMillis, long timeoutMillis, long graceMillis) {
+        this.heartbeats = heartbeats;
+        this.memberId = memberId;
+        this.virtualNodes = virtualNodes;
+        this.heartbeatMillis = Math.max(1, heartbeatMillis);
+        this.timeoutMillis = Math.max(2 * this.heartbeatMillis, timeoutMillis);
+        this.graceMillis = graceMillis;
+        Set<String> self = new TreeSet<String>();
+        self.add(memberId);
+        assignment = new Assignment(new ConsistentHashRing(self, virtualNodes), null, 0, null);
+    }
+
+    /**
+     * Create a coordinator with the indexEvent.shard.* settings. The member id
+     * defaults to the name of the JVM, pid@host.
+     * @param heartbeats the map shared by the instances
+     * @return the coordinator
+     */
+    public static ShardCoordinator fromConfiguration(ConcurrentMap<String, Long> heartbeats) {
+        return new ShardCoordinator(heartbeats,
+                Settings.getConfiguration().getString(MEMBER_ID, ManagementFactory.getRuntimeMXBean().getName()),
+                Settings.getConfiguration().getInt(VIRTUAL_NODES, 128),
+                Settings.getConfiguration().getLong(HEARTBEAT_INTERVAL, 5000),
+                Settings.getConfiguration().getLong(TIMEOUT, 20000),
+                Settings.getConfiguration().getLong(GRACE, 30000));
+    }
+
+    /**
+     * Join the instances and start the heartbeat thread.
+     */
+    public synchronized void start() {
+        left = false;
+        heartbeat();
+        refresh(System.currentTimeMillis());
+        running = true;
+        heartbeater = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(heartbeatMillis);
+                        heartbeat();
+                        refresh(System.currentTimeMillis());
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        logger.error("ShardCoordinator.heartbeat - failed to heartbeat: " + e.getMessage(), e);
+                    }
+                }
+            }
+        }, "index-generator-shard-heartbeat");
+        heartbeater.setDaemon(true);
+        heartbeater.start();
+        metrics.register("shard.members", new Gauge() {
+            @Override
+            public Number getValue() {
+                return assignment.ring.getMembers().size();
+            }
+        });
+        logger.info("ShardCoordinator.start - " + memberId + " joined the index task generators.");
+    }
+
+    /**
+     * Leave the instances, so the others take over the pids of this one
+     * without waiting for the timeout. The others only see it on their next
+     * refresh, so this instance must keep processing the events of its pids
+     * for getHandoverMillis() after it left. Its ownership doesn't change
+     * after it left.
+     */
+    public synchronized void stop() {
+        left = true;
+        try {
+            heartbeats.remove(memberId);
+        } catch (RuntimeException e) {
+            logger.warn("ShardCoordinator.stop - failed to leave the index task generators: " + e.getMessage());
+        }
+        running = false;
+        if (heartbeater != null) {
+            heartbeater.interrupt();
+        }
+        metrics.unregister("shard.members");
+        logger.info("ShardCoordinator.stop - " + memberId + " left the index task generators.");
+    }
+
+    /**
+     * @return the milliseconds the others may take to see this instance left:
+     * up to a heartbeat interval until their next refresh, and one more for a
+     * refresh which read the heartbeats just before it left
+     */
+    public long getHandoverMillis() {
+        return 2 * heartbeatMillis;
+    }
+
+    /**
+     * @param pid
+     * @return true if this instance processes the events of the pid
+     */
+    public boolean owns(String pid) {
+        return owns(pid, System.currentTimeMillis());
+    }
+
+    boolean owns(String pid, long nowMillis) {
+        Assignment current = assignment;
+        if (memberId.equals(current.ring.owner(pid))) {
+            return true;
+        }
+        if (current.healthy != null && memberId.equals(current.healthy.owner(pid))) {
+            metrics.increment("shard.covered");
+            return true;
+        }
+        if (current.previous != null && nowMillis < current.graceUntil
+                && memberId.equals(current.previous.owner(pid))) {
+            metrics.increment("shard.grace");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Set the listener told when a member stopped heartbeating without leaving.
+     * @param failoverListener
+     */
+    public void setFailoverListener(FailoverListener failoverListener) {
+        this.failoverListener = failoverListener;
+    }
+
+    /**
+     * Set the listener told when the pids this instance processes changed,
+     * because an instance joined or left or a suspect was covered.
+     * @param ringListener
+     */
+    public void setRingListener(RingListener ringListener) {
+        this.ringListener = ringListener;
+    }
+
+    /**
+     * @return the ids of the live instances
+     */
+    public Set<String> getMembers() {
+        return assignment.ring.getMembers();
+    }
+
+    public String getMemberId() {
+        return memberId;
+    }
+
+    synchronized void heartbeat() {
+        if (left) {
+            return;
+        }
+        heartbeats.put(memberId, ++beat);
+    }
+
+    /**
+     * Read the heartbeats and rebuild the ring when an instance joined or left.
+     * @param nowMillis the local time
+     */
+    synchronized void refresh(long nowMillis) {
+        Set<String> live = new TreeSet<String>();
+        Set<String> suspects = new TreeSet<String>();
+        live.add(memberId);
+        for (Map.Entry<String, Long> entry : heartbeats.entrySet()) {
+            String id = entry.getKey();
+            long value = entry.getValue();
+            long[] last = seen.get(id);
+            if (last == null || last[0] != value) {
+                last = new long[] { value, nowMillis };
+                seen.put(id, last);
+            }
+            long silence = nowMillis - last[1];
+            if (id.equals(memberId)) {
+                continue;
+            }
+            if (silence <= timeoutMillis) {
+                live.add(id);
+                if (silence > 2 * heartbeatMillis) {
+                    suspects.add(id);
+                }
+            } else if (silence > 2 * timeoutMillis) {
+                //clean up after an instance which didn't stop cleanly
+                heartbeats.remove(id, value);
+            }
+        }
+        Assignment current = assignment;
+        List<TakeOver> takeOvers = new ArrayList<TakeOver>();
+        for (String id : current.ring.getMembers()) {
+            long[] last = seen.get(id);
+            boolean silent = !id.equals(memberId) && last != null && nowMillis - last[1] > 2 * heartbeatMillis;
+            if (silent && (suspects.contains(id) || !live.contains(id)) && failed.add(id)) {
+                takeOvers.add(new TakeOver(id, last[1], current.ring));
+            }
+        }
+        for (Iterator<String> ids = seen.keySet().iterator(); ids.hasNext();) {
+            if (!heartbeats.containsKey(ids.next())) {
+                ids.remove();
+            }
+        }
+        for (Iterator<String> ids = failed.iterator(); ids.hasNext();) {
+            String id = ids.next();
+            if (!seen.containsKey(id) || (live.contains(id) && !suspects.contains(id))) {
+                ids.remove();
+            }
+        }
+        ConsistentHashRing ring = current.ring;
+        ConsistentHashRing previous = current.previous;
+        long graceUntil = current.graceUntil;
+        if (!live.equals(ring.getMembers())) {
+            previous = ring;
+            graceUntil = nowMillis + graceMillis;
+            ring = new ConsistentHashRing(live, virtualNodes);
+            metrics.increment("shard.rebalanced");
+            logger.info("ShardCoordinator.refresh - the index task generators are now " + live
+                    + ". The previous owners keep processing the moved pids for " + graceMillis + " ms.");
+        }
+        boolean changed = ring != current.ring;
+        ConsistentHashRing healthy = null;
+        if (!suspects.isEmpty()) {
+            Set<String> members = new TreeSet<String>(live);
+            members.removeAll(suspects);
+            healthy = new ConsistentHashRing(members, virtualNodes);
+            if (current.healthy == null || !current.healthy.getMembers().equals(members)) {
+                changed = true;
+                logger.warn("ShardCoordinator.refresh - " + suspects + " missed their heartbeats. Their pids are"
+                        + " also processed by the other index task generators.");
+            }
+        }
+        assignment = new Assignment(ring, previous, graceUntil, healthy);
+        RingListener ringChanges = ringListener;
+        if (changed && ringChanges != null) {
+            ringChanges.ringChanged(graceMillis);
+        }
+        FailoverListener listener = failoverListener;
+        for (TakeOver takeOver : takeOvers) {
+            metrics.increment("shard.failed");
+            logger.warn("ShardCoordinator.refresh - " + takeOver.getMember() + " stopped heartbeating at "
+                    + new Date(takeOver.getLastHeartbeat()) + ". Its pids are taken over.");
+            if (listener != null) {
+                listener.memberFailed(takeOver);
+            }
+        }
+    }
+
+    /**
+     * @return true if this instance owns the pid on the ring, or covers it for a suspect
+     */
+    private boolean ownsNow(String pid) {
+        Assignment current = assignment;
+        return memberId.equals(current.ring.owner(pid))
+                || (current.healthy != null && memberId.equals(current.healthy.owner(pid)));
+    }
+
+    /**
+     * The pids of a failed member this instance took over.
+     */
+    public class TakeOver {
+        private final String member;
+        private final long lastHeartbeat;
+        private final ConsistentHashRing ring;
+
+        private TakeOver(String member, long lastHeartbeat, ConsistentHashRing ring) {
+            this.member = member;
+            this.lastHeartbeat = lastHeartbeat;
+            this.ring = ring;
+        }
+
+        /**
+         * @return the id of the failed member
+         */
+        public String getMember() {
+            return member;
+        }
+
+        /**
+         * @return the local time the last heartbeat of the member was seen
+         */
+        public long getLastHeartbeat() {
+            return lastHeartbeat;
+        }
+
+        /**
+         * @param pid
+         * @return true if the failed member owned the pid and this instance owns it now
+         */
+        public boolean covers(String pid) {
+            return member.equals(ring.owner(pid)) && ownsNow(pid);
+        }
+    }
+
+    /**
+     * The rings an instance decides the ownership of a pid with.
+     */
+    private static class Assignment {
+        private final ConsistentHashRing ring;
+        private final ConsistentHashRing previous;
+        private final long graceUntil;
+        private final ConsistentHashRing healthy;
+
+        private Assignment(ConsistentHashRing ring, ConsistentHashRing previous, long graceUntil,
+                ConsistentHashRing healthy) {
+            this.ring = ring;
+            this.previous = previous;
+            this.graceUntil = graceUntil;
+            this.healthy = healthy;
+        }
+    }
+}
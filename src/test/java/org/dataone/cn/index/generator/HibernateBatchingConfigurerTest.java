@@ -0,0 +1,67 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator;
+
+import org.dataone.configuration.Settings;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+
+public class HibernateBatchingConfigurerTest {
+
+    @After
+    public void tearDown() {
+        Settings.getConfiguration().clearProperty("indexEvent.persist.jdbc.batch.size");
+    }
+
+    @Test
+    public void testBatchingIsTurnedOn() {
+        Settings.getConfiguration().setProperty("indexEvent.persist.jdbc.batch.size", 50);
+        LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
+        Assert.assertSame(factory, new HibernateBatchingConfigurer().postProcessBeforeInitialization(factory,
+                "entityManagerFactory"));
+        Assert.assertEquals("50", factory.getJpaPropertyMap().get("hibernate.jdbc.batch_size"));
+        Assert.assertEquals("true", factory.getJpaPropertyMap().get("hibernate.order_inserts"));
+    }
+
+    /**
+     * The batch size given to the persistence unit is kept, and the other
+     * beans are left alone.
+     */
+    @Test
+    public void testPersistenceUnitSettingIsKept() {
+        LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
+        factory.getJpaPropertyMap().put("hibernate.jdbc.batch_size", "20");
+        HibernateBatchingConfigurer configurer = new HibernateBatchingConfigurer();
+        configurer.postProcessBeforeInitialization(factory, "entityManagerFactory");
+        Assert.assertEquals("20", factory.getJpaPropertyMap().get("hibernate.jdbc.batch_size"));
+
+        Settings.getConfiguration().setProperty("indexEvent.persist.jdbc.batch.size", 0);
+        factory = new LocalContainerEntityManagerFactoryBean();
+        configurer.postProcessBeforeInitialization(factory, "entityManagerFactory");
+        Assert.assertTrue(factory.getJpaPropertyMap().isEmpty());
+        String other = "other";
+        Assert.assertSame(other, configurer.postProcessBeforeInitialization(other, "other"));
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PendingTaskLedgerTest {
+
+    /**
+     * Answers the pending pids from a list, or fails.
+     */
+    private static class ListSource implements PendingTaskLedger.Source {
+        private List<String> pids = new ArrayList<String>();
+        private boolean failing = false;
+
+        @Override
+        public List<String> findPendingPids(int max) throws Exception {
+            if (failing) {
+                throw new Exception("the task table is not available");
+            }
+            return pids.subList(0, Math.min(max, pids.size()));
+        }
+    }
+
+    @Test
+    public void testSeededLedger() throws Exception {
+        ListSource source = new ListSource();
+        source.pids.addAll(Arrays.asList("pid-new", "pid-failed"));
+        PendingTaskLedger ledger = new PendingTaskLedger(source, 100);
+        //before the first rebuild every pid may be pending
+        Assert.assertTrue(ledger.mayBePending("pid-none"));
+
+        ledger.rebuild();
+        Assert.assertEquals(2, ledger.size());
+        Assert.assertTrue(ledger.mayBePending("pid-new"));
+        Assert.assertTrue(ledger.mayBePending("pid-failed"));
+        Assert.assertFalse(ledger.mayBePending("pid-none"));
+        ledger.add("pid-none");
+        Assert.assertTrue(ledger.mayBePending("pid-none"));
+    }
+
+    /**
+     * A pid added by the generator survives the next rebuild, even if the
+     * query didn't see its task, and is dropped by the one after.
+     */
+    @Test
+    public void testAddedPidsSurviveOneRebuild() throws Exception {
+        ListSource source = new ListSource();
+        PendingTaskLedger ledger = new PendingTaskLedger(source, 100);
+        ledger.rebuild();
+        ledger.add("pid-added");
+        ledger.rebuild();
+        Assert.assertTrue(ledger.mayBePending("pid-added"));
+        ledger.rebuild();
+        Assert.assertFalse(ledger.mayBePending("pid-added"));
+    }
+
+    /**
+     * A failed rebuild keeps the ledger and the pids added since the previous one.
+     */
+    @Test
+    public void testFailedRebuild() throws Exception {
+        ListSource source = new ListSource();
+        source.pids.add("pid-pending");
+        PendingTaskLedger ledger = new PendingTaskLedger(source, 100);
+        ledger.rebuild();
+        ledger.add("pid-added");
+        source.failing = true;
+        try {
+            ledger.rebuild();
+            Assert.fail("the rebuild should fail");
+        } catch (Exception e) {
+            //expected
+        }
+        Assert.assertTrue(ledger.mayBePending("pid-pending"));
+        Assert.assertTrue(ledger.mayBePending("pid-added"));
+        source.failing = false;
+        source.pids.clear();
+        ledger.rebuild();
+        Assert.assertFalse(ledger.mayBePending("pid-pending"));
+        Assert.assertTrue(ledger.mayBePending("pid-added"));
+    }
+
+    /**
+     * After a reseed every pid may be pending until a rebuild started after
+     * the delay, and a rebuild which started before the reseed doesn't seed
+     * the ledger.
+     */
+    @Test
+    public void testReseed() throws Exception {
+        ListSource source = new ListSource();
+        PendingTaskLedger ledger = new PendingTaskLedger(source, 100);
+        ledger.rebuild();
+        Assert.assertFalse(ledger.mayBePending("pid-moved"));
+        ledger.reseed(60000);
+        Assert.assertTrue(ledger.mayBePending("pid-moved"));
+        ledger.rebuild();
+        Assert.assertFalse(ledger.isSeeded());
+        ledger.reseed(0);
+        ledger.rebuild();
+        Assert.assertTrue(ledger.isSeeded());
+        Assert.assertFalse(ledger.mayBePending("pid-moved"));
+
+        //the pids move while the task table is read
+        final PendingTaskLedger[] moving = new PendingTaskLedger[1];
+        moving[0] = new PendingTaskLedger(new PendingTaskLedger.Source() {
+            @Override
+            public List<String> findPendingPids(int max) {
+                moving[0].reseed(0);
+                return new ArrayList<String>();
+            }
+        }, 100);
+        moving[0].rebuild();
+        Assert.assertFalse(moving[0].isSeeded());
+        Assert.assertTrue(moving[0].mayBePending("pid-moved"));
+    }
+
+    /**
+     * A reseed wakes the rebuilding thread once the delay is over.
+     */
+    @Test
+    public void testReseedWakesRebuild() throws Exception {
+        PendingTaskLedger ledger = new PendingTaskLedger(new ListSource(), 100);
+        ledger.start(3600000);
+        try {
+            for (int i = 0; i < 100 && !ledger.isSeeded(); i++) {
+                Thread.sleep(50);
+            }
+            Assert.assertTrue(ledger.isSeeded());
+            ledger.reseed(200);
+            Assert.assertFalse(ledger.isSeeded());
+            for (int i = 0; i < 100 && !ledger.isSeeded(); i++) {
+                Thread.sleep(50);
+            }
+            Assert.assertTrue(ledger.isSeeded());
+        } finally {
+            ledger.stop();
+        }
+    }
+
+    /**
+     * Above its capacity the ledger reports every pid as maybe pending.
+     */
+    @Test
+    public void testCapacity() throws Exception {
+        ListSource source = new ListSource();
+        for (int i = 0; i < 3000; i++) {
+            source.pids.add("urn:uuid:pending-" + i);
+        }
+        PendingTaskLedger ledger = new PendingTaskLedger(source, 5000);
+        ledger.rebuild();
+        Assert.assertEquals(3000, ledger.size());
+        for (int i = 0; i < 3000; i++) {
+            Assert.assertTrue(ledger.mayBePending("urn:uuid:pending-" + i));
+            Assert.assertFalse(ledger.mayBePending("urn:uuid:other-" + i));
+        }
+
+        ledger = new PendingTaskLedger(source, 2999);
+        ledger.rebuild();
+        Assert.assertTrue(ledger.mayBePending("urn:uuid:other-1"));
+        ledger = new PendingTaskLedger(new ListSource(), 2);
+        ledger.rebuild();
+        ledger.add("pid-1");
+        ledger.add("pid-2");
+        Assert.assertFalse(ledger.mayBePending("pid-3"));
+        ledger.add("pid-3");
+        Assert.assertTrue(ledger.mayBePending("pid-4"));
+    }
+}
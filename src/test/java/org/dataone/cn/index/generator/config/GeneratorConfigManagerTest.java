@@ -0,0 +1,78 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GeneratorConfigManagerTest {
+
+    @Test
+    public void testDefaults() {
+        GeneratorConfig config = new GeneratorConfigManager(new PropertiesConfiguration()).get();
+        Assert.assertTrue(config.isFilteringActive());
+        Assert.assertEquals(2592000000L, config.getMaxModifiedAge());
+        Assert.assertEquals(100, config.getSolrBatchSize());
+        Assert.assertEquals(100000, config.getCacheSize());
+        Assert.assertEquals(300000, config.getCacheTTL());
+        Assert.assertEquals(500, config.getDeleteChunkSize());
+    }
+
+    @Test
+    public void testChangeReplacesSnapshot() {
+        PropertiesConfiguration configuration = new PropertiesConfiguration();
+        GeneratorConfigManager manager = new GeneratorConfigManager(configuration);
+        final List<GeneratorConfig[]> changes = new ArrayList<GeneratorConfig[]>();
+        manager.addListener(new GeneratorConfigManager.Listener() {
+            @Override
+            public void configurationChanged(GeneratorConfig previous, GeneratorConfig current) {
+                changes.add(new GeneratorConfig[] { previous, current });
+            }
+        });
+        GeneratorConfig before = manager.get();
+        configuration.setProperty(GeneratorConfig.FILTERING_ACTIVE, false);
+        configuration.setProperty(GeneratorConfig.FILTERING_MAX_MODIFIED_AGE, "-1");
+        GeneratorConfig after = manager.get();
+        Assert.assertNotSame(before, after);
+        Assert.assertFalse(after.isFilteringActive());
+        Assert.assertEquals(-1, after.getMaxModifiedAge());
+        //the snapshot taken before the change keeps its values
+        Assert.assertTrue(before.isFilteringActive());
+        Assert.assertEquals(2, changes.size());
+        Assert.assertSame(before, changes.get(0)[0]);
+        Assert.assertSame(after, changes.get(1)[1]);
+
+        //setting the same value again doesn't replace the snapshot
+        configuration.setProperty(GeneratorConfig.FILTERING_ACTIVE, false);
+        Assert.assertSame(after, manager.refresh());
+        Assert.assertEquals(2, changes.size());
+
+        configuration.clearProperty(GeneratorConfig.FILTERING_ACTIVE);
+        Assert.assertTrue(manager.get().isFilteringActive());
+        Assert.assertEquals(3, changes.size());
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private static final long FAST = 1000000L;
+
+    @Test
+    public void testOpensOnFailureRate() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 10, 4, 0.5, 1000, 60000);
+        //not enough calls yet
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordSuccess(FAST);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.allowRequest());
+        Assert.assertEquals(1, breaker.getOpenCount());
+        Assert.assertEquals(1, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void testStaysClosedBelowFailureRate() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 10, 4, 0.5, 1000, 60000);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(breaker.allowRequest());
+            if (i % 4 == 0) {
+                breaker.recordFailure();
+            } else {
+                breaker.recordSuccess(FAST);
+            }
+        }
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testSlowCallsCountAsFailures() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 4, 4, 0.5, 10, 60000);
+        breaker.recordSuccess(FAST);
+        breaker.recordSuccess(FAST);
+        breaker.recordSuccess(50 * FAST);
+        breaker.recordSuccess(50 * FAST);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenProbe() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, 2, 0.5, 1000, 50);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        Assert.assertFalse(breaker.allowRequest());
+        Thread.sleep(80);
+        //only one probe is let through
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assert.assertFalse(breaker.allowRequest());
+        breaker.recordFailure();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertEquals(2, breaker.getOpenCount());
+
+        Thread.sleep(80);
+        Assert.assertTrue(breaker.allowRequest());
+        breaker.recordSuccess(FAST);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertTrue(breaker.allowRequest());
+        //the window starts over after closing
+        breaker.recordFailure();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
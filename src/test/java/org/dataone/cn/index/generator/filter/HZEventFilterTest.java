@@ -0,0 +1,345 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.filter;
+
+import static org.dataone.cn.index.generator.filter.SystemMetadataFixture.sysmeta;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.Replica;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the decisions of the HZEventFilter against a stubbed solr client.
+ */
+public class HZEventFilterTest {
+
+    private static final String NODE1 = "urn:node:mnTest1";
+    private static final String NODE2 = "urn:node:mnTest2";
+
+    private StubSolrClient solr;
+    private HZEventFilter filter;
+    private Date modified;
+    private Date verified;
+    private List<SystemMetadata> sysmetas;
+    private boolean[] expected;
+
+    @Before
+    public void setUp() throws Exception {
+        solr = new StubSolrClient();
+        filter = new HZEventFilter(solr, new SolrStateCache(1000, 60000));
+        modified = new Date(System.currentTimeMillis() - 60000);
+        verified = new Date(System.currentTimeMillis() - 120000);
+        sysmetas = new ArrayList<SystemMetadata>();
+        List<Boolean> results = new ArrayList<Boolean>();
+
+        //2.2 not in solr and not archived
+        sysmetas.add(sysmeta("pid-not-indexed", modified, 1, false));
+        results.add(false);
+        //2.1 not in solr and archived
+        sysmetas.add(sysmeta("pid archived", modified, 1, true));
+        results.add(true);
+        //3.1 solr has an older modification date
+        solr.addDocument("pid:older", new Date(modified.getTime() - 1000), 1L, null, null);
+        sysmetas.add(sysmeta("pid:older", modified, 2, false));
+        results.add(false);
+        //3.2 solr has a newer modification date
+        solr.addDocument("pid(newer)", new Date(modified.getTime() + 1000), 3L, null, null);
+        sysmetas.add(sysmeta("pid(newer)", modified, 2, false));
+        results.add(true);
+        //3.3.1.1 same date and serial version
+        solr.addDocument("pid-same-serial", modified, 4L, null, null);
+        sysmetas.add(sysmeta("pid-same-serial", modified, 4, false));
+        results.add(true);
+        //3.3.1.2 same date, solr has a smaller serial version
+        solr.addDocument("pid-smaller-serial", modified, 4L, null, null);
+        sysmetas.add(sysmeta("pid-smaller-serial", modified, 5, false));
+        results.add(false);
+        //3.3.2.1 same date, no serial version in solr and the same replicas
+        solr.addDocument("pid-same-replicas", modified, null, new String[] { NODE1, NODE2 },
+                new Date[] { verified, verified });
+        SystemMetadata sameReplicas = sysmeta("pid-same-replicas", modified, 6, false);
+        sameReplicas.setReplicaList(replicas(new String[] { NODE2, NODE1 }, verified));
+        sysmetas.add(sameReplicas);
+        results.add(true);
+        //3.3.2.2 same date, no serial version in solr and a different verified date
+        solr.addDocument("pid-other-replicas", modified, null, new String[] { NODE1, NODE2 },
+                new Date[] { verified, verified });
+        SystemMetadata otherReplicas = sysmeta("pid-other-replicas", modified, 6, false);
+        otherReplicas.setReplicaList(replicas(new String[] { NODE1, NODE2 }, new Date()));
+        sysmetas.add(otherReplicas);
+        results.add(false);
+        //too old to be indexed, solr is not asked
+        sysmetas.add(sysmeta("pid-too-old", new Date(0), 1, false));
+        results.add(true);
+
+        expected = new boolean[results.size()];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = results.get(i);
+        }
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        for (int i = 0; i < sysmetas.size(); i++) {
+            Assert.assertEquals(sysmetas.get(i).getIdentifier().getValue(), expected[i],
+                    filter.filter(sysmetas.get(i)));
+        }
+    }
+
+    @Test
+    public void testBatchFilterMatchesFilter() throws Exception {
+        boolean[] decisions = filter.filter(sysmetas);
+        Assert.assertEquals(expected.length, decisions.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(sysmetas.get(i).getIdentifier().getValue(), expected[i], decisions[i]);
+        }
+        //one request for all pids which passed the age check, and one for the replica fields
+        //of the documents without a serial version
+        Assert.assertEquals(2, solr.getRequestCount());
+    }
+
+    /**
+     * The digests of the system metadata get the same decisions, and a digest
+     * without a modification date is granted.
+     */
+    @Test
+    public void testDigestFilterMatchesFilter() throws Exception {
+        List<SystemMetadataDigest> digests = new ArrayList<SystemMetadataDigest>();
+        for (SystemMetadata sysmeta : sysmetas) {
+            digests.add(SystemMetadataDigest.of(sysmeta));
+        }
+        digests.add(new SystemMetadataDigest("pid-same-serial", SystemMetadataDigest.MISSING, 4, false,
+                ReplicaDigest.EMPTY));
+        boolean[] decisions = filter.filterDigests(digests, 100);
+        Assert.assertEquals(expected.length + 1, decisions.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(digests.get(i).getPid(), expected[i], decisions[i]);
+        }
+        Assert.assertFalse(decisions[expected.length]);
+    }
+
+    @Test
+    public void testRealTimeGetLookup() throws Exception {
+        filter = new HZEventFilter(solr, null);
+        filter.setLookup(new RealTimeGetStateLookup());
+        solr.addDocument("pid,with\\comma", modified, 4L, null, null);
+        sysmetas.add(sysmeta("pid,with\\comma", modified, 4, false));
+        boolean[] decisions = filter.filter(sysmetas);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(sysmetas.get(i).getIdentifier().getValue(), expected[i], decisions[i]);
+            Assert.assertEquals(expected[i], filter.filter(sysmetas.get(i)));
+        }
+        Assert.assertTrue(decisions[expected.length]);
+        Assert.assertTrue(filter.filter(sysmetas.get(expected.length)));
+        Assert.assertEquals(solr.getRequestCount(), solr.getRealTimeGetCount());
+    }
+
+    /**
+     * The select lookup finds the pids named like the operators of the query
+     * syntax, and the pids with a comma.
+     */
+    @Test
+    public void testSelectLookupOfOperatorAndCommaIds() throws Exception {
+        filter = new HZEventFilter(solr, null);
+        String[] pids = { "OR", "AND", "NOT", "pid,with,commas", "pid|with;all,separators~^!" };
+        for (String pid : pids) {
+            solr.addDocument(pid, modified, 4L, null, null);
+            sysmetas.add(sysmeta(pid, modified, 4, false));
+        }
+        boolean[] decisions = filter.filter(sysmetas);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(sysmetas.get(i).getIdentifier().getValue(), expected[i], decisions[i]);
+        }
+        for (int i = expected.length; i < sysmetas.size(); i++) {
+            Assert.assertTrue(sysmetas.get(i).getIdentifier().getValue(), decisions[i]);
+            Assert.assertTrue(filter.filter(sysmetas.get(i)));
+        }
+
+        Assert.assertEquals(',', SelectStateLookup.separatorOf(Arrays.asList("OR", "a|b")));
+        Assert.assertEquals('|', SelectStateLookup.separatorOf(Arrays.asList("OR", "a,b")));
+        Assert.assertEquals(0, SelectStateLookup.separatorOf(Arrays.asList("OR", pids[4])));
+    }
+
+    @Test
+    public void testIndexedPidFilter() throws Exception {
+        filter = new HZEventFilter(solr, null);
+        IndexedPidFilter pidFilter = new IndexedPidFilter(1000, 0.001, 3);
+        filter.setPidFilter(pidFilter);
+        //not ready before the scan
+        Assert.assertFalse(filter.filter(sysmetas.get(0)));
+        Assert.assertEquals(1, solr.getRequestCount());
+        Assert.assertEquals(6, pidFilter.build(solr));
+        int requests = solr.getRequestCount();
+
+        //not archived and never indexed: granted without asking solr
+        Assert.assertFalse(filter.filter(sysmetas.get(0)));
+        Assert.assertEquals(requests, solr.getRequestCount());
+        //archived objects are still looked up
+        Assert.assertTrue(filter.filter(sysmetas.get(1)));
+        Assert.assertEquals(++requests, solr.getRequestCount());
+        //indexed pids are looked up
+        for (int i = 2; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], filter.filter(sysmetas.get(i)));
+        }
+        boolean[] decisions = filter.filter(sysmetas);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], decisions[i]);
+        }
+
+        //once a task was generated for it, the pid is looked up again
+        filter.recordIndexTask(sysmetas.get(0), false);
+        requests = solr.getRequestCount();
+        Assert.assertFalse(filter.filter(sysmetas.get(0)));
+        Assert.assertEquals(requests + 1, solr.getRequestCount());
+    }
+
+    @Test
+    public void testStateStore() throws Exception {
+        File file = File.createTempFile("solr-state", ".store");
+        file.deleteOnExit();
+        SolrStateStore store = SolrStateStore.open(file, 1000, 60000);
+        Assert.assertEquals(6, new SolrStateExporter(solr, new ArrayList<SolrClient>(), 2, 2).export(store));
+        Assert.assertTrue(store.isComplete());
+        filter = new HZEventFilter(solr, null);
+        filter.setStateStore(store);
+        int requests = solr.getRequestCount();
+
+        //everything but the archived object which isn't in solr is answered by the store
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], filter.filter(sysmetas.get(i)));
+        }
+        Assert.assertEquals(++requests, solr.getRequestCount());
+        boolean[] decisions = filter.filter(sysmetas);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], decisions[i]);
+        }
+        Assert.assertEquals(++requests, solr.getRequestCount());
+
+        //once a task was generated for it, the pid is looked up again
+        filter.recordIndexTask(sysmetas.get(2), false);
+        Assert.assertFalse(filter.filter(sysmetas.get(2)));
+        Assert.assertEquals(++requests, solr.getRequestCount());
+        Assert.assertFalse(filter.filter(sysmetas.get(2)));
+        Assert.assertEquals(requests, solr.getRequestCount());
+        store.close();
+    }
+
+    @Test
+    public void testCachedState() throws Exception {
+        filter.filter(sysmetas);
+        //the states, then the replica fields of the documents without a serial version
+        Assert.assertEquals(2, solr.getRequestCount());
+        //the second time every pid is answered from the cache
+        boolean[] decisions = filter.filter(sysmetas);
+        Assert.assertEquals(2, solr.getRequestCount());
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], decisions[i]);
+        }
+        Assert.assertTrue(filter.getCache().getHitCount() > 0);
+
+        //once a task was generated, the same event has nothing new for the index
+        SystemMetadata notIndexed = sysmetas.get(0);
+        Assert.assertFalse(filter.filter(notIndexed));
+        filter.recordIndexTask(notIndexed, false);
+        Assert.assertTrue(filter.filter(notIndexed));
+        Assert.assertEquals(2, solr.getRequestCount());
+    }
+
+    /**
+     * The replica fields are only fetched for the documents without a serial
+     * version, and the cache only keeps the digest of the replicas.
+     */
+    @Test
+    public void testLazyReplicaFields() throws Exception {
+        List<SystemMetadata> withSerial = new ArrayList<SystemMetadata>();
+        for (SystemMetadata sysmeta : sysmetas) {
+            String pid = sysmeta.getIdentifier().getValue();
+            if (!pid.startsWith("pid-same-replicas") && !pid.startsWith("pid-other-replicas")) {
+                withSerial.add(sysmeta);
+            }
+        }
+        filter.filter(withSerial);
+        Assert.assertEquals(1, solr.getRequestCount());
+
+        //a single lookup of a document without a serial version takes a second request
+        SystemMetadata sameReplicas = sysmetas.get(6);
+        Assert.assertTrue(filter.filter(sameReplicas));
+        Assert.assertEquals(3, solr.getRequestCount());
+        SolrIndexState state = filter.getCache().get("pid-same-replicas");
+        Assert.assertEquals(ReplicaDigest.of(sameReplicas.getReplicaList()), state.getReplicaDigest());
+
+        //fetching every field up front gives the same decisions
+        filter = new HZEventFilter(solr, null);
+        filter.setLazyReplicas(false);
+        boolean[] decisions = filter.filter(sysmetas);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], decisions[i]);
+            Assert.assertEquals(expected[i], filter.filter(sysmetas.get(i)));
+        }
+    }
+
+    @Test
+    public void testOpenBreakerGrantsWithoutRequest() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", 4, 2, 0.5, 60000, 60000);
+        filter = new HZEventFilter(solr, null, breaker);
+        SystemMetadata archived = sysmetas.get(1);
+        Assert.assertTrue(filter.filter(archived));
+        solr.setFailing(true);
+        Assert.assertFalse(filter.filter(archived));
+        Assert.assertFalse(filter.filter(archived));
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        int requests = solr.getRequestCount();
+        //granted for safe without asking solr, even after it recovered
+        solr.setFailing(false);
+        Assert.assertFalse(filter.filter(archived));
+        boolean[] decisions = filter.filter(sysmetas.subList(1, 5));
+        for (boolean decision : decisions) {
+            Assert.assertFalse(decision);
+        }
+        Assert.assertEquals(requests, solr.getRequestCount());
+        Assert.assertTrue(breaker.getRejectedCount() >= 2);
+    }
+
+    private List<Replica> replicas(String[] nodes, Date verified) {
+        List<Replica> replicas = new ArrayList<Replica>();
+        for (String node : nodes) {
+            Replica replica = new Replica();
+            NodeReference nodeRef = new NodeReference();
+            nodeRef.setValue(node);
+            replica.setReplicaMemberNode(nodeRef);
+            replica.setReplicaVerified(verified);
+            replicas.add(replica);
+        }
+        return replicas;
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.filter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.Replica;
+
+/**
+ * The replica list comparison of the HZEventFilter before it compared
+ * ReplicaDigests: the solr values are turned into Replica objects, then
+ * every replica in the system metadata is looked up in the whole solr list.
+ * The logging is left out. Used as the reference of the ReplicaDigestTest and
+ * as the baseline of the ReplicaDigestBenchmark.
+ */
+public class LegacyReplicaComparison {
+
+    public static boolean compare(List<Replica> sysReplicas, Collection<Object> mns, Collection<Object> verifiedDates)
+            throws Exception {
+        return compareRaplicaList(sysReplicas, getReplicasInSolr(mns, verifiedDates));
+    }
+
+    private static boolean compareRaplicaList(List<Replica> sysReplicas, List<Replica> solrReplicas) {
+        boolean equal = true;
+        if (sysReplicas != null) {
+            if (sysReplicas.size() != solrReplicas.size()) {
+                equal = false;
+            } else {
+                outerloop: for (Replica sysReplica : sysReplicas) {
+                    boolean found = false;
+                    boolean haveDifferentVerificationDate = false;
+                    NodeReference sysNode = sysReplica.getReplicaMemberNode();
+                    //the debug logging dereferenced the node
+                    sysNode.getValue();
+                    Date sysConfirmDate = sysReplica.getReplicaVerified();
+                    for (Replica solrReplica : solrReplicas) {
+                        NodeReference solrNode = solrReplica.getReplicaMemberNode();
+                        Date solrConfirmDate = solrReplica.getReplicaVerified();
+                        if (sysNode.equals(solrNode)) {
+                            found = true;
+                            if (sysConfirmDate.getTime() != solrConfirmDate.getTime()) {
+                                haveDifferentVerificationDate = true;
+                            }
+                        }
+                        if (found && haveDifferentVerificationDate) {
+                            equal = false;
+                            break outerloop;
+                        }
+                    }
+                    if (!found) {
+                        equal = false;
+                        break;
+                    }
+                }
+            }
+        } else if (solrReplicas.isEmpty()) {
+            equal = true;
+        } else {
+            equal = false;
+        }
+        return equal;
+    }
+
+    private static List<Replica> getReplicasInSolr(Collection<Object> mns, Collection<Object> verifiedDates)
+            throws Exception {
+        List<Replica> replicas = new ArrayList<Replica>();
+        if ((mns == null && verifiedDates != null) || (mns != null && verifiedDates == null)) {
+            throw new Exception("The number of the repicat nodes doesn't match the number of the verified date.");
+        } else if (mns != null && verifiedDates != null) {
+            if (mns.size() != verifiedDates.size()) {
+                throw new Exception("The number of the repicat nodes doesn't match the number of the verified date.");
+            }
+            Object[] mnsArray = mns.toArray();
+            Object[] verifiedDatesArray = verifiedDates.toArray();
+            for (int i = 0; i < mnsArray.length; i++) {
+                String mnStr = (String) mnsArray[i];
+                Date date = (Date) verifiedDatesArray[i];
+                if (mnStr == null || mnStr.trim().equals("") || date == null) {
+                    throw new Exception("The member node id or the verified date is null or blank.");
+                }
+                NodeReference mn = new NodeReference();
+                mn.setValue(mnStr);
+                Replica replica = new Replica();
+                replica.setReplicaMemberNode(mn);
+                replica.setReplicaVerified(date);
+                replicas.add(replica);
+            }
+        }
+        return replicas;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PidBloomFilterTest {
+
+    @Test
+    public void testNoFalseNegatives() {
+        PidBloomFilter filter = new PidBloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.put("urn:uuid:bloom-" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(filter.mightContain("urn:uuid:bloom-" + i));
+        }
+        Assert.assertEquals(10000, filter.getInsertionCount());
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        PidBloomFilter filter = new PidBloomFilter(100000, 0.01);
+        for (int i = 0; i < 100000; i++) {
+            filter.put("doi:10.5063/F1" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain("doi:10.5063/G1" + i)) {
+                falsePositives++;
+            }
+        }
+        //1% expected, allow some slack
+        Assert.assertTrue("false positives: " + falsePositives, falsePositives < 1500);
+        //about 9.6 bits per pid at 1%
+        Assert.assertTrue(filter.getMemorySize() < 100000 * 10 / 8 + 8);
+        Assert.assertEquals(7, filter.getHashCount());
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.Replica;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the ReplicaDigest against the LegacyReplicaComparison. The digest
+ * compares the replicas as a multiset, where the legacy comparison looked up
+ * every replica of the system metadata in the solr list, so the two differ
+ * on the lists listing a node twice.
+ */
+public class ReplicaDigestTest {
+
+    private static final String MN1 = "urn:node:mn1";
+    private static final String MN2 = "urn:node:mn2";
+    private static final long BASE = 1500000000000L;
+
+    private Random random;
+
+    @Before
+    public void setUp() {
+        random = new Random(20170518);
+    }
+
+    @Test
+    public void testEmptyAndInvalidLists() throws Exception {
+        Assert.assertEquals(ReplicaDigest.EMPTY, ReplicaDigest.of(null));
+        Assert.assertEquals(ReplicaDigest.EMPTY, ReplicaDigest.of(new ArrayList<Replica>()));
+        Assert.assertEquals(ReplicaDigest.EMPTY, ReplicaDigest.of(null, null));
+        Assert.assertEquals(ReplicaDigest.EMPTY, ReplicaDigest.of(new ArrayList<Object>(), new ArrayList<Object>()));
+        Assert.assertTrue(LegacyReplicaComparison.compare(null, null, null));
+
+        List<Object> mns = new ArrayList<Object>();
+        mns.add(MN1);
+        Assert.assertEquals(ReplicaDigest.INVALID, ReplicaDigest.of(mns, new ArrayList<Object>()));
+        Assert.assertEquals(ReplicaDigest.INVALID, ReplicaDigest.of(mns, Arrays.<Object>asList("not a date")));
+        Assert.assertEquals(ReplicaDigest.INVALID, ReplicaDigest.of(Arrays.<Object>asList(" "),
+                Arrays.<Object>asList(new Date(BASE))));
+        Assert.assertFalse(ReplicaDigest.same(ReplicaDigest.INVALID, ReplicaDigest.INVALID));
+        Replica noDate = replica(MN1, new Date(BASE));
+        noDate.setReplicaVerified(null);
+        Assert.assertEquals(ReplicaDigest.INVALID, ReplicaDigest.of(Arrays.asList(noDate)));
+    }
+
+    /**
+     * The order of the replicas doesn't matter, as for the legacy comparison.
+     */
+    @Test
+    public void testOrder() throws Exception {
+        List<Replica> sysReplicas = Arrays.asList(replica(MN1, new Date(BASE)), replica(MN2, new Date(BASE + 1)));
+        List<Object> mns = Arrays.<Object>asList(MN2, MN1);
+        List<Object> dates = Arrays.<Object>asList(new Date(BASE + 1), new Date(BASE));
+        Assert.assertTrue(LegacyReplicaComparison.compare(sysReplicas, mns, dates));
+        Assert.assertTrue(ReplicaDigest.same(ReplicaDigest.of(sysReplicas), ReplicaDigest.of(mns, dates)));
+        //the dates go with their nodes
+        dates = Arrays.<Object>asList(new Date(BASE), new Date(BASE + 1));
+        Assert.assertFalse(LegacyReplicaComparison.compare(sysReplicas, mns, dates));
+        Assert.assertFalse(ReplicaDigest.same(ReplicaDigest.of(sysReplicas), ReplicaDigest.of(mns, dates)));
+    }
+
+    /**
+     * The lists listing a node twice: the digest grants the events the legacy
+     * comparison missed, and filters the ones of a list solr holds exactly.
+     */
+    @Test
+    public void testDuplicateNodes() throws Exception {
+        Date date = new Date(BASE);
+        Date other = new Date(BASE + 1);
+        //the system metadata lists a node twice and solr has another node instead
+        List<Replica> twice = Arrays.asList(replica(MN1, date), replica(MN1, date));
+        List<Object> mns = Arrays.<Object>asList(MN1, MN2);
+        List<Object> dates = Arrays.<Object>asList(date, date);
+        Assert.assertTrue(LegacyReplicaComparison.compare(twice, mns, dates));
+        Assert.assertFalse(ReplicaDigest.same(ReplicaDigest.of(twice), ReplicaDigest.of(mns, dates)));
+        //solr lists a node twice and the system metadata has another node instead
+        List<Replica> distinct = Arrays.asList(replica(MN1, date), replica(MN2, date));
+        mns = Arrays.<Object>asList(MN1, MN1);
+        Assert.assertFalse(LegacyReplicaComparison.compare(distinct, mns, dates));
+        Assert.assertFalse(ReplicaDigest.same(ReplicaDigest.of(distinct), ReplicaDigest.of(mns, dates)));
+        //the same node twice at the same date on both sides
+        Assert.assertTrue(LegacyReplicaComparison.compare(twice, mns, dates));
+        Assert.assertTrue(ReplicaDigest.same(ReplicaDigest.of(twice), ReplicaDigest.of(mns, dates)));
+        //a node twice at two dates on both sides: the legacy comparison saw a different date
+        List<Replica> twoDates = Arrays.asList(replica(MN1, date), replica(MN1, other));
+        dates = Arrays.<Object>asList(other, date);
+        Assert.assertFalse(LegacyReplicaComparison.compare(twoDates, mns, dates));
+        Assert.assertTrue(ReplicaDigest.same(ReplicaDigest.of(twoDates), ReplicaDigest.of(mns, dates)));
+        //a node once more on one side
+        mns = Arrays.<Object>asList(MN1, MN1, MN1);
+        dates = Arrays.<Object>asList(date, other, other);
+        Assert.assertFalse(LegacyReplicaComparison.compare(twoDates, mns, dates));
+        Assert.assertFalse(ReplicaDigest.same(ReplicaDigest.of(twoDates), ReplicaDigest.of(mns, dates)));
+    }
+
+    /**
+     * On random lists the digest only filters where the legacy comparison
+     * did, apart from the lists listing a node at two dates, and never grants
+     * an unchanged list.
+     */
+    @Test
+    public void testAgreesWithLegacyComparison() throws Exception {
+        for (int round = 0; round < 5000; round++) {
+            int size = random.nextInt(4) == 0 ? 9 + random.nextInt(40) : random.nextInt(9);
+            List<Replica> sysReplicas = new ArrayList<Replica>(size);
+            List<Object> mns = new ArrayList<Object>(size);
+            List<Object> dates = new ArrayList<Object>(size);
+            for (int i = 0; i < size; i++) {
+                String node = "urn:node:mn" + i;
+                sysReplicas.add(replica(node, new Date(BASE + i)));
+                mns.add(node);
+                dates.add(new Date(BASE + i));
+            }
+            boolean mutated = random.nextBoolean();
+            if (mutated) {
+                mutate(sysReplicas, mns, dates);
+            }
+            shuffleTogether(mns, dates);
+            boolean same = ReplicaDigest.same(ReplicaDigest.of(sysReplicas), ReplicaDigest.of(mns, dates));
+            if (same && !hasNodeAtTwoDates(mns, dates)) {
+                Assert.assertTrue("round " + round, LegacyReplicaComparison.compare(sysReplicas, mns, dates));
+            }
+            if (!mutated) {
+                Assert.assertTrue("round " + round, same);
+                Assert.assertTrue("round " + round, LegacyReplicaComparison.compare(sysReplicas, mns, dates));
+            }
+        }
+    }
+
+    /**
+     * Apply one of the differences the comparison has to detect.
+     */
+    private void mutate(List<Replica> sysReplicas, List<Object> mns, List<Object> dates) {
+        int size = mns.size();
+        switch (random.nextInt(5)) {
+        case 0:
+            //a different verified date
+            if (size > 0) {
+                dates.set(random.nextInt(size), new Date(BASE - 1));
+            }
+            break;
+        case 1:
+            //a node which isn't in solr
+            if (size > 0) {
+                mns.set(random.nextInt(size), "urn:node:other");
+            }
+            break;
+        case 2:
+            //a node twice in solr, with the same or a different date
+            if (size > 1) {
+                int from = random.nextInt(size);
+                int to = (from + 1) % size;
+                mns.set(to, mns.get(from));
+                dates.set(to, random.nextBoolean() ? dates.get(from) : new Date(BASE - 2));
+            }
+            break;
+        case 3:
+            //an extra replica in solr
+            mns.add("urn:node:extra");
+            dates.add(new Date(BASE));
+            break;
+        default:
+            //a node twice in the system metadata
+            if (size > 1) {
+                sysReplicas.set(1, replica(sysReplicas.get(0).getReplicaMemberNode().getValue(),
+                        sysReplicas.get(0).getReplicaVerified()));
+            }
+        }
+    }
+
+    private static boolean hasNodeAtTwoDates(List<Object> mns, List<Object> dates) {
+        Map<Object, Object> seen = new HashMap<Object, Object>();
+        for (int i = 0; i < mns.size(); i++) {
+            Object date = seen.put(mns.get(i), dates.get(i));
+            if (date != null && !date.equals(dates.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void shuffleTogether(List<Object> mns, List<Object> dates) {
+        long seed = random.nextLong();
+        Collections.shuffle(mns, new Random(seed));
+        Collections.shuffle(dates, new Random(seed));
+    }
+
+    private static Replica replica(String node, Date verified) {
+        NodeReference nodeRef = new NodeReference();
+        nodeRef.setValue(node);
+        Replica replica = new Replica();
+        replica.setReplicaMemberNode(nodeRef);
+        replica.setReplicaVerified(verified);
+        return replica;
+    }
+}
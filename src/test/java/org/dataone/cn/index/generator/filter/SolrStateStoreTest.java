@@ -0,0 +1,153 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+package org.dataone.cn.index.generator.filter;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SolrStateStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("solr-state", ".store");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        SolrStateStore store = SolrStateStore.open(file, 100, 60000);
+        Date modified = new Date(1500000000000L);
+        store.putExported("pid-1", state("pid-1", modified, 3));
+        //not answered before the export is complete
+        Assert.assertNull(store.get("pid-1"));
+        store.markComplete();
+
+        SolrIndexState state = store.get("pid-1");
+        Assert.assertEquals("pid-1", state.getId());
+        Assert.assertEquals(modified, state.getDateModified());
+        Assert.assertEquals(BigInteger.valueOf(3), state.getSerialVersion());
+        Assert.assertEquals(replicaDigest(), state.getReplicaDigest());
+        Assert.assertNull(store.get("pid-2").getId());
+        Assert.assertEquals(1, store.size());
+
+        //a pending pid isn't answered until solr was asked again
+        store.markPending("pid-1");
+        store.putExported("pid-1", state("pid-1", modified, 3));
+        Assert.assertNull(store.get("pid-1"));
+        store.put("pid-1", state("pid-1", new Date(modified.getTime() + 1), 4));
+        Assert.assertEquals(BigInteger.valueOf(4), store.get("pid-1").getSerialVersion());
+        store.markPending("pid-2");
+        Assert.assertNull(store.get("pid-2"));
+        store.put("pid-2", SolrIndexState.absent());
+        Assert.assertNull(store.get("pid-2").getId());
+        store.close();
+    }
+
+    @Test
+    public void testReuseAfterCleanClose() throws Exception {
+        SolrStateStore store = SolrStateStore.open(file, 100, 60000);
+        for (int i = 0; i < 50; i++) {
+            store.putExported("pid-" + i, state("pid-" + i, new Date(1500000000000L + i), i));
+        }
+        store.markComplete();
+        store.close();
+
+        store = SolrStateStore.open(file, 100, 60000);
+        Assert.assertTrue(store.isComplete());
+        Assert.assertEquals(50, store.size());
+        Assert.assertEquals(BigInteger.valueOf(7), store.get("pid-7").getSerialVersion());
+        //closed without a clean shutdown marker: the next start exports again
+        store.put("pid-50", state("pid-50", new Date(), 1));
+        store = SolrStateStore.open(file, 100, 60000);
+        Assert.assertFalse(store.isComplete());
+        Assert.assertEquals(0, store.size());
+        store.close();
+
+        //an incomplete export isn't reused either
+        store = SolrStateStore.open(file, 100, 60000);
+        Assert.assertFalse(store.isComplete());
+        store.close();
+
+        //a snapshot too old is exported again
+        store = SolrStateStore.open(file, 100, 60000);
+        store.markComplete();
+        store.close();
+        Thread.sleep(5);
+        store = SolrStateStore.open(file, 100, 1);
+        Assert.assertFalse(store.isComplete());
+        store.close();
+    }
+
+    @Test
+    public void testFullStore() throws Exception {
+        SolrStateStore store = SolrStateStore.open(file, 10, 60000);
+        long capacity = store.getCapacity();
+        for (int i = 0; i < capacity; i++) {
+            store.putExported("pid-" + i, state("pid-" + i, new Date(), 1));
+        }
+        store.markComplete();
+        Assert.assertTrue(store.size() < capacity);
+        //a pid which couldn't be stored must not look absent
+        Assert.assertNull(store.get("pid-" + (capacity - 1)));
+        Assert.assertNull(store.get("never-exported"));
+        Assert.assertEquals("pid-0", store.get("pid-0").getId());
+        store.close();
+    }
+
+    @Test
+    public void testSerialVersionTooLarge() throws Exception {
+        SolrStateStore store = SolrStateStore.open(file, 10, 60000);
+        BigInteger huge = BigInteger.ONE.shiftLeft(70);
+        store.putExported("pid-1", new SolrIndexState("pid-1", new Date(), huge, ReplicaDigest.EMPTY));
+        store.markComplete();
+        //stored without a modification date, so the filter grants its events
+        Assert.assertNull(store.get("pid-1").getDateModified());
+        store.close();
+    }
+
+    private SolrIndexState state(String id, Date modified, long serial) {
+        return new SolrIndexState(id, modified, BigInteger.valueOf(serial), replicaDigest());
+    }
+
+    private long replicaDigest() {
+        List<Object> mns = new ArrayList<Object>();
+        List<Object> dates = new ArrayList<Object>();
+        mns.add("urn:node:mn1");
+        dates.add(new Date(1400000000000L));
+        return ReplicaDigest.of(mns, dates);
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.filter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * An in-memory SolrClient answering the id queries, the real time get
+ * requests and the cursor scans of the HZEventFilter from a map of documents,
+ * so the filter can be tested without a solr server.
+ */
+public class StubSolrClient extends SolrClient {
+
+    private final Map<String, SolrDocument> documents = new HashMap<String, SolrDocument>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger realTimeGets = new AtomicInteger();
+    private volatile boolean failing = false;
+
+    /**
+     * Add a document with the fields the filter looks at.
+     */
+    public void addDocument(String id, Date dateModified, Long serialVersion, String[] replicaMNs,
+            Date[] replicaVerifiedDates) {
+        SolrDocument doc = new SolrDocument();
+        doc.addField("id", id);
+        doc.addField("dateModified", dateModified);
+        if (serialVersion != null) {
+            doc.addField("serialVersion", java.math.BigInteger.valueOf(serialVersion));
+        }
+        if (replicaMNs != null) {
+            for (int i = 0; i < replicaMNs.length; i++) {
+                doc.addField("replicaMN", replicaMNs[i]);
+                doc.addField("replicaVerifiedDate", replicaVerifiedDates[i]);
+            }
+        }
+        documents.put(id, doc);
+    }
+
+    /**
+     * @return the number of requests sent to this client
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests sent to the real time get handler
+     */
+    public int getRealTimeGetCount() {
+        return realTimeGets.get();
+    }
+
+    /**
+     * @param failing true to make the requests fail as if the server was down
+     */
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    @Override
+    public NamedList<Object> request(SolrRequest request, String collection) throws IOException {
+        requests.incrementAndGet();
+        if (failing) {
+            throw new IOException("StubSolrClient - the solr server is down");
+        }
+        SolrParams params = request.getParams();
+        if ("*:*".equals(params.get("q"))) {
+            return scan(params);
+        }
+        SolrDocumentList results = new SolrDocumentList();
+        List<String> ids = "/get".equals(request.getPath()) ? realTimeGetIds(params) : requestedIds(params);
+        if ("/get".equals(request.getPath())) {
+            realTimeGets.incrementAndGet();
+        }
+        for (String id : ids) {
+            SolrDocument doc = documents.get(id);
+            if (doc != null) {
+                results.add(project(doc, params.get("fl")));
+            }
+        }
+        results.setNumFound(results.size());
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("response", results);
+        return response;
+    }
+
+    /**
+     * Keep only the requested fields of a document, like solr does.
+     */
+    private SolrDocument project(SolrDocument doc, String fl) {
+        if (fl == null) {
+            return doc;
+        }
+        SolrDocument projected = new SolrDocument();
+        for (String field : fl.split(",")) {
+            Collection<Object> values = doc.getFieldValues(field);
+            if (values != null) {
+                for (Object value : values) {
+                    projected.addField(field, value);
+                }
+            }
+        }
+        return projected;
+    }
+
+    /**
+     * The ids of a {!term f=id}id query or of a {!terms f=id}id1,id2 query,
+     * whose separator may be set with a separator='c' local param.
+     */
+    private List<String> requestedIds(SolrParams params) {
+        List<String> ids = new ArrayList<String>();
+        String q = params.get("q");
+        if (q != null) {
+            int end = q.indexOf('}');
+            String localParams = q.substring(0, end);
+            String value = q.substring(end + 1);
+            if (localParams.startsWith("{!term ")) {
+                ids.add(value);
+            } else {
+                int at = localParams.indexOf("separator='");
+                String separator = at < 0 ? "," : localParams.substring(at + "separator='".length(),
+                        at + "separator='".length() + 1);
+                ids.addAll(Arrays.asList(value.split(Pattern.quote(separator), -1)));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Answer a page of a cursor scan over all documents sorted by id. The
+     * cursor mark is the last id of the previous page. Without a cursor mark
+     * the page starts at the start offset. An id range filter query of the
+     * form id:[lower TO upper} restricts the scanned documents.
+     */
+    private NamedList<Object> scan(SolrParams params) {
+        String cursorMark = params.get("cursorMark");
+        int rows = params.getInt("rows", 10);
+        int start = params.getInt("start", 0);
+        List<String> ids = new ArrayList<String>();
+        for (String id : documents.keySet()) {
+            if (inRange(id, params.get("fq"))) {
+                ids.add(id);
+            }
+        }
+        Collections.sort(ids);
+        SolrDocumentList results = new SolrDocumentList();
+        String next = cursorMark;
+        for (int i = 0; i < ids.size(); i++) {
+            String id = ids.get(i);
+            if (results.size() == rows) {
+                break;
+            }
+            if (cursorMark == null ? i >= start : "*".equals(cursorMark) || id.compareTo(cursorMark) > 0) {
+                results.add(documents.get(id));
+                next = id;
+            }
+        }
+        results.setNumFound(ids.size());
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("response", results);
+        response.add("nextCursorMark", next);
+        return response;
+    }
+
+    private boolean inRange(String id, String filter) {
+        if (filter == null) {
+            return true;
+        }
+        String range = filter.substring("id:[".length(), filter.length() - 1);
+        int to = range.indexOf(" TO ");
+        String lower = range.substring(0, to);
+        String upper = range.substring(to + " TO ".length());
+        return ("*".equals(lower) || id.compareTo(unescape(lower)) >= 0)
+                && ("*".equals(upper) || id.compareTo(unescape(upper)) < 0);
+    }
+
+    private List<String> realTimeGetIds(SolrParams params) {
+        List<String> ids = new ArrayList<String>();
+        String list = params.get("ids");
+        StringBuilder id = new StringBuilder();
+        for (int i = 0; i < list.length(); i++) {
+            char c = list.charAt(i);
+            if (c == '\\' && i + 1 < list.length()) {
+                id.append(list.charAt(++i));
+            } else if (c == ',') {
+                ids.add(id.toString());
+                id.setLength(0);
+            } else {
+                id.append(c);
+            }
+        }
+        ids.add(id.toString());
+        return ids;
+    }
+
+    private String unescape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    public void shutdown() {
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.filter;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+
+/**
+ * Builds the system metadata of the filter and reconciler tests, with only
+ * the fields their decisions look at.
+ */
+public class SystemMetadataFixture {
+
+    private SystemMetadataFixture() {
+    }
+
+    public static SystemMetadata sysmeta(String id, Date modified, long serialVersion, boolean archived) {
+        SystemMetadata sysmeta = new SystemMetadata();
+        Identifier pid = new Identifier();
+        pid.setValue(id);
+        sysmeta.setIdentifier(pid);
+        sysmeta.setDateSysMetadataModified(modified);
+        sysmeta.setSerialVersion(BigInteger.valueOf(serialVersion));
+        sysmeta.setArchived(archived);
+        return sysmeta;
+    }
+}
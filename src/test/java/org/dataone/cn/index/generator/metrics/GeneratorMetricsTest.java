@@ -0,0 +1,97 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.metrics;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.SortedMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.dataone.configuration.Settings;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GeneratorMetricsTest {
+
+    private GeneratorMetrics metrics = new GeneratorMetrics();
+
+    @After
+    public void tearDown() {
+        metrics.stop();
+        Settings.getConfiguration().clearProperty("indexEvent.metrics.http.port");
+    }
+
+    @Test
+    public void testSnapshot() {
+        metrics.record(GeneratorMetrics.SOLR_QUERY, System.nanoTime() - 2000000);
+        metrics.increment("filter.branch.2.2");
+        metrics.increment("filter.branch.2.2");
+        metrics.mark(GeneratorMetrics.EVENTS, 5);
+        metrics.register("pipeline.size", new Gauge() {
+            @Override
+            public Number getValue() {
+                return 7;
+            }
+        });
+        SortedMap<String, Number> snapshot = metrics.snapshot();
+        Assert.assertEquals(1L, snapshot.get("latency.solrQuery.count"));
+        Assert.assertTrue(snapshot.get("latency.solrQuery.max.ms").doubleValue() >= 2.0);
+        Assert.assertEquals(2L, snapshot.get("counter.filter.branch.2.2"));
+        Assert.assertEquals(2, metrics.getCount("filter.branch.2.2"));
+        Assert.assertEquals(0, metrics.getCount("filter.branch.2.1"));
+        Assert.assertEquals(5L, snapshot.get("throughput.events.count"));
+        Assert.assertEquals(7, snapshot.get("gauge.pipeline.size"));
+        metrics.unregister("pipeline.size");
+        Assert.assertNull(metrics.snapshot().get("gauge.pipeline.size"));
+    }
+
+    @Test
+    public void testJmxAndHttp() throws Exception {
+        Settings.getConfiguration().setProperty("indexEvent.metrics.http.port", 19095);
+        metrics.increment("filter.branch.3.1");
+        metrics.start();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.dataone.cn.index.generator:type=GeneratorMetrics");
+        Assert.assertEquals(1L, server.getAttribute(name, "counter.filter.branch.3.1"));
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:19095/metrics")
+                .openConnection();
+        Assert.assertEquals(200, connection.getResponseCode());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+        boolean found = false;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            found |= line.equals("counter.filter.branch.3.1 1");
+        }
+        reader.close();
+        Assert.assertTrue(found);
+        metrics.stop();
+        Assert.assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dataone.cn.index.generator.IndexTaskGenerator;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BulkReconcilerTest {
+
+    private final List<IndexEvent> emitted = Collections.synchronizedList(new ArrayList<IndexEvent>());
+
+    private final EventCoalescer.Sink sink = new EventCoalescer.Sink() {
+        @Override
+        public void emit(IndexEvent event) {
+            emitted.add(event);
+        }
+    };
+
+    @Test
+    public void testGrantsInBlocks() throws Exception {
+        EvenSerialGenerator generator = new EvenSerialGenerator();
+        BulkReconciler reconciler = new BulkReconciler(generator, 4, 60000, 100, sink);
+        reconciler.start();
+        reconciler.add(event(IndexEvent.Type.UPDATE, "pid-1", 2));
+        reconciler.add(event(IndexEvent.Type.UPDATE, "pid-2", 3));
+        reconciler.add(event(IndexEvent.Type.REMOVE, "pid-3", 3));
+        //replaces the pending event of pid-1
+        reconciler.add(event(IndexEvent.Type.UPDATE, "pid-1", 4));
+        Assert.assertFalse(reconciler.isIdle());
+        Assert.assertEquals(3, reconciler.size());
+        reconciler.add(event(IndexEvent.Type.ADD, "pid-4", 1));
+        //the block is full and reconciled in one call
+        waitFor(2);
+        Assert.assertEquals(1, generator.calls);
+        Assert.assertEquals(100, generator.batchSize);
+        Assert.assertEquals("pid-1", emitted.get(0).getPid().getValue());
+        Assert.assertEquals(BigInteger.valueOf(4), emitted.get(0).getSysmeta().getSerialVersion());
+        Assert.assertTrue(emitted.get(0).isReconciled());
+        Assert.assertEquals(IndexEvent.Type.REMOVE, emitted.get(1).getType());
+        Assert.assertFalse(emitted.get(1).isReconciled());
+        reconciler.add(event(IndexEvent.Type.ADD, "pid-5", 2));
+        reconciler.shutdown(10000);
+        Assert.assertTrue(reconciler.isIdle());
+        Assert.assertEquals(3, emitted.size());
+        Assert.assertEquals("pid-5", emitted.get(2).getPid().getValue());
+    }
+
+    @Test
+    public void testFlushesBlockAfterWait() throws Exception {
+        BulkReconciler reconciler = new BulkReconciler(new EvenSerialGenerator(), 1000, 50, 100, sink);
+        reconciler.start();
+        reconciler.add(event(IndexEvent.Type.UPDATE, "pid-1", 2));
+        waitFor(1);
+        Assert.assertEquals(1, emitted.size());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!reconciler.isIdle() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(reconciler.isIdle());
+        reconciler.shutdown(10000);
+    }
+
+    private void waitFor(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (emitted.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, emitted.size());
+    }
+
+    private IndexEvent event(IndexEvent.Type type, String pidValue, long serialVersion) {
+        Identifier pid = new Identifier();
+        pid.setValue(pidValue);
+        SystemMetadata sysmeta = new SystemMetadata();
+        sysmeta.setIdentifier(pid);
+        sysmeta.setSerialVersion(BigInteger.valueOf(serialVersion));
+        return new IndexEvent(type, pid, sysmeta);
+    }
+
+    /**
+     * Grants the system metadata with an even serial version.
+     */
+    private static class EvenSerialGenerator extends IndexTaskGenerator {
+        private volatile int calls = 0;
+        private volatile int batchSize = 0;
+
+        @Override
+        public boolean[] needsIndexing(List<SystemMetadata> smds, int solrBatchSize) {
+            calls++;
+            batchSize = solrBatchSize;
+            boolean[] needsIndexing = new boolean[smds.size()];
+            for (int i = 0; i < needsIndexing.length; i++) {
+                needsIndexing[i] = smds.get(i).getSerialVersion().longValue() % 2 == 0;
+            }
+            return needsIndexing;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EventCoalescerTest {
+
+    private final List<IndexEvent> emitted = Collections.synchronizedList(new ArrayList<IndexEvent>());
+
+    private final EventCoalescer.Sink sink = new EventCoalescer.Sink() {
+        @Override
+        public void emit(IndexEvent event) {
+            emitted.add(event);
+        }
+    };
+
+    @Test
+    public void testKeepsHighestSerialVersion() throws Exception {
+        EventCoalescer coalescer = new EventCoalescer(60000, 100, sink);
+        coalescer.start();
+        Assert.assertTrue(coalescer.add(event(IndexEvent.Type.UPDATE, "pid-1", 3)));
+        Assert.assertTrue(coalescer.add(event(IndexEvent.Type.UPDATE, "pid-2", 1)));
+        Assert.assertTrue(coalescer.add(event(IndexEvent.Type.UPDATE, "pid-1", 5)));
+        //an older serial version arriving late doesn't replace the newer one
+        Assert.assertTrue(coalescer.add(event(IndexEvent.Type.UPDATE, "pid-1", 4)));
+        Assert.assertEquals(2, coalescer.size());
+        Assert.assertEquals(2, coalescer.getCoalescedCount());
+        coalescer.shutdown();
+        Assert.assertEquals(2, emitted.size());
+        Assert.assertEquals("pid-1", emitted.get(0).getPid().getValue());
+        Assert.assertEquals(BigInteger.valueOf(5), emitted.get(0).getSysmeta().getSerialVersion());
+        Assert.assertEquals("pid-2", emitted.get(1).getPid().getValue());
+    }
+
+    @Test
+    public void testRemoveReplacesPendingUpdate() throws Exception {
+        EventCoalescer coalescer = new EventCoalescer(60000, 100, sink);
+        coalescer.start();
+        coalescer.add(event(IndexEvent.Type.UPDATE, "pid-1", 7));
+        coalescer.add(event(IndexEvent.Type.REMOVE, "pid-1", 7));
+        coalescer.shutdown();
+        Assert.assertEquals(1, emitted.size());
+        Assert.assertEquals(IndexEvent.Type.REMOVE, emitted.get(0).getType());
+    }
+
+    @Test
+    public void testWindowClosesWhenFull() throws Exception {
+        EventCoalescer coalescer = new EventCoalescer(60000, 2, sink);
+        coalescer.start();
+        coalescer.add(event(IndexEvent.Type.ADD, "pid-1", 1));
+        coalescer.add(event(IndexEvent.Type.ADD, "pid-2", 1));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (emitted.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, emitted.size());
+        coalescer.shutdown();
+    }
+
+    /**
+     * While the events of a closed window are emitted, the next window may
+     * fill up. An event of a pid still waiting to be emitted then waits for
+     * the emission rather than being processed directly ahead of it.
+     */
+    @Test
+    public void testFullWindowWaitsForFlush() throws Exception {
+        final CountDownLatch emitting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final EventCoalescer coalescer = new EventCoalescer(60000, 2, new EventCoalescer.Sink() {
+            @Override
+            public void emit(IndexEvent event) throws InterruptedException {
+                emitting.countDown();
+                release.await();
+                emitted.add(event);
+            }
+        });
+        coalescer.start();
+        final IndexEvent first = event(IndexEvent.Type.UPDATE, "pid-1", 1);
+        coalescer.add(first);
+        coalescer.add(event(IndexEvent.Type.UPDATE, "pid-2", 1));
+        Assert.assertTrue(emitting.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(coalescer.add(event(IndexEvent.Type.UPDATE, "pid-3", 1)));
+        Assert.assertTrue(coalescer.add(event(IndexEvent.Type.UPDATE, "pid-4", 1)));
+        final IndexEvent second = event(IndexEvent.Type.UPDATE, "pid-1", 2);
+        final List<Boolean> firstEmitted = new ArrayList<Boolean>();
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean accepted = coalescer.add(second);
+                    firstEmitted.add(emitted.contains(first));
+                    if (!accepted) {
+                        emitted.add(second);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        submitter.start();
+        submitter.join(200);
+        Assert.assertTrue(submitter.isAlive());
+        release.countDown();
+        submitter.join(5000);
+        Assert.assertFalse(submitter.isAlive());
+        Assert.assertEquals(Collections.singletonList(Boolean.TRUE), firstEmitted);
+        coalescer.shutdown();
+        Assert.assertTrue(emitted.indexOf(first) < emitted.indexOf(second));
+    }
+
+    private IndexEvent event(IndexEvent.Type type, String pidValue, long serialVersion) {
+        Identifier pid = new Identifier();
+        pid.setValue(pidValue);
+        SystemMetadata sysmeta = new SystemMetadata();
+        sysmeta.setIdentifier(pid);
+        sysmeta.setSerialVersion(BigInteger.valueOf(serialVersion));
+        return new IndexEvent(type, pid, sysmeta);
+    }
+}
@@ -0,0 +1,560 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.dataone.cn.index.generator.IndexTaskGenerator;
+import org.dataone.cn.index.generator.filter.HZEventFilter;
+import org.dataone.cn.index.generator.filter.SolrStateCache;
+import org.dataone.cn.index.generator.filter.StubSolrClient;
+import org.dataone.cn.index.generator.filter.SystemMetadataDigest;
+import org.dataone.cn.index.generator.reconcile.Watermark;
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.configuration.Settings;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hazelcast.core.IMap;
+
+public class IndexEventPipelineTest {
+
+    private static final int PIDS = 20;
+    private static final int VERSIONS = 50;
+
+    @After
+    public void tearDown() {
+        Settings.getConfiguration().clearProperty("indexEvent.pipeline.lanes");
+        Settings.getConfiguration().clearProperty("indexEvent.pipeline.batch.size");
+        Settings.getConfiguration().clearProperty("indexEvent.pipeline.digest");
+        Settings.getConfiguration().clearProperty("indexEvent.pipeline.queue.capacity");
+        Settings.getConfiguration().clearProperty("indexEvent.journal.dir");
+        Settings.getConfiguration().clearProperty("indexEvent.storm.enter.rate");
+        Settings.getConfiguration().clearProperty("indexEvent.storm.sustain");
+    }
+
+    @Test
+    public void testLaneIndex() {
+        Assert.assertEquals(0, IndexEventPipeline.laneIndex("urn:uuid:1", 1));
+        for (int i = 0; i < 1000; i++) {
+            String pid = "pid-" + i;
+            int lane = IndexEventPipeline.laneIndex(pid, 16);
+            Assert.assertTrue(lane >= 0 && lane < 16);
+            Assert.assertEquals(lane, IndexEventPipeline.laneIndex(pid, 16));
+        }
+    }
+
+    /**
+     * The events of a pid are saved in the order they were submitted, while
+     * the pids are spread over several lanes.
+     */
+    @Test
+    public void testEventsOfPidKeepOrder() throws Exception {
+        Settings.getConfiguration().setProperty("indexEvent.pipeline.lanes", 4);
+        Settings.getConfiguration().setProperty("indexEvent.pipeline.batch.size", 3);
+        RecordingGenerator generator = new RecordingGenerator(PIDS * VERSIONS);
+        IndexEventPipeline pipeline = new IndexEventPipeline(generator, null);
+        Assert.assertEquals(4, pipeline.getLaneCount());
+        Assert.assertEquals(4, pipeline.getLaneSizes().length);
+        pipeline.start();
+        for (int version = 1; version <= VERSIONS; version++) {
+            for (int i = 0; i < PIDS; i++) {
+                SystemMetadata sysmeta = new SystemMetadata();
+                Identifier pid = new Identifier();
+                pid.setValue("pid-" + i);
+                sysmeta.setIdentifier(pid);
+                sysmeta.setSerialVersion(BigInteger.valueOf(version));
+                pipeline.submit(new IndexEvent(IndexEvent.Type.REMOVE, pid, sysmeta));
+            }
+        }
+        Assert.assertTrue(generator.done.await(30, TimeUnit.SECONDS));
+        pipeline.shutdown();
+        Assert.assertEquals(0, pipeline.size());
+        Assert.assertEquals(PIDS, generator.saved.size());
+        for (List<Long> versions : generator.saved.values()) {
+            Assert.assertEquals(VERSIONS, versions.size());
+            for (int i = 0; i < VERSIONS; i++) {
+                Assert.assertEquals(Long.valueOf(i + 1), versions.get(i));
+            }
+        }
+    }
+
+    /**
+     * The remove events of a key-only listener have no system metadata. Their
+     * delete tasks are built and recorded from the pid, and the ignored pids
+     * get none.
+     */
+    @Test
+    public void testKeyOnlyRemove() throws Exception {
+        Settings.getConfiguration().setProperty("indexEvent.pipeline.lanes", 2);
+        RecordingGenerator generator = new RecordingGenerator(PIDS);
+        IndexEventPipeline pipeline = new IndexEventPipeline(generator, null);
+        pipeline.start();
+        for (int i = 0; i < PIDS; i++) {
+            Identifier pid = new Identifier();
+            pid.setValue("pid-" + i);
+            pipeline.submit(new IndexEvent(IndexEvent.Type.REMOVE, pid, null));
+            Identifier ignored = new Identifier();
+            ignored.setValue("ignored-" + i);
+            pipeline.submit(new IndexEvent(IndexEvent.Type.REMOVE, ignored, null));
+        }
+        Assert.assertTrue(generator.done.await(30, TimeUnit.SECONDS));
+        pipeline.shutdown();
+        Assert.assertEquals(PIDS, generator.saved.size());
+        for (int i = 0; i < PIDS; i++) {
+            Assert.assertEquals(Arrays.asList(Long.valueOf(0)), generator.saved.get("pid-" + i));
+            Assert.assertNull(generator.saved.get("ignored-" + i));
+        }
+    }
+
+    /**
+     * In the digest mode a remove event keeps its system metadata: the
+     * ignored pids get no delete task and the delete tasks of the others are
+     * built from the system metadata, with the format of the object.
+     */
+    @Test
+    public void testDigestModeRemove() throws Exception {
+        Settings.getConfiguration().setProperty("indexEvent.pipeline.lanes", 2);
+        Settings.getConfiguration().setProperty("indexEvent.pipeline.digest", true);
+        RecordingGenerator generator = new RecordingGenerator(PIDS);
+        IndexEventPipeline pipeline = new IndexEventPipeline(generator, null,
+                fakeMap(new HashMap<Identifier, SystemMetadata>()), false);
+        pipeline.start();
+        for (int i = 0; i < PIDS; i++) {
+            SystemMetadata ignored = sysmeta("ignored-" + i, "text/csv");
+            pipeline.submit(new IndexEvent(IndexEvent.Type.REMOVE, ignored.getIdentifier(), ignored));
+            SystemMetadata sysmeta = sysmeta("pid-" + i, "text/csv");
+            pipeline.submit(new IndexEvent(IndexEvent.Type.REMOVE, sysmeta.getIdentifier(), sysmeta));
+        }
+        Assert.assertTrue(generator.done.await(30, TimeUnit.SECONDS));
+        pipeline.shutdown();
+        Assert.assertEquals(PIDS, generator.saved.size());
+        Assert.assertEquals(PIDS, generator.formats.size());
+        for (int i = 0; i < PIDS; i++) {
+            Assert.assertEquals(Arrays.asList(Long.valueOf(1)), generator.saved.get("pid-" + i));
+            Assert.assertEquals("text/csv", generator.formats.get("pid-" + i));
+            Assert.assertNull(generator.saved.get("ignored-" + i));
+        }
+    }
+
+    /**
+     * The system metadata of a scanned event is read again before its task is
+     * built, so a scan which read it before a newer live event of the pid
+     * doesn't replace the task of the live event with an older one.
+     */
+    @Test
+    public void testScannedEventIsReadAgain() throws Exception {
+        Settings.getConfiguration().setProperty("indexEvent.pipeline.lanes", 1);
+        Map<Identifier, SystemMetadata> values = new HashMap<Identifier, SystemMetadata>();
+        SystemMetadata current = sysmeta("pid-0", "text/csv");
+        current.setSerialVersion(BigInteger.valueOf(5));
+        values.put(current.getIdentifier(), current);
+        RecordingGenerator generator = new RecordingGenerator(2) {
+            @Override
+            public boolean[] needsIndexing(List<SystemMetadata> smds, int solrBatchSize) {
+                boolean[] needsIndexing = new boolean[smds.size()];
+                Arrays.fill(needsIndexing, true);
+                return needsIndexing;
+            }
+        };
+        IndexEventPipeline pipeline = new IndexEventPipeline(generator,
+                fakeMap(new HashMap<Identifier, String>()), fakeMap(values), false);
+        pipeline.start();
+        pipeline.submit(new IndexEvent(IndexEvent.Type.UPDATE, current.getIdentifier(), current));
+        IndexEvent scanned = new IndexEvent(IndexEvent.Type.UPDATE, current.getIdentifier(),
+                sysmeta("pid-0", "text/csv"));
+        scanned.setScanned(true);
+        pipeline.submit(scanned);
+        Assert.assertTrue(generator.done.await(30, TimeUnit.SECONDS));
+        pipeline.shutdown();
+        Assert.assertEquals(Arrays.asList(Long.valueOf(5), Long.valueOf(5)), generator.saved.get("pid-0"));
+    }
+
+    /**
+     * An event repeating the system metadata of a saved task is filtered out
+     * by the state the generator recorded for the task, without asking solr.
+     */
+    @Test
+    public void testDuplicateEventIsFilteredByRecordedState() throws Exception {
+        Settings.getConfiguration().setProperty("indexEvent.pipeline.lanes", 1);
+        HZEventFilter sharedFilter = IndexTaskGenerator.getFilter();
+        StubSolrClient solr = new StubSolrClient();
+        IndexTaskGenerator.setFilter(new HZEventFilter(solr, new SolrStateCache(1000, 60000)));
+        try {
+            final List<IndexTask> saved = new ArrayList<IndexTask>();
+            final CountDownLatch first = new CountDownLatch(1);
+            IndexTaskGenerator generator = new IndexTaskGenerator() {
+                @Override
+                public List<IndexTask> saveTasks(List<IndexTask> tasks) {
+                    synchronized (saved) {
+                        saved.addAll(tasks);
+                    }
+                    return tasks;
+                }
+
+                @Override
+                public void recordIndexTask(SystemMetadata smd, boolean deleted) {
+                    super.recordIndexTask(smd, deleted);
+                    first.countDown();
+                }
+            };
+            Map<Identifier, String> paths = new HashMap<Identifier, String>();
+            Date modified = new Date(System.currentTimeMillis() - 60000);
+            SystemMetadata sysmeta = sysmeta("pid-0", "text/csv");
+            sysmeta.setDateSysMetadataModified(modified);
+            paths.put(sysmeta.getIdentifier(), "/objects/pid-0");
+            IndexEventPipeline pipeline = new IndexEventPipeline(generator, fakeMap(paths));
+            pipeline.start();
+            pipeline.submit(new IndexEvent(IndexEvent.Type.UPDATE, sysmeta.getIdentifier(), sysmeta));
+            Assert.assertTrue(first.await(30, TimeUnit.SECONDS));
+            SystemMetadata duplicate = sysmeta("pid-0", "text/csv");
+            duplicate.setDateSysMetadataModified(new Date(modified.getTime()));
+            pipeline.submit(new IndexEvent(IndexEvent.Type.UPDATE, duplicate.getIdentifier(), duplicate));
+            pipeline.shutdown();
+            Assert.assertEquals(1, saved.size());
+            Assert.assertEquals(1, solr.getRequestCount());
+        } finally {
+            IndexTaskGenerator.getFilter().closeSolrClient();
+            IndexTaskGenerator.setFilter(sharedFilter);
+        }
+    }
+
+    /**
+     * The events of a catch up scan don't switch the pipeline to the bulk
+     * reconciliation, however fast they come, while the same rate of map
+     * events does.
+     */
+    @Test
+    public void testScannedEventsAreNoStorm() throws Exception {
+        Settings.getConfiguration().setProperty("indexEvent.storm.enter.rate", 5);
+        Settings.getConfiguration().setProperty("indexEvent.storm.sustain", 1);
+        IndexEventPipeline pipeline = new IndexEventPipeline(new RecordingGenerator(0), null);
+        pipeline.start();
+        try {
+            int pid = 0;
+            long end = System.currentTimeMillis() + 2500;
+            while (System.currentTimeMillis() < end) {
+                SystemMetadata sysmeta = sysmeta("pid-" + pid++, "text/csv");
+                IndexEvent event = new IndexEvent(IndexEvent.Type.REMOVE, sysmeta.getIdentifier(), sysmeta);
+                event.setScanned(true);
+                pipeline.submit(event);
+                Thread.sleep(20);
+            }
+            Assert.assertFalse(pipeline.isReconciling());
+            end = System.currentTimeMillis() + 2500;
+            while (System.currentTimeMillis() < end && !pipeline.isReconciling()) {
+                SystemMetadata sysmeta = sysmeta("pid-" + pid++, "text/csv");
+                pipeline.submit(new IndexEvent(IndexEvent.Type.REMOVE, sysmeta.getIdentifier(), sysmeta));
+                Thread.sleep(20);
+            }
+            Assert.assertTrue(pipeline.isReconciling());
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    /**
+     * An older event still in flight in one lane keeps the checkpoint back
+     * while a newer event finishes in another lane.
+     */
+    @Test
+    public void testWatermarkWaitsForEventsInFlight() throws Exception {
+        Settings.getConfiguration().setProperty("indexEvent.pipeline.lanes", 2);
+        String slow = "pid-0";
+        String fast = "pid-1";
+        while (IndexEventPipeline.laneIndex(fast, 2) == IndexEventPipeline.laneIndex(slow, 2)) {
+            fast = fast + "1";
+        }
+        final String slowPid = slow;
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingGenerator generator = new RecordingGenerator(2) {
+            @Override
+            public IndexTask buildDeleteTask(SystemMetadata smd) {
+                if (smd.getIdentifier().getValue().equals(slowPid)) {
+                    blocked.countDown();
+                    try {
+                        release.await(30, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.buildDeleteTask(smd);
+            }
+        };
+        File file = File.createTempFile("index-generator", ".watermark");
+        file.delete();
+        try {
+            Watermark watermark = new Watermark(file);
+            IndexEventPipeline pipeline = new IndexEventPipeline(generator, null);
+            pipeline.setWatermark(watermark);
+            pipeline.start();
+            SystemMetadata older = sysmeta(slow, "text/csv");
+            older.setDateSysMetadataModified(new Date(1000));
+            pipeline.submit(new IndexEvent(IndexEvent.Type.REMOVE, older.getIdentifier(), older));
+            Assert.assertTrue(blocked.await(30, TimeUnit.SECONDS));
+            SystemMetadata newer = sysmeta(fast, "text/csv");
+            newer.setDateSysMetadataModified(new Date(5000));
+            pipeline.submit(new IndexEvent(IndexEvent.Type.REMOVE, newer.getIdentifier(), newer));
+            long deadline = System.currentTimeMillis() + 30000;
+            while (watermark.get() < 5000 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(5000, watermark.get());
+            Assert.assertEquals(1000, watermark.getCheckpointValue());
+
+            release.countDown();
+            Assert.assertTrue(generator.done.await(30, TimeUnit.SECONDS));
+            pipeline.shutdown();
+            Assert.assertEquals(5000, watermark.getCheckpointValue());
+        } finally {
+            release.countDown();
+            file.delete();
+        }
+    }
+
+    /**
+     * The events spilled to the journal stay in it until they are processed:
+     * the processed ones are gone on the next start, while the ones whose
+     * task couldn't be built are read again.
+     */
+    @Test
+    public void testSpilledEventsStayUntilProcessed() throws Exception {
+        Settings.getConfiguration().setProperty("indexEvent.pipeline.lanes", 1);
+        Settings.getConfiguration().setProperty("indexEvent.pipeline.batch.size", 1);
+        Settings.getConfiguration().setProperty("indexEvent.pipeline.queue.capacity", 1);
+        File dir = File.createTempFile("index-generator", "-journal");
+        dir.delete();
+        Settings.getConfiguration().setProperty("indexEvent.journal.dir", dir.getPath());
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingGenerator generator = new RecordingGenerator(PIDS) {
+            @Override
+            public IndexTask buildDeleteTask(SystemMetadata smd) {
+                String pid = smd.getIdentifier().getValue();
+                if (pid.equals("pid-0")) {
+                    blocked.countDown();
+                    try {
+                        release.await(30, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else if (pid.startsWith("lost")) {
+                    throw new IllegalStateException("no task for " + pid);
+                }
+                return super.buildDeleteTask(smd);
+            }
+        };
+        try {
+            IndexEventPipeline pipeline = new IndexEventPipeline(generator, null);
+            pipeline.start();
+            pipeline.submit(new IndexEvent(IndexEvent.Type.REMOVE, sysmeta("pid-0", "text/csv").getIdentifier(),
+                    sysmeta("pid-0", "text/csv")));
+            Assert.assertTrue(blocked.await(30, TimeUnit.SECONDS));
+            for (int i = 1; i < PIDS; i++) {
+                SystemMetadata sysmeta = sysmeta("pid-" + i, "text/csv");
+                pipeline.submit(new IndexEvent(IndexEvent.Type.REMOVE, sysmeta.getIdentifier(), sysmeta));
+            }
+            SystemMetadata lost = sysmeta("lost-0", "text/csv");
+            pipeline.submit(new IndexEvent(IndexEvent.Type.REMOVE, lost.getIdentifier(), lost));
+            Assert.assertTrue(pipeline.getJournalSize() > 0);
+            release.countDown();
+            Assert.assertTrue(generator.done.await(30, TimeUnit.SECONDS));
+            pipeline.shutdown();
+
+            SpillJournal journal = new SpillJournal(dir, 64 * 1024 * 1024, 1024L * 1024 * 1024);
+            Assert.assertEquals(1, journal.size());
+            Assert.assertEquals("lost-0", IndexEventRecord.decode(journal.poll().getPayload()).getPid().getValue());
+            journal.close();
+        } finally {
+            release.countDown();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * The slim events are decided by their digest and the others by their
+     * system metadata, each in its place.
+     */
+    @Test
+    public void testNeedsIndexingMixesSlimEvents() throws Exception {
+        List<IndexEvent> events = new ArrayList<IndexEvent>();
+        for (int i = 0; i < 6; i++) {
+            SystemMetadata sysmeta = new SystemMetadata();
+            Identifier pid = new Identifier();
+            pid.setValue("pid-" + i);
+            sysmeta.setIdentifier(pid);
+            sysmeta.setSerialVersion(BigInteger.valueOf(i));
+            IndexEvent event = new IndexEvent(IndexEvent.Type.UPDATE, pid, sysmeta);
+            if (i % 3 == 0) {
+                event.slim();
+            }
+            events.add(event);
+        }
+        IndexTaskGenerator generator = new IndexTaskGenerator() {
+            @Override
+            public boolean[] needsIndexing(List<SystemMetadata> smds, int solrBatchSize) {
+                boolean[] needsIndexing = new boolean[smds.size()];
+                for (int i = 0; i < needsIndexing.length; i++) {
+                    needsIndexing[i] = smds.get(i).getSerialVersion().longValue() % 2 == 0;
+                }
+                return needsIndexing;
+            }
+
+            @Override
+            public boolean[] needsIndexingDigests(List<SystemMetadataDigest> digests, int solrBatchSize) {
+                boolean[] needsIndexing = new boolean[digests.size()];
+                for (int i = 0; i < needsIndexing.length; i++) {
+                    needsIndexing[i] = digests.get(i).getSerialVersion() == 3;
+                }
+                return needsIndexing;
+            }
+        };
+        boolean[] decisions = IndexEventPipeline.needsIndexing(generator, events, 100);
+        Assert.assertEquals(Arrays.toString(new boolean[] { false, false, true, true, true, false }),
+                Arrays.toString(decisions));
+    }
+
+    private static SystemMetadata sysmeta(String value, String format) {
+        SystemMetadata sysmeta = new SystemMetadata();
+        Identifier pid = new Identifier();
+        pid.setValue(value);
+        sysmeta.setIdentifier(pid);
+        sysmeta.setSerialVersion(BigInteger.ONE);
+        ObjectFormatIdentifier formatId = new ObjectFormatIdentifier();
+        formatId.setValue(format);
+        sysmeta.setFormatId(formatId);
+        return sysmeta;
+    }
+
+    /**
+     * A hazelcast map serving the get and getAll calls from a local map.
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> IMap<Identifier, V> fakeMap(final Map<Identifier, V> values) {
+        return (IMap<Identifier, V>) Proxy.newProxyInstance(IndexEventPipelineTest.class.getClassLoader(),
+                new Class<?>[] { IMap.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("get")) {
+                            return values.get(args[0]);
+                        }
+                        if (method.getName().equals("getAll")) {
+                            Map<Identifier, V> result = new HashMap<Identifier, V>();
+                            for (Object key : (Set<?>) args[0]) {
+                                if (values.containsKey(key)) {
+                                    result.put((Identifier) key, values.get(key));
+                                }
+                            }
+                            return result;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Grants every delete event except those of the pids starting with
+     * "ignored", and records the serial versions of the saved
+     * tasks of each pid, 0 for a task without system metadata, instead of writing to the database.
+     */
+    private static class RecordingGenerator extends IndexTaskGenerator {
+        private final Map<String, List<Long>> saved = new HashMap<String, List<Long>>();
+        private final Map<String, String> formats = new HashMap<String, String>();
+        private final CountDownLatch done;
+
+        private RecordingGenerator(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public boolean[] needsIndexing(List<SystemMetadata> smds) {
+            return new boolean[smds.size()];
+        }
+
+        @Override
+        public boolean needsDeleting(SystemMetadata smd) {
+            return !smd.getIdentifier().getValue().startsWith("ignored");
+        }
+
+        @Override
+        public IndexTask buildDeleteTask(SystemMetadata smd) {
+            if (smd.getFormatId() != null) {
+                synchronized (formats) {
+                    formats.put(smd.getIdentifier().getValue(), smd.getFormatId().getValue());
+                }
+            }
+            return new IndexTask();
+        }
+
+        @Override
+        public List<IndexTask> saveTasks(List<IndexTask> tasks) {
+            return tasks;
+        }
+
+        @Override
+        public void recordIndexTask(SystemMetadata smd, boolean deleted) {
+            record(smd.getIdentifier().getValue(), smd.getSerialVersion().longValue());
+        }
+
+        @Override
+        public void recordDeleteTask(Identifier pid) {
+            record(pid.getValue(), 0);
+        }
+
+        private void record(String pid, long serialVersion) {
+            synchronized (saved) {
+                List<Long> versions = saved.get(pid);
+                if (versions == null) {
+                    versions = new ArrayList<Long>();
+                    saved.put(pid, versions);
+                }
+                versions.add(serialVersion);
+            }
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Date;
+
+import org.dataone.cn.index.generator.filter.SystemMetadataDigest;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexEventRecordTest {
+
+    /**
+     * A slim event keeps its digest through the journal.
+     */
+    @Test
+    public void testSlimEvent() throws Exception {
+        SystemMetadata sysmeta = new SystemMetadata();
+        Identifier pid = new Identifier();
+        pid.setValue("urn:uuid:slim");
+        sysmeta.setIdentifier(pid);
+        sysmeta.setDateSysMetadataModified(new Date(1500000000000L));
+        sysmeta.setSerialVersion(BigInteger.valueOf(7));
+        sysmeta.setArchived(true);
+        IndexEvent event = new IndexEvent(IndexEvent.Type.UPDATE, pid, sysmeta);
+        event.slim();
+        event.setScanned(true);
+        Assert.assertTrue(event.isSlim());
+
+        IndexEvent decoded = IndexEventRecord.decode(IndexEventRecord.encode(event));
+        Assert.assertEquals(IndexEvent.Type.UPDATE, decoded.getType());
+        Assert.assertEquals("urn:uuid:slim", decoded.getPid().getValue());
+        Assert.assertNull(decoded.getSysmeta());
+        Assert.assertTrue(decoded.isSlim());
+        Assert.assertTrue(decoded.isScanned());
+        SystemMetadataDigest digest = decoded.getDigest();
+        Assert.assertEquals("urn:uuid:slim", digest.getPid());
+        Assert.assertEquals(1500000000000L, digest.getDateModified());
+        Assert.assertEquals(7, digest.getSerialVersion());
+        Assert.assertTrue(digest.isArchived());
+        Assert.assertEquals(event.getDigest().getReplicaDigest(), digest.getReplicaDigest());
+    }
+
+    /**
+     * An event with its system metadata keeps every field through the journal.
+     */
+    @Test
+    public void testFullEvent() throws Exception {
+        SystemMetadata sysmeta = SystemMetadataCodecTest.fullSystemMetadata();
+        IndexEvent event = new IndexEvent(IndexEvent.Type.ADD, sysmeta.getIdentifier(), sysmeta);
+        IndexEvent decoded = IndexEventRecord.decode(IndexEventRecord.encode(event));
+        Assert.assertEquals(IndexEvent.Type.ADD, decoded.getType());
+        Assert.assertEquals(sysmeta.getIdentifier().getValue(), decoded.getPid().getValue());
+        Assert.assertFalse(decoded.isSlim());
+        Assert.assertFalse(decoded.isScanned());
+        SystemMetadataCodecTest.assertSameSystemMetadata(sysmeta, decoded.getSysmeta());
+    }
+
+    /**
+     * A record of any other version than the current one is rejected.
+     */
+    @Test
+    public void testOtherVersionsAreRejected() throws Exception {
+        SystemMetadata sysmeta = SystemMetadataCodecTest.fullSystemMetadata();
+        byte[] payload = IndexEventRecord.encode(new IndexEvent(IndexEvent.Type.ADD, sysmeta.getIdentifier(),
+                sysmeta));
+        for (byte version : new byte[] { 1, 2, 4 }) {
+            payload[0] = version;
+            try {
+                IndexEventRecord.decode(payload);
+                Assert.fail("the record of version " + version + " was read");
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage().contains("unknown record version " + version));
+            }
+        }
+    }
+}
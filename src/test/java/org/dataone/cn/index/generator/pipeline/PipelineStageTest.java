@@ -0,0 +1,148 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.dataone.cn.index.generator.metrics.GeneratorMetrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PipelineStageTest {
+
+    @Test
+    public void testItemsFlowToNextStage() throws Exception {
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(100);
+        PipelineStage<Integer> last = new PipelineStage<Integer>("last", 10, 1, 5,
+                new PipelineStage.Handler<Integer>() {
+                    @Override
+                    public List<Integer> process(List<Integer> batch) {
+                        received.addAll(batch);
+                        for (int i = 0; i < batch.size(); i++) {
+                            done.countDown();
+                        }
+                        return null;
+                    }
+                });
+        PipelineStage<Integer> first = new PipelineStage<Integer>("first", 10, 1, 5,
+                new PipelineStage.Handler<Integer>() {
+                    @Override
+                    public List<Integer> process(List<Integer> batch) {
+                        Assert.assertTrue(batch.size() <= 5);
+                        return batch;
+                    }
+                });
+        first.setNext(last);
+        last.start();
+        first.start();
+        for (int i = 0; i < 100; i++) {
+            first.put(i);
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        first.shutdown(5000);
+        last.shutdown(5000);
+        Assert.assertEquals(100, received.size());
+        //one worker per stage keeps the order
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(Integer.valueOf(i), received.get(i));
+        }
+    }
+
+    /**
+     * A failing batch is processed one by one. The item which still fails is
+     * counted as lost, or handed to the next stage by a granting stage.
+     */
+    @Test
+    public void testFailedBatchIsProcessedOneByOne() throws Exception {
+        Assert.assertEquals(19, processWithBadItem(false).size());
+        List<Integer> granted = processWithBadItem(true);
+        Assert.assertEquals(20, granted.size());
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(Integer.valueOf(i), granted.get(i));
+        }
+    }
+
+    private List<Integer> processWithBadItem(boolean grantOnFailure) throws Exception {
+        GeneratorMetrics metrics = GeneratorMetrics.getInstance();
+        long lost = metrics.getCount("pipeline.lost");
+        long grantedOnFailure = metrics.getCount("pipeline.granted.on.failure");
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(grantOnFailure ? 20 : 19);
+        PipelineStage<Integer> last = new PipelineStage<Integer>("last", 10, 1, 5,
+                new PipelineStage.Handler<Integer>() {
+                    @Override
+                    public List<Integer> process(List<Integer> batch) {
+                        received.addAll(batch);
+                        for (int i = 0; i < batch.size(); i++) {
+                            done.countDown();
+                        }
+                        return null;
+                    }
+                });
+        PipelineStage<Integer> first = new PipelineStage<Integer>("first", 30, 1, 5,
+                new PipelineStage.Handler<Integer>() {
+                    @Override
+                    public List<Integer> process(List<Integer> batch) {
+                        if (batch.contains(13)) {
+                            throw new IllegalStateException("bad item");
+                        }
+                        return new ArrayList<Integer>(batch);
+                    }
+                });
+        first.setNext(last);
+        first.setGrantOnFailure(grantOnFailure);
+        for (int i = 0; i < 20; i++) {
+            first.put(i);
+        }
+        last.start();
+        first.start();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        first.shutdown(5000);
+        last.shutdown(5000);
+        Assert.assertEquals(grantOnFailure ? 0 : 1, metrics.getCount("pipeline.lost") - lost);
+        Assert.assertEquals(grantOnFailure ? 1 : 0,
+                metrics.getCount("pipeline.granted.on.failure") - grantedOnFailure);
+        return received;
+    }
+
+    @Test
+    public void testOfferRejectsWhenFull() {
+        PipelineStage<Integer> stage = new PipelineStage<Integer>("full", 2, 1, 1,
+                new PipelineStage.Handler<Integer>() {
+                    @Override
+                    public List<Integer> process(List<Integer> batch) {
+                        return null;
+                    }
+                });
+        //not started, so nothing drains the queue
+        Assert.assertTrue(stage.offer(1));
+        Assert.assertTrue(stage.offer(2));
+        Assert.assertFalse(stage.offer(3));
+        Assert.assertEquals(2, stage.size());
+    }
+}
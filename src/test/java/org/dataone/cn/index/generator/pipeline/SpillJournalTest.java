@@ -0,0 +1,200 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpillJournalTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("spill-journal", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testRecordsAreReadInOrderAcrossSegments() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, SEGMENT_SIZE, 100 * SEGMENT_SIZE);
+        Assert.assertTrue(journal.isEmpty());
+        Assert.assertNull(journal.poll());
+        for (int i = 0; i < 200; i++) {
+            Assert.assertTrue(journal.append(record(i)));
+        }
+        Assert.assertEquals(200, journal.size());
+        Assert.assertTrue(journal.getSegmentCount() > 1);
+        List<SpillJournal.Record> read = new ArrayList<SpillJournal.Record>();
+        for (int i = 0; i < 200; i++) {
+            SpillJournal.Record record = journal.poll();
+            Assert.assertEquals("record-" + i, new String(record.getPayload(), "UTF-8"));
+            read.add(record);
+        }
+        Assert.assertNull(journal.poll());
+        Assert.assertTrue(journal.isEmpty());
+        //the records stay until they are acknowledged
+        int segments = journal.getSegmentCount();
+        Assert.assertTrue(segments > 1);
+        Assert.assertEquals(200, journal.getUnacknowledgedCount());
+        for (SpillJournal.Record record : read) {
+            record.acknowledge();
+            record.acknowledge();
+        }
+        Assert.assertEquals(0, journal.getUnacknowledgedCount());
+        //only the segment being written is left
+        Assert.assertEquals(1, journal.getSegmentCount());
+        journal.close();
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, SEGMENT_SIZE, 2 * SEGMENT_SIZE);
+        int appended = 0;
+        while (journal.append(record(appended))) {
+            appended++;
+        }
+        Assert.assertEquals(2, journal.getSegmentCount());
+        Assert.assertEquals(appended, journal.size());
+        //acknowledging the records of the first segment frees space for a new one
+        int read = 0;
+        while (journal.getSegmentCount() == 2) {
+            SpillJournal.Record record = journal.poll();
+            Assert.assertEquals("record-" + read, new String(record.getPayload(), "UTF-8"));
+            record.acknowledge();
+            read++;
+        }
+        Assert.assertTrue(journal.append(record(appended)));
+        journal.close();
+    }
+
+    @Test
+    public void testUnacknowledgedRecordsSurviveReopen() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, SEGMENT_SIZE, 100 * SEGMENT_SIZE);
+        for (int i = 0; i < 100; i++) {
+            journal.append(record(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            SpillJournal.Record record = journal.poll();
+            if (i < 5) {
+                record.acknowledge();
+            }
+        }
+        journal.close();
+        journal = new SpillJournal(directory, SEGMENT_SIZE, 100 * SEGMENT_SIZE);
+        Assert.assertFalse(journal.isEmpty());
+        Assert.assertEquals(95, journal.size());
+        //the records read but not acknowledged are read again
+        Assert.assertEquals("record-5", new String(journal.poll().getPayload(), "UTF-8"));
+        journal.append(record(100));
+        int last = 0;
+        SpillJournal.Record record;
+        while ((record = journal.poll()) != null) {
+            last = Integer.parseInt(new String(record.getPayload(), "UTF-8").substring("record-".length()));
+        }
+        Assert.assertEquals(100, last);
+        journal.close();
+    }
+
+    /**
+     * The records acknowledged out of order are read again after a reopen
+     * until every record before them was acknowledged too.
+     */
+    @Test
+    public void testOutOfOrderAcknowledgement() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, SEGMENT_SIZE, 100 * SEGMENT_SIZE);
+        for (int i = 0; i < 4; i++) {
+            journal.append(record(i));
+        }
+        SpillJournal.Record[] read = new SpillJournal.Record[4];
+        for (int i = 0; i < 4; i++) {
+            read[i] = journal.poll();
+        }
+        read[1].acknowledge();
+        read[2].acknowledge();
+        journal.close();
+        //acknowledging after the close does nothing
+        read[0].acknowledge();
+
+        journal = new SpillJournal(directory, SEGMENT_SIZE, 100 * SEGMENT_SIZE);
+        Assert.assertEquals(4, journal.size());
+        for (int i = 0; i < 4; i++) {
+            read[i] = journal.poll();
+            Assert.assertEquals("record-" + i, new String(read[i].getPayload(), "UTF-8"));
+        }
+        read[1].acknowledge();
+        read[0].acknowledge();
+        journal.close();
+
+        journal = new SpillJournal(directory, SEGMENT_SIZE, 100 * SEGMENT_SIZE);
+        Assert.assertEquals(2, journal.size());
+        Assert.assertEquals("record-2", new String(journal.poll().getPayload(), "UTF-8"));
+        journal.close();
+    }
+
+    @Test
+    public void testBadChecksumCutsSegment() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, SEGMENT_SIZE, 100 * SEGMENT_SIZE);
+        for (int i = 0; i < 5; i++) {
+            journal.append(record(i));
+        }
+        journal.close();
+        File[] files = directory.listFiles();
+        Assert.assertEquals(1, files.length);
+        //corrupt the payload of the third record
+        int recordSize = 8 + record(0).length;
+        RandomAccessFile raf = new RandomAccessFile(files[0], "rw");
+        raf.seek(12 + 2 * recordSize + 8);
+        raf.write('X');
+        raf.close();
+        journal = new SpillJournal(directory, SEGMENT_SIZE, 100 * SEGMENT_SIZE);
+        Assert.assertEquals(2, journal.size());
+        Assert.assertEquals("record-0", new String(journal.poll().getPayload(), "UTF-8"));
+        Assert.assertEquals("record-1", new String(journal.poll().getPayload(), "UTF-8"));
+        Assert.assertNull(journal.poll());
+        journal.close();
+    }
+
+    private static byte[] record(int i) throws Exception {
+        return String.format("record-%d", i).getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StormDetectorTest {
+
+    @Test
+    public void testSustainedRateStartsAndEndsStorm() {
+        StormDetector detector = new StormDetector(100, 20, 3);
+        long now = 1000000;
+        //a short burst isn't a storm
+        Assert.assertFalse(mark(detector, now, 500));
+        Assert.assertFalse(mark(detector, now + 1000, 10));
+        Assert.assertFalse(detector.isStorm(now + 2000));
+        //three seconds at the enter rate are
+        Assert.assertFalse(mark(detector, now + 3000, 100));
+        Assert.assertFalse(mark(detector, now + 4000, 150));
+        Assert.assertFalse(mark(detector, now + 5000, 100));
+        Assert.assertTrue(detector.isStorm(now + 6000));
+        //a rate between the exit and the enter rate keeps the storm going
+        Assert.assertTrue(mark(detector, now + 6000, 50));
+        Assert.assertTrue(mark(detector, now + 7000, 50));
+        Assert.assertTrue(mark(detector, now + 8000, 50));
+        Assert.assertTrue(mark(detector, now + 9000, 5));
+        Assert.assertTrue(mark(detector, now + 10000, 5));
+        Assert.assertTrue(detector.isStorm(now + 11000));
+        Assert.assertTrue(mark(detector, now + 11000, 5));
+        Assert.assertFalse(detector.isStorm(now + 12000));
+    }
+
+    @Test
+    public void testStormEndsWithoutEvents() {
+        StormDetector detector = new StormDetector(10, 5, 2);
+        long now = 1000000;
+        mark(detector, now, 10);
+        mark(detector, now + 1000, 10);
+        Assert.assertTrue(detector.isStorm(now + 2000));
+        //a long pause ends the storm
+        Assert.assertFalse(detector.isStorm(now + 3600000));
+    }
+
+    private boolean mark(StormDetector detector, long millis, int events) {
+        boolean storm = false;
+        for (int i = 0; i < events; i++) {
+            storm = detector.mark(millis + i * 999L / Math.max(1, events));
+        }
+        return storm;
+    }
+}
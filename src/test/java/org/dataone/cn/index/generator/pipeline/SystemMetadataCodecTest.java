@@ -0,0 +1,298 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.dataone.service.types.v1.AccessPolicy;
+import org.dataone.service.types.v1.AccessRule;
+import org.dataone.service.types.v1.Checksum;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dataone.service.types.v1.Permission;
+import org.dataone.service.types.v1.Replica;
+import org.dataone.service.types.v1.ReplicationPolicy;
+import org.dataone.service.types.v1.ReplicationStatus;
+import org.dataone.service.types.v1.Subject;
+import org.dataone.service.types.v2.MediaType;
+import org.dataone.service.types.v2.MediaTypeProperty;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.dataone.service.util.TypeMarshaller;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SystemMetadataCodecTest {
+
+    private static final String SAMPLE = "/org/dataone/cn/index/resources/samples/v2/systemMetadataSample.xml";
+
+    /**
+     * The sample system metadata of the test resources survives the round trip.
+     */
+    @Test
+    public void testSampleRoundTrip() throws Exception {
+        InputStream in = getClass().getResourceAsStream(SAMPLE);
+        SystemMetadata sysmeta;
+        try {
+            sysmeta = TypeMarshaller.unmarshalTypeFromStream(SystemMetadata.class, in);
+        } finally {
+            in.close();
+        }
+        Assert.assertNotNull(sysmeta);
+        SystemMetadata decoded = SystemMetadataCodec.decode(SystemMetadataCodec.encode(sysmeta));
+        assertSameSystemMetadata(sysmeta, decoded);
+    }
+
+    /**
+     * Every field, including the v2 ones and the null values within the
+     * nested types, survives the round trip.
+     */
+    @Test
+    public void testAllFieldsRoundTrip() throws Exception {
+        SystemMetadata sysmeta = fullSystemMetadata();
+        SystemMetadata decoded = SystemMetadataCodec.decode(SystemMetadataCodec.encode(sysmeta));
+        assertSameSystemMetadata(sysmeta, decoded);
+
+        SystemMetadata empty = new SystemMetadata();
+        decoded = SystemMetadataCodec.decode(SystemMetadataCodec.encode(empty));
+        assertSameSystemMetadata(empty, decoded);
+        Assert.assertNull(decoded.getIdentifier());
+        Assert.assertNull(decoded.getArchived());
+    }
+
+    /**
+     * A repeated node id only costs its dictionary index.
+     */
+    @Test
+    public void testRepeatedValuesUseTheDictionary() throws Exception {
+        SystemMetadata sysmeta = new SystemMetadata();
+        sysmeta.setIdentifier(identifier("urn:uuid:dictionary"));
+        sysmeta.setOriginMemberNode(node("urn:node:mnTestKNB"));
+        int once = SystemMetadataCodec.encode(sysmeta).length;
+        sysmeta.setAuthoritativeMemberNode(node("urn:node:mnTestKNB"));
+        int twice = SystemMetadataCodec.encode(sysmeta).length;
+        Assert.assertEquals(once + 1, twice);
+        SystemMetadata decoded = SystemMetadataCodec.decode(SystemMetadataCodec.encode(sysmeta));
+        Assert.assertEquals("urn:node:mnTestKNB", decoded.getAuthoritativeMemberNode().getValue());
+    }
+
+    /**
+     * Truncated, extended or unknown encodings are rejected.
+     */
+    @Test
+    public void testCorruptEncodings() throws Exception {
+        byte[] bytes = SystemMetadataCodec.encode(fullSystemMetadata());
+        for (int length = 0; length < bytes.length; length++) {
+            assertRejected(Arrays.copyOf(bytes, length));
+        }
+        assertRejected(Arrays.copyOf(bytes, bytes.length + 1));
+        byte[] unknown = bytes.clone();
+        unknown[0] = SystemMetadataCodec.VERSION + 1;
+        assertRejected(unknown);
+    }
+
+    private static void assertRejected(byte[] bytes) {
+        try {
+            SystemMetadataCodec.decode(bytes);
+            Assert.fail("decoded a corrupt encoding of " + bytes.length + " bytes");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    static SystemMetadata fullSystemMetadata() {
+        SystemMetadata sysmeta = new SystemMetadata();
+        sysmeta.setSerialVersion(BigInteger.valueOf(12));
+        sysmeta.setIdentifier(identifier("urn:uuid:codec"));
+        ObjectFormatIdentifier formatId = new ObjectFormatIdentifier();
+        formatId.setValue("eml://ecoinformatics.org/eml-2.1.1");
+        sysmeta.setFormatId(formatId);
+        sysmeta.setSize(new BigInteger("123456789012345678901234567890"));
+        Checksum checksum = new Checksum();
+        checksum.setAlgorithm("SHA-1");
+        checksum.setValue("2e01e17467891f7c933dbaa00e1459d23db3fe4f");
+        sysmeta.setChecksum(checksum);
+        sysmeta.setSubmitter(subject("uid=jones,o=NCEAS,dc=ecoinformatics,dc=org"));
+        sysmeta.setRightsHolder(subject("uid=jones,o=NCEAS,dc=ecoinformatics,dc=org"));
+        AccessRule read = new AccessRule();
+        read.setSubjectList(new ArrayList<Subject>(Arrays.asList(subject("public"), subject("authenticatedUser"))));
+        read.setPermissionList(new ArrayList<Permission>(Arrays.asList(Permission.READ)));
+        AccessRule write = new AccessRule();
+        write.setSubjectList(new ArrayList<Subject>(Arrays.asList(subject("uid=jones,o=NCEAS,dc=ecoinformatics,dc=org"))));
+        write.setPermissionList(new ArrayList<Permission>(Arrays.asList(Permission.WRITE, Permission.CHANGE_PERMISSION)));
+        AccessPolicy accessPolicy = new AccessPolicy();
+        accessPolicy.setAllowList(new ArrayList<AccessRule>(Arrays.asList(read, write)));
+        sysmeta.setAccessPolicy(accessPolicy);
+        ReplicationPolicy replicationPolicy = new ReplicationPolicy();
+        replicationPolicy.setReplicationAllowed(false);
+        replicationPolicy.setNumberReplicas(-1);
+        replicationPolicy.setPreferredMemberNodeList(new ArrayList<NodeReference>(Arrays.asList(node("urn:node:mnA"),
+                node("urn:node:mnB"))));
+        replicationPolicy.setBlockedMemberNodeList(new ArrayList<NodeReference>(Arrays.asList(node("urn:node:mnC"))));
+        sysmeta.setReplicationPolicy(replicationPolicy);
+        sysmeta.setObsoletes(identifier("urn:uuid:codec-old"));
+        sysmeta.setObsoletedBy(identifier("urn:uuid:codec-new"));
+        sysmeta.setArchived(false);
+        sysmeta.setDateUploaded(new Date(-1000L));
+        sysmeta.setDateSysMetadataModified(new Date(1500000000123L));
+        sysmeta.setOriginMemberNode(node("urn:node:mnA"));
+        sysmeta.setAuthoritativeMemberNode(node("urn:node:mnA"));
+        List<Replica> replicas = new ArrayList<Replica>();
+        replicas.add(replica(node("urn:node:mnA"), ReplicationStatus.COMPLETED, new Date(1500000000000L)));
+        replicas.add(replica(node("urn:node:mnB"), ReplicationStatus.QUEUED, null));
+        replicas.add(replica(null, null, new Date(0L)));
+        sysmeta.setReplicaList(replicas);
+        sysmeta.setSeriesId(identifier("urn:uuid:codec-series"));
+        MediaTypeProperty property = new MediaTypeProperty();
+        property.setName("charset");
+        property.setValue("UTF-8 \u00e9\u4e2d");
+        MediaType mediaType = new MediaType();
+        mediaType.setName("text/csv");
+        mediaType.setPropertyList(new ArrayList<MediaTypeProperty>(Arrays.asList(property)));
+        sysmeta.setMediaType(mediaType);
+        sysmeta.setFileName("data \u00e9.csv");
+        return sysmeta;
+    }
+
+    static void assertSameSystemMetadata(SystemMetadata expected, SystemMetadata actual) {
+        Assert.assertEquals(expected.getSerialVersion(), actual.getSerialVersion());
+        Assert.assertEquals(value(expected.getIdentifier()), value(actual.getIdentifier()));
+        Assert.assertEquals(expected.getFormatId() == null ? null : expected.getFormatId().getValue(),
+                actual.getFormatId() == null ? null : actual.getFormatId().getValue());
+        Assert.assertEquals(expected.getSize(), actual.getSize());
+        if (expected.getChecksum() == null) {
+            Assert.assertNull(actual.getChecksum());
+        } else {
+            Assert.assertEquals(expected.getChecksum().getValue(), actual.getChecksum().getValue());
+            Assert.assertEquals(expected.getChecksum().getAlgorithm(), actual.getChecksum().getAlgorithm());
+        }
+        Assert.assertEquals(value(expected.getSubmitter()), value(actual.getSubmitter()));
+        Assert.assertEquals(value(expected.getRightsHolder()), value(actual.getRightsHolder()));
+        if (expected.getAccessPolicy() == null) {
+            Assert.assertNull(actual.getAccessPolicy());
+        } else {
+            List<AccessRule> rules = expected.getAccessPolicy().getAllowList();
+            Assert.assertEquals(rules.size(), actual.getAccessPolicy().getAllowList().size());
+            for (int i = 0; i < rules.size(); i++) {
+                AccessRule rule = actual.getAccessPolicy().getAllowList().get(i);
+                Assert.assertEquals(rules.get(i).getSubjectList().size(), rule.getSubjectList().size());
+                for (int j = 0; j < rule.getSubjectList().size(); j++) {
+                    Assert.assertEquals(value(rules.get(i).getSubjectList().get(j)),
+                            value(rule.getSubjectList().get(j)));
+                }
+                Assert.assertEquals(rules.get(i).getPermissionList(), rule.getPermissionList());
+            }
+        }
+        if (expected.getReplicationPolicy() == null) {
+            Assert.assertNull(actual.getReplicationPolicy());
+        } else {
+            ReplicationPolicy policy = expected.getReplicationPolicy();
+            Assert.assertEquals(policy.getReplicationAllowed(), actual.getReplicationPolicy().getReplicationAllowed());
+            Assert.assertEquals(policy.getNumberReplicas(), actual.getReplicationPolicy().getNumberReplicas());
+            assertSameNodes(policy.getPreferredMemberNodeList(),
+                    actual.getReplicationPolicy().getPreferredMemberNodeList());
+            assertSameNodes(policy.getBlockedMemberNodeList(), actual.getReplicationPolicy().getBlockedMemberNodeList());
+        }
+        Assert.assertEquals(value(expected.getObsoletes()), value(actual.getObsoletes()));
+        Assert.assertEquals(value(expected.getObsoletedBy()), value(actual.getObsoletedBy()));
+        Assert.assertEquals(expected.getArchived(), actual.getArchived());
+        Assert.assertEquals(expected.getDateUploaded(), actual.getDateUploaded());
+        Assert.assertEquals(expected.getDateSysMetadataModified(), actual.getDateSysMetadataModified());
+        Assert.assertEquals(value(expected.getOriginMemberNode()), value(actual.getOriginMemberNode()));
+        Assert.assertEquals(value(expected.getAuthoritativeMemberNode()), value(actual.getAuthoritativeMemberNode()));
+        List<Replica> replicas = expected.getReplicaList() == null ? new ArrayList<Replica>()
+                : expected.getReplicaList();
+        Assert.assertEquals(replicas.size(), actual.getReplicaList().size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = actual.getReplicaList().get(i);
+            Assert.assertEquals(value(replicas.get(i).getReplicaMemberNode()), value(replica.getReplicaMemberNode()));
+            Assert.assertEquals(replicas.get(i).getReplicationStatus(), replica.getReplicationStatus());
+            Assert.assertEquals(replicas.get(i).getReplicaVerified(), replica.getReplicaVerified());
+        }
+        Assert.assertEquals(value(expected.getSeriesId()), value(actual.getSeriesId()));
+        if (expected.getMediaType() == null) {
+            Assert.assertNull(actual.getMediaType());
+        } else {
+            Assert.assertEquals(expected.getMediaType().getName(), actual.getMediaType().getName());
+            List<MediaTypeProperty> properties = expected.getMediaType().getPropertyList();
+            Assert.assertEquals(properties.size(), actual.getMediaType().getPropertyList().size());
+            for (int i = 0; i < properties.size(); i++) {
+                MediaTypeProperty property = actual.getMediaType().getPropertyList().get(i);
+                Assert.assertEquals(properties.get(i).getName(), property.getName());
+                Assert.assertEquals(properties.get(i).getValue(), property.getValue());
+            }
+        }
+        Assert.assertEquals(expected.getFileName(), actual.getFileName());
+    }
+
+    private static void assertSameNodes(List<NodeReference> expected, List<NodeReference> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(value(expected.get(i)), value(actual.get(i)));
+        }
+    }
+
+    private static String value(Identifier identifier) {
+        return identifier == null ? null : identifier.getValue();
+    }
+
+    private static String value(Subject subject) {
+        return subject == null ? null : subject.getValue();
+    }
+
+    private static String value(NodeReference node) {
+        return node == null ? null : node.getValue();
+    }
+
+    private static Identifier identifier(String value) {
+        Identifier identifier = new Identifier();
+        identifier.setValue(value);
+        return identifier;
+    }
+
+    private static Subject subject(String value) {
+        Subject subject = new Subject();
+        subject.setValue(value);
+        return subject;
+    }
+
+    private static NodeReference node(String value) {
+        NodeReference node = new NodeReference();
+        node.setValue(value);
+        return node;
+    }
+
+    private static Replica replica(NodeReference node, ReplicationStatus status, Date verified) {
+        Replica replica = new Replica();
+        replica.setReplicaMemberNode(node);
+        replica.setReplicationStatus(status);
+        replica.setReplicaVerified(verified);
+        return replica;
+    }
+}
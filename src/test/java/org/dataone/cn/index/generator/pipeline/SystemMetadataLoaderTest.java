@@ -0,0 +1,158 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.pipeline;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hazelcast.core.IMap;
+
+public class SystemMetadataLoaderTest {
+
+    /**
+     * The add and update events get their system metadata, the events of
+     * removed pids and the add events of later versions are dropped, and the
+     * remove events are kept without a value.
+     */
+    @Test
+    public void testLoad() {
+        FakeMap map = new FakeMap(false);
+        map.values.put(pid("added"), sysmeta("added", 1));
+        map.values.put(pid("updated"), sysmeta("updated", 3));
+        map.values.put(pid("later"), sysmeta("later", 2));
+        SystemMetadata received = sysmeta("received", 5);
+        List<IndexEvent> batch = Arrays.asList(new IndexEvent(IndexEvent.Type.ADD, pid("added"), null),
+                new IndexEvent(IndexEvent.Type.UPDATE, pid("updated"), null),
+                new IndexEvent(IndexEvent.Type.UPDATE, pid("gone"), null),
+                new IndexEvent(IndexEvent.Type.ADD, pid("later"), null),
+                new IndexEvent(IndexEvent.Type.REMOVE, pid("removed"), null),
+                new IndexEvent(IndexEvent.Type.UPDATE, pid("received"), received));
+        List<IndexEvent> loaded = new SystemMetadataLoader(map.proxy()).load(batch);
+        Assert.assertEquals(4, loaded.size());
+        Assert.assertEquals("added", loaded.get(0).getPid().getValue());
+        Assert.assertEquals(BigInteger.ONE, loaded.get(0).getSysmeta().getSerialVersion());
+        Assert.assertEquals("updated", loaded.get(1).getPid().getValue());
+        Assert.assertEquals(BigInteger.valueOf(3), loaded.get(1).getSysmeta().getSerialVersion());
+        Assert.assertEquals(IndexEvent.Type.REMOVE, loaded.get(2).getType());
+        Assert.assertNull(loaded.get(2).getSysmeta());
+        Assert.assertSame(received, loaded.get(3).getSysmeta());
+        Assert.assertEquals(1, map.getAllCalls);
+        Assert.assertEquals(4, map.requested);
+    }
+
+    /**
+     * A batch without missing values doesn't call the map.
+     */
+    @Test
+    public void testNothingToLoad() {
+        FakeMap map = new FakeMap(false);
+        List<IndexEvent> batch = Arrays.asList(new IndexEvent(IndexEvent.Type.REMOVE, pid("removed"), null),
+                new IndexEvent(IndexEvent.Type.ADD, pid("received"), sysmeta("received", 1)));
+        Assert.assertSame(batch, new SystemMetadataLoader(map.proxy()).load(batch));
+        Assert.assertEquals(0, map.getAllCalls);
+    }
+
+    /**
+     * The values are fetched one by one when the batched call fails.
+     */
+    @Test
+    public void testGetAllFails() {
+        FakeMap map = new FakeMap(true);
+        map.values.put(pid("updated"), sysmeta("updated", 2));
+        List<IndexEvent> loaded = new SystemMetadataLoader(map.proxy()).load(Arrays.asList(
+                new IndexEvent(IndexEvent.Type.UPDATE, pid("updated"), null),
+                new IndexEvent(IndexEvent.Type.UPDATE, pid("gone"), null)));
+        Assert.assertEquals(1, loaded.size());
+        Assert.assertEquals(BigInteger.valueOf(2), loaded.get(0).getSysmeta().getSerialVersion());
+        Assert.assertEquals(2, map.getCalls);
+    }
+
+    private static Identifier pid(String value) {
+        Identifier pid = new Identifier();
+        pid.setValue(value);
+        return pid;
+    }
+
+    private static SystemMetadata sysmeta(String pid, long serialVersion) {
+        SystemMetadata sysmeta = new SystemMetadata();
+        sysmeta.setIdentifier(pid(pid));
+        sysmeta.setSerialVersion(BigInteger.valueOf(serialVersion));
+        return sysmeta;
+    }
+
+    /**
+     * Serves the get and getAll calls of an IMap from a local map.
+     */
+    private static class FakeMap implements InvocationHandler {
+        private final Map<Identifier, SystemMetadata> values = new HashMap<Identifier, SystemMetadata>();
+        private final boolean failGetAll;
+        private int getAllCalls = 0;
+        private int getCalls = 0;
+        private int requested = 0;
+
+        private FakeMap(boolean failGetAll) {
+            this.failGetAll = failGetAll;
+        }
+
+        @SuppressWarnings("unchecked")
+        private IMap<Identifier, SystemMetadata> proxy() {
+            return (IMap<Identifier, SystemMetadata>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { IMap.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getAll")) {
+                getAllCalls++;
+                if (failGetAll) {
+                    throw new IllegalStateException("the cluster is not reachable");
+                }
+                Map<Identifier, SystemMetadata> result = new HashMap<Identifier, SystemMetadata>();
+                for (Object key : (Set<?>) args[0]) {
+                    requested++;
+                    if (values.containsKey(key)) {
+                        result.put((Identifier) key, values.get(key));
+                    }
+                }
+                return result;
+            }
+            if (method.getName().equals("get")) {
+                getCalls++;
+                return values.get(args[0]);
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.reconcile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.dataone.cn.index.generator.pipeline.EventCoalescer;
+import org.dataone.cn.index.generator.pipeline.IndexEvent;
+import org.dataone.service.types.v1.Identifier;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CatchUpScannerTest {
+
+    /**
+     * Every pid modified since the watermark is handed to the sink once, in
+     * pages read in parallel, after a single predicate query, and the older
+     * ones are not.
+     */
+    @Test
+    public void testScan() throws Exception {
+        long now = System.currentTimeMillis();
+        Date since = new Date(now - 100000);
+        DateSource source = new DateSource();
+        for (int i = 0; i < 100; i++) {
+            source.add("old-" + i, new Date(since.getTime() - 1 - i));
+            source.add("new-" + i, new Date(since.getTime() + i * 1000));
+        }
+        //modified after the scan started
+        source.add("latest", new Date(now + 60000));
+        final List<String> emitted = Collections.synchronizedList(new ArrayList<String>());
+        CatchUpScanner scanner = new CatchUpScanner(source, new EventCoalescer.Sink() {
+            @Override
+            public void emit(IndexEvent event) {
+                Assert.assertEquals(IndexEvent.Type.UPDATE, event.getType());
+                Assert.assertEquals(event.getPid().getValue(), event.getSysmeta().getIdentifier().getValue());
+                Assert.assertTrue(event.isScanned());
+                emitted.add(event.getPid().getValue());
+            }
+        }, 4, 7);
+        Assert.assertEquals(101, scanner.scan(since));
+        Assert.assertEquals(101, emitted.size());
+        Assert.assertEquals(101, new HashSet<String>(emitted).size());
+        Assert.assertTrue(emitted.contains("latest"));
+        for (String pid : emitted) {
+            Assert.assertFalse(pid.startsWith("old-"));
+        }
+        Assert.assertEquals(1, source.queries);
+    }
+
+    /**
+     * The pids the filter rejects are not read.
+     */
+    @Test
+    public void testScanFilteredPids() throws Exception {
+        Date since = new Date(System.currentTimeMillis() - 100000);
+        DateSource source = new DateSource();
+        for (int i = 0; i < 100; i++) {
+            source.add("pid-" + i, new Date(since.getTime() + i * 1000));
+        }
+        final List<String> emitted = Collections.synchronizedList(new ArrayList<String>());
+        CatchUpScanner scanner = new CatchUpScanner(source, new EventCoalescer.Sink() {
+            @Override
+            public void emit(IndexEvent event) {
+                emitted.add(event.getPid().getValue());
+            }
+        }, 4, 7, new CatchUpScanner.PidFilter() {
+            @Override
+            public boolean accepts(String pid) {
+                return pid.endsWith("0");
+            }
+        });
+        Assert.assertEquals(10, scanner.scan(since));
+        Assert.assertEquals(10, emitted.size());
+        Assert.assertEquals(10, source.read.size());
+        for (String pid : source.read) {
+            Assert.assertTrue(pid.endsWith("0"));
+        }
+    }
+
+    private static class DateSource implements SystemMetadataSource {
+        private final Map<String, SystemMetadata> sysmetas = new HashMap<String, SystemMetadata>();
+        private int queries = 0;
+        private final List<String> read = Collections.synchronizedList(new ArrayList<String>());
+
+        private void add(String pid, Date modified) {
+            Identifier identifier = new Identifier();
+            identifier.setValue(pid);
+            SystemMetadata sysmeta = new SystemMetadata();
+            sysmeta.setIdentifier(identifier);
+            sysmeta.setDateSysMetadataModified(modified);
+            sysmetas.put(pid, sysmeta);
+        }
+
+        @Override
+        public List<String> getPids() {
+            return new ArrayList<String>(sysmetas.keySet());
+        }
+
+        @Override
+        public synchronized List<String> getPidsModified(Date from, Date to) {
+            queries++;
+            List<String> pids = new ArrayList<String>();
+            for (SystemMetadata sysmeta : sysmetas.values()) {
+                Date date = sysmeta.getDateSysMetadataModified();
+                if (!date.before(from) && (to == null || date.before(to))) {
+                    pids.add(sysmeta.getIdentifier().getValue());
+                }
+            }
+            return pids;
+        }
+
+        @Override
+        public Map<String, SystemMetadata> getSystemMetadata(Collection<String> pids) {
+            Assert.assertTrue(pids.size() <= 7);
+            read.addAll(pids);
+            Map<String, SystemMetadata> result = new HashMap<String, SystemMetadata>();
+            for (String pid : pids) {
+                result.put(pid, sysmetas.get(pid));
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, String> getObjectPaths(Collection<String> pids) {
+            return Collections.emptyMap();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.reconcile;
+
+import static org.dataone.cn.index.generator.filter.SystemMetadataFixture.sysmeta;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dataone.cn.index.generator.IndexTaskGenerator;
+import org.dataone.cn.index.generator.filter.HZEventFilter;
+import org.dataone.cn.index.generator.filter.StubSolrClient;
+import org.dataone.cn.index.task.IndexTask;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexReconcilerTest {
+
+    private StubSolrClient solr;
+    private MapSource source;
+    private RecordingGenerator generator;
+    private Date modified;
+
+    @Before
+    public void setUp() {
+        solr = new StubSolrClient();
+        source = new MapSource();
+        generator = new RecordingGenerator();
+        //far older than the max age of the event filter, which the reconciliation doesn't apply
+        modified = new Date(1000000000000L);
+        //not in solr
+        source.add(sysmeta("a-missing", modified, 1, false));
+        //archived and not in solr
+        source.add(sysmeta("b-archived", modified, 1, true));
+        //up to date
+        solr.addDocument("c-current", modified, 2L, null, null);
+        source.add(sysmeta("c-current", modified, 2, false));
+        //solr has an older version
+        solr.addDocument("d-stale", new Date(modified.getTime() - 1000), 1L, null, null);
+        source.add(sysmeta("d-stale", modified, 2, false));
+        //in solr only
+        solr.addDocument("e-orphan", modified, 1L, null, null);
+        solr.addDocument("0-orphan", modified, 1L, null, null);
+        for (int i = 0; i < 10; i++) {
+            solr.addDocument("f-current-" + i, modified, 1L, null, null);
+            source.add(sysmeta("f-current-" + i, modified, 1, false));
+        }
+        //in the map, but gone when its system metadata is read
+        source.pids.add("g-removed");
+    }
+
+    @Test
+    public void testCreatesTasksForDifferences() throws Exception {
+        IndexReconciler reconciler = new IndexReconciler(source, solr, new HZEventFilter(solr, null), generator,
+                3, 2, 2, new RateLimiter(0), false);
+        Assert.assertEquals(2, reconciler.run());
+        Assert.assertEquals(15, reconciler.getScannedCount());
+        Assert.assertEquals(1, reconciler.getMissingCount());
+        Assert.assertEquals(1, reconciler.getStaleCount());
+        Assert.assertEquals(2, reconciler.getOrphanCount());
+        Assert.assertEquals(2, generator.saved.size());
+        Assert.assertEquals(1, generator.added.size());
+        Assert.assertEquals("/objects/a-missing", generator.added.get("a-missing"));
+        Assert.assertEquals(1, generator.updated.size());
+        Assert.assertEquals("/objects/d-stale", generator.updated.get("d-stale"));
+    }
+
+    @Test
+    public void testDryRunSavesNothing() throws Exception {
+        IndexReconciler reconciler = new IndexReconciler(source, solr, new HZEventFilter(solr, null), generator,
+                1, 100, 100, new RateLimiter(0), true);
+        Assert.assertEquals(2, reconciler.run());
+        Assert.assertEquals(2, reconciler.getTaskCount());
+        Assert.assertTrue(generator.saved.isEmpty());
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        RateLimiter limiter = new RateLimiter(100);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire(10);
+        }
+        //the first call is free, the other 40 permits take 400 ms
+        Assert.assertTrue((System.nanoTime() - start) / 1000000 >= 390);
+    }
+
+    private static class MapSource implements SystemMetadataSource {
+        private final List<String> pids = new ArrayList<String>();
+        private final Map<String, SystemMetadata> sysmetas = new HashMap<String, SystemMetadata>();
+
+        private void add(SystemMetadata sysmeta) {
+            pids.add(sysmeta.getIdentifier().getValue());
+            sysmetas.put(sysmeta.getIdentifier().getValue(), sysmeta);
+        }
+
+        @Override
+        public List<String> getPids() {
+            return new ArrayList<String>(pids);
+        }
+
+        @Override
+        public List<String> getPidsModified(Date from, Date to) {
+            List<String> modified = new ArrayList<String>();
+            for (String pid : pids) {
+                Date date = sysmetas.get(pid).getDateSysMetadataModified();
+                if (!date.before(from) && (to == null || date.before(to))) {
+                    modified.add(pid);
+                }
+            }
+            return modified;
+        }
+
+        @Override
+        public Map<String, SystemMetadata> getSystemMetadata(Collection<String> ids) {
+            Map<String, SystemMetadata> result = new HashMap<String, SystemMetadata>();
+            for (String id : ids) {
+                if (sysmetas.containsKey(id)) {
+                    result.put(id, sysmetas.get(id));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, String> getObjectPaths(Collection<String> ids) {
+            Map<String, String> result = new HashMap<String, String>();
+            for (String id : ids) {
+                result.put(id, "/objects/" + id);
+            }
+            return result;
+        }
+    }
+
+    private static class RecordingGenerator extends IndexTaskGenerator {
+        private final List<IndexTask> saved = new ArrayList<IndexTask>();
+        private final Map<String, String> added = new HashMap<String, String>();
+        private final Map<String, String> updated = new HashMap<String, String>();
+
+        @Override
+        public synchronized IndexTask buildAddTask(SystemMetadata smd, String objectPath) {
+            added.put(smd.getIdentifier().getValue(), objectPath);
+            return super.buildAddTask(smd, objectPath);
+        }
+
+        @Override
+        public synchronized IndexTask buildUpdateTask(SystemMetadata smd, String objectPath) {
+            updated.put(smd.getIdentifier().getValue(), objectPath);
+            return super.buildUpdateTask(smd, objectPath);
+        }
+
+        @Override
+        public synchronized List<IndexTask> saveTasks(List<IndexTask> tasks) {
+            saved.addAll(tasks);
+            return tasks;
+        }
+    }
+}
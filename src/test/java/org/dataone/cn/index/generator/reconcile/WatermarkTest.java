@@ -0,0 +1,110 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.reconcile;
+
+import java.io.File;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WatermarkTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("index-generator", ".watermark");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * The watermark only moves forward and is read back by the next run.
+     */
+    @Test
+    public void testCheckpoint() throws Exception {
+        Watermark watermark = new Watermark(file);
+        Assert.assertNull(watermark.getLoaded());
+        //nothing to write yet
+        Assert.assertFalse(watermark.checkpoint());
+        watermark.advance(new Date(2000));
+        watermark.advance(new Date(1000));
+        watermark.advance(null);
+        Assert.assertEquals(2000, watermark.get());
+        Assert.assertTrue(watermark.checkpoint());
+        Assert.assertFalse(watermark.checkpoint());
+
+        Watermark next = new Watermark(file);
+        Assert.assertEquals(new Date(2000), next.getLoaded());
+        Assert.assertEquals(2000, next.get());
+    }
+
+    /**
+     * The checkpoint doesn't pass the oldest event in flight, even once newer
+     * events were processed.
+     */
+    @Test
+    public void testEventsInFlight() throws Exception {
+        Watermark watermark = new Watermark(file);
+        Assert.assertEquals(Long.MAX_VALUE, watermark.getOldestInFlight());
+        watermark.begin(1000);
+        watermark.begin(1000);
+        watermark.begin(3000);
+        watermark.advance(new Date(3000));
+        watermark.end(3000);
+        Assert.assertEquals(1000, watermark.getOldestInFlight());
+        Assert.assertEquals(1000, watermark.getCheckpointValue());
+        watermark.end(1000);
+        Assert.assertEquals(1000, watermark.getCheckpointValue());
+        watermark.end(1000);
+        //an unknown date is ignored
+        watermark.end(2000);
+        Assert.assertEquals(3000, watermark.getCheckpointValue());
+    }
+
+    /**
+     * While a catch-up scan holds the watermark, the checkpoint doesn't move
+     * past the held date.
+     */
+    @Test
+    public void testHold() throws Exception {
+        Watermark watermark = new Watermark(file);
+        watermark.advance(new Date(1000));
+        watermark.checkpoint();
+        watermark = new Watermark(file);
+        watermark.hold(watermark.getLoaded());
+        watermark.advance(new Date(5000));
+        Assert.assertFalse(watermark.checkpoint());
+        Assert.assertEquals(new Date(1000), new Watermark(file).getLoaded());
+        watermark.release();
+        watermark.stop();
+        Assert.assertEquals(new Date(5000), new Watermark(file).getLoaded());
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.shard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void testBalance() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("cn-1", "cn-2", "cn-3", "cn-4"), 128);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < 100000; i++) {
+            String owner = ring.owner("urn:uuid:ring-" + i);
+            Integer count = counts.get(owner);
+            counts.put(owner, count == null ? 1 : count + 1);
+        }
+        Assert.assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            //25000 each, within 20%
+            Assert.assertTrue("count: " + count, count > 20000 && count < 30000);
+        }
+        Assert.assertNull(new ConsistentHashRing(new ArrayList<String>(), 128).owner("pid"));
+    }
+
+    @Test
+    public void testJoinOnlyMovesPidsToNewMember() {
+        List<String> members = new ArrayList<String>(Arrays.asList("cn-1", "cn-2", "cn-3"));
+        ConsistentHashRing before = new ConsistentHashRing(members, 128);
+        members.add("cn-4");
+        ConsistentHashRing after = new ConsistentHashRing(members, 128);
+        int moved = 0;
+        for (int i = 0; i < 100000; i++) {
+            String pid = "doi:10.5063/ring" + i;
+            if (!before.owner(pid).equals(after.owner(pid))) {
+                Assert.assertEquals("cn-4", after.owner(pid));
+                moved++;
+            }
+        }
+        //about a quarter of the pids move
+        Assert.assertTrue("moved: " + moved, moved > 18000 && moved < 32000);
+        //the members agree on the owner whatever order they know each other in
+        ConsistentHashRing reordered = new ConsistentHashRing(Arrays.asList("cn-4", "cn-2", "cn-3", "cn-1"), 128);
+        Assert.assertEquals(after.owner("pid-1"), reordered.owner("pid-1"));
+    }
+}
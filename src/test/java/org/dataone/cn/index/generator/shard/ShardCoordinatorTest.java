@@ -0,0 +1,308 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For 
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ * 
+ * $Id$
+ */
+
+package org.dataone.cn.index.generator.shard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.dataone.cn.index.generator.pipeline.EventCoalescer;
+import org.dataone.cn.index.generator.pipeline.IndexEvent;
+import org.dataone.cn.index.generator.reconcile.CatchUpScanner;
+import org.dataone.cn.index.generator.reconcile.SystemMetadataSource;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardCoordinatorTest {
+
+    private static final long HEARTBEAT = 1000;
+    private static final long TIMEOUT = 5000;
+    private static final long GRACE = 10000;
+
+    private ConcurrentMap<String, Long> heartbeats;
+    private ShardCoordinator first;
+    private ShardCoordinator second;
+    private long now;
+
+    @Before
+    public void setUp() {
+        heartbeats = new ConcurrentHashMap<String, Long>();
+        first = new ShardCoordinator(heartbeats, "cn-1", 64, HEARTBEAT, TIMEOUT, GRACE);
+        second = new ShardCoordinator(heartbeats, "cn-2", 64, HEARTBEAT, TIMEOUT, GRACE);
+        now = 1000000;
+    }
+
+    @Test
+    public void testEachPidHasOneOwner() {
+        tick(first, second);
+        tick(first, second);
+        Assert.assertEquals(2, first.getMembers().size());
+        now += GRACE;
+        tick(first, second);
+        int firstOwns = 0;
+        for (int i = 0; i < 1000; i++) {
+            String pid = "pid-" + i;
+            Assert.assertTrue(first.owns(pid, now) ^ second.owns(pid, now));
+            if (first.owns(pid, now)) {
+                firstOwns++;
+            }
+        }
+        Assert.assertTrue(firstOwns > 300 && firstOwns < 700);
+    }
+
+    @Test
+    public void testPreviousOwnerKeepsPidsDuringGrace() {
+        tick(first);
+        //alone, the first owns every pid
+        Assert.assertTrue(first.owns("pid-1", now));
+        tick(first, second);
+        tick(first, second);
+        int shared = 0;
+        for (int i = 0; i < 1000; i++) {
+            String pid = "pid-" + i;
+            Assert.assertTrue(first.owns(pid, now));
+            if (second.owns(pid, now)) {
+                shared++;
+            }
+        }
+        Assert.assertTrue(shared > 300);
+        now += GRACE;
+        tick(first, second);
+        for (int i = 0; i < 1000; i++) {
+            String pid = "pid-" + i;
+            Assert.assertTrue(first.owns(pid, now) ^ second.owns(pid, now));
+        }
+    }
+
+    @Test
+    public void testSilentMemberIsCoveredThenRemoved() {
+        tick(first, second);
+        tick(first, second);
+        now += GRACE;
+        tick(first, second);
+        //the second stops heartbeating without leaving
+        for (int i = 0; i < 3; i++) {
+            tick(first);
+        }
+        Assert.assertEquals(2, first.getMembers().size());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(first.owns("pid-" + i, now));
+        }
+        for (int i = 0; i < 3; i++) {
+            tick(first);
+        }
+        Assert.assertEquals(1, first.getMembers().size());
+        //a clean stop removes the member at once
+        second.heartbeat();
+        tick(first);
+        Assert.assertEquals(2, first.getMembers().size());
+        second.stop();
+        tick(first);
+        Assert.assertEquals(1, first.getMembers().size());
+    }
+
+    /**
+     * The events a member received before it crashed are lost with it. When
+     * it becomes suspect, the instance taking over its pids is told and scans
+     * the changes made to them since its last heartbeat, so they are
+     * processed by that instance instead.
+     */
+    @Test
+    public void testCrashedMemberPidsAreScanned() throws Exception {
+        final List<ShardCoordinator.TakeOver> takeOvers = new ArrayList<ShardCoordinator.TakeOver>();
+        first.setFailoverListener(new ShardCoordinator.FailoverListener() {
+            @Override
+            public void memberFailed(ShardCoordinator.TakeOver takeOver) {
+                takeOvers.add(takeOver);
+            }
+        });
+        tick(first, second);
+        tick(first, second);
+        now += GRACE;
+        tick(first, second);
+        long crash = now;
+        Set<String> lost = new HashSet<String>();
+        final Map<String, Date> modified = new HashMap<String, Date>();
+        for (int i = 0; i < 1000; i++) {
+            String pid = "pid-" + i;
+            modified.put(pid, new Date(crash - 10));
+            if (second.owns(pid, now)) {
+                lost.add(pid);
+            }
+        }
+        for (int i = 0; i < 6; i++) {
+            tick(first);
+        }
+        Assert.assertEquals(1, first.getMembers().size());
+        Assert.assertEquals(1, takeOvers.size());
+        ShardCoordinator.TakeOver takeOver = takeOvers.get(0);
+        Assert.assertEquals("cn-2", takeOver.getMember());
+        Assert.assertEquals(crash, takeOver.getLastHeartbeat());
+
+        final Set<String> processed = new HashSet<String>();
+        CatchUpScanner scanner = new CatchUpScanner(new SystemMetadataSource() {
+            @Override
+            public List<String> getPids() {
+                return new ArrayList<String>(modified.keySet());
+            }
+
+            @Override
+            public List<String> getPidsModified(Date from, Date to) {
+                List<String> pids = new ArrayList<String>();
+                for (Map.Entry<String, Date> entry : modified.entrySet()) {
+                    if (!entry.getValue().before(from)) {
+                        pids.add(entry.getKey());
+                    }
+                }
+                return pids;
+            }
+
+            @Override
+            public Map<String, SystemMetadata> getSystemMetadata(Collection<String> pids) {
+                Map<String, SystemMetadata> sysmetas = new HashMap<String, SystemMetadata>();
+                for (String pid : pids) {
+                    sysmetas.put(pid, new SystemMetadata());
+                }
+                return sysmetas;
+            }
+
+            @Override
+            public Map<String, String> getObjectPaths(Collection<String> pids) {
+                return Collections.emptyMap();
+            }
+        }, new EventCoalescer.Sink() {
+            @Override
+            public void emit(IndexEvent event) {
+                synchronized (processed) {
+                    processed.add(event.getPid().getValue());
+                }
+            }
+        }, 2, 50, new CatchUpScanner.PidFilter() {
+            @Override
+            public boolean accepts(String pid) {
+                return takeOvers.get(0).covers(pid);
+            }
+        });
+        scanner.scan(new Date(takeOver.getLastHeartbeat() - 1000));
+        Assert.assertFalse(lost.isEmpty());
+        Assert.assertEquals(lost, processed);
+    }
+
+    /**
+     * The ring listener is told when the pids of an instance change, so the
+     * ledger of the pending tasks can be reseeded.
+     */
+    @Test
+    public void testRingListener() {
+        final List<Long> changes = new ArrayList<Long>();
+        first.setRingListener(new ShardCoordinator.RingListener() {
+            @Override
+            public void ringChanged(long graceMillis) {
+                changes.add(graceMillis);
+            }
+        });
+        tick(first, second);
+        tick(first, second);
+        Assert.assertEquals(Arrays.asList(GRACE), changes);
+        second.stop();
+        tick(first);
+        Assert.assertEquals(2, changes.size());
+        tick(first);
+        Assert.assertEquals(2, changes.size());
+    }
+
+    /**
+     * A member which stops cleanly is not taken over.
+     */
+    @Test
+    public void testCleanStopIsNotTakenOver() {
+        final List<ShardCoordinator.TakeOver> takeOvers = new ArrayList<ShardCoordinator.TakeOver>();
+        first.setFailoverListener(new ShardCoordinator.FailoverListener() {
+            @Override
+            public void memberFailed(ShardCoordinator.TakeOver takeOver) {
+                takeOvers.add(takeOver);
+            }
+        });
+        tick(first, second);
+        tick(first, second);
+        second.stop();
+        for (int i = 0; i < 6; i++) {
+            tick(first);
+        }
+        Assert.assertEquals(1, first.getMembers().size());
+        Assert.assertTrue(takeOvers.isEmpty());
+    }
+
+    /**
+     * A member which stops leaves the ring before it stops receiving events:
+     * the next refresh of the others takes over its pids, while it still owns
+     * them for the handover, and a late heartbeat doesn't join it again.
+     */
+    @Test
+    public void testCleanStopHandsOverAtOnce() {
+        tick(first, second);
+        now += GRACE;
+        tick(first, second);
+        List<String> pidsOfSecond = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            if (second.owns("pid-" + i, now)) {
+                pidsOfSecond.add("pid-" + i);
+            }
+        }
+        Assert.assertFalse(pidsOfSecond.isEmpty());
+        second.stop();
+        Assert.assertFalse(heartbeats.containsKey("cn-2"));
+        Assert.assertEquals(2 * HEARTBEAT, second.getHandoverMillis());
+        second.heartbeat();
+        Assert.assertFalse(heartbeats.containsKey("cn-2"));
+        first.refresh(now + 1);
+        Assert.assertEquals(1, first.getMembers().size());
+        for (String pid : pidsOfSecond) {
+            Assert.assertTrue(first.owns(pid, now + 1));
+            Assert.assertTrue(second.owns(pid, now + 1));
+        }
+    }
+
+    /**
+     * Let a heartbeat interval pass, heartbeating the given coordinators.
+     */
+    private void tick(ShardCoordinator... coordinators) {
+        now += HEARTBEAT;
+        for (ShardCoordinator coordinator : coordinators) {
+            coordinator.heartbeat();
+        }
+        first.refresh(now);
+        second.refresh(now);
+    }
+}
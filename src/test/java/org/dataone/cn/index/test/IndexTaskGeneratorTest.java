@@ -23,19 +23,26 @@
 package org.dataone.cn.index.test;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
 import org.dataone.cn.index.generator.IndexTaskGenerator;
+import org.dataone.cn.index.generator.filter.HZEventFilter;
+import org.dataone.cn.index.generator.filter.SolrClientFactory;
 import org.dataone.cn.index.task.IndexTask;
 import org.dataone.cn.index.task.IndexTaskRepository;
+import org.dataone.configuration.Settings;
 import org.dataone.service.types.v1.Checksum;
 import org.dataone.service.types.v1.Identifier;
 import org.dataone.service.types.v1.ObjectFormatIdentifier;
 import org.dataone.service.types.v1.Subject;
 import org.dataone.service.types.v2.SystemMetadata;
+import org.junit.After;
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -56,6 +63,27 @@ public class IndexTaskGeneratorTest {
     @Autowired
     private IndexTaskGenerator gen;
 
+    private HZEventFilter sharedFilter;
+
+    /**
+     * The tests save the same system metadata twice to exercise the removal
+     * of duplicated tasks, so the filter must not remember the state recorded
+     * by the first save.
+     */
+    @Before
+    public void setUp() {
+        sharedFilter = IndexTaskGenerator.getFilter();
+        String solrBaseURL = Settings.getConfiguration().getString("solr.base.uri",
+                "http://localhost:8983/solr/search_core");
+        IndexTaskGenerator.setFilter(new HZEventFilter(SolrClientFactory.create(solrBaseURL), null));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        IndexTaskGenerator.getFilter().closeSolrClient();
+        IndexTaskGenerator.setFilter(sharedFilter);
+    }
+
     @Test
     public void testInjection() {
         Assert.assertNotNull(repo);
@@ -79,6 +107,29 @@ public class IndexTaskGeneratorTest {
         Assert.assertNotNull(repo.findOne(task2Id));
     }
 
+    @Test
+    public void testSaveTasksReplacesDuplicates() {
+        String pidValue = "gen-test-batch-" + UUID.randomUUID().toString();
+        SystemMetadata smd = buildTestSysMetaData(pidValue, "CF-1.0");
+        IndexTask existing = gen.processSystemMetaDataAdd(smd, "test-obj-path");
+        Assert.assertNotNull(existing);
+
+        String otherPidValue = "gen-test-batch-" + UUID.randomUUID().toString();
+        SystemMetadata other = buildTestSysMetaData(otherPidValue, "CF-1.0");
+        List<IndexTask> tasks = new ArrayList<IndexTask>();
+        tasks.add(gen.buildUpdateTask(smd, "test-obj-path"));
+        tasks.add(gen.buildAddTask(other, "test-obj-path"));
+        tasks.add(gen.buildUpdateTask(other, "test-obj-path"));
+        List<IndexTask> saved = gen.saveTasks(tasks);
+
+        //the existing new task is replaced and only the last task of a pid is saved
+        Assert.assertEquals(2, saved.size());
+        Assert.assertFalse(repo.exists(existing.getId()));
+        Assert.assertEquals(1, repo.findByPid(pidValue).size());
+        Assert.assertEquals(1, repo.findByPid(otherPidValue).size());
+        Assert.assertEquals(saved.get(1).getId(), repo.findByPid(otherPidValue).get(0).getId());
+    }
+
     /**
      * This simple test method is redundant to what is present in
      * IndexTaskJpaRepositoryTest. Just sanity checking repo is working - ie